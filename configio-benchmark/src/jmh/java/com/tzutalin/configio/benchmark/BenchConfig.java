@@ -0,0 +1,32 @@
+/*
+*  Copyright (C) 2016 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.configio.benchmark;
+
+import com.tzutalin.configio.annotation.Config;
+import com.tzutalin.configio.annotation.Key;
+
+/**
+ * Typed view of two keys of the files of {@link BenchmarkFiles}
+ */
+@Config
+public interface BenchConfig {
+    @Key("key_500")
+    int intValue();
+
+    @Key("key_504")
+    String stringValue();
+}
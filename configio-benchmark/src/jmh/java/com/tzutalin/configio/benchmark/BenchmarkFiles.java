@@ -0,0 +1,137 @@
+/*
+*  Copyright (C) 2016 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.configio.benchmark;
+
+import com.tzutalin.configio.ConfigConverter;
+import com.tzutalin.configio.ConfigIO;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Config files of the benchmarks. Keys are "key_&lt;i&gt;", their values cycle through int, long, float,
+ * boolean and short strings, and every 100th value is a 4KB string.
+ */
+final class BenchmarkFiles {
+    static final int LARGE_STRING_LENGTH = 4096;
+
+    private BenchmarkFiles() {
+    }
+
+    /**
+     * @param format json, json-deflate, xml, xml-deflate, cfgb or cfgm
+     * @return the path of a file of the format in a new directory
+     */
+    static String newPath(String format) throws IOException {
+        File dir = File.createTempFile("configio-bench", "");
+        if (!dir.delete() || !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        return new File(dir, "config." + extension(format)).getPath();
+    }
+
+    /**
+     * @return a private config of the file, with the options of the format
+     */
+    static ConfigIO.Builder builder(String path, String format) {
+        ConfigIO.Builder builder = new ConfigIO.Builder(path);
+        if (format.endsWith("-deflate")) {
+            builder.setCompressThreshold(1);
+        }
+        return builder;
+    }
+
+    /**
+     * Write a file of size keys
+     *
+     * @return the path of the file
+     */
+    static String write(String format, int size) throws IOException {
+        if (format.equals("cfgm")) {
+            // Mapped files are read-only, they are converted from a binary file
+            String src = write("cfgb", size);
+            String dst = src.substring(0, src.length() - ".cfgb".length()) + ".cfgm";
+            if (!ConfigConverter.convert(src, dst)) {
+                throw new IOException("Cannot convert " + src);
+            }
+            return dst;
+        }
+        String path = newPath(format);
+        fill(builder(path, format).build().getWriter(), size).commit();
+        return path;
+    }
+
+    /**
+     * Delete the directory of a path returned by {@link #newPath} or {@link #write}
+     */
+    static void delete(String path) {
+        delete(new File(path).getParentFile());
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    static ConfigIO.Writer fill(ConfigIO.Writer writer, int size) {
+        String large = largeString();
+        for (int i = 0; i < size; i++) {
+            String key = "key_" + i;
+            if (i % 100 == 7) {
+                writer.putString(key, large);
+                continue;
+            }
+            switch (i % 5) {
+                case 0:
+                    writer.putInt(key, i);
+                    break;
+                case 1:
+                    writer.putLong(key, Integer.MAX_VALUE + (long) i);
+                    break;
+                case 2:
+                    writer.putFloat(key, i / 3f);
+                    break;
+                case 3:
+                    writer.putBoolean(key, i % 2 == 0);
+                    break;
+                default:
+                    writer.putString(key, "value of " + key);
+                    break;
+            }
+        }
+        return writer;
+    }
+
+    private static String extension(String format) {
+        int dash = format.indexOf('-');
+        return dash < 0 ? format : format.substring(0, dash);
+    }
+
+    private static String largeString() {
+        StringBuilder str = new StringBuilder(LARGE_STRING_LENGTH);
+        while (str.length() < LARGE_STRING_LENGTH) {
+            str.append("lorem ipsum <dolor> & \"sit\" amet ").append(str.length()).append('\n');
+        }
+        str.setLength(LARGE_STRING_LENGTH);
+        return str.toString();
+    }
+}
@@ -0,0 +1,103 @@
+/*
+*  Copyright (C) 2016 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.configio.benchmark;
+
+import com.tzutalin.configio.ConfigIO;
+import com.tzutalin.configio.TypedConfig;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of the getters of a loaded config, for keys in the file and keys which are not, and of the
+ * generated typed getters
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GetBenchmark {
+    @Param({"json", "xml", "cfgb"})
+    public String format;
+
+    // Not final, so the keys are not constants which the JIT could fold
+    private String mIntKey = "key_500";
+    private String mStringKey = "key_504";
+    private String mMissingKey = "key_missing";
+
+    private String mPath;
+    private ConfigIO mConfig;
+    private BenchConfig mTyped;
+
+    @Setup
+    public void setUp() throws IOException {
+        mPath = BenchmarkFiles.write(format, 1000);
+        mConfig = BenchmarkFiles.builder(mPath, format).build();
+        mConfig.loadFromFile();
+        mTyped = TypedConfig.load(BenchConfig.class, mPath);
+    }
+
+    @TearDown
+    public void tearDown() {
+        BenchmarkFiles.delete(mPath);
+    }
+
+    @Benchmark
+    public int getIntHit() {
+        return mConfig.getInt(mIntKey, -1);
+    }
+
+    @Benchmark
+    public int getIntMiss() {
+        return mConfig.getInt(mMissingKey, -1);
+    }
+
+    @Benchmark
+    public String getStringHit() {
+        return mConfig.getString(mStringKey, null);
+    }
+
+    @Benchmark
+    public String getStringMiss() {
+        return mConfig.getString(mMissingKey, null);
+    }
+
+    @Benchmark
+    public int typedInt() {
+        return mTyped.intValue();
+    }
+
+    @Benchmark
+    public String typedString() {
+        return mTyped.stringValue();
+    }
+}
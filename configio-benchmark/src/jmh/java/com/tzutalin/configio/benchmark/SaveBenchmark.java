@@ -0,0 +1,73 @@
+/*
+*  Copyright (C) 2016 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.configio.benchmark;
+
+import com.tzutalin.configio.ConfigIO;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Commit one changed key of a loaded config, which rewrites the whole file
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SaveBenchmark {
+    @Param({"json", "json-deflate", "xml", "xml-deflate", "cfgb"})
+    public String format;
+
+    @Param({"10", "1000", "100000"})
+    public int size;
+
+    private String mPath;
+    private ConfigIO mConfig;
+    private int mCounter;
+
+    @Setup
+    public void setUp() throws IOException {
+        mPath = BenchmarkFiles.write(format, size);
+        mConfig = BenchmarkFiles.builder(mPath, format).build();
+        mConfig.loadFromFile();
+    }
+
+    @TearDown
+    public void tearDown() {
+        BenchmarkFiles.delete(mPath);
+    }
+
+    @Benchmark
+    public boolean commit() {
+        return mConfig.getWriter().putInt("key_0", mCounter++).commit();
+    }
+}
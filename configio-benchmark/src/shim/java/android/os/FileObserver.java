@@ -0,0 +1,38 @@
+/*
+*  Copyright (C) 2016 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package android.os;
+
+/**
+ * JVM stand-in of android.os.FileObserver, it never reports an event
+ */
+public abstract class FileObserver {
+    public static final int MODIFY = 0x00000002;
+    public static final int CLOSE_WRITE = 0x00000008;
+    public static final int MOVED_TO = 0x00000080;
+    public static final int DELETE = 0x00000200;
+
+    public FileObserver(String path, int mask) {
+    }
+
+    public void startWatching() {
+    }
+
+    public void stopWatching() {
+    }
+
+    public abstract void onEvent(int event, String path);
+}
@@ -0,0 +1,396 @@
+/*
+*  Copyright (C) 2016 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.configio.compiler;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.Messager;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+
+/**
+ * Generates &lt;Name&gt;_Impl for every interface annotated with com.tzutalin.configio.annotation.Config.
+ * <p/>
+ * Each key gets a slot, a field of the nested Values class named after its method. The implementation maps the
+ * keys of the file to slots with a switch, so loading resolves a key once and a get is a field read.
+ * The processor checks the keys and parses their defaults, so a typo is a compile error instead of a missing
+ * value at runtime.
+ */
+public class ConfigProcessor extends AbstractProcessor {
+    static final String CONFIG = "com.tzutalin.configio.annotation.Config";
+    static final String KEY = "com.tzutalin.configio.annotation.Key";
+    static final String TYPED_CONFIG = "com.tzutalin.configio.TypedConfig";
+    static final String IMPL_SUFFIX = "_Impl";
+    // Key.NONE, a key without a default
+    static final String NONE = "\u0000";
+
+    // Methods of TypedConfig and Object, a key method cannot have their names
+    private static final Set<String> RESERVED = new HashSet<>(Arrays.asList("keys", "slotOf", "newValues", "set",
+            "values", "reload", "load", "bind", "toInt", "toLong", "toFloat", "toDouble", "toBoolean", "toString",
+            "hashCode", "getClass", "clone", "finalize"));
+
+    private Messager mMessager;
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        return new HashSet<>(Arrays.asList(CONFIG, KEY));
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        mMessager = processingEnv.getMessager();
+        TypeElement config = processingEnv.getElementUtils().getTypeElement(CONFIG);
+        if (config == null) {
+            return false;
+        }
+        for (Element element : roundEnv.getElementsAnnotatedWith(config)) {
+            if (element.getKind() != ElementKind.INTERFACE) {
+                error(element, "@Config is only for interfaces");
+            } else if (((TypeElement) element).getNestingKind() != NestingKind.TOP_LEVEL) {
+                error(element, "@Config interfaces have to be top-level");
+            } else {
+                generate((TypeElement) element);
+            }
+        }
+        return true;
+    }
+
+    private static class KeyMethod {
+        final String mName;
+        final String mKey;
+        final TypeKind mKind;
+        // Java literal of the default
+        final String mDefault;
+
+        KeyMethod(String name, String key, TypeKind kind, String def) {
+            mName = name;
+            mKey = key;
+            mKind = kind;
+            mDefault = def;
+        }
+    }
+
+    private void generate(TypeElement type) {
+        List<KeyMethod> methods = new ArrayList<>();
+        Map<String, String> keys = new HashMap<>();
+        boolean valid = true;
+        List<ExecutableElement> all = ElementFilter.methodsIn(processingEnv.getElementUtils().getAllMembers(type));
+        for (ExecutableElement method : all) {
+            if (method.getEnclosingElement().getKind() != ElementKind.INTERFACE
+                    || !method.getModifiers().contains(Modifier.ABSTRACT)) {
+                continue;
+            }
+            KeyMethod keyMethod = parse(method);
+            if (keyMethod == null) {
+                valid = false;
+                continue;
+            }
+            String other = keys.put(keyMethod.mKey, keyMethod.mName);
+            if (other != null) {
+                error(method, "Key \"" + keyMethod.mKey + "\" is also read by " + other + "()");
+                valid = false;
+                continue;
+            }
+            methods.add(keyMethod);
+        }
+        if (!valid) {
+            return;
+        }
+
+        String pkg = ((PackageElement) type.getEnclosingElement()).getQualifiedName().toString();
+        String implName = type.getSimpleName() + IMPL_SUFFIX;
+        String source = write(pkg, type.getSimpleName().toString(), implName, methods);
+        String qualifiedName = pkg.isEmpty() ? implName : pkg + "." + implName;
+        try {
+            Writer writer = processingEnv.getFiler().createSourceFile(qualifiedName, type).openWriter();
+            try {
+                writer.write(source);
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            error(type, "Cannot write " + qualifiedName + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the key of the method, or null after reporting why it cannot be one
+     */
+    private KeyMethod parse(ExecutableElement method) {
+        String name = method.getSimpleName().toString();
+        AnnotationMirror key = findAnnotation(method, KEY);
+        if (key == null) {
+            error(method, name + "() has no @Key");
+            return null;
+        }
+        if (!method.getParameters().isEmpty()) {
+            error(method, "@Key methods take no parameters");
+            return null;
+        }
+        if (RESERVED.contains(name)) {
+            error(method, name + "() is a method of " + TYPED_CONFIG + ", choose another name");
+            return null;
+        }
+        TypeMirror returnType = method.getReturnType();
+        TypeKind kind = returnType.getKind();
+        boolean isString = kind == TypeKind.DECLARED && returnType.toString().equals(String.class.getName());
+        switch (kind) {
+            case INT:
+            case LONG:
+            case FLOAT:
+            case DOUBLE:
+            case BOOLEAN:
+                break;
+            default:
+                if (!isString) {
+                    error(method, "@Key methods return int, long, float, double, boolean or String");
+                    return null;
+                }
+        }
+
+        String keyName = null;
+        String def = NONE;
+        for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry
+                : key.getElementValues().entrySet()) {
+            String attribute = entry.getKey().getSimpleName().toString();
+            if (attribute.equals("value")) {
+                keyName = (String) entry.getValue().getValue();
+            } else if (attribute.equals("def")) {
+                def = (String) entry.getValue().getValue();
+            }
+        }
+        if (keyName == null || keyName.isEmpty()) {
+            error(method, "@Key of " + name + "() has an empty name");
+            return null;
+        }
+        String literal;
+        try {
+            literal = literal(kind, def);
+        } catch (IllegalArgumentException e) {
+            error(method, "Default \"" + def + "\" of " + name + "() is not a " + returnType);
+            return null;
+        }
+        return new KeyMethod(name, keyName, kind, literal);
+    }
+
+    /**
+     * @return the Java literal of a default value
+     * @throws IllegalArgumentException if it is not a value of the type
+     */
+    static String literal(TypeKind kind, String def) {
+        boolean none = def.equals(NONE);
+        switch (kind) {
+            case INT:
+                return none ? "0" : String.valueOf(Integer.parseInt(def.trim()));
+            case LONG:
+                return none ? "0L" : Long.parseLong(def.trim()) + "L";
+            case FLOAT: {
+                float value = none ? 0f : Float.parseFloat(def);
+                if (Float.isNaN(value)) {
+                    return "Float.NaN";
+                } else if (Float.isInfinite(value)) {
+                    return value > 0 ? "Float.POSITIVE_INFINITY" : "Float.NEGATIVE_INFINITY";
+                }
+                return value + "f";
+            }
+            case DOUBLE: {
+                double value = none ? 0d : Double.parseDouble(def);
+                if (Double.isNaN(value)) {
+                    return "Double.NaN";
+                } else if (Double.isInfinite(value)) {
+                    return value > 0 ? "Double.POSITIVE_INFINITY" : "Double.NEGATIVE_INFINITY";
+                }
+                return value + "d";
+            }
+            case BOOLEAN:
+                if (none || def.trim().equalsIgnoreCase("false")) {
+                    return "false";
+                } else if (def.trim().equalsIgnoreCase("true")) {
+                    return "true";
+                }
+                throw new IllegalArgumentException(def);
+            default:
+                return none ? "null" : quote(def);
+        }
+    }
+
+    static String write(String pkg, String interfaceName, String implName, List<KeyMethod> methods) {
+        StringBuilder out = new StringBuilder(2048);
+        out.append("// Generated by configio-compiler from ").append(interfaceName).append(", do not edit\n");
+        if (!pkg.isEmpty()) {
+            out.append("package ").append(pkg).append(";\n");
+        }
+        out.append('\n');
+        out.append("public final class ").append(implName).append(" extends ").append(TYPED_CONFIG)
+                .append('<').append(implName).append(".Values> implements ").append(interfaceName).append(" {\n");
+
+        out.append("    private static final String[] KEYS = {");
+        for (int i = 0; i < methods.size(); i++) {
+            out.append(i > 0 ? ", " : "").append(quote(methods.get(i).mKey));
+        }
+        out.append("};\n\n");
+
+        out.append("    public static final class Values {\n");
+        for (KeyMethod method : methods) {
+            out.append("        ").append(javaType(method.mKind)).append(' ').append(method.mName)
+                    .append(" = ").append(method.mDefault).append(";\n");
+        }
+        out.append("    }\n\n");
+
+        out.append("    @Override\n");
+        out.append("    protected String[] keys() {\n");
+        out.append("        return KEYS;\n");
+        out.append("    }\n\n");
+
+        out.append("    @Override\n");
+        out.append("    protected int slotOf(String key) {\n");
+        out.append("        switch (key) {\n");
+        for (int i = 0; i < methods.size(); i++) {
+            out.append("            case ").append(quote(methods.get(i).mKey)).append(":\n");
+            out.append("                return ").append(i).append(";\n");
+        }
+        out.append("            default:\n");
+        out.append("                return -1;\n");
+        out.append("        }\n");
+        out.append("    }\n\n");
+
+        out.append("    @Override\n");
+        out.append("    protected Values newValues() {\n");
+        out.append("        return new Values();\n");
+        out.append("    }\n\n");
+
+        out.append("    @Override\n");
+        out.append("    protected void set(Values values, int slot, Object value) {\n");
+        out.append("        switch (slot) {\n");
+        for (int i = 0; i < methods.size(); i++) {
+            KeyMethod method = methods.get(i);
+            out.append("            case ").append(i).append(":\n");
+            out.append("                values.").append(method.mName).append(" = ");
+            if (method.mKind == TypeKind.DECLARED) {
+                out.append("toString(value);\n");
+            } else {
+                String kind = javaType(method.mKind);
+                out.append("to").append(Character.toUpperCase(kind.charAt(0))).append(kind.substring(1))
+                        .append("(value, values.").append(method.mName).append(");\n");
+            }
+            out.append("                break;\n");
+        }
+        out.append("            default:\n");
+        out.append("                break;\n");
+        out.append("        }\n");
+        out.append("    }\n");
+
+        for (KeyMethod method : methods) {
+            out.append('\n');
+            out.append("    @Override\n");
+            out.append("    public ").append(javaType(method.mKind)).append(' ').append(method.mName).append("() {\n");
+            out.append("        return values().").append(method.mName).append(";\n");
+            out.append("    }\n");
+        }
+        out.append("}\n");
+        return out.toString();
+    }
+
+    private static String javaType(TypeKind kind) {
+        switch (kind) {
+            case INT:
+                return "int";
+            case LONG:
+                return "long";
+            case FLOAT:
+                return "float";
+            case DOUBLE:
+                return "double";
+            case BOOLEAN:
+                return "boolean";
+            default:
+                return "String";
+        }
+    }
+
+    static String quote(String value) {
+        StringBuilder out = new StringBuilder(value.length() + 2);
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20 || c > 0x7e) {
+                        out.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+        return out.append('"').toString();
+    }
+
+    private static AnnotationMirror findAnnotation(Element element, String name) {
+        for (AnnotationMirror mirror : element.getAnnotationMirrors()) {
+            if (((TypeElement) mirror.getAnnotationType().asElement()).getQualifiedName().contentEquals(name)) {
+                return mirror;
+            }
+        }
+        return null;
+    }
+
+    private void error(Element element, String message) {
+        mMessager.printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+}
@@ -0,0 +1,255 @@
+/*
+*  Copyright (C) 2016 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.configio.compiler;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import javax.lang.model.type.TypeKind;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ConfigProcessorTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // The processor only refers to these by name, so the test compiles its own copies
+    private static final String CONFIG = "package com.tzutalin.configio.annotation;\n"
+            + "public @interface Config {}\n";
+    private static final String KEY = "package com.tzutalin.configio.annotation;\n"
+            + "public @interface Key {\n"
+            + "    String NONE = \"\\u0000\";\n"
+            + "    String value();\n"
+            + "    String def() default NONE;\n"
+            + "}\n";
+    // The members of TypedConfig which generated code uses
+    private static final String TYPED_CONFIG = "package com.tzutalin.configio;\n"
+            + "public abstract class TypedConfig<V> {\n"
+            + "    private V mValues;\n"
+            + "    protected TypedConfig() {}\n"
+            + "    protected final V values() {\n"
+            + "        if (mValues == null) {\n"
+            + "            mValues = newValues();\n"
+            + "        }\n"
+            + "        return mValues;\n"
+            + "    }\n"
+            + "    protected abstract String[] keys();\n"
+            + "    protected abstract int slotOf(String key);\n"
+            + "    protected abstract V newValues();\n"
+            + "    protected abstract void set(V values, int slot, Object value);\n"
+            + "    protected static int toInt(Object value, int def) { return def; }\n"
+            + "    protected static long toLong(Object value, long def) { return def; }\n"
+            + "    protected static float toFloat(Object value, float def) { return def; }\n"
+            + "    protected static double toDouble(Object value, double def) { return def; }\n"
+            + "    protected static boolean toBoolean(Object value, boolean def) { return def; }\n"
+            + "    protected static String toString(Object value) { return (String) value; }\n"
+            + "}\n";
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mClasses;
+    private File mGenerated;
+
+    private static class Source extends SimpleJavaFileObject {
+        private final String mContent;
+
+        Source(String className, String content) {
+            super(URI.create("string:///" + className.replace('.', '/') + Kind.SOURCE.extension), Kind.SOURCE);
+            mContent = content;
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+            return mContent;
+        }
+    }
+
+    /**
+     * Compile a config interface of package test with the processor
+     *
+     * @return the error messages
+     */
+    private List<String> compile(String name, String body) throws IOException {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        StandardJavaFileManager files = compiler.getStandardFileManager(diagnostics, Locale.ROOT, UTF_8);
+        mClasses = mFolder.newFolder();
+        mGenerated = mFolder.newFolder();
+        try {
+            String source = "package test;\n"
+                    + "import com.tzutalin.configio.annotation.Config;\n"
+                    + "import com.tzutalin.configio.annotation.Key;\n"
+                    + "@Config\n"
+                    + "public interface " + name + " {\n" + body + "}\n";
+            List<JavaFileObject> sources = Arrays.<JavaFileObject>asList(
+                    new Source("com.tzutalin.configio.annotation.Config", CONFIG),
+                    new Source("com.tzutalin.configio.annotation.Key", KEY),
+                    new Source("com.tzutalin.configio.TypedConfig", TYPED_CONFIG),
+                    new Source("test." + name, source));
+            List<String> options = Arrays.asList("-d", mClasses.getPath(), "-s", mGenerated.getPath());
+            JavaCompiler.CompilationTask task = compiler.getTask(null, files, diagnostics, options, null, sources);
+            task.setProcessors(Collections.singletonList(new ConfigProcessor()));
+            task.call();
+        } finally {
+            files.close();
+        }
+        List<String> errors = new ArrayList<>();
+        for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+            if (diagnostic.getKind() == Diagnostic.Kind.ERROR) {
+                errors.add(diagnostic.getMessage(Locale.ROOT));
+            }
+        }
+        return errors;
+    }
+
+    private static void assertError(List<String> errors, String message) {
+        assertEquals(errors.toString(), 1, errors.size());
+        assertTrue(errors.get(0), errors.get(0).contains(message));
+    }
+
+    private Object newImpl(String name) throws Exception {
+        URLClassLoader loader = new URLClassLoader(new URL[]{mClasses.toURI().toURL()},
+                getClass().getClassLoader());
+        return loader.loadClass("test." + name + ConfigProcessor.IMPL_SUFFIX).getDeclaredConstructor().newInstance();
+    }
+
+    private static Object call(Object impl, String method) throws Exception {
+        return impl.getClass().getMethod(method).invoke(impl);
+    }
+
+    @Test
+    public void generatesCompilingImplWithDefaults() throws Exception {
+        List<String> errors = compile("NetConfig", ""
+                + "    @Key(value = \"retry\", def = \" 3 \") int retry();\n"
+                + "    @Key(value = \"timeout\", def = \"1500\") long timeout();\n"
+                + "    @Key(value = \"ratio\", def = \"NaN\") float ratio();\n"
+                + "    @Key(value = \"scale\", def = \"-Infinity\") double scale();\n"
+                + "    @Key(value = \"debug\", def = \"TRUE\") boolean debug();\n"
+                + "    @Key(value = \"host\", def = \"a\\\"b\\\\c\\n\\t\\u00e9\\u0001\") String host();\n"
+                + "    @Key(\"path\") String path();\n");
+        assertEquals(Collections.<String>emptyList(), errors);
+        assertTrue(new File(mGenerated, "test/NetConfig_Impl.java").isFile());
+
+        Object impl = newImpl("NetConfig");
+        assertEquals(3, call(impl, "retry"));
+        assertEquals(1500L, call(impl, "timeout"));
+        assertTrue(Float.isNaN((Float) call(impl, "ratio")));
+        assertEquals(Double.NEGATIVE_INFINITY, call(impl, "scale"));
+        assertEquals(true, call(impl, "debug"));
+        assertEquals("a\"b\\c\n\t\u00e9\u0001", call(impl, "host"));
+        assertEquals(null, call(impl, "path"));
+    }
+
+    @Test
+    public void keysAreMatchedByTheirQuotedNames() throws Exception {
+        assertEquals(Collections.<String>emptyList(), compile("OddConfig", ""
+                + "    @Key(\"a\\\"b\") int quoted();\n"
+                + "    @Key(\"\\u00fcber\") int unicode();\n"));
+        String source = new String(Files.readAllBytes(new File(mGenerated, "test/OddConfig_Impl.java").toPath()),
+                UTF_8);
+        assertTrue(source, source.contains("case \"a\\\"b\":"));
+        assertTrue(source, source.contains("case \"\\u00fcber\":"));
+    }
+
+    @Test
+    public void duplicateKeyIsAnError() throws IOException {
+        assertError(compile("DupConfig", ""
+                + "    @Key(\"retry\") int retry();\n"
+                + "    @Key(\"retry\") long retryCount();\n"), "Key \"retry\" is also read by");
+    }
+
+    @Test
+    public void badDefaultIsAnError() throws IOException {
+        assertError(compile("IntConfig", "    @Key(value = \"retry\", def = \"three\") int retry();\n"),
+                "Default \"three\" of retry() is not a int");
+        assertError(compile("LongConfig", "    @Key(value = \"size\", def = \"1.5\") long size();\n"),
+                "Default \"1.5\" of size() is not a long");
+        assertError(compile("BoolConfig", "    @Key(value = \"debug\", def = \"yes\") boolean debug();\n"),
+                "Default \"yes\" of debug() is not a boolean");
+        assertError(compile("FloatConfig", "    @Key(value = \"ratio\", def = \"\") float ratio();\n"),
+                "Default \"\" of ratio() is not a float");
+    }
+
+    @Test
+    public void reservedNameIsAnError() throws IOException {
+        assertError(compile("KeysConfig", "    @Key(\"keys\") String keys();\n"), "keys() is a method of");
+        assertError(compile("ReloadConfig", "    @Key(\"reload\") boolean reload();\n"), "reload() is a method of");
+    }
+
+    @Test
+    public void otherMistakesAreErrors() throws IOException {
+        assertError(compile("NoKeyConfig", "    int retry();\n"), "retry() has no @Key");
+        assertError(compile("ParamConfig", "    @Key(\"retry\") int retry(int def);\n"), "take no parameters");
+        assertError(compile("TypeConfig", "    @Key(\"list\") java.util.List<String> list();\n"),
+                "@Key methods return");
+        assertError(compile("EmptyConfig", "    @Key(\"\") int retry();\n"), "has an empty name");
+    }
+
+    @Test
+    public void quoteEscapesJavaStrings() {
+        assertEquals("\"plain\"", ConfigProcessor.quote("plain"));
+        assertEquals("\"a\\\"b\\\\c\"", ConfigProcessor.quote("a\"b\\c"));
+        assertEquals("\"\\n\\r\\t\"", ConfigProcessor.quote("\n\r\t"));
+        assertEquals("\"\\u0000\\u001f\\u007f\\u00e9\\ud83d\\ude00\"",
+                ConfigProcessor.quote("\u0000\u001f\u007f\u00e9\ud83d\ude00"));
+    }
+
+    @Test
+    public void literalParsesDefaults() {
+        assertEquals("0", ConfigProcessor.literal(TypeKind.INT, ConfigProcessor.NONE));
+        assertEquals("-7", ConfigProcessor.literal(TypeKind.INT, " -7 "));
+        assertEquals("0L", ConfigProcessor.literal(TypeKind.LONG, ConfigProcessor.NONE));
+        assertEquals("9000000000L", ConfigProcessor.literal(TypeKind.LONG, "9000000000"));
+        assertEquals("1.5f", ConfigProcessor.literal(TypeKind.FLOAT, "1.5"));
+        assertEquals("Float.POSITIVE_INFINITY", ConfigProcessor.literal(TypeKind.FLOAT, "Infinity"));
+        assertEquals("0.25d", ConfigProcessor.literal(TypeKind.DOUBLE, "0.25"));
+        assertEquals("Double.NaN", ConfigProcessor.literal(TypeKind.DOUBLE, "NaN"));
+        assertEquals("false", ConfigProcessor.literal(TypeKind.BOOLEAN, ConfigProcessor.NONE));
+        assertEquals("true", ConfigProcessor.literal(TypeKind.BOOLEAN, " True "));
+        assertEquals("null", ConfigProcessor.literal(TypeKind.DECLARED, ConfigProcessor.NONE));
+        assertEquals("\"x\"", ConfigProcessor.literal(TypeKind.DECLARED, "x"));
+        try {
+            ConfigProcessor.literal(TypeKind.INT, "2147483648");
+            fail("int overflow accepted");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,8 @@
+# ProGuard rules which are applied to the apps using this library.
+
+# TypedConfig.load creates <Name>_Impl of a @Config interface by its name, through the default constructor.
+# Keep the names of the interfaces, and the implementations of the interfaces which are used.
+-keepnames @com.tzutalin.configio.annotation.Config interface *
+-keep class **_Impl implements @com.tzutalin.configio.annotation.Config * {
+    <init>();
+}
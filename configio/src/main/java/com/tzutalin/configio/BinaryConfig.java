@@ -0,0 +1,440 @@
+/*
+*  Copyright (C) 2016 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.configio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Compact binary configuration (.cfgb).
+ * <pre>
+ *   Header          int magic 'CFGB', short version, short flags, int generation, int entry count
+ *   Key table       per entry: short key length, UTF-8 key bytes, byte value type
+ *   Value sections  one section per type, values in key table order:
+ *                   int, long, float, double, boolean, string, string array, nested
+ *   Trailer         int CRC32 of everything before it
+ * </pre>
+ * Strings are an int byte length followed by UTF-8 bytes, -1 for null.
+ * <p/>
+ * {@hide}
+ */
+class BinaryConfig extends FileConfig {
+    private static final String TAG = BinaryConfig.class.getSimpleName();
+    static final String EXTENSION = ".cfgb";
+
+    static final int MAGIC = 0x43464742;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    private static final int GENERATION_OFFSET = 8;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final byte TYPE_NULL = 0;
+    private static final byte TYPE_INT = 1;
+    private static final byte TYPE_LONG = 2;
+    private static final byte TYPE_FLOAT = 3;
+    private static final byte TYPE_DOUBLE = 4;
+    private static final byte TYPE_BOOLEAN = 5;
+    private static final byte TYPE_STRING = 6;
+    private static final byte TYPE_STRING_ARRAY = 7;
+    private static final byte TYPE_STRING_SET = 8;
+    private static final byte TYPE_MAP = 9;
+    private static final byte TYPE_LIST = 10;
+    // Order of the value sections
+    private static final byte[] SECTIONS = new byte[]{
+            TYPE_INT, TYPE_LONG, TYPE_FLOAT, TYPE_DOUBLE, TYPE_BOOLEAN, TYPE_STRING,
+            TYPE_STRING_ARRAY, TYPE_STRING_SET, TYPE_MAP, TYPE_LIST
+    };
+
+    // Incremented by every save which changes the content, lets other readers detect a rewrite from the header
+    private int mGeneration = 0;
+    // Digest of everything after the generation of the last loaded or saved file
+    private byte[] mBodyDigest;
+    // Generation and digest of the last serialized content, they become current once it is written
+    private int mSerializedGeneration;
+    private byte[] mSerializedDigest;
+
+    public BinaryConfig(String path) {
+        super(path);
+    }
+
+    @Override
+    protected Map<String, Object> readMap(InputStream is) throws IOException {
+        byte[] data = readFully(is);
+        if (data.length < HEADER_SIZE + 4) {
+            throw new IOException("Truncated binary config");
+        }
+        ByteBuffer in = ByteBuffer.wrap(data);
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length - 4);
+        if ((int) crc.getValue() != in.getInt(data.length - 4)) {
+            throw new IOException("CRC mismatch");
+        }
+        in.limit(data.length - 4);
+
+        try {
+            if (in.getInt() != MAGIC) {
+                throw new IOException("Not a binary config");
+            }
+            int version = in.getShort();
+            if (version > VERSION) {
+                throw new IOException("Unsupported binary config version " + version);
+            }
+            in.getShort();
+            int generation = in.getInt();
+            final int count = in.getInt();
+            // A key takes 3 bytes at least, so a broken count fails before the tables are allocated
+            if (count < 0 || count > in.remaining() / 3) {
+                throw new IOException("Bad entry count " + count);
+            }
+
+            String[] keys = new String[count];
+            byte[] types = new byte[count];
+            for (int i = 0; i < count; i++) {
+                int len = in.getShort() & 0xFFFF;
+                if (len > in.remaining()) {
+                    throw new BufferUnderflowException();
+                }
+                keys[i] = new String(data, in.position(), len, UTF_8);
+                in.position(in.position() + len);
+                types[i] = in.get();
+                if (types[i] < TYPE_NULL || types[i] > TYPE_LIST) {
+                    throw new IOException("Unknown type " + types[i] + " of " + keys[i]);
+                }
+            }
+
+            Map<String, Object> map = new HashMap<>(count * 4 / 3 + 1);
+            for (int i = 0; i < count; i++) {
+                if (types[i] == TYPE_NULL) {
+                    map.put(keys[i], null);
+                }
+            }
+            for (byte section : SECTIONS) {
+                for (int i = 0; i < count; i++) {
+                    if (types[i] == section) {
+                        map.put(keys[i], readValue(in, section));
+                    }
+                }
+            }
+            mGeneration = generation;
+            mBodyDigest = digestBody(data, GENERATION_OFFSET + 4, data.length - 4);
+            return map;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated binary config");
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Bad length in binary config");
+        }
+    }
+
+    @Override
+    protected void writeMap(Map<String, Object> map, OutputStream os) throws IOException {
+        final int count = map.size();
+        String[] keys = new String[count];
+        Object[] values = new Object[count];
+        byte[] types = new byte[count];
+        int n = 0;
+        for (Map.Entry<String, Object> entry : map.entrySet()) {
+            keys[n] = entry.getKey();
+            values[n] = entry.getValue();
+            types[n] = typeOf(values[n]);
+            n++;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(HEADER_SIZE + count * 16);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeShort(0);
+        // Patched below, once it is known whether the content changed
+        out.writeInt(0);
+        out.writeInt(count);
+
+        for (int i = 0; i < count; i++) {
+            byte[] key = keys[i].getBytes(UTF_8);
+            if (key.length > 0xFFFF) {
+                throw new IOException("Key too long: " + keys[i].substring(0, 32));
+            }
+            out.writeShort(key.length);
+            out.write(key);
+            out.writeByte(types[i]);
+        }
+
+        for (byte section : SECTIONS) {
+            for (int i = 0; i < count; i++) {
+                if (types[i] == section) {
+                    writeValue(out, section, values[i]);
+                }
+            }
+        }
+
+        out.flush();
+        byte[] data = bytes.toByteArray();
+        // The same content keeps its generation, so the file is byte for byte the same and its write is skipped
+        byte[] digest = digestBody(data, GENERATION_OFFSET + 4, data.length);
+        int generation = mBodyDigest != null && Arrays.equals(digest, mBodyDigest) ? mGeneration : mGeneration + 1;
+        ByteBuffer.wrap(data).putInt(GENERATION_OFFSET, generation);
+        mSerializedGeneration = generation;
+        mSerializedDigest = digest;
+
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        os.write(data);
+        new DataOutputStream(os).writeInt((int) crc.getValue());
+    }
+
+    @Override
+    void onWritten() {
+        mGeneration = mSerializedGeneration;
+        mBodyDigest = mSerializedDigest;
+    }
+
+    /**
+     * @return the generation of the last loaded or saved content
+     */
+    int getGeneration() {
+        return mGeneration;
+    }
+
+    private static byte[] digestBody(byte[] data, int start, int end) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            digest.update(data, start, end - start);
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            // Without a digest every save counts as a change
+            return null;
+        }
+    }
+
+    @Override
+    protected long readGeneration(File file) {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            if (raf.readInt() != MAGIC) {
+                return -1;
+            }
+            raf.readInt();
+            return raf.readInt() & 0xFFFFFFFFL;
+        } catch (IOException e) {
+            return -1;
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private static byte typeOf(Object v) throws IOException {
+        if (v == null || v == ConfigIO.NULL) {
+            return TYPE_NULL;
+        } else if (v instanceof Integer) {
+            return TYPE_INT;
+        } else if (v instanceof Long) {
+            return TYPE_LONG;
+        } else if (v instanceof Float) {
+            return TYPE_FLOAT;
+        } else if (v instanceof Double) {
+            return TYPE_DOUBLE;
+        } else if (v instanceof Boolean) {
+            return TYPE_BOOLEAN;
+        } else if (v instanceof CharSequence) {
+            return TYPE_STRING;
+        } else if (v instanceof String[]) {
+            return TYPE_STRING_ARRAY;
+        } else if (v instanceof Set) {
+            return TYPE_STRING_SET;
+        } else if (v instanceof Map) {
+            return TYPE_MAP;
+        } else if (v instanceof Collection) {
+            return TYPE_LIST;
+        }
+        throw new IOException("writeValueBinary: unable to write value " + v);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void writeValue(DataOutputStream out, byte type, Object v) throws IOException {
+        switch (type) {
+            case TYPE_NULL:
+                break;
+            case TYPE_INT:
+                out.writeInt((Integer) v);
+                break;
+            case TYPE_LONG:
+                out.writeLong((Long) v);
+                break;
+            case TYPE_FLOAT:
+                out.writeFloat((Float) v);
+                break;
+            case TYPE_DOUBLE:
+                out.writeDouble((Double) v);
+                break;
+            case TYPE_BOOLEAN:
+                out.writeBoolean((Boolean) v);
+                break;
+            case TYPE_STRING:
+                writeString(out, v.toString());
+                break;
+            case TYPE_STRING_ARRAY: {
+                String[] array = (String[]) v;
+                out.writeInt(array.length);
+                for (String item : array) {
+                    writeString(out, item);
+                }
+                break;
+            }
+            case TYPE_STRING_SET: {
+                Set<Object> set = (Set<Object>) v;
+                out.writeInt(set.size());
+                for (Object item : set) {
+                    writeString(out, item == null ? null : item.toString());
+                }
+                break;
+            }
+            case TYPE_MAP: {
+                Map<Object, Object> map = (Map<Object, Object>) v;
+                out.writeInt(map.size());
+                for (Map.Entry<Object, Object> entry : map.entrySet()) {
+                    writeString(out, String.valueOf(entry.getKey()));
+                    byte itemType = typeOf(entry.getValue());
+                    out.writeByte(itemType);
+                    writeValue(out, itemType, entry.getValue());
+                }
+                break;
+            }
+            case TYPE_LIST: {
+                Collection<Object> list = (Collection<Object>) v;
+                out.writeInt(list.size());
+                for (Object item : list) {
+                    byte itemType = typeOf(item);
+                    out.writeByte(itemType);
+                    writeValue(out, itemType, item);
+                }
+                break;
+            }
+            default:
+                throw new IOException("Unknown type " + type);
+        }
+    }
+
+    private static Object readValue(ByteBuffer in, byte type) throws IOException {
+        switch (type) {
+            case TYPE_NULL:
+                return null;
+            case TYPE_INT:
+                return in.getInt();
+            case TYPE_LONG:
+                return in.getLong();
+            case TYPE_FLOAT:
+                return in.getFloat();
+            case TYPE_DOUBLE:
+                return in.getDouble();
+            case TYPE_BOOLEAN:
+                return in.get() != 0;
+            case TYPE_STRING:
+                return readString(in);
+            case TYPE_STRING_ARRAY: {
+                String[] array = new String[readCount(in)];
+                for (int i = 0; i < array.length; i++) {
+                    array[i] = readString(in);
+                }
+                return array;
+            }
+            case TYPE_STRING_SET: {
+                int size = readCount(in);
+                Set<String> set = new HashSet<>(size * 4 / 3 + 1);
+                for (int i = 0; i < size; i++) {
+                    set.add(readString(in));
+                }
+                return set;
+            }
+            case TYPE_MAP: {
+                int size = readCount(in);
+                Map<String, Object> map = new HashMap<>(size * 4 / 3 + 1);
+                for (int i = 0; i < size; i++) {
+                    String key = readString(in);
+                    map.put(key, readValue(in, in.get()));
+                }
+                return map;
+            }
+            case TYPE_LIST: {
+                int size = readCount(in);
+                List<Object> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(readValue(in, in.get()));
+                }
+                return list;
+            }
+            default:
+                throw new IOException("Unknown type " + type);
+        }
+    }
+
+    private static int readCount(ByteBuffer in) throws IOException {
+        int count = in.getInt();
+        if (count < 0 || count > in.remaining()) {
+            throw new IOException("Bad count " + count);
+        }
+        return count;
+    }
+
+    private static void writeString(DataOutputStream out, String str) throws IOException {
+        if (str == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = str.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int len = in.getInt();
+        if (len < 0) {
+            return null;
+        }
+        if (len > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        String str = new String(in.array(), in.position(), len, UTF_8);
+        in.position(in.position() + len);
+        return str;
+    }
+}
@@ -0,0 +1,286 @@
+/*
+*  Copyright (C) 2016 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.configio;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Large strings of a config, kept out of line in the directory &lt;path&gt;.blobs, one file per value named by
+ * the MD5 of its content. The config file only holds a reference, a map whose single key is {@link #KEY},
+ * so it stays small and a commit of another key does not write the string again. A value of the config which
+ * has the shape of a reference, or of an escaped value, is written wrapped in a map whose single key is
+ * {@link #ESCAPE}, so it is read back as itself.
+ * <p/>
+ * A blob file is never changed once written, a new value gets a new file. Files which are no longer
+ * referenced are deleted when the whole config file is rewritten.
+ * <p/>
+ * {@hide}
+ */
+class BlobStore {
+    private static final String TAG = BlobStore.class.getSimpleName();
+    static final String SUFFIX = ".blobs";
+    static final String KEY = "$blob";
+    static final String ESCAPE = "$value";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final File mDir;
+    // Strings of at least this length are stored out of line, 0 to keep new strings in the file
+    private final int mThreshold;
+    // Strings which are already in a blob file, by identity, so they are not hashed again by every save
+    private final Map<String, String> mNames = Collections.synchronizedMap(new IdentityHashMap<String, String>());
+    // Blob files referenced by the last full write
+    private Set<String> mLiveNames;
+
+    BlobStore(String targetPath, int threshold) {
+        mDir = new File(targetPath + SUFFIX);
+        mThreshold = threshold;
+    }
+
+    /**
+     * Replace the references of a map which was just read with placeholders which read the blob on demand
+     *
+     * @return true if the map has a reference
+     */
+    boolean internalize(Map<String, Object> map) {
+        // Without a threshold nothing is stored out of line or escaped, the maps are values of the config
+        if (mThreshold <= 0) {
+            return false;
+        }
+        boolean found = false;
+        for (Map.Entry<String, Object> entry : map.entrySet()) {
+            Object value = entry.getValue();
+            if (value instanceof LazyValue && ((LazyValue) value).isMap()) {
+                try {
+                    value = ((LazyValue) value).get();
+                } catch (IOException e) {
+                    continue;
+                }
+            }
+            String name = nameOf(value);
+            if (name != null) {
+                entry.setValue(new BlobValue(name));
+                found = true;
+            } else if (isWrapper(value, ESCAPE) && ((Map) value).get(ESCAPE) instanceof Map) {
+                entry.setValue(((Map) value).get(ESCAPE));
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Get the map to be written, with references instead of the large strings. The blob files of new strings
+     * are written first.
+     *
+     * @param map  the content to be written
+     * @param full true if map is the whole content of the config
+     * @return map itself if nothing is stored out of line, otherwise a copy
+     */
+    Map<String, Object> externalize(Map<String, Object> map, boolean full) throws IOException {
+        Set<String> live = null;
+        Map<String, Object> result = map;
+        for (Map.Entry<String, Object> entry : map.entrySet()) {
+            Object value = entry.getValue();
+            String name = null;
+            if (value instanceof BlobValue) {
+                name = ((BlobValue) value).mName;
+            } else if (value instanceof String && mThreshold > 0 && ((String) value).length() >= mThreshold) {
+                name = write((String) value);
+            } else if (mThreshold > 0 && (isWrapper(value, KEY) || isWrapper(value, ESCAPE))) {
+                if (result == map) {
+                    result = new HashMap<>(map);
+                }
+                result.put(entry.getKey(), Collections.singletonMap(ESCAPE, value));
+            }
+            if (name == null) {
+                continue;
+            }
+            if (result == map) {
+                result = new HashMap<>(map);
+            }
+            result.put(entry.getKey(), reference(name));
+            if (full) {
+                if (live == null) {
+                    live = new HashSet<>();
+                }
+                live.add(name);
+            }
+        }
+        if (full) {
+            mLiveNames = live != null ? live : Collections.<String>emptySet();
+        }
+        return result;
+    }
+
+    /**
+     * Delete the blob files which the last full write does not reference. Call it once that write succeeded.
+     */
+    void deleteUnused() {
+        Set<String> live = mLiveNames;
+        String[] names = mDir.list();
+        if (live == null || names == null) {
+            return;
+        }
+        for (String name : names) {
+            if (!live.contains(name) && !name.endsWith(".tmp")) {
+                if (!new File(mDir, name).delete()) {
+                    Log.w(TAG, "Cannot delete blob " + name);
+                }
+            }
+        }
+        // Forget the strings which are not stored any more
+        synchronized (mNames) {
+            mNames.values().retainAll(live);
+        }
+    }
+
+    /**
+     * @return the blob name if value is a reference, otherwise null
+     */
+    static String nameOf(Object value) {
+        if (value instanceof Map && ((Map) value).size() == 1) {
+            Object name = ((Map) value).get(KEY);
+            if (name instanceof String) {
+                return (String) name;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return true if value is a map whose single key is key
+     */
+    private static boolean isWrapper(Object value, String key) {
+        return value instanceof Map && ((Map) value).size() == 1 && ((Map) value).containsKey(key);
+    }
+
+    static Map<String, Object> reference(String name) {
+        return Collections.<String, Object>singletonMap(KEY, name);
+    }
+
+    private String write(String value) throws IOException {
+        String name = mNames.get(value);
+        if (name != null) {
+            return name;
+        }
+        byte[] bytes = value.getBytes(UTF_8);
+        name = md5(bytes);
+        File file = new File(mDir, name);
+        // Same name, same content
+        if (!file.exists()) {
+            if (!mDir.isDirectory() && !mDir.mkdirs()) {
+                throw new IOException("Cannot create " + mDir);
+            }
+            File tmp = new File(mDir, name + ".tmp");
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(bytes);
+                out.flush();
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+                throw new IOException("Cannot write " + file);
+            }
+        }
+        mNames.put(value, name);
+        return name;
+    }
+
+    private String read(String name) throws IOException {
+        File file = new File(mDir, name);
+        InputStream in = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            String value = new String(out.toByteArray(), UTF_8);
+            mNames.put(value, name);
+            return value;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String md5(byte[] bytes) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e.getMessage());
+        }
+        byte[] hash = digest.digest(bytes);
+        char[] chars = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            chars[i * 2] = HEX[(hash[i] >> 4) & 0xF];
+            chars[i * 2 + 1] = HEX[hash[i] & 0xF];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Placeholder of a string which is read from its blob file on the first get of its key
+     */
+    class BlobValue extends LazyValue {
+        final String mName;
+
+        BlobValue(String name) {
+            mName = name;
+        }
+
+        @Override
+        Object decode() throws IOException {
+            return read(mName);
+        }
+
+        @Override
+        public String toString() {
+            return "blob:" + mName;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof BlobValue && ((BlobValue) o).mName.equals(mName);
+        }
+
+        @Override
+        public int hashCode() {
+            return mName.hashCode();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+*  Copyright (C) 2016 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.configio;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Keys put and removed since some point, and whether everything was cleared before them.
+ * A key is in at most one of the two sets.
+ * <p/>
+ * {@hide}
+ */
+class ChangeSet {
+    final Set<String> mPuts = new HashSet<>();
+    final Set<String> mRemoves = new HashSet<>();
+    boolean mCleared = false;
+
+    void put(String key) {
+        mRemoves.remove(key);
+        mPuts.add(key);
+    }
+
+    void remove(String key) {
+        mPuts.remove(key);
+        mRemoves.add(key);
+    }
+
+    void clear() {
+        mPuts.clear();
+        mRemoves.clear();
+        mCleared = true;
+    }
+
+    /**
+     * Append the later changes of other
+     */
+    void addAll(ChangeSet other) {
+        if (other.mCleared) {
+            clear();
+        }
+        for (String key : other.mRemoves) {
+            remove(key);
+        }
+        for (String key : other.mPuts) {
+            put(key);
+        }
+    }
+
+    boolean isEmpty() {
+        return !mCleared && mPuts.isEmpty() && mRemoves.isEmpty();
+    }
+
+    void reset() {
+        mPuts.clear();
+        mRemoves.clear();
+        mCleared = false;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+*  Copyright (C) 2016 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.configio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Deflate container of json and xml config files. A compressed file starts with {@link #MAGIC}, which
+ * cannot start a json or xml document, followed by a zlib stream of the plain file. Reading detects the
+ * header, so plain and compressed files can be loaded by any config.
+ * <p/>
+ * {@hide}
+ */
+class ConfigCompressor {
+    static final byte[] MAGIC = {0x1f, 'C', 'I', 'Z', 1};
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private ConfigCompressor() {
+    }
+
+    /**
+     * @param plain the serialized file
+     * @return the compressed file, or plain itself if compression does not make it smaller
+     */
+    static ByteArrayOutputStream compress(ByteArrayOutputStream plain) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(plain.size() / 4 + MAGIC.length + 64);
+        out.write(MAGIC);
+        // Speed over ratio, config files are repetitive enough to shrink well at the fast levels
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            DeflaterOutputStream str = new DeflaterOutputStream(out, deflater, BUFFER_SIZE);
+            plain.writeTo(str);
+            str.finish();
+        } finally {
+            deflater.end();
+        }
+        return out.size() < plain.size() ? out : plain;
+    }
+
+    /**
+     * Check the header without consuming it
+     *
+     * @param in stream of a config file which supports mark
+     */
+    static boolean isCompressed(InputStream in) throws IOException {
+        in.mark(MAGIC.length);
+        try {
+            for (byte b : MAGIC) {
+                if (in.read() != (b & 0xff)) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            in.reset();
+        }
+    }
+
+    /**
+     * @param in stream of a compressed file, at its header
+     * @return stream of the plain file
+     */
+    static InputStream inflate(InputStream in) throws IOException {
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (in.read() == -1) {
+                throw new IOException("Truncated header");
+            }
+        }
+        final Inflater inflater = new Inflater();
+        return new InflaterInputStream(in, inflater, BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    inflater.end();
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,176 @@
+/*
+*  Copyright (C) 2016 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.configio;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Convert configuration files between the supported formats. The formats are chosen by the file extensions.
+ * Json and xml files are converted as they are parsed, so the memory used does not grow with the file size.
+ * Xml arrays only hold strings, a json file with an array of other values cannot be converted to xml.
+ */
+public final class ConfigConverter {
+    private static final String TAG = ConfigConverter.class.getSimpleName();
+
+    private ConfigConverter() {
+    }
+
+    /**
+     * Convert a configuration file to another format, e.g. config.xml to config.cfgb.
+     * Converting to the read-only .cfgm format is the only way to build such a file.
+     *
+     * @param srcPath the existing configuration file
+     * @param dstPath the file to be written, its extension decides the format
+     * @return true if the destination is written
+     */
+    public static boolean convert(@NonNull String srcPath, @NonNull String dstPath) {
+        ConfigIO src = ConfigIO.create(srcPath);
+        ConfigIO dst = ConfigIO.create(dstPath);
+        if (src instanceof FileConfig && dst instanceof FileConfig && ((FileConfig) src).canStream()
+                && ((FileConfig) dst).supportsEvents() && !PackStore.isPackPath(dstPath)) {
+            return stream((FileConfig) src, (FileConfig) dst);
+        }
+
+        if (!src.loadFromFile()) {
+            Log.w(TAG, "Cannot load " + srcPath);
+            return false;
+        }
+        if (dst instanceof MappedConfig) {
+            try {
+                MappedConfig.write(src.getAll(), dstPath);
+                return true;
+            } catch (IOException e) {
+                Log.w(TAG, "Cannot write " + dstPath, e);
+                return false;
+            }
+        }
+        if (!(dst instanceof FileConfig)) {
+            throw new IllegalArgumentException("Cannot write " + dstPath);
+        }
+        return ((FileConfig) dst).writeAll(src.getAll());
+    }
+
+    /**
+     * Convert every supported config file of a directory, several files at a time
+     *
+     * @param srcDir    directory of the existing files
+     * @param dstDir    directory of the files to be written
+     * @param extension extension of the files to be written, e.g. ".xml"
+     * @return the number of files written
+     */
+    public static int convertDirectory(@NonNull File srcDir, @NonNull File dstDir, @NonNull String extension) {
+        if (!ConfigIO.isSupported(extension)) {
+            throw new IllegalArgumentException("The file format is not supported");
+        }
+        File[] files = srcDir.listFiles();
+        if (files == null || (!dstDir.isDirectory() && !dstDir.mkdirs())) {
+            Log.w(TAG, "Cannot convert " + srcDir + " to " + dstDir);
+            return 0;
+        }
+
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Boolean>> results = new ArrayList<>();
+        for (File file : files) {
+            final String name = file.getName();
+            if (!file.isFile() || !ConfigIO.isSupported(name)) {
+                continue;
+            }
+            final String srcPath = file.getPath();
+            final String dstPath = new File(dstDir, name.substring(0, name.lastIndexOf('.')) + extension).getPath();
+            results.add(executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return convert(srcPath, dstPath);
+                }
+            }));
+        }
+        executor.shutdown();
+
+        int converted = 0;
+        try {
+            for (Future<Boolean> result : results) {
+                if (result.get()) {
+                    converted++;
+                }
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            executor.shutdownNow();
+            throw new RuntimeException(e.getCause());
+        }
+        return converted;
+    }
+
+    /**
+     * Pipe the values of src into the writer of dst as they are parsed, so no map is built
+     */
+    private static boolean stream(FileConfig src, FileConfig dst) {
+        File dstFile = new File(dst.mTargetPath);
+        File tmpFile = new File(dst.mTargetPath + ".tmp");
+        InputStream in = null;
+        FileOutputStream out = null;
+        boolean written = false;
+        try {
+            in = src.openStream();
+            out = new FileOutputStream(tmpFile);
+            src.readEvents(in, dst.newSink(out));
+            out.close();
+            out = null;
+            written = tmpFile.renameTo(dstFile);
+            if (!written) {
+                Log.w(TAG, "Cannot write " + dstFile);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot convert " + src.mTargetPath, e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            if (!written) {
+                tmpFile.delete();
+            }
+        }
+        return written;
+    }
+}
@@ -0,0 +1,180 @@
+/*
+*  Copyright (C) 2016 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.configio;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Edit buffer returned by {@link ConfigIO#getWriter()}. Nothing is visible to the config until
+ * {@link #commit()} or {@link #apply()} merges all the edits in one step, after which the editor is empty
+ * and can be used again.
+ * <p/>
+ * An editor is not thread safe, use one per thread. Editors of the same config can commit concurrently.
+ * <p/>
+ * {@hide}
+ */
+class ConfigEditor implements ConfigIO.Writer {
+    private final FileConfig mConfig;
+    // A PrimitiveMap when the config uses the primitive storage, so the putters do not box
+    final Map<String, Object> mPuts;
+    final Set<String> mRemoves = new HashSet<>();
+    // Nested writes by path in call order, KeyPath.REMOVE for a removal. Created by the first one.
+    Map<String, Object> mPathPuts;
+    boolean mClear = false;
+    // Merge generation of the last commit, set by the thread which merged the edits
+    long mGeneration = 0;
+
+    ConfigEditor(FileConfig config, Map<String, Object> puts) {
+        mConfig = config;
+        mPuts = puts;
+    }
+
+    @Override
+    public ConfigIO.Writer putString(@NonNull String key, @Nullable String value) {
+        putValue(key, value);
+        return this;
+    }
+
+    //@Override
+    public ConfigIO.Writer putStringSet(@NonNull String key, @Nullable Set<String> values) {
+        putValue(key, values);
+        return this;
+    }
+
+    @Override
+    public ConfigIO.Writer putInt(@NonNull String key, int value) {
+        mRemoves.remove(key);
+        if (mPuts instanceof PrimitiveMap) {
+            ((PrimitiveMap) mPuts).putInt(key, value);
+        } else {
+            mPuts.put(key, value);
+        }
+        return this;
+    }
+
+    @Override
+    public ConfigIO.Writer putLong(@NonNull String key, long value) {
+        mRemoves.remove(key);
+        if (mPuts instanceof PrimitiveMap) {
+            ((PrimitiveMap) mPuts).putLong(key, value);
+        } else {
+            mPuts.put(key, value);
+        }
+        return this;
+    }
+
+    @Override
+    public ConfigIO.Writer putFloat(@NonNull String key, float value) {
+        mRemoves.remove(key);
+        if (mPuts instanceof PrimitiveMap) {
+            ((PrimitiveMap) mPuts).putFloat(key, value);
+        } else {
+            mPuts.put(key, value);
+        }
+        return this;
+    }
+
+    @Override
+    public ConfigIO.Writer putDouble(@NonNull String key, double value) {
+        mRemoves.remove(key);
+        if (mPuts instanceof PrimitiveMap) {
+            ((PrimitiveMap) mPuts).putDouble(key, value);
+        } else {
+            mPuts.put(key, value);
+        }
+        return this;
+    }
+
+    @Override
+    public ConfigIO.Writer putBoolean(@NonNull String key, boolean value) {
+        mRemoves.remove(key);
+        if (mPuts instanceof PrimitiveMap) {
+            ((PrimitiveMap) mPuts).putBoolean(key, value);
+        } else {
+            mPuts.put(key, value);
+        }
+        return this;
+    }
+
+    private void putValue(String key, Object value) {
+        mRemoves.remove(key);
+        mPuts.put(key, value);
+    }
+
+    @Override
+    public ConfigIO.Writer remove(@NonNull String key) {
+        mPuts.remove(key);
+        mRemoves.add(key);
+        return this;
+    }
+
+    @Override
+    public ConfigIO.Writer putPath(@NonNull String path, @Nullable Object value) {
+        mConfig.checkPath(path, value);
+        pathPuts().put(path, value);
+        return this;
+    }
+
+    @Override
+    public ConfigIO.Writer removePath(@NonNull String path) {
+        pathPuts().put(path, KeyPath.REMOVE);
+        return this;
+    }
+
+    private Map<String, Object> pathPuts() {
+        if (mPathPuts == null) {
+            mPathPuts = new LinkedHashMap<>();
+        }
+        return mPathPuts;
+    }
+
+    @Override
+    public ConfigIO.Writer clear() {
+        // Done first on commit, the puts of this editor are kept
+        mClear = true;
+        return this;
+    }
+
+    @Override
+    public boolean commit() {
+        return mConfig.commitEdits(this);
+    }
+
+    @Override
+    public void apply() {
+        mConfig.applyEdits(this);
+    }
+
+    boolean isEmpty() {
+        return !mClear && mPuts.isEmpty() && mRemoves.isEmpty() && (mPathPuts == null || mPathPuts.isEmpty());
+    }
+
+    void reset() {
+        mPuts.clear();
+        mRemoves.clear();
+        if (mPathPuts != null) {
+            mPathPuts.clear();
+        }
+        mClear = false;
+    }
+}
@@ -23,12 +23,25 @@ import android.text.TextUtils;
 import android.util.Log;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 
+import rx.Observable;
+import rx.Scheduler;
 import rx.Single;
 import rx.SingleSubscriber;
+import rx.Subscriber;
+import rx.functions.Action0;
+import rx.subscriptions.Subscriptions;
 
 /**
  * Created by darrenl on 2016/4/15.
@@ -40,11 +53,14 @@ import rx.SingleSubscriber;
 public abstract class ConfigIO {
 
     private static final String TAG = ConfigIO.class.getSimpleName();
-    protected Map<String, Object> mMap = new HashMap<>();
+    // Volatile, a map assigned by a writer is safely published to readers on other threads
+    protected volatile Map<String, Object> mMap = new HashMap<>();
 
     protected Context mContext;
     protected String mTargetPath;
 
+    private final List<OnChangeListener> mListeners = new CopyOnWriteArrayList<>();
+
     public static final Object NULL = new Object() {
         @Override
         public boolean equals(Object o) {
@@ -58,24 +74,309 @@ public abstract class ConfigIO {
     };
 
     /**
-     * Generate ConfigIO object
+     * Get the ConfigIO object of a path. Every call with the same file returns the same object as long as it
+     * is in use, so the file is parsed once per process. See {@link ConfigRegistry}.
      *
      * @param path write / read path
      * @return ConfigIO instance
      */
     @NonNull
     public static ConfigIO newInstance(@NonNull String path) {
+        return new Builder(path).buildShared();
+    }
+
+    /**
+     * Start loading many files in parallel, e.g. at startup, and return their objects right away.
+     * The objects are the shared ones of {@link #newInstance(String)}. The first get on an object only waits
+     * for the load of its own file.
+     *
+     * @param paths paths of the files
+     * @return ConfigIO instances in the order of paths
+     */
+    @NonNull
+    public static List<ConfigIO> preload(@NonNull Collection<String> paths) {
+        List<ConfigIO> configs = new ArrayList<>(paths.size());
+        Executor executor = ConfigPreloader.executor();
+        for (String path : paths) {
+            ConfigIO config = newInstance(path);
+            if (config instanceof FileConfig) {
+                ((FileConfig) config).preload(executor);
+            } else if (config instanceof ShardedConfig) {
+                ((ShardedConfig) config).preload(executor);
+            } else {
+                // Nothing is parsed when a memory mapped file is opened
+                config.loadFromFile();
+            }
+            configs.add(config);
+        }
+        return configs;
+    }
+
+    /**
+     * Start loading every supported config file of a directory, see {@link #preload(Collection)}
+     *
+     * @param dir directory of the files
+     * @return ConfigIO instances sorted by file name
+     */
+    @NonNull
+    public static List<ConfigIO> preload(@NonNull File dir) {
+        List<String> paths = new ArrayList<>();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            Arrays.sort(files);
+            for (File file : files) {
+                if (file.isFile() && isSupported(file.getName())) {
+                    paths.add(file.getPath());
+                }
+            }
+        }
+        return preload(paths);
+    }
+
+    static boolean isSupported(@NonNull String path) {
+        return path.endsWith(".json") || path.endsWith(".xml")
+                || path.endsWith(BinaryConfig.EXTENSION) || path.endsWith(MappedConfig.EXTENSION);
+    }
+
+    /**
+     * Create the object of the builder, a sharded config if the builder asks for one or the path has been
+     * written as one
+     */
+    @NonNull
+    static ConfigIO create(@NonNull Builder builder) {
+        if (builder.isSharded() || (!PackStore.isPackPath(builder.mPath) && ShardedConfig.exists(builder.mPath))) {
+            return new ShardedConfig(builder.mPath);
+        }
+        return create(builder.mPath);
+    }
+
+    @NonNull
+    static ConfigIO create(@NonNull String path) {
         ConfigIO configer = null;
+        if (PackStore.isPackPath(path) && path.endsWith(MappedConfig.EXTENSION)) {
+            throw new IllegalArgumentException("Mapped configs cannot be packed");
+        }
         if (path.endsWith(".json")) {
             configer = new JsonConfig(path);
         } else if (path.endsWith(".xml")) {
             configer = new XmlConfig(path);
+        } else if (path.endsWith(BinaryConfig.EXTENSION)) {
+            configer = new BinaryConfig(path);
+        } else if (path.endsWith(MappedConfig.EXTENSION)) {
+            configer = new MappedConfig(path);
         } else {
             throw new IllegalArgumentException("The file format is not supported");
         }
         return configer;
     }
 
+    /**
+     * Builder to generate ConfigIO object with options
+     */
+    public static class Builder {
+        final String mPath;
+        boolean mJournalEnabled = false;
+        long mJournalCompactBytes = FileConfig.DEFAULT_JOURNAL_COMPACT_BYTES;
+        int mJournalCompactRecords = FileConfig.DEFAULT_JOURNAL_COMPACT_RECORDS;
+        long mApplyDebounceMillis = 0;
+        Boolean mIndentOutput = null;
+        boolean mLazyLoad = false;
+        boolean mPrimitiveStorage = false;
+        boolean mConcurrent = false;
+        boolean mWatchFile = false;
+        int mBlobThreshold = 0;
+        int mCompressThreshold = 0;
+        String[] mShardPrefixes = null;
+        int mShardCount = 0;
+
+        /**
+         * @param path write / read path
+         */
+        public Builder(@NonNull String path) {
+            mPath = path;
+        }
+
+        /**
+         * Append each commit to a journal file next to the path instead of rewriting the whole file.
+         * The journal is folded into the file in background once it exceeds the compact threshold.
+         *
+         * @param enabled true to enable journal mode
+         * @return this builder
+         */
+        public Builder setJournalEnabled(boolean enabled) {
+            mJournalEnabled = enabled;
+            return this;
+        }
+
+        /**
+         * Set when the journal is compacted into the file
+         *
+         * @param maxBytes   size of the journal in bytes
+         * @param maxRecords number of commits in the journal
+         * @return this builder
+         */
+        public Builder setJournalCompactThreshold(long maxBytes, int maxRecords) {
+            mJournalCompactBytes = maxBytes;
+            mJournalCompactRecords = maxRecords;
+            return this;
+        }
+
+        /**
+         * Wait before writing in {@link Writer#apply()}, so a burst of edits results in one write
+         *
+         * @param delayMillis debounce window in milliseconds, 0 to write as soon as possible
+         * @return this builder
+         */
+        public Builder setApplyDebounce(long delayMillis) {
+            mApplyDebounceMillis = delayMillis;
+            return this;
+        }
+
+        /**
+         * Set whether the file is written with line breaks and indentation.
+         * By default json files are compact and xml files are indented.
+         *
+         * @param indent true for indented output, false for compact output
+         * @return this builder
+         */
+        public Builder setIndentOutput(boolean indent) {
+            mIndentOutput = indent;
+            return this;
+        }
+
+        /**
+         * Keep the raw text of values when loading json or xml files, and decode a value on the first get
+         * of its key. It makes loading cheaper when only a few keys of a large file are read.
+         * Json defers every top-level value, nested objects and arrays as a whole. Xml only defers the numbers
+         * directly in the root map, its other values are decoded by the load.
+         *
+         * @param lazy true to decode values on demand
+         * @return this builder
+         */
+        public Builder setLazyLoad(boolean lazy) {
+            mLazyLoad = lazy;
+            return this;
+        }
+
+        /**
+         * Keep int, long, float, double and boolean values unboxed in typed tables, so getInt() and the other
+         * primitive getters and putters do not allocate. It suits configs which are read in a hot path.
+         *
+         * @param primitive true to use the primitive storage
+         * @return this builder
+         */
+        public Builder setPrimitiveStorage(boolean primitive) {
+            mPrimitiveStorage = primitive;
+            return this;
+        }
+
+        /**
+         * Let many threads read while others write. Readers use an immutable map without locking and never
+         * wait for a disk write. Edits are kept aside and published as a new map by commit() or apply(),
+         * so they are not visible before that.
+         *
+         * @param concurrent true to enable the concurrent mode
+         * @return this builder
+         */
+        public Builder setConcurrent(boolean concurrent) {
+            mConcurrent = concurrent;
+            return this;
+        }
+
+        /**
+         * Reload in background whenever the file is rewritten by someone else, see {@link ConfigIO#reload()}.
+         * The watch lasts as long as the ConfigIO object.
+         *
+         * @param watch true to watch the file
+         * @return this builder
+         */
+        public Builder setWatchFile(boolean watch) {
+            mWatchFile = watch;
+            return this;
+        }
+
+        /**
+         * Store each string of at least the given length in its own file in the directory &lt;path&gt;.blobs.
+         * The config file only refers to it, so a commit does not write the string again unless it changed,
+         * and loading reads it on the first get of its key.
+         *
+         * @param minLength length in chars from which a string is stored out of line, 0 to keep strings in the file
+         * @return this builder
+         */
+        public Builder setBlobThreshold(int minLength) {
+            mBlobThreshold = minLength;
+            return this;
+        }
+
+        /**
+         * Write json and xml files compressed with deflate once they reach the given size. Loading detects
+         * compressed files by their header, so the setting can be changed at any time.
+         *
+         * @param minBytes size of the plain file from which it is compressed, 0 to always write plain files
+         * @return this builder
+         */
+        public Builder setCompressThreshold(int minBytes) {
+            mCompressThreshold = minBytes;
+            return this;
+        }
+
+        /**
+         * Keep the config in one file per prefix in the directory &lt;path&gt;.shards, plus one file for the keys
+         * which match no prefix. A commit only rewrites the files of the keys it edits, and the files are loaded
+         * in parallel. The first prefix which matches a key decides its file.
+         * <p/>
+         * The layout is saved with the files, later objects of the path use the saved layout.
+         *
+         * @param prefixes key prefixes, e.g. "feature." and "ui."
+         * @return this builder
+         */
+        public Builder setShardPrefixes(@NonNull String... prefixes) {
+            mShardPrefixes = prefixes.length > 0 ? prefixes.clone() : null;
+            mShardCount = 0;
+            return this;
+        }
+
+        /**
+         * Keep the config in the given number of files in the directory &lt;path&gt;.shards, by the hash of the key.
+         * See {@link #setShardPrefixes(String...)}.
+         *
+         * @param count number of files
+         * @return this builder
+         */
+        public Builder setShardCount(int count) {
+            mShardCount = count;
+            mShardPrefixes = null;
+            return this;
+        }
+
+        boolean isSharded() {
+            return mShardPrefixes != null || mShardCount > 1;
+        }
+
+        /**
+         * Generate a new ConfigIO object, which is not shared with other callers
+         *
+         * @return ConfigIO instance
+         */
+        @NonNull
+        public ConfigIO build() {
+            ConfigIO configer = create(this);
+            configer.configure(this);
+            return configer;
+        }
+
+        /**
+         * Get the shared ConfigIO object of the path, the one returned by {@link ConfigIO#newInstance(String)}.
+         * The options of this builder are used only if there is no shared object of the path yet.
+         *
+         * @return ConfigIO instance
+         */
+        @NonNull
+        public ConfigIO buildShared() {
+            return ConfigRegistry.get(this);
+        }
+    }
+
     protected ConfigIO() {
         // Cannot be used
     }
@@ -84,6 +385,21 @@ public abstract class ConfigIO {
         mTargetPath = path;
     }
 
+    /**
+     * @return true if there is something to load at the path
+     */
+    boolean fileExists() {
+        return new File(mTargetPath).exists();
+    }
+
+    /**
+     * Apply the options of builder
+     *
+     * @param builder the builder which generates this object
+     */
+    void configure(Builder builder) {
+    }
+
     /**
      * Load configuration from disk accoruding to the initial path
      *
@@ -91,33 +407,51 @@ public abstract class ConfigIO {
      */
     public abstract boolean loadFromFile();
 
+    /**
+     * Pick up the changes of another writer of the file, e.g. another process or a sync job.
+     * It first compares the modification time and size of the file with the ones it last read or wrote, and only
+     * parses the file if they differ. Only the values which changed are replaced, and the listeners get their keys.
+     *
+     * @return true if any value changed
+     */
+    public boolean reload() {
+        return false;
+    }
+
     /**
      * Load configuration from disk with RxJava interface. It can be easier scheduled on IO thread
      *
      * @return RxJava's single operator
      */
     public Single<Boolean> loadFromFileWithRx() {
-        if (!TextUtils.isEmpty(mTargetPath) && new File(mTargetPath).exists()) {
-            return Single.create(new Single.OnSubscribe<Boolean>() {
-                @Override
-                public void call(final SingleSubscriber<? super Boolean> singleSubscriber) {
-                    try {
-                        boolean isLoad = loadFromFile();
-                        if (isLoad) {
-                            singleSubscriber.onSuccess(true);
-                        } else {
-                            singleSubscriber.onSuccess(false);
-                        }
-                    } catch (Exception e) {
-                        Log.w(TAG, " loadFromFileWithRx's exception " + e.getMessage());
-                        singleSubscriber.onError(e);
+        return Single.create(new Single.OnSubscribe<Boolean>() {
+            @Override
+            public void call(final SingleSubscriber<? super Boolean> singleSubscriber) {
+                // Checked on the subscribing thread, so the caller does not touch the disk
+                if (TextUtils.isEmpty(mTargetPath) || !fileExists()) {
+                    singleSubscriber.onError(new IllegalArgumentException(String.format("Cannot find %s", mTargetPath)));
+                    return;
+                }
+                try {
+                    boolean isLoad = loadFromFile();
+                    if (isLoad) {
+                        singleSubscriber.onSuccess(true);
+                    } else {
+                        singleSubscriber.onSuccess(false);
                     }
+                } catch (Exception e) {
+                    Log.w(TAG, " loadFromFileWithRx's exception " + e.getMessage());
+                    singleSubscriber.onError(e);
                 }
-            });
+            }
+        });
+    }
 
-        } else {
-            return Single.error(new IllegalArgumentException(String.format("Cannot find %s", mTargetPath)));
-        }
+    /**
+     * Block until the writes queued by {@link Writer#apply()} are on disk.
+     * Call it before the process or the component goes away.
+     */
+    public void flush() {
     }
 
     /**
@@ -146,6 +480,114 @@ public abstract class ConfigIO {
         }
     }
 
+    /**
+     * Interface definition for a callback to be invoked when values of the configuration change
+     */
+    public interface OnChangeListener {
+        /**
+         * Called once per commit or apply, on the thread which merged it, with every key it added, changed or
+         * removed. Keys whose value did not change are not included.
+         *
+         * @param config The configuration that changed.
+         * @param keys   The keys that changed.
+         */
+        void onChanged(ConfigIO config, Set<String> keys);
+    }
+
+    /**
+     * Register a callback to be invoked when values of the configuration change
+     *
+     * @param listener The callback that will run.
+     */
+    public void registerOnChangeListener(@NonNull OnChangeListener listener) {
+        if (!mListeners.contains(listener)) {
+            mListeners.add(listener);
+        }
+    }
+
+    /**
+     * Unregister a previous callback
+     *
+     * @param listener The callback that should be unregistered.
+     */
+    public void unregisterOnChangeListener(@NonNull OnChangeListener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * @return true if anybody listens to changes, so they are worth collecting
+     */
+    protected boolean hasChangeListeners() {
+        return !mListeners.isEmpty();
+    }
+
+    /**
+     * Deliver a batch of changed keys to the listeners
+     */
+    protected void notifyChanged(Set<String> keys) {
+        Set<String> unmodifiable = Collections.unmodifiableSet(keys);
+        for (OnChangeListener listener : mListeners) {
+            listener.onChanged(this, unmodifiable);
+        }
+    }
+
+    /**
+     * Observe the changed keys of each commit with RxJava
+     *
+     * @param keys only emit the changes of these keys, all changes if none is given
+     * @return RxJava's observable of the changed keys, it never completes
+     */
+    public Observable<Set<String>> observeChanges(String... keys) {
+        final Set<String> filter = keys.length == 0 ? null : new HashSet<>(Arrays.asList(keys));
+        return Observable.create(new Observable.OnSubscribe<Set<String>>() {
+            @Override
+            public void call(final Subscriber<? super Set<String>> subscriber) {
+                final OnChangeListener listener = new OnChangeListener() {
+                    @Override
+                    public void onChanged(ConfigIO config, Set<String> changed) {
+                        if (subscriber.isUnsubscribed()) {
+                            return;
+                        }
+                        if (filter == null) {
+                            subscriber.onNext(changed);
+                            return;
+                        }
+                        Set<String> matched = null;
+                        for (String key : changed) {
+                            if (filter.contains(key)) {
+                                if (matched == null) {
+                                    matched = new HashSet<>();
+                                }
+                                matched.add(key);
+                            }
+                        }
+                        if (matched != null) {
+                            subscriber.onNext(Collections.unmodifiableSet(matched));
+                        }
+                    }
+                };
+                registerOnChangeListener(listener);
+                subscriber.add(Subscriptions.create(new Action0() {
+                    @Override
+                    public void call() {
+                        unregisterOnChangeListener(listener);
+                    }
+                }));
+            }
+        });
+    }
+
+    /**
+     * Observe the changed keys of each commit with RxJava, delivered on the given scheduler
+     *
+     * @param scheduler scheduler to deliver the changes on, e.g. AndroidSchedulers.mainThread()
+     * @param keys      only emit the changes of these keys, all changes if none is given
+     * @return RxJava's observable of the changed keys, it never completes
+     */
+    public Observable<Set<String>> observeChanges(@NonNull Scheduler scheduler, String... keys) {
+        return observeChanges(keys).onBackpressureBuffer().observeOn(scheduler);
+    }
+
     /**
      * The interface of writer object
      */
@@ -244,6 +686,29 @@ public abstract class ConfigIO {
          */
         Writer remove(@NonNull String key);
 
+        /**
+         * Set a nested value by its path, e.g. "net.retry.max" or "servers[1].host". The first part of the path
+         * is the key of the configuration. Maps and lists along the path are created if they are missing, an
+         * index can replace an item or append one. Only the key which holds the path is written again.
+         *
+         * @param path  The path of the value.
+         * @param value String, Integer, Long, Float, Double, Boolean, Map, List or null.
+         * @return Returns a reference to the same Writer object, so you can
+         * chain put calls together.
+         * @throws IllegalArgumentException if the format cannot store the value, xml files have no lists
+         */
+        Writer putPath(@NonNull String path, @Nullable Object value);
+
+        /**
+         * Remove a nested value by its path, see {@link #putPath(String, Object)}. Removing an item of a list
+         * moves the later items down.
+         *
+         * @param path The path of the value.
+         * @return Returns a reference to the same Writer object, so you can
+         * chain put calls together.
+         */
+        Writer removePath(@NonNull String path);
+
         /**
          * Mark in the Writer to remove <em>all</em> values from the
          * configuration.  Once commit is called, the only remaining configuration
@@ -298,6 +763,17 @@ public abstract class ConfigIO {
         return mMap;
     }
 
+    /**
+     * Get the value of key for the getters. Json, xml and binary configs resolve a key which is not in the map
+     * as a path into nested values, e.g. getInt("net.retry.max", 3), see {@link Writer#putPath(String, Object)}.
+     *
+     * @param key The name of the map to retrieve.
+     * @return the value, or null if this map does not exist
+     */
+    protected Object getValue(String key) {
+        return mMap.get(key);
+    }
+
     /**
      * Retrieve a String value from the Config File.
      *
@@ -310,7 +786,7 @@ public abstract class ConfigIO {
      */
     @Nullable
     public String getString(String key, @Nullable String defValue) {
-        Object obj = mMap.get(key);
+        Object obj = getValue(key);
         if (obj == null) {
             return defValue;
         }
@@ -331,7 +807,7 @@ public abstract class ConfigIO {
      */
     @Nullable
     protected Set<String> getStringSet(String key, @Nullable Set<String> defValues) {
-        Object obj = mMap.get(key);
+        Object obj = getValue(key);
         if (obj == null) {
             return defValues;
         }
@@ -349,7 +825,7 @@ public abstract class ConfigIO {
      * @throws ClassCastException
      */
     public int getInt(String key, int defValue) {
-        Object obj = mMap.get(key);
+        Object obj = getValue(key);
         if (obj == null) {
             return defValue;
         }
@@ -367,11 +843,12 @@ public abstract class ConfigIO {
      * @throws ClassCastException
      */
     public long getLong(String key, long defValue) {
-        Object obj = mMap.get(key);
+        Object obj = getValue(key);
         if (obj == null) {
             return defValue;
         }
-        return (long) obj;
+        // Json has no number types, a long which fits in an int is read back as an Integer
+        return obj instanceof Integer ? (Integer) obj : (long) obj;
     }
 
     /**
@@ -385,11 +862,12 @@ public abstract class ConfigIO {
      * @throws ClassCastException
      */
     public float getFloat(String key, float defValue) {
-        Object obj = mMap.get(key);
+        Object obj = getValue(key);
         if (obj == null) {
             return defValue;
         }
-        return (float) obj;
+        // Json numbers are read back as Integer, Long or Double
+        return obj instanceof Number ? ((Number) obj).floatValue() : (float) obj;
     }
 
     /**
@@ -403,11 +881,11 @@ public abstract class ConfigIO {
      * @throws ClassCastException
      */
     public double getDouble(String key, double defValue) {
-        Object obj = mMap.get(key);
+        Object obj = getValue(key);
         if (obj == null) {
             return defValue;
         }
-        return (double) obj;
+        return obj instanceof Number ? ((Number) obj).doubleValue() : (double) obj;
     }
 
     /**
@@ -421,7 +899,7 @@ public abstract class ConfigIO {
      * @throws ClassCastException
      */
     public boolean getBoolean(String key, boolean defValue) {
-        Object obj = mMap.get(key);
+        Object obj = getValue(key);
         if (obj == null) {
             return defValue;
         }
@@ -0,0 +1,404 @@
+/*
+*  Copyright (C) 2016 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.configio;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only delta log kept next to a config file.
+ * <p/>
+ * Every record holds the changes of one commit:
+ * <pre>
+ *   int    payload length
+ *   byte[] payload (flags, removed keys, put entries)
+ *   int    CRC32 of payload
+ * </pre>
+ * Every append is synced to the disk before the commit returns. Replay stops at the first truncated or
+ * corrupted record, so a torn write only loses the last commit.
+ * <p/>
+ * {@hide}
+ */
+class ConfigJournal {
+    private static final String TAG = ConfigJournal.class.getSimpleName();
+    static final String SUFFIX = ".journal";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int FLAG_CLEAR = 1;
+
+    private static final byte TYPE_NULL = 0;
+    private static final byte TYPE_STRING = 1;
+    private static final byte TYPE_INT = 2;
+    private static final byte TYPE_LONG = 3;
+    private static final byte TYPE_FLOAT = 4;
+    private static final byte TYPE_DOUBLE = 5;
+    private static final byte TYPE_BOOLEAN = 6;
+    private static final byte TYPE_STRING_ARRAY = 7;
+    private static final byte TYPE_STRING_SET = 8;
+    private static final byte TYPE_BLOB = 9;
+    private static final byte TYPE_MAP = 10;
+    private static final byte TYPE_LIST = 11;
+
+    private final File mFile;
+    // Length of the valid prefix and number of records in it, -1 until the file was scanned
+    private long mValidLength = -1;
+    private int mRecordCount;
+
+    ConfigJournal(String targetPath) {
+        mFile = new File(targetPath + SUFFIX);
+    }
+
+    boolean exists() {
+        return mFile.exists();
+    }
+
+    /**
+     * @return size of the journal file, without scanning it
+     */
+    long fileLength() {
+        return mFile.length();
+    }
+
+    long length() {
+        ensureScanned();
+        return mValidLength;
+    }
+
+    int recordCount() {
+        ensureScanned();
+        return mRecordCount;
+    }
+
+    /**
+     * Append the changes of one commit to the end of the journal
+     *
+     * @param cleared true if the writer was cleared before the puts were applied
+     * @param removes keys to be removed
+     * @param puts    keys and values to be set
+     */
+    void append(boolean cleared, Collection<String> removes, Map<String, Object> puts) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream payload = new DataOutputStream(bytes);
+        payload.writeByte(cleared ? FLAG_CLEAR : 0);
+        payload.writeInt(removes.size());
+        for (String key : removes) {
+            writeString(payload, key);
+        }
+        payload.writeInt(puts.size());
+        for (Map.Entry<String, Object> entry : puts.entrySet()) {
+            writeString(payload, entry.getKey());
+            writeValue(payload, entry.getValue());
+        }
+        payload.flush();
+
+        final int size = bytes.size();
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray(), 0, size);
+
+        ByteArrayOutputStream record = new ByteArrayOutputStream(size + 8);
+        DataOutputStream out = new DataOutputStream(record);
+        out.writeInt(size);
+        bytes.writeTo(out);
+        out.writeInt((int) crc.getValue());
+        out.flush();
+
+        ensureScanned();
+        // Drop a torn tail first, otherwise the new record would never be reached on replay
+        if (mFile.exists() && mFile.length() != mValidLength) {
+            RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+            try {
+                raf.setLength(mValidLength);
+            } finally {
+                raf.close();
+            }
+        }
+
+        FileOutputStream str = new FileOutputStream(mFile, true);
+        try {
+            record.writeTo(str);
+            str.flush();
+            // A commit which returned true has to survive a power loss, as a rewrite of the base file does
+            str.getFD().sync();
+        } finally {
+            str.close();
+        }
+        mValidLength += record.size();
+        mRecordCount++;
+    }
+
+    /**
+     * Apply every valid record to the given map in order
+     *
+     * @param map the map loaded from the base file
+     * @return number of records applied
+     */
+    int replay(Map<String, Object> map) {
+        mValidLength = 0;
+        mRecordCount = 0;
+        if (!mFile.exists()) {
+            return 0;
+        }
+
+        DataInputStream in = null;
+        try {
+            long fileLength = mFile.length();
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile), 16 * 1024));
+            while (true) {
+                byte[] payload = readRecord(in, fileLength - mValidLength);
+                if (payload == null) {
+                    break;
+                }
+                if (map != null) {
+                    applyRecord(payload, map);
+                }
+                mValidLength += payload.length + 8;
+                mRecordCount++;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "replay stopped at " + mValidLength + " of " + mFile, e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return mRecordCount;
+    }
+
+    /**
+     * Delete the journal after its content has been folded into the base file
+     */
+    void reset() {
+        if (mFile.exists() && !mFile.delete()) {
+            Log.w(TAG, "Cannot delete " + mFile);
+        }
+        mValidLength = 0;
+        mRecordCount = 0;
+    }
+
+    private void ensureScanned() {
+        if (mValidLength < 0) {
+            replay(null);
+        }
+    }
+
+    /**
+     * @param remaining bytes from the start of the record to the end of the file
+     * @return the payload, or null at the end of the valid records
+     */
+    private static byte[] readRecord(DataInputStream in, long remaining) throws IOException {
+        int size;
+        try {
+            size = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        // A size which does not fit in the file is a torn or broken size field
+        if (size < 0 || size > remaining - 8) {
+            return null;
+        }
+        byte[] payload = new byte[size];
+        int crcValue;
+        try {
+            in.readFully(payload);
+            crcValue = in.readInt();
+        } catch (EOFException e) {
+            // Torn write at the tail
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, size);
+        if ((int) crc.getValue() != crcValue) {
+            return null;
+        }
+        return payload;
+    }
+
+    private static void applyRecord(byte[] payload, Map<String, Object> map) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        int flags = in.readByte();
+        if ((flags & FLAG_CLEAR) != 0) {
+            map.clear();
+        }
+        int removeCount = in.readInt();
+        for (int i = 0; i < removeCount; i++) {
+            map.remove(readString(in));
+        }
+        int putCount = in.readInt();
+        for (int i = 0; i < putCount; i++) {
+            String key = readString(in);
+            map.put(key, readValue(in));
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String str) throws IOException {
+        byte[] bytes = str.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        // in reads a payload in memory, available() is what is left of it
+        if (length < 0 || length > in.available()) {
+            throw new IOException("Bad string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void writeValue(DataOutputStream out, Object v) throws IOException {
+        if (v == null || v == ConfigIO.NULL) {
+            out.writeByte(TYPE_NULL);
+        } else if (v instanceof String) {
+            out.writeByte(TYPE_STRING);
+            writeString(out, (String) v);
+        } else if (v instanceof Integer) {
+            out.writeByte(TYPE_INT);
+            out.writeInt((Integer) v);
+        } else if (v instanceof Long) {
+            out.writeByte(TYPE_LONG);
+            out.writeLong((Long) v);
+        } else if (v instanceof Float) {
+            out.writeByte(TYPE_FLOAT);
+            out.writeFloat((Float) v);
+        } else if (v instanceof Double) {
+            out.writeByte(TYPE_DOUBLE);
+            out.writeDouble((Double) v);
+        } else if (v instanceof Boolean) {
+            out.writeByte(TYPE_BOOLEAN);
+            out.writeBoolean((Boolean) v);
+        } else if (v instanceof String[]) {
+            String[] array = (String[]) v;
+            out.writeByte(TYPE_STRING_ARRAY);
+            out.writeInt(array.length);
+            for (String item : array) {
+                writeString(out, item);
+            }
+        } else if (v instanceof Set) {
+            Set<String> set = (Set<String>) v;
+            out.writeByte(TYPE_STRING_SET);
+            out.writeInt(set.size());
+            for (String item : set) {
+                writeString(out, item);
+            }
+        } else if (BlobStore.nameOf(v) != null) {
+            out.writeByte(TYPE_BLOB);
+            writeString(out, BlobStore.nameOf(v));
+        } else if (v instanceof Map) {
+            // Nested values written by a path
+            Map<String, Object> map = (Map<String, Object>) v;
+            out.writeByte(TYPE_MAP);
+            out.writeInt(map.size());
+            for (Map.Entry<String, Object> entry : map.entrySet()) {
+                writeString(out, entry.getKey());
+                writeValue(out, entry.getValue());
+            }
+        } else if (v instanceof List) {
+            List<Object> list = (List<Object>) v;
+            out.writeByte(TYPE_LIST);
+            out.writeInt(list.size());
+            for (Object item : list) {
+                writeValue(out, item);
+            }
+        } else {
+            throw new IOException("Journal cannot write value " + v);
+        }
+    }
+
+    private static Object readValue(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case TYPE_NULL:
+                return null;
+            case TYPE_STRING:
+                return readString(in);
+            case TYPE_INT:
+                return in.readInt();
+            case TYPE_LONG:
+                return in.readLong();
+            case TYPE_FLOAT:
+                return in.readFloat();
+            case TYPE_DOUBLE:
+                return in.readDouble();
+            case TYPE_BOOLEAN:
+                return in.readBoolean();
+            case TYPE_STRING_ARRAY: {
+                String[] array = new String[in.readInt()];
+                for (int i = 0; i < array.length; i++) {
+                    array[i] = readString(in);
+                }
+                return array;
+            }
+            case TYPE_STRING_SET: {
+                int size = in.readInt();
+                Set<String> set = new HashSet<>();
+                for (int i = 0; i < size; i++) {
+                    set.add(readString(in));
+                }
+                return set;
+            }
+            case TYPE_BLOB:
+                return BlobStore.reference(readString(in));
+            case TYPE_MAP: {
+                int size = in.readInt();
+                Map<String, Object> map = new HashMap<>();
+                for (int i = 0; i < size; i++) {
+                    String key = readString(in);
+                    map.put(key, readValue(in));
+                }
+                return map;
+            }
+            case TYPE_LIST: {
+                int size = in.readInt();
+                List<Object> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(readValue(in));
+                }
+                return list;
+            }
+            default:
+                throw new IOException("Unknown journal value type " + type);
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/*
+*  Copyright (C) 2016 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.configio;
+
+import android.support.annotation.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Process wide table of the shared ConfigIO objects, one per canonical path.
+ * <p/>
+ * Entries are weakly referenced, so an object which nobody uses any more is collected as usual and the next
+ * {@link ConfigIO#newInstance(String)} of its path loads the file again. With a memory budget the parsed maps
+ * of the least recently used objects are dropped once the loaded files exceed the budget, and read again from
+ * the file on their next get. A get only sets a flag of its object, each trim ages the objects whose flag is
+ * not set and clears it, so the gets of different threads do not write to shared memory.
+ */
+public final class ConfigRegistry {
+    private static final Object sLock = new Object();
+    private static final Map<String, Entry> sEntries = new HashMap<>();
+    private static final ReferenceQueue<ConfigIO> sQueue = new ReferenceQueue<>();
+    // Budget in bytes of the loaded files, 0 for no limit
+    private static long sMemoryBudget = 0;
+    private static long sLoadedBytes = 0;
+
+    private static class Entry extends WeakReference<ConfigIO> {
+        final String mKey;
+        // Size of the file when the map was loaded, 0 while it is not loaded
+        long mLoadedBytes = 0;
+        // Number of trims in a row which found the object unused
+        int mIdleTrims = 0;
+
+        Entry(String key, ConfigIO config) {
+            super(config, sQueue);
+            mKey = key;
+        }
+    }
+
+    private ConfigRegistry() {
+    }
+
+    /**
+     * Get the shared object of a path, it is created by the builder if there is none yet
+     *
+     * @param builder options of the object if it has to be created
+     * @return the shared ConfigIO instance
+     */
+    @NonNull
+    static ConfigIO get(@NonNull ConfigIO.Builder builder) {
+        String key = canonicalPath(builder.mPath);
+        synchronized (sLock) {
+            expungeStaleEntries();
+            Entry entry = sEntries.get(key);
+            ConfigIO config = entry != null ? entry.get() : null;
+            if (config == null) {
+                config = ConfigIO.create(builder);
+                config.configure(builder);
+                if (config instanceof FileConfig) {
+                    ((FileConfig) config).mRegistryKey = key;
+                }
+                sEntries.put(key, new Entry(key, config));
+            }
+            return config;
+        }
+    }
+
+    /**
+     * Limit the memory used by the maps of the shared objects. The size of a loaded map is estimated by the size
+     * of its file. Objects with pending writes are never evicted.
+     *
+     * @param bytes total size of the loaded files, 0 for no limit
+     */
+    public static void setMemoryBudget(long bytes) {
+        synchronized (sLock) {
+            sMemoryBudget = Math.max(0, bytes);
+        }
+        trim(null);
+    }
+
+    /**
+     * Drop the maps of the least recently used shared objects until the loaded files fit in the budget
+     */
+    public static void trimToBudget() {
+        trim(null);
+    }
+
+    /**
+     * Called by a shared object under its lock once its map is loaded from the file, or dropped with 0 bytes
+     */
+    static void setLoadedBytes(FileConfig config, long bytes) {
+        synchronized (sLock) {
+            Entry entry = sEntries.get(config.mRegistryKey);
+            if (entry == null || entry.get() != config) {
+                return;
+            }
+            sLoadedBytes += bytes - entry.mLoadedBytes;
+            entry.mLoadedBytes = bytes;
+        }
+    }
+
+    /**
+     * Called by a shared object after loading, without holding its lock
+     */
+    static void onLoaded(FileConfig config) {
+        trim(config);
+    }
+
+    private static void trim(FileConfig keep) {
+        // Evict outside of sLock, an eviction takes the locks of the object
+        List<Entry> victims = new ArrayList<>();
+        synchronized (sLock) {
+            expungeStaleEntries();
+            if (sMemoryBudget <= 0 || sLoadedBytes <= sMemoryBudget) {
+                return;
+            }
+            List<Entry> loaded = new ArrayList<>();
+            for (Entry entry : sEntries.values()) {
+                FileConfig config = (FileConfig) entry.get();
+                if (entry.mLoadedBytes > 0 && config != null && config != keep) {
+                    if (config.mAccessed) {
+                        config.mAccessed = false;
+                        entry.mIdleTrims = 0;
+                    } else {
+                        entry.mIdleTrims++;
+                    }
+                    loaded.add(entry);
+                }
+            }
+            long excess = sLoadedBytes - sMemoryBudget;
+            while (excess > 0 && !loaded.isEmpty()) {
+                Entry oldest = loaded.get(0);
+                for (Entry entry : loaded) {
+                    if (entry.mIdleTrims > oldest.mIdleTrims) {
+                        oldest = entry;
+                    }
+                }
+                loaded.remove(oldest);
+                victims.add(oldest);
+                excess -= oldest.mLoadedBytes;
+            }
+        }
+
+        for (Entry entry : victims) {
+            FileConfig config = (FileConfig) entry.get();
+            if (config != null) {
+                config.evict();
+            }
+        }
+    }
+
+    private static void expungeStaleEntries() {
+        Entry entry;
+        while ((entry = (Entry) sQueue.poll()) != null) {
+            sLoadedBytes -= entry.mLoadedBytes;
+            entry.mLoadedBytes = 0;
+            // The path may have a live object again
+            if (sEntries.get(entry.mKey) == entry) {
+                sEntries.remove(entry.mKey);
+            }
+        }
+    }
+
+    /**
+     * @return the key of the file of path, the same for every path of the file
+     */
+    static String canonicalPath(String path) {
+        if (PackStore.isPackPath(path)) {
+            return PackStore.SCHEME + canonicalPath(PackStore.containerOf(path)) + "#" + PackStore.entryOf(path);
+        }
+        File file = new File(path);
+        try {
+            return file.getCanonicalPath();
+        } catch (IOException e) {
+            return file.getAbsolutePath();
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/*
+*  Copyright (C) 2016 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.configio;
+
+import java.io.IOException;
+
+/**
+ * Receives the content of a config file in document order, so a file can be converted to another format
+ * without building its map. The name of a value is null for the root map and for the items of an array.
+ * Scalar values are String, Integer, Long, Float, Double, Boolean or null.
+ * <p/>
+ * {@hide}
+ */
+interface ConfigSink {
+    void beginMap(String name) throws IOException;
+
+    void endMap() throws IOException;
+
+    void beginArray(String name) throws IOException;
+
+    void endArray() throws IOException;
+
+    void value(String name, Object value) throws IOException;
+
+    /**
+     * Called once after the root map is ended
+     */
+    void finish() throws IOException;
+}
@@ -0,0 +1,1465 @@
+/*
+*  Copyright (C) 2016 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.configio;
+
+import android.os.FileObserver;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Base of the file backed configurations. Subclasses only convert between a stream and a map.
+ * <p/>
+ * {@hide}
+ */
+abstract class FileConfig extends ConfigIO {
+    private static final String TAG = FileConfig.class.getSimpleName();
+
+    static final long DEFAULT_JOURNAL_COMPACT_BYTES = 256 * 1024;
+    static final int DEFAULT_JOURNAL_COMPACT_RECORDS = 512;
+    // Coarsest modification time resolution of the common file systems
+    private static final long MTIME_RESOLUTION_MILLIS = 2000;
+
+    private Set<String> mDeleteKeySet = new HashSet<>();
+    protected boolean mbLoadToMemory = false;
+    // Let readMap keep LazyValue placeholders instead of decoded values
+    protected boolean mLazyLoad = false;
+    // True while the map may hold placeholders
+    private volatile boolean mHasLazyValues = false;
+    // Keep the map in a PrimitiveMap
+    private boolean mPrimitiveStorage = false;
+
+    // Concurrent mode: the map is never changed once it is assigned to mMap, edits are published as a new map
+    private boolean mConcurrent = false;
+    // Guards the map and the merged changes. It is only held for merges and snapshots, never across a write.
+    private final Object mEditLock = new Object();
+    // Merged changes which save() has not taken yet, guarded by mEditLock
+    private final ChangeSet mUnsaved = new ChangeSet();
+
+    // Editors waiting to be merged by whichever thread holds the merge lock
+    private final Queue<ConfigEditor> mMergeQueue = new ConcurrentLinkedQueue<>();
+    // Changed keys of each merge pass in merge order, delivered under mNotifyLock
+    private final Queue<Set<String>> mChangeQueue = new ConcurrentLinkedQueue<>();
+    private final Object mNotifyLock = new Object();
+    // Identity of the file when it was last read or written by this object
+    private long mStampModified = -1;
+    private long mStampLength = -1;
+    private long mStampJournalLength = -1;
+    private long mStampGeneration = -1;
+    // The file was written so recently that a rewrite may keep the same modification time
+    private boolean mStampRacy = false;
+    // Keeps the watch alive as long as this object
+    private FileObserver mObserver;
+    private final AtomicBoolean mReloadQueued = new AtomicBoolean();
+    private final Runnable mReloadTask = new Runnable() {
+        @Override
+        public void run() {
+            mReloadQueued.set(false);
+            reload();
+        }
+    };
+
+    // Number of merge passes, and the number contained in the last successful write
+    private volatile long mMergeGeneration = 0;
+    private long mWrittenGeneration = 0;
+
+    private final WriteScheduler mScheduler;
+    private long mApplyDebounceMillis = 0;
+    // True while a background write is scheduled but has not started yet
+    private final AtomicBoolean mWriteQueued = new AtomicBoolean();
+    private final Runnable mWriteTask = new Runnable() {
+        @Override
+        public void run() {
+            saveQueued();
+        }
+    };
+
+    // Dirty keys taken by save() and not written yet, written as one journal record, guarded by this
+    private final ChangeSet mPending = new ChangeSet();
+    // Flattened paths of the nested values per key, an index is valid while its key still holds the same value
+    private final ConcurrentHashMap<String, PathIndex> mPaths = new ConcurrentHashMap<>();
+    // Digest of the content last read from or written to the file
+    private byte[] mPersistedDigest;
+    private int mPersistedSize = -1;
+
+    private final ConfigJournal mJournal;
+    // Large strings stored out of line
+    private BlobStore mBlobs;
+    // Container of a "pack://file#name" path, null for a plain file
+    private final PackStore mPack;
+    private final String mPackEntry;
+    // Files of at least this size are written compressed, 0 to always write them plain
+    private int mCompressThreshold = 0;
+    private boolean mJournalEnabled = false;
+    private long mJournalCompactBytes = DEFAULT_JOURNAL_COMPACT_BYTES;
+    private int mJournalCompactRecords = DEFAULT_JOURNAL_COMPACT_RECORDS;
+    private boolean mCompactScheduled = false;
+
+    // Canonical path in ConfigRegistry, null unless this is the shared object of the path
+    String mRegistryKey;
+    // Set by a get of a shared object, cleared by the registry when it ages the loaded objects.
+    // Only written when it changes, so the gets do not keep writing to a shared cache line.
+    boolean mAccessed = false;
+    // The map was dropped by the registry or is being preloaded, a get which misses loads it
+    private volatile boolean mLoadOnMiss = false;
+
+    protected FileConfig(String path) {
+        super(path);
+        mJournal = new ConfigJournal(path);
+        mBlobs = new BlobStore(path, 0);
+        mScheduler = WriteScheduler.forPath(path);
+        if (PackStore.isPackPath(path)) {
+            mPack = PackStore.forPath(path);
+            mPackEntry = PackStore.entryOf(path);
+        } else {
+            mPack = null;
+            mPackEntry = null;
+        }
+    }
+
+    /**
+     * Parse the whole content of a config file
+     *
+     * @param in stream of the config file
+     * @return the parsed map
+     */
+    protected abstract Map<String, Object> readMap(InputStream in) throws IOException;
+
+    /**
+     * Flatten a map into a config file
+     *
+     * @param map map to be written
+     * @param out stream of the config file
+     */
+    protected abstract void writeMap(Map<String, Object> map, OutputStream out) throws IOException;
+
+    /**
+     * Called once the content of the last {@link #writeMap} is in the file
+     */
+    void onWritten() {
+    }
+
+    /**
+     * @return true if files of the format can be wrapped in the deflate container of {@link ConfigCompressor}
+     */
+    boolean supportsCompression() {
+        return false;
+    }
+
+    /**
+     * @return true if the format can store lists, without them a path can only replace an item of a string array
+     */
+    boolean supportsLists() {
+        return true;
+    }
+
+    /**
+     * @return true if the format can be read with readEvents and written with newSink
+     */
+    boolean supportsEvents() {
+        return false;
+    }
+
+    /**
+     * Send the content of a config file to the sink without building its map
+     *
+     * @param in   stream of the config file
+     * @param sink receiver of the values
+     */
+    void readEvents(InputStream in, ConfigSink sink) throws IOException {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * @param out stream of the config file, a format may patch what it wrote before through its channel
+     * @return a sink which writes a config file of this format
+     */
+    ConfigSink newSink(FileOutputStream out) throws IOException {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * @return true if the whole content is in the file, so readEvents of {@link #openStream()} sees all of it.
+     * A journal has to be replayed into a map first, blobs are read by the map and packs are no plain files.
+     */
+    boolean canStream() {
+        return supportsEvents() && mPack == null && !mJournal.exists()
+                && !new File(mTargetPath + BlobStore.SUFFIX).exists();
+    }
+
+    /**
+     * @return a stream of the plain content of the file, inflated if it is compressed
+     */
+    InputStream openStream() throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(mTargetPath), 16 * 1024);
+        if (supportsCompression() && ConfigCompressor.isCompressed(in)) {
+            in = ConfigCompressor.inflate(in);
+        }
+        return in;
+    }
+
+    @Override
+    void configure(Builder builder) {
+        // An entry of a pack is small and rewritten in one append, it has no journal, blobs or file to watch
+        mJournalEnabled = builder.mJournalEnabled && mPack == null;
+        mJournalCompactBytes = builder.mJournalCompactBytes;
+        mJournalCompactRecords = builder.mJournalCompactRecords;
+        mApplyDebounceMillis = builder.mApplyDebounceMillis;
+        mLazyLoad = builder.mLazyLoad;
+        mPrimitiveStorage = builder.mPrimitiveStorage;
+        mConcurrent = builder.mConcurrent;
+        if (supportsCompression()) {
+            mCompressThreshold = builder.mCompressThreshold;
+        }
+        if (builder.mBlobThreshold > 0 && mPack == null) {
+            mBlobs = new BlobStore(mTargetPath, builder.mBlobThreshold);
+        }
+        if (mPrimitiveStorage) {
+            mMap = new PrimitiveMap(mMap);
+        }
+        if (builder.mWatchFile && mPack == null) {
+            startWatching();
+        }
+    }
+
+    @Override
+    public boolean loadFromFile() {
+        boolean wasLoaded = mbLoadToMemory;
+        boolean loaded = loadLocked();
+        if (loaded && !wasLoaded && mRegistryKey != null) {
+            // Other shared objects may have to give up their maps now
+            ConfigRegistry.onLoaded(this);
+        }
+        return loaded;
+    }
+
+    private synchronized boolean loadLocked() {
+        // If it has loaed to memory, return true directly
+        if (mbLoadToMemory == true) {
+            return true;
+        }
+
+        if (TextUtils.isEmpty(mTargetPath)) {
+            throw new IllegalAccessError("Empty file path");
+        }
+
+        Map<String, Object> map = readFromDisk();
+        if (map == null) {
+            mLoadOnMiss = false;
+            return false;
+        }
+        boolean hasBlobs = mBlobs.internalize(map);
+
+        synchronized (mEditLock) {
+            map.putAll(mMap);
+            mMap = mPrimitiveStorage ? new PrimitiveMap(map) : map;
+            mHasLazyValues = mLazyLoad || hasBlobs;
+            mbLoadToMemory = true;
+            mLoadOnMiss = false;
+        }
+        mPaths.clear();
+        if (mRegistryKey != null) {
+            ConfigRegistry.setLoadedBytes(this, Math.max(1, mStampLength) + Math.max(0, mStampJournalLength));
+        }
+        // Print log
+        dumpMap();
+        return mbLoadToMemory;
+    }
+
+    /**
+     * Drop the loaded map to save memory, it is loaded again by the next get which needs it.
+     * Nothing is dropped while edits are not written or listeners wait for changes.
+     *
+     * @return true if the map was dropped
+     */
+    synchronized boolean evict() {
+        synchronized (mEditLock) {
+            if (!mbLoadToMemory || !mPending.isEmpty() || !mUnsaved.isEmpty() || !mMergeQueue.isEmpty()
+                    || mWriteQueued.get() || mCompactScheduled || hasChangeListeners()) {
+                return false;
+            }
+            // A reader which misses in the empty map sees the flag as well
+            mLoadOnMiss = true;
+            mbLoadToMemory = false;
+            mHasLazyValues = false;
+            mMap = mPrimitiveStorage ? new PrimitiveMap() : new HashMap<String, Object>();
+        }
+        mPaths.clear();
+        ConfigRegistry.setLoadedBytes(this, 0);
+        Log.d(TAG, "evict : " + mTargetPath);
+        return true;
+    }
+
+    /**
+     * Load the file on an executor. Until it is loaded a get which misses loads it on the calling thread,
+     * or waits for the load of the executor which holds the lock.
+     */
+    void preload(Executor executor) {
+        synchronized (mEditLock) {
+            if (mbLoadToMemory) {
+                return;
+            }
+            mLoadOnMiss = true;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                loadFromFile();
+            }
+        });
+    }
+
+    /**
+     * Load the map if the registry dropped it or a preload has not finished
+     *
+     * @return true if the get should be retried
+     */
+    private boolean loadOnMiss() {
+        if (!mLoadOnMiss) {
+            return false;
+        }
+        loadFromFile();
+        return true;
+    }
+
+    /**
+     * Load the map like {@link #loadOnMiss()}. A load which finished after the lookup published its map already,
+     * the lookup is retried in that map as well. A caller retries until this returns false, an eviction may
+     * replace the loaded map before the retry.
+     *
+     * @param seen the map in which the lookup missed
+     * @return true if the get should be retried
+     */
+    private boolean loadOnMiss(Map<String, Object> seen) {
+        return loadOnMiss() || mMap != seen;
+    }
+
+    private void touch() {
+        if (mRegistryKey != null && !mAccessed) {
+            mAccessed = true;
+        }
+    }
+
+    @Override
+    protected Object getValue(String key) {
+        touch();
+        Map<String, Object> map = mMap;
+        Object obj = map.get(key);
+        // The registry may drop the map again right after the load, the lookup ends in a map which stayed
+        while (obj == null && loadOnMiss(map)) {
+            map = mMap;
+            obj = map.get(key);
+        }
+        if (obj == null && KeyPath.isPath(key)) {
+            return pathValue(key);
+        }
+        if (obj instanceof LazyValue) {
+            // A published map is not changed, the placeholder keeps its decoded value instead
+            obj = mConcurrent ? decode(key, (LazyValue) obj) : resolve(key);
+        }
+        return obj;
+    }
+
+    /**
+     * Get a nested value through the path index, see {@link KeyPath}
+     */
+    private Object pathValue(String path) {
+        Map<String, Object> map = mMap;
+        String key = KeyPath.topKey(map, path);
+        if (key == null) {
+            return null;
+        }
+        Object source = map.get(key);
+        PathIndex index = mPaths.get(key);
+        if (index == null || index.mSource != source) {
+            // Index all the paths of the key at once, a get of any of them, or of a missing one, is one lookup
+            Object value = source;
+            if (source instanceof LazyValue) {
+                value = getValue(key);
+                // Resolving replaces the placeholder outside the concurrent mode
+                source = mMap.get(key);
+            }
+            index = new PathIndex(source, KeyPath.flatten(key, value));
+            mPaths.put(key, index);
+        }
+        return index.mValues.get(path);
+    }
+
+    @Override
+    public Map<String, ?> getAll() {
+        touch();
+        Map<String, Object> map;
+        do {
+            map = mMap;
+        } while (loadOnMiss(map));
+        if (mHasLazyValues) {
+            resolveAll();
+            map = mMap;
+        }
+        return map;
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return containsKey(key) || (KeyPath.isPath(key) && pathValue(key) != null);
+    }
+
+    /**
+     * @return true if key is a key of the map, not a path
+     */
+    boolean containsKey(String key) {
+        touch();
+        Map<String, Object> map = mMap;
+        boolean found = map.containsKey(key);
+        while (!found && loadOnMiss(map)) {
+            map = mMap;
+            found = map.containsKey(key);
+        }
+        return found;
+    }
+
+    /**
+     * @return true if a key of the map holds nested values which path points into
+     */
+    boolean containsPathKey(String path) {
+        touch();
+        loadOnMiss();
+        return KeyPath.topKey(mMap, path) != null;
+    }
+
+    // Typed reads of a PrimitiveMap do not box, anything else is left to the generic getters
+
+    @Override
+    public int getInt(String key, int defValue) {
+        Map<String, Object> map = mMap;
+        if (map instanceof PrimitiveMap) {
+            touch();
+            PrimitiveMap primitives = (PrimitiveMap) map;
+            int slot = primitives.indexOf(key);
+            if (slot < 0) {
+                if (loadOnMiss(map)) {
+                    return getInt(key, defValue);
+                }
+                if (!KeyPath.isPath(key)) {
+                    return defValue;
+                }
+            } else if (primitives.typeAt(slot) == PrimitiveMap.TYPE_INT) {
+                return primitives.intAt(slot);
+            }
+        }
+        return super.getInt(key, defValue);
+    }
+
+    @Override
+    public long getLong(String key, long defValue) {
+        Map<String, Object> map = mMap;
+        if (map instanceof PrimitiveMap) {
+            touch();
+            PrimitiveMap primitives = (PrimitiveMap) map;
+            int slot = primitives.indexOf(key);
+            if (slot < 0) {
+                if (loadOnMiss(map)) {
+                    return getLong(key, defValue);
+                }
+                if (!KeyPath.isPath(key)) {
+                    return defValue;
+                }
+            } else if (primitives.typeAt(slot) == PrimitiveMap.TYPE_LONG) {
+                return primitives.longAt(slot);
+            }
+        }
+        return super.getLong(key, defValue);
+    }
+
+    @Override
+    public float getFloat(String key, float defValue) {
+        Map<String, Object> map = mMap;
+        if (map instanceof PrimitiveMap) {
+            touch();
+            PrimitiveMap primitives = (PrimitiveMap) map;
+            int slot = primitives.indexOf(key);
+            if (slot < 0) {
+                if (loadOnMiss(map)) {
+                    return getFloat(key, defValue);
+                }
+                if (!KeyPath.isPath(key)) {
+                    return defValue;
+                }
+            } else if (primitives.typeAt(slot) == PrimitiveMap.TYPE_FLOAT) {
+                return primitives.floatAt(slot);
+            }
+        }
+        return super.getFloat(key, defValue);
+    }
+
+    @Override
+    public double getDouble(String key, double defValue) {
+        Map<String, Object> map = mMap;
+        if (map instanceof PrimitiveMap) {
+            touch();
+            PrimitiveMap primitives = (PrimitiveMap) map;
+            int slot = primitives.indexOf(key);
+            if (slot < 0) {
+                if (loadOnMiss(map)) {
+                    return getDouble(key, defValue);
+                }
+                if (!KeyPath.isPath(key)) {
+                    return defValue;
+                }
+            } else if (primitives.typeAt(slot) == PrimitiveMap.TYPE_DOUBLE) {
+                return primitives.doubleAt(slot);
+            }
+        }
+        return super.getDouble(key, defValue);
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defValue) {
+        Map<String, Object> map = mMap;
+        if (map instanceof PrimitiveMap) {
+            touch();
+            PrimitiveMap primitives = (PrimitiveMap) map;
+            int slot = primitives.indexOf(key);
+            if (slot < 0) {
+                if (loadOnMiss(map)) {
+                    return getBoolean(key, defValue);
+                }
+                if (!KeyPath.isPath(key)) {
+                    return defValue;
+                }
+            } else if (primitives.typeAt(slot) == PrimitiveMap.TYPE_BOOLEAN) {
+                return primitives.booleanAt(slot);
+            }
+        }
+        return super.getBoolean(key, defValue);
+    }
+
+    /**
+     * Decode the placeholder of key and keep the decoded value in the map
+     */
+    private Object resolve(String key) {
+        synchronized (mEditLock) {
+            Object obj = mMap.get(key);
+            if (obj instanceof LazyValue) {
+                obj = decode(key, (LazyValue) obj);
+                // Replacing the value of an existing key is not a structural change of the map
+                mMap.put(key, obj);
+            }
+            return obj;
+        }
+    }
+
+    private void resolveAll() {
+        synchronized (mEditLock) {
+            if (mConcurrent) {
+                Map<String, Object> next = copyMap(mMap);
+                resolveEntries(next);
+                mMap = next;
+            } else {
+                resolveEntries(mMap);
+            }
+        }
+        mHasLazyValues = false;
+    }
+
+    private void resolveEntries(Map<String, Object> map) {
+        for (Map.Entry<String, Object> entry : map.entrySet()) {
+            if (entry.getValue() instanceof LazyValue) {
+                entry.setValue(decode(entry.getKey(), (LazyValue) entry.getValue()));
+            }
+        }
+    }
+
+    private Object decode(String key, LazyValue lazy) {
+        try {
+            return lazy.get();
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot decode " + key + " in " + mTargetPath, e);
+            return null;
+        }
+    }
+
+    /**
+     * Read the file and replay the journal
+     *
+     * @return the content, or null if there is no file or it cannot be read
+     */
+    private Map<String, Object> readFromDisk() {
+        if (mPack != null) {
+            return readFromPack();
+        }
+        File file = new File(mTargetPath);
+        boolean hasBase = file.exists();
+        if (!hasBase && !mJournal.exists()) {
+            return null;
+        }
+        // Taken before reading, so a rewrite during the read is noticed by the next check
+        recordStamp();
+
+        Map<String, Object> map = new HashMap<>();
+        if (hasBase) {
+            if (!file.canRead()) {
+                return null;
+            }
+            InputStream str = null;
+            try {
+                MessageDigest digest = newDigest();
+                InputStream raw = new BufferedInputStream(new FileInputStream(file), 16 * 1024);
+                str = raw;
+                boolean compressed = supportsCompression() && ConfigCompressor.isCompressed(raw);
+                if (digest != null) {
+                    raw = new DigestInputStream(raw, digest);
+                    str = raw;
+                }
+                if (compressed) {
+                    str = ConfigCompressor.inflate(raw);
+                }
+                map = readMap(str);
+                if (digest != null) {
+                    // Include what the parser did not consume, e.g. trailing new line
+                    byte[] skip = new byte[512];
+                    while (raw.read(skip) != -1) {
+                    }
+                    mPersistedDigest = digest.digest();
+                    mPersistedSize = (int) file.length();
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "loadFromFile " + mTargetPath, e);
+                return null;
+            } finally {
+                if (str != null) {
+                    try {
+                        str.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
+
+        // Replay the commits which have not been compacted into the base file yet
+        mJournal.replay(map);
+        return map;
+    }
+
+    private Map<String, Object> readFromPack() {
+        recordStamp();
+        InputStream str = null;
+        try {
+            byte[] data = mPack.read(mPackEntry);
+            if (data == null) {
+                return null;
+            }
+            str = new ByteArrayInputStream(data);
+            if (supportsCompression() && ConfigCompressor.isCompressed(str)) {
+                str = ConfigCompressor.inflate(str);
+            }
+            Map<String, Object> map = readMap(str);
+            MessageDigest digest = newDigest();
+            if (digest != null) {
+                mPersistedDigest = digest.digest(data);
+                mPersistedSize = data.length;
+            }
+            return map;
+        } catch (IOException e) {
+            Log.w(TAG, "loadFromFile " + mTargetPath, e);
+            return null;
+        } finally {
+            if (str != null) {
+                try {
+                    str.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if the file, or the entry of a pack, exists
+     */
+    private boolean baseExists() {
+        return mPack != null ? mPack.contains(mPackEntry) : new File(mTargetPath).exists();
+    }
+
+    @Override
+    boolean fileExists() {
+        return baseExists() || mJournal.exists();
+    }
+
+    @Override
+    public boolean reload() {
+        if (!mbLoadToMemory) {
+            return loadFromFile();
+        }
+        boolean changed;
+        synchronized (this) {
+            if (!isStale()) {
+                return false;
+            }
+            Map<String, Object> loaded = readFromDisk();
+            if (loaded == null) {
+                if (baseExists()) {
+                    return false;
+                }
+                // The file and its journal were deleted
+                recordStamp();
+                loaded = new HashMap<>();
+            }
+            mBlobs.internalize(loaded);
+            synchronized (mEditLock) {
+                changed = swapChanged(loaded);
+            }
+        }
+        deliverChanges();
+        return changed;
+    }
+
+    /**
+     * Replace only the values which differ from the reloaded ones. Keys edited here but not written yet keep
+     * their value, they are written over the file later.
+     *
+     * @return true if any value changed
+     */
+    private boolean swapChanged(Map<String, Object> loaded) {
+        ChangeSet local = new ChangeSet();
+        local.addAll(mPending);
+        local.addAll(mUnsaved);
+        if (local.mCleared) {
+            // The next write replaces the whole file anyway
+            return false;
+        }
+
+        Map<String, Object> current = mMap;
+        Set<String> changed = new HashSet<>();
+        for (Map.Entry<String, Object> entry : loaded.entrySet()) {
+            String key = entry.getKey();
+            if (local.mPuts.contains(key) || local.mRemoves.contains(key)) {
+                continue;
+            }
+            if (!current.containsKey(key) || !sameValue(key, current.get(key), entry.getValue())) {
+                changed.add(key);
+            }
+        }
+        for (String key : current.keySet()) {
+            if (!loaded.containsKey(key) && !local.mPuts.contains(key)) {
+                changed.add(key);
+            }
+        }
+        if (changed.isEmpty()) {
+            return false;
+        }
+
+        Map<String, Object> map = mConcurrent ? copyMap(current) : current;
+        for (String key : changed) {
+            if (loaded.containsKey(key)) {
+                Object value = loaded.get(key);
+                map.put(key, value);
+                if (value instanceof LazyValue) {
+                    mHasLazyValues = true;
+                }
+            } else {
+                map.remove(key);
+            }
+        }
+        if (mConcurrent) {
+            mMap = map;
+        }
+        if (hasChangeListeners()) {
+            mChangeQueue.add(changed);
+        }
+        return true;
+    }
+
+    private boolean sameValue(String key, Object current, Object loaded) {
+        if (current instanceof LazyValue && loaded instanceof LazyValue) {
+            // Same raw text
+            return current.equals(loaded);
+        }
+        if (current instanceof LazyValue) {
+            current = decode(key, (LazyValue) current);
+        } else if (loaded instanceof LazyValue) {
+            loaded = decode(key, (LazyValue) loaded);
+        }
+        return valueEquals(current, loaded);
+    }
+
+    /**
+     * Remember the identity of the file and its journal as they are now
+     */
+    private void recordStamp() {
+        if (mPack != null) {
+            mStampGeneration = mPack.generation(mPackEntry);
+            mStampLength = mPack.length(mPackEntry);
+            return;
+        }
+        File file = new File(mTargetPath);
+        mStampModified = file.lastModified();
+        mStampLength = file.length();
+        mStampJournalLength = mJournal.fileLength();
+        mStampGeneration = readGeneration(file);
+        mStampRacy = System.currentTimeMillis() - mStampModified < MTIME_RESOLUTION_MILLIS;
+    }
+
+    /**
+     * @return true if the file or its journal differ from the last time this object read or wrote them
+     */
+    private boolean isStale() {
+        if (mPack != null) {
+            mPack.refresh();
+            return mPack.generation(mPackEntry) != mStampGeneration;
+        }
+        File file = new File(mTargetPath);
+        if (file.lastModified() != mStampModified
+                || file.length() != mStampLength
+                || mJournal.fileLength() != mStampJournalLength
+                || readGeneration(file) != mStampGeneration) {
+            return true;
+        }
+        if (!mStampRacy) {
+            return false;
+        }
+        // Same size within the same tick of the clock, only the content tells
+        boolean racy = System.currentTimeMillis() - mStampModified < MTIME_RESOLUTION_MILLIS;
+        byte[] digest = digestOf(file);
+        if (digest == null || mPersistedDigest == null || !MessageDigest.isEqual(digest, mPersistedDigest)) {
+            return true;
+        }
+        mStampRacy = racy;
+        return false;
+    }
+
+    private static byte[] digestOf(File file) {
+        MessageDigest digest = newDigest();
+        if (digest == null || !file.exists()) {
+            return null;
+        }
+        InputStream str = null;
+        try {
+            str = new FileInputStream(file);
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = str.read(buffer)) != -1) {
+                digest.update(buffer, 0, n);
+            }
+            return digest.digest();
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (str != null) {
+                try {
+                    str.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Read the generation counter of a format which keeps one in its header. It catches rewrites which keep
+     * the size and happen within the resolution of the modification time.
+     *
+     * @return the generation, or -1 if the format has none
+     */
+    protected long readGeneration(File file) {
+        return -1;
+    }
+
+    /**
+     * Reload the file in background whenever it or its journal is written, renamed over or deleted
+     */
+    private void startWatching() {
+        File file = new File(mTargetPath).getAbsoluteFile();
+        // Watch the directory, a file replaced by a rename would end the watch of the file itself
+        mObserver = new FileObserver(file.getParent(),
+                FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO | FileObserver.DELETE) {
+            @Override
+            public void onEvent(int event, String path) {
+                onFileEvent(path);
+            }
+        };
+        mObserver.startWatching();
+    }
+
+    /**
+     * Called by the observer with the name of a file of the directory which changed
+     */
+    void onFileEvent(String name) {
+        String fileName = new File(mTargetPath).getName();
+        if (fileName.equals(name) || (fileName + ConfigJournal.SUFFIX).equals(name)) {
+            if (mReloadQueued.compareAndSet(false, true)) {
+                mScheduler.schedule(mReloadTask, 0);
+            }
+        }
+    }
+
+    @Override
+    public Writer getWriter() {
+        return new ConfigEditor(this, mPrimitiveStorage ? new PrimitiveMap() : new HashMap<String, Object>());
+    }
+
+    /**
+     * Merge the edits and write them to the file
+     *
+     * @return true if a write which contains the edits succeeded
+     */
+    boolean commitEdits(ConfigEditor editor) {
+        long generation = merge(editor);
+        return writeThrough(generation);
+    }
+
+    /**
+     * Merge the edits and queue a background write
+     */
+    void applyEdits(ConfigEditor editor) {
+        merge(editor);
+        // Coalesce: edits arriving before the queued write starts are written by it
+        if (mWriteQueued.compareAndSet(false, true)) {
+            mScheduler.schedule(mWriteTask, mApplyDebounceMillis);
+        }
+    }
+
+    /**
+     * Hand the edits to the merge queue. The thread which holds the merge lock merges every queued editor in
+     * one pass, so threads committing at the same time usually find their edits merged when they get the lock.
+     * The edits of the editor are cleared afterwards.
+     *
+     * @return the merge generation which contains the edits
+     */
+    private long merge(ConfigEditor editor) {
+        if (editor.isEmpty()) {
+            return mMergeGeneration;
+        }
+        editor.mGeneration = 0;
+        mMergeQueue.add(editor);
+        // A write only holds the edit lock to take a snapshot, so a merge never waits for the disk
+        synchronized (mEditLock) {
+            if (editor.mGeneration == 0) {
+                mergeQueued();
+            }
+        }
+        long generation = editor.mGeneration;
+        editor.reset();
+        deliverChanges();
+        return generation;
+    }
+
+    /**
+     * Notify the listeners outside the merge lock. The batches are queued in merge order and delivered in the
+     * same order, whichever thread gets here first delivers all of them.
+     */
+    private void deliverChanges() {
+        if (mChangeQueue.isEmpty()) {
+            return;
+        }
+        synchronized (mNotifyLock) {
+            Set<String> keys;
+            while ((keys = mChangeQueue.poll()) != null) {
+                notifyChanged(keys);
+            }
+        }
+    }
+
+    private void mergeQueued() {
+        final long generation = mMergeGeneration + 1;
+        final ChangeSet changes = mUnsaved;
+        final Set<String> changedKeys = hasChangeListeners() ? new HashSet<String>() : null;
+        Map<String, Object> map = mConcurrent ? copyMap(mMap) : mMap;
+        ConfigEditor editor;
+        while ((editor = mMergeQueue.poll()) != null) {
+            mergeEdits(map, editor, changes, changedKeys);
+            editor.mGeneration = generation;
+        }
+        if (mConcurrent) {
+            // Publish all the merged edits with one write of mMap
+            mMap = map;
+        }
+        mMergeGeneration = generation;
+        if (changedKeys != null && !changedKeys.isEmpty()) {
+            mChangeQueue.add(changedKeys);
+        }
+    }
+
+    /**
+     * Apply the clear, the removes and then the puts of the editor, and record the keys which changed
+     *
+     * @param changedKeys collects the keys for the listeners, null if there is no listener
+     */
+    private void mergeEdits(Map<String, Object> map, ConfigEditor editor, ChangeSet changes,
+                            Set<String> changedKeys) {
+        if (!mPaths.isEmpty()) {
+            prunePaths(editor);
+        }
+        if (editor.mClear) {
+            if (changedKeys != null) {
+                changedKeys.addAll(map.keySet());
+            }
+            map.clear();
+            changes.clear();
+        }
+        for (String key : editor.mRemoves) {
+            // Nothing to remove if the loaded map does not have it
+            if (mbLoadToMemory && !map.containsKey(key)) {
+                continue;
+            }
+            map.remove(key);
+            changes.remove(key);
+            if (changedKeys != null) {
+                changedKeys.add(key);
+            }
+            // Add to delete set when the user didn't call loadFromFile first
+            if (mbLoadToMemory == false) {
+                mDeleteKeySet.add(key);
+            }
+        }
+
+        if (editor.mPuts instanceof PrimitiveMap && map instanceof PrimitiveMap) {
+            // Copy the bits of primitive values without boxing them
+            PrimitiveMap puts = (PrimitiveMap) editor.mPuts;
+            PrimitiveMap target = (PrimitiveMap) map;
+            for (int slot = puts.nextSlot(0); slot >= 0; slot = puts.nextSlot(slot + 1)) {
+                String key = puts.keyAt(slot);
+                byte type = puts.typeAt(slot);
+                if (type == PrimitiveMap.TYPE_OBJECT) {
+                    putValue(map, key, puts.objectAt(slot), changes, changedKeys);
+                } else if (target.putBits(key, type, puts.longAt(slot))) {
+                    changes.put(key);
+                    if (changedKeys != null) {
+                        changedKeys.add(key);
+                    }
+                }
+            }
+        } else {
+            for (Map.Entry<String, Object> entry : editor.mPuts.entrySet()) {
+                putValue(map, entry.getKey(), entry.getValue(), changes, changedKeys);
+            }
+        }
+        if (editor.mPathPuts != null) {
+            for (Map.Entry<String, Object> entry : editor.mPathPuts.entrySet()) {
+                putPath(map, entry.getKey(), entry.getValue(), changes, changedKeys);
+            }
+        }
+    }
+
+    /**
+     * Drop the path indexes of the keys the editor writes, they are built again by the next path get
+     */
+    private void prunePaths(ConfigEditor editor) {
+        if (editor.mClear) {
+            mPaths.clear();
+            return;
+        }
+        for (String key : editor.mRemoves) {
+            mPaths.remove(key);
+        }
+        for (String key : editor.mPuts.keySet()) {
+            mPaths.remove(key);
+        }
+        if (editor.mPathPuts != null) {
+            for (String path : editor.mPathPuts.keySet()) {
+                String key = KeyPath.topKey(mMap, path);
+                if (key != null) {
+                    mPaths.remove(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Write a nested value. Only the key which holds the path changes, so it is the only dirty key.
+     *
+     * @param value the new value, or {@link KeyPath#REMOVE}
+     */
+    private void putPath(Map<String, Object> map, String path, Object value, ChangeSet changes,
+                         Set<String> changedKeys) {
+        String key = KeyPath.topKey(map, path);
+        if (key == null) {
+            key = KeyPath.head(path);
+        }
+        List<Object> parts = KeyPath.parse(path.substring(key.length()));
+        if (parts == null) {
+            Log.w(TAG, "Invalid path " + path);
+            return;
+        }
+        Object current = map.get(key);
+        if (current instanceof LazyValue) {
+            current = decode(key, (LazyValue) current);
+        }
+        Object next = KeyPath.with(current, parts, 0, value);
+        if (next == current) {
+            if (value != KeyPath.REMOVE) {
+                Log.w(TAG, "Cannot write path " + path + " into " + current);
+            }
+            return;
+        }
+        putValue(map, key, next, changes, changedKeys);
+    }
+
+    /**
+     * Check a nested write when it is added to an editor, the merge cannot report an error to the caller
+     *
+     * @throws IllegalArgumentException if the file cannot store what the write would create
+     */
+    void checkPath(String path, Object value) {
+        if (supportsLists()) {
+            return;
+        }
+        if (containsList(value)) {
+            throw new IllegalArgumentException("Cannot store a list in " + mTargetPath + ": " + path);
+        }
+        int bracket = path.indexOf('[');
+        if (bracket > 0 && (bracket != path.lastIndexOf('[') || !path.endsWith("]")
+                || !(value instanceof String) || !(getValue(path.substring(0, bracket)) instanceof String[]))) {
+            // Only an item of an existing string array, a path never creates an array here
+            throw new IllegalArgumentException("Cannot create a list in " + mTargetPath + ": " + path);
+        }
+    }
+
+    private static boolean containsList(Object value) {
+        if (value instanceof Map) {
+            for (Object child : ((Map<?, ?>) value).values()) {
+                if (containsList(child)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return value instanceof Collection || (value instanceof Object[] && !(value instanceof String[]));
+    }
+
+    /**
+     * Put the value and mark the key changed, unless the map already holds an equal value
+     */
+    private static void putValue(Map<String, Object> map, String key, Object value, ChangeSet changes,
+                                 Set<String> changedKeys) {
+        // A placeholder is not decoded just to compare it
+        if (map.containsKey(key) && valueEquals(map.get(key), value)) {
+            return;
+        }
+        map.put(key, value);
+        changes.put(key);
+        if (changedKeys != null) {
+            changedKeys.add(key);
+        }
+    }
+
+    private static boolean valueEquals(Object a, Object b) {
+        if (a == b) {
+            return true;
+        }
+        if (a == null || b == null) {
+            return false;
+        }
+        if (a instanceof Object[] && b instanceof Object[]) {
+            return Arrays.equals((Object[]) a, (Object[]) b);
+        }
+        return a.equals(b);
+    }
+
+    /**
+     * Group commit: a write contains every merge before it, so a committer whose edits were written by another
+     * thread meanwhile returns without writing again
+     */
+    private synchronized boolean writeThrough(long generation) {
+        if (mWrittenGeneration >= generation) {
+            return true;
+        }
+        // The synchronous write also covers a queued apply()
+        mWriteQueued.set(false);
+        return save();
+    }
+
+    @Override
+    public void flush() {
+        mScheduler.runAndWait(mWriteTask);
+    }
+
+    private synchronized void saveQueued() {
+        // Cleared before writing, so an apply() during the write queues the next one
+        if (mWriteQueued.getAndSet(false)) {
+            save();
+        }
+    }
+
+    private synchronized boolean save() {
+        long generation;
+        Map<String, Object> puts = null;
+        synchronized (mEditLock) {
+            generation = mMergeGeneration;
+            // Take the merged changes, and the values of the record while no merge can change them
+            mPending.addAll(mUnsaved);
+            mUnsaved.reset();
+            if (mJournalEnabled && !mPending.isEmpty()) {
+                puts = new HashMap<>(mPending.mPuts.size() * 4 / 3 + 1);
+                for (String key : mPending.mPuts) {
+                    puts.put(key, mMap.get(key));
+                }
+            }
+        }
+        boolean saved = mJournalEnabled ? appendToJournal(puts) : saveToFile();
+        if (saved) {
+            mWrittenGeneration = generation;
+        }
+        return saved;
+    }
+
+    private Map<String, Object> copyMap(Map<String, ?> map) {
+        return mPrimitiveStorage ? new PrimitiveMap(map) : new HashMap<String, Object>(map);
+    }
+
+    /**
+     * Append only the pending changes, so the cost depends on the size of the change instead of the size of the map
+     *
+     * @param puts the values of the pending puts
+     */
+    private boolean appendToJournal(Map<String, Object> puts) {
+        if (mPending.isEmpty()) {
+            return true;
+        }
+
+        try {
+            mJournal.append(mPending.mCleared, mPending.mRemoves, mBlobs.externalize(puts, false));
+            recordStamp();
+        } catch (IOException e) {
+            Log.w(TAG, "append journal failed, rewrite " + mTargetPath, e);
+            return saveToFile();
+        }
+        mPending.reset();
+
+        if (!mCompactScheduled
+                && (mJournal.length() >= mJournalCompactBytes || mJournal.recordCount() >= mJournalCompactRecords)) {
+            mCompactScheduled = true;
+            mScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    compact();
+                }
+            }, 0);
+        }
+        return true;
+    }
+
+    /**
+     * Fold the journal into a fresh base file
+     */
+    private synchronized void compact() {
+        mCompactScheduled = false;
+        if (!loadLocked() && !mJournal.exists()) {
+            return;
+        }
+        Log.d(TAG, "compact : " + mTargetPath + " records:" + mJournal.recordCount());
+        if (writeToFile(snapshot())) {
+            mJournal.reset();
+            recordStamp();
+        }
+    }
+
+    private boolean saveToFile() {
+        // Nothing changed since the file was written
+        if (mPending.isEmpty() && baseExists()) {
+            return true;
+        }
+
+        if (mPending.mCleared) {
+            // The map replaces the whole file, nothing of the file is merged back into it
+            synchronized (mEditLock) {
+                mbLoadToMemory = true;
+                mLoadOnMiss = false;
+                mDeleteKeySet.clear();
+            }
+        } else if (baseExists() || mJournal.exists()) {
+            // If  the file exists, load it first
+            loadLocked();
+        }
+
+        // Delete keys if the user removes keys but didn't call loadFromFile first
+        synchronized (mEditLock) {
+            if (mMap.size() != 0 && mDeleteKeySet.size() != 0) {
+                if (mConcurrent) {
+                    Map<String, Object> next = copyMap(mMap);
+                    next.keySet().removeAll(mDeleteKeySet);
+                    mMap = next;
+                } else {
+                    mMap.keySet().removeAll(mDeleteKeySet);
+                }
+            }
+        }
+
+        // Save to target path
+        Map<String, Object> map = snapshot();
+        // An empty map is only written to clear the file
+        if (map.size() != 0 || mPending.mCleared) {
+            if (writeToFile(map)) {
+                mJournal.reset();
+                recordStamp();
+                mPending.reset();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Replace the whole content with the map and write it to the file
+     *
+     * @param map the new content
+     * @return true if the file is written
+     */
+    synchronized boolean writeAll(Map<String, ?> map) {
+        synchronized (mEditLock) {
+            mMap = copyMap(map);
+            mHasLazyValues = false;
+            mbLoadToMemory = true;
+            mDeleteKeySet.clear();
+            mUnsaved.reset();
+        }
+        mPending.reset();
+        if (writeToFile(snapshot())) {
+            mJournal.reset();
+            recordStamp();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * The map to write outside the edit lock. Only the concurrent mode never changes a published map,
+     * the others write a copy which later merges cannot change.
+     */
+    private Map<String, Object> snapshot() {
+        synchronized (mEditLock) {
+            return mConcurrent ? mMap : copyMap(mMap);
+        }
+    }
+
+    private boolean writeToFile(Map<String, Object> map) {
+        File file = new File(mTargetPath);
+        FileOutputStream str = null;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(mPersistedSize > 0 ? mPersistedSize : 1024);
+            writeMap(mBlobs.externalize(map, true), bytes);
+            if (mCompressThreshold > 0 && bytes.size() >= mCompressThreshold) {
+                bytes = ConfigCompressor.compress(bytes);
+            }
+
+            // Skip the write if the serialized content is the same as the file
+            MessageDigest digest = newDigest();
+            byte[] hash = null;
+            if (digest != null) {
+                digest.update(bytes.toByteArray(), 0, bytes.size());
+                hash = digest.digest();
+                long length = mPack != null ? mPack.length(mPackEntry) : file.length();
+                if (mPersistedDigest != null && bytes.size() == mPersistedSize
+                        && length == mPersistedSize && MessageDigest.isEqual(hash, mPersistedDigest)) {
+                    Log.d(TAG, "save : " + mTargetPath + " unchanged");
+                    return true;
+                }
+            }
+
+            Log.d(TAG, "save : " + mTargetPath);
+            if (mPack != null) {
+                mPack.write(mPackEntry, bytes.toByteArray());
+            } else {
+                // Replace the file only once the new one is on disk, so a crash keeps the old base and its journal
+                File tmpFile = new File(mTargetPath + ".tmp");
+                str = new FileOutputStream(tmpFile);
+                bytes.writeTo(str);
+                str.flush();
+                str.getFD().sync();
+                str.close();
+                str = null;
+                if (!tmpFile.renameTo(file)) {
+                    tmpFile.delete();
+                    throw new IOException("Cannot rename " + tmpFile + " to " + file);
+                }
+            }
+            onWritten();
+            mPersistedDigest = hash;
+            mPersistedSize = bytes.size();
+            recordStamp();
+            mBlobs.deleteUnused();
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (str != null) {
+                try {
+                    str.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return false;
+    }
+
+    static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(in.available(), 1024));
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        }
+    }
+
+    /**
+     * The nested values of a key by their paths, with the value of the key they were flattened from
+     */
+    private static final class PathIndex {
+        final Object mSource;
+        final Map<String, Object> mValues;
+
+        PathIndex(Object source, Map<String, Object> values) {
+            mSource = source;
+            mValues = values;
+        }
+    }
+}
@@ -16,26 +16,18 @@
 
 package com.tzutalin.configio;
 
-import android.support.annotation.NonNull;
-import android.support.annotation.Nullable;
-import android.text.TextUtils;
-import android.util.Log;
-
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileWriter;
+import com.tzutalin.configio.utils.FastJsonReader;
+import com.tzutalin.configio.utils.FastJsonSerializer;
+
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 /**
  * Created by darrenl on 2016/4/15.
@@ -45,221 +37,305 @@ import java.util.Set;
 /**
  * {@hide}
  */
-class JsonConfig extends ConfigIO implements ConfigIO.Writer {
+class JsonConfig extends FileConfig {
     private static final String TAG = JsonConfig.class.getSimpleName();
-    private Set<String> mDeleteKeySet = new HashSet<>();
-    private boolean mbLoadToMemory = false;
-    private Thread mThread;
-
-    private JsonConfig() {
-        super();
-    }
+    private final FastJsonSerializer mSerializer = new FastJsonSerializer();
+    private boolean mIndentOutput = false;
 
     public JsonConfig(String path) {
         super(path);
     }
 
     @Override
-    public boolean loadFromFile() {
-        // If it has loaed to memory, return true directly
-        if (mbLoadToMemory == true) {
-            return true;
-        }
-
-        if (TextUtils.isEmpty(mTargetPath)) {
-            throw new IllegalAccessError("Empty file path");
-        }
-
-        if (new File(mTargetPath).exists()) {
-            try {
-                File f = new File(mTargetPath);
-                FileInputStream is = new FileInputStream(f);
-                int size = is.available();
-                byte[] buffer = new byte[size];
-                is.read(buffer);
-                is.close();
-                String response = new String(buffer);
-                JSONObject jsonObj = new JSONObject(response);
-                Map map = toMap(jsonObj);
-                map.putAll(mMap);
-                mMap = map;
-                // Print log
-                dumpMap();
-                mbLoadToMemory = true;
-            } catch (IOException e) {
-                e.printStackTrace();
-            } catch (JSONException e) {
-                e.printStackTrace();
-            }
+    void configure(Builder builder) {
+        super.configure(builder);
+        if (builder.mIndentOutput != null) {
+            mIndentOutput = builder.mIndentOutput;
         }
-
-        return mbLoadToMemory;
     }
 
     @Override
-    public Writer getWriter() {
-        return this;
+    protected Map<String, Object> readMap(InputStream is) throws IOException {
+        FastJsonReader reader;
+        Map<String, Object> map;
+        if (mLazyLoad) {
+            byte[] data = readFully(is);
+            reader = new FastJsonReader(data, 0, data.length);
+            map = toLazyMap(reader, data);
+        } else {
+            reader = new FastJsonReader(is);
+            map = toMap(reader);
+        }
+        if (reader.peek() != FastJsonReader.END_DOCUMENT) {
+            throw new IOException("Unexpected content after the root object");
+        }
+        return map;
     }
 
     @Override
-    public ConfigIO.Writer putString(@NonNull String key, @Nullable String value) {
-        mMap.put(key, value);
-        return this;
-    }
-
+    protected void writeMap(Map<String, Object> map, OutputStream out) throws IOException {
+        // Writes are serialized by FileConfig, so the buffer of the serializer is reused
+        mSerializer.setOutput(out);
+        mSerializer.setIndent(mIndentOutput);
+        if (!mLazyLoad) {
+            mSerializer.serialize(map);
+            return;
+        }
 
-    //@Override
-    public ConfigIO.Writer putStringSet(@NonNull String key, @Nullable Set<String> values) {
-        mMap.put(key, values);
-        return this;
+        // Strings and numbers which were never read are copied as they are
+        mSerializer.beginObject();
+        for (Map.Entry<String, Object> entry : map.entrySet()) {
+            mSerializer.name(entry.getKey());
+            Object value = entry.getValue();
+            if (value instanceof JsonSpan) {
+                JsonSpan span = (JsonSpan) value;
+                if (span.isContainer()) {
+                    mSerializer.value(span.decode());
+                } else {
+                    mSerializer.rawValue(span.mData, span.mStart, span.mEnd - span.mStart);
+                }
+            } else {
+                mSerializer.value(value);
+            }
+        }
+        mSerializer.endObject();
+        mSerializer.finish();
     }
 
     @Override
-    public ConfigIO.Writer putInt(@NonNull String key, int value) {
-        mMap.put(key, value);
-        return this;
+    boolean supportsCompression() {
+        return true;
     }
 
     @Override
-    public ConfigIO.Writer putLong(@NonNull String key, long value) {
-        mMap.put(key, value);
-        return this;
+    boolean supportsEvents() {
+        return true;
     }
 
     @Override
-    public ConfigIO.Writer putFloat(@NonNull String key, float value) {
-        mMap.put(key, value);
-        return this;
+    void readEvents(InputStream in, ConfigSink sink) throws IOException {
+        FastJsonReader reader = new FastJsonReader(in);
+        if (reader.peek() != FastJsonReader.BEGIN_OBJECT) {
+            throw new IOException("Expected an object at the root");
+        }
+        readEvents(reader, null, sink);
+        if (reader.peek() != FastJsonReader.END_DOCUMENT) {
+            throw new IOException("Unexpected content after the root object");
+        }
+        sink.finish();
     }
 
-    @Override
-    public ConfigIO.Writer putDouble(@NonNull String key, double value) {
-        mMap.put(key, value);
-        return this;
+    private static void readEvents(FastJsonReader reader, String name, ConfigSink sink) throws IOException {
+        switch (reader.peek()) {
+            case FastJsonReader.BEGIN_OBJECT:
+                sink.beginMap(name);
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String key = reader.nextName();
+                    readEvents(reader, key, sink);
+                }
+                reader.endObject();
+                sink.endMap();
+                break;
+            case FastJsonReader.BEGIN_ARRAY:
+                sink.beginArray(name);
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    readEvents(reader, null, sink);
+                }
+                reader.endArray();
+                sink.endArray();
+                break;
+            default:
+                sink.value(name, readValue(reader));
+                break;
+        }
     }
 
     @Override
-    public ConfigIO.Writer putBoolean(@NonNull String key, boolean value) {
-        mMap.put(key, value);
-        return this;
+    ConfigSink newSink(FileOutputStream out) {
+        return new JsonSink(out, mIndentOutput);
     }
 
-    @Override
-    public ConfigIO.Writer remove(@NonNull String key) {
-        mMap.remove(key);
+    /**
+     * Like toMap, but strings, numbers, objects and arrays are only skipped and kept as spans of data
+     */
+    private static Map<String, Object> toLazyMap(FastJsonReader reader, byte[] data) throws IOException {
+        Map<String, Object> map = new HashMap<String, Object>();
 
-        // Add to delete set when the user didn't call loadFromFile first
-        if (mbLoadToMemory == false) {
-            mDeleteKeySet.add(key);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String key = reader.nextName();
+            switch (reader.peek()) {
+                case FastJsonReader.BEGIN_OBJECT:
+                case FastJsonReader.BEGIN_ARRAY:
+                case FastJsonReader.STRING:
+                case FastJsonReader.NUMBER:
+                    int start = (int) reader.getTokenOffset();
+                    reader.skipValue();
+                    map.put(key, new JsonSpan(data, start, (int) reader.position()));
+                    break;
+                default:
+                    map.put(key, readValue(reader));
+                    break;
+            }
         }
-        return this;
+        reader.endObject();
+        return map;
     }
 
-    @Override
-    public ConfigIO.Writer clear() {
-        mMap.clear();
-        if (mbLoadToMemory == false) {
-            mDeleteKeySet.addAll(mMap.keySet());
+    private static Map<String, Object> toMap(FastJsonReader reader) throws IOException {
+        Map<String, Object> map = new HashMap<String, Object>();
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String key = reader.nextName();
+            map.put(key, readValue(reader));
         }
-        return this;
+        reader.endObject();
+        return map;
     }
 
-    @Override
-    public boolean commit() {
-        return save();
+    private static List<Object> toList(FastJsonReader reader) throws IOException {
+        List<Object> list = new ArrayList<Object>();
+
+        reader.beginArray();
+        while (reader.hasNext()) {
+            list.add(readValue(reader));
+        }
+        reader.endArray();
+        return list;
     }
 
-    @Override
-    public void apply() {
-        // TODO: Should be better
-        // Use only one thread to do it even call apply() many times
-        if (mThread == null) {
-            synchronized (JsonConfig.this) {
-                mThread = new Thread(new Runnable() {
-                    @Override
-                    public void run() {
-                        save();
-
-                        synchronized (JsonConfig.this) {
-                            mThread = null;
-                        }
-                    }
-                });
-            }
-            mThread.start();
+    private static Object readValue(FastJsonReader reader) throws IOException {
+        switch (reader.peek()) {
+            case FastJsonReader.BEGIN_OBJECT:
+                return toMap(reader);
+            case FastJsonReader.BEGIN_ARRAY:
+                return toList(reader);
+            case FastJsonReader.STRING:
+                return reader.nextString();
+            case FastJsonReader.NUMBER:
+                return reader.nextNumber();
+            case FastJsonReader.BOOLEAN:
+                return reader.nextBoolean();
+            case FastJsonReader.NULL:
+                reader.nextNull();
+                return null;
+            default:
+                throw new IOException("Unexpected token " + reader.peek());
         }
     }
 
-    private Map<String, Object> jsonToMap(JSONObject json) throws JSONException {
-        Map<String, Object> retMap = new HashMap<String, Object>();
+    private static class JsonSink implements ConfigSink {
+        private final FastJsonSerializer mSerializer = new FastJsonSerializer();
 
-        if (json != JSONObject.NULL) {
-            retMap = toMap(json);
+        JsonSink(OutputStream out, boolean indent) {
+            mSerializer.setOutput(out);
+            mSerializer.setIndent(indent);
         }
-        return retMap;
-    }
 
-    private Map<String, Object> toMap(JSONObject object) throws JSONException {
-        Map<String, Object> map = new HashMap<String, Object>();
+        @Override
+        public void beginMap(String name) throws IOException {
+            if (name != null) {
+                mSerializer.name(name);
+            }
+            mSerializer.beginObject();
+        }
 
-        Iterator<String> keysItr = object.keys();
-        while (keysItr.hasNext()) {
-            String key = keysItr.next();
-            Object value = object.get(key);
+        @Override
+        public void endMap() throws IOException {
+            mSerializer.endObject();
+        }
 
-            if (value instanceof JSONArray) {
-                value = toList((JSONArray) value);
-            } else if (value instanceof JSONObject) {
-                value = toMap((JSONObject) value);
+        @Override
+        public void beginArray(String name) throws IOException {
+            if (name != null) {
+                mSerializer.name(name);
             }
-            map.put(key, value);
+            mSerializer.beginArray();
         }
-        return map;
-    }
 
-    private List<Object> toList(JSONArray array) throws JSONException {
-        List<Object> list = new ArrayList<Object>();
-        for (int i = 0; i < array.length(); i++) {
-            Object value = array.get(i);
-            if (value instanceof JSONArray) {
-                value = toList((JSONArray) value);
-            } else if (value instanceof JSONObject) {
-                value = toMap((JSONObject) value);
+        @Override
+        public void endArray() throws IOException {
+            mSerializer.endArray();
+        }
+
+        @Override
+        public void value(String name, Object value) throws IOException {
+            if (name != null) {
+                mSerializer.name(name);
             }
-            list.add(value);
+            mSerializer.value(value);
+        }
+
+        @Override
+        public void finish() throws IOException {
+            mSerializer.finish();
         }
-        return list;
     }
 
-    private boolean save() {
-        // If  the file exists, load it first
-        if (new File(mTargetPath).exists()) {
-            loadFromFile();
+    /**
+     * Raw json text of a value. Nested objects and arrays are decoded as a whole on the first get of their key.
+     */
+    private static class JsonSpan extends LazyValue {
+        private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+        // The content of the whole file, shared by all spans of it
+        final byte[] mData;
+        final int mStart;
+        final int mEnd;
+
+        JsonSpan(byte[] data, int start, int end) {
+            mData = data;
+            mStart = start;
+            mEnd = end;
+        }
+
+        boolean isContainer() {
+            return mData[mStart] == '{' || mData[mStart] == '[';
+        }
+
+        @Override
+        boolean isMap() {
+            return mData[mStart] == '{';
         }
 
-        // Delete keys if the user removes keys but didn't call loadFromFile first
-        if (mMap != null && mMap.size() != 0 && mDeleteKeySet.size() != 0) {
-            for (String key : mDeleteKeySet) {
-                mMap.remove(key);
+        @Override
+        Object decode() throws IOException {
+            return readValue(new FastJsonReader(mData, mStart, mEnd - mStart));
+        }
+
+        @Override
+        public String toString() {
+            return new String(mData, mStart, mEnd - mStart, UTF_8);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof JsonSpan)) {
+                return false;
             }
+            JsonSpan other = (JsonSpan) o;
+            if (other.mEnd - other.mStart != mEnd - mStart) {
+                return false;
+            }
+            for (int i = mStart, j = other.mStart; i < mEnd; i++, j++) {
+                if (mData[i] != other.mData[j]) {
+                    return false;
+                }
+            }
+            return true;
         }
 
-        // Save to target path
-        if (mMap != null && mMap.size() != 0) {
-            JSONObject obj = new JSONObject(mMap);
-            String jsonStr = obj.toString();
-            Log.d(TAG, "save : " + mTargetPath + " json:" + jsonStr);
-            try {
-                FileWriter file = new FileWriter(mTargetPath);
-                file.write(jsonStr);
-                file.flush();
-                file.close();
-                return true;
-            } catch (IOException e) {
-                e.printStackTrace();
+        @Override
+        public int hashCode() {
+            int hash = 1;
+            for (int i = mStart; i < mEnd; i++) {
+                hash = 31 * hash + mData[i];
             }
+            return hash;
         }
-        return false;
     }
 
 }
@@ -0,0 +1,225 @@
+/*
+*  Copyright (C) 2016 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.configio;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Paths into nested values, e.g. "net.retry.max" or "servers[1].host". The first part of a path is a key of the
+ * config, which may contain dots itself. A key of the config always wins over a path with the same name.
+ * <p/>
+ * The values under a key are flattened once into an index of their paths, so a nested get is one lookup.
+ * Nested values are never changed in place, a write copies the maps and lists along its path.
+ * <p/>
+ * {@hide}
+ */
+class KeyPath {
+    // Marks a removal in the path edits of an editor
+    static final Object REMOVE = new Object();
+
+    private KeyPath() {
+    }
+
+    /**
+     * @return true if key can be a path, so a miss of the flat key is worth resolving
+     */
+    static boolean isPath(String key) {
+        return key.indexOf('.') > 0 || key.indexOf('[') > 0;
+    }
+
+    static boolean isNested(Object value) {
+        return value instanceof Map || value instanceof List || value instanceof Object[]
+                || (value instanceof LazyValue && ((LazyValue) value).isMap());
+    }
+
+    /**
+     * Find the key of the config which holds the path: the shortest prefix of path, ended by a dot or a bracket,
+     * which is a key with a nested value
+     *
+     * @return the key, or null if there is none
+     */
+    static String topKey(Map<String, Object> map, String path) {
+        for (int i = 1; i < path.length(); i++) {
+            char c = path.charAt(i);
+            if (c == '.' || c == '[') {
+                String key = path.substring(0, i);
+                if (isNested(map.get(key))) {
+                    return key;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the first part of path, the key a new path is stored under
+     */
+    static String head(String path) {
+        for (int i = 1; i < path.length(); i++) {
+            char c = path.charAt(i);
+            if (c == '.' || c == '[') {
+                return path.substring(0, i);
+            }
+        }
+        return path;
+    }
+
+    /**
+     * Index every container and leaf under value by its full path
+     *
+     * @param key   the key of the config which holds value
+     * @param value a decoded nested value
+     */
+    static Map<String, Object> flatten(String key, Object value) {
+        Map<String, Object> index = new HashMap<>();
+        flatten(key, value, index);
+        return index;
+    }
+
+    private static void flatten(String path, Object value, Map<String, Object> index) {
+        if (value instanceof Map) {
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                String child = path + "." + entry.getKey();
+                index.put(child, entry.getValue());
+                flatten(child, entry.getValue(), index);
+            }
+        } else if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            for (int i = 0; i < list.size(); i++) {
+                String child = path + "[" + i + "]";
+                index.put(child, list.get(i));
+                flatten(child, list.get(i), index);
+            }
+        } else if (value instanceof Object[]) {
+            Object[] array = (Object[]) value;
+            for (int i = 0; i < array.length; i++) {
+                index.put(path + "[" + i + "]", array[i]);
+            }
+        }
+    }
+
+    /**
+     * Split the part of a path after its key into map keys and list indexes
+     *
+     * @param rest e.g. ".retry.max" or "[1].host"
+     * @return the parts, or null if rest is not a valid path
+     */
+    static List<Object> parse(String rest) {
+        List<Object> parts = new ArrayList<>();
+        int i = 0;
+        while (i < rest.length()) {
+            char c = rest.charAt(i);
+            if (c == '.') {
+                int end = i + 1;
+                while (end < rest.length() && rest.charAt(end) != '.' && rest.charAt(end) != '[') {
+                    end++;
+                }
+                if (end == i + 1) {
+                    return null;
+                }
+                parts.add(rest.substring(i + 1, end));
+                i = end;
+            } else if (c == '[') {
+                int end = rest.indexOf(']', i);
+                if (end < 0) {
+                    return null;
+                }
+                try {
+                    parts.add(Integer.valueOf(rest.substring(i + 1, end)));
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+                i = end + 1;
+            } else {
+                return null;
+            }
+        }
+        return parts.isEmpty() ? null : parts;
+    }
+
+    /**
+     * Copy the containers along the path and set or remove its value
+     *
+     * @param container the decoded value of the key, null if there is none
+     * @param parts     the result of {@link #parse}
+     * @param value     the new value, or {@link #REMOVE}
+     * @return the new value of the key, or container itself if the path cannot be written into it
+     */
+    @SuppressWarnings("unchecked")
+    static Object with(Object container, List<Object> parts, int from, Object value) {
+        Object part = parts.get(from);
+        boolean last = from == parts.size() - 1;
+        if (part instanceof String) {
+            if (container != null && !(container instanceof Map)) {
+                return container;
+            }
+            Map<String, Object> map = container != null
+                    ? new HashMap<>((Map<String, Object>) container) : new HashMap<String, Object>();
+            if (value == REMOVE && !map.containsKey(part)) {
+                return container;
+            }
+            Object child = map.get(part);
+            Object next = last ? value : with(child, parts, from + 1, value);
+            if (!last && next == child) {
+                return container;
+            }
+            if (next == REMOVE) {
+                map.remove(part);
+            } else {
+                map.put((String) part, next);
+            }
+            return map;
+        }
+
+        int index = (Integer) part;
+        if (container instanceof Object[]) {
+            Object[] array = (Object[]) container;
+            if (index >= array.length || value == REMOVE || !last
+                    || !array.getClass().getComponentType().isInstance(value)) {
+                return container;
+            }
+            Object[] copy = array.clone();
+            copy[index] = value;
+            return copy;
+        }
+        if (container != null && !(container instanceof List)) {
+            return container;
+        }
+        List<Object> list = container != null
+                ? new ArrayList<>((List<Object>) container) : new ArrayList<Object>();
+        // An index can replace an item or append one, a list has no holes
+        if (index > list.size() || (index == list.size() && value == REMOVE)) {
+            return container;
+        }
+        Object child = index < list.size() ? list.get(index) : null;
+        Object next = last ? value : with(child, parts, from + 1, value);
+        if (!last && next == child) {
+            return container;
+        }
+        if (next == REMOVE) {
+            list.remove(index);
+        } else if (index == list.size()) {
+            list.add(next);
+        } else {
+            list.set(index, next);
+        }
+        return list;
+    }
+}
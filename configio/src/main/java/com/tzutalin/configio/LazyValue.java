@@ -0,0 +1,58 @@
+/*
+*  Copyright (C) 2016 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.configio;
+
+import java.io.IOException;
+
+/**
+ * Placeholder kept in the map of a lazily loaded config. It holds the raw text of a value,
+ * which is decoded on the first get of its key and then replaced by the decoded value.
+ * <p/>
+ * The decoded value is also kept in the placeholder, for maps which must not be changed by readers.
+ * The writeMap of the config which creates a placeholder must be able to write it back.
+ * <p/>
+ * {@hide}
+ */
+abstract class LazyValue {
+    private static final Object UNDECODED = new Object();
+
+    private volatile Object mValue = UNDECODED;
+
+    /**
+     * @return the decoded value, decoded once and then kept
+     */
+    final Object get() throws IOException {
+        Object value = mValue;
+        if (value == UNDECODED) {
+            value = decode();
+            mValue = value;
+        }
+        return value;
+    }
+
+    /**
+     * @return the decoded value
+     */
+    abstract Object decode() throws IOException;
+
+    /**
+     * @return true if the value decodes to a map
+     */
+    boolean isMap() {
+        return false;
+    }
+}
@@ -0,0 +1,582 @@
+/*
+*  Copyright (C) 2016 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.configio;
+
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Read-only configuration (.cfgm) which is memory mapped instead of decoded into a map.
+ * <pre>
+ *   Header   int magic 'CFGM', int version, int entry count, int bloom bits,
+ *            int bloom offset, int table slots, int table offset, int reserved
+ *   Bloom    bloom bits / 8 bytes, two bits per key
+ *   Table    open addressing hash table, int entry offset per slot, 0 for empty
+ *   Entries  sorted by key: int key hash, short key length, UTF-8 key, byte type, value
+ * </pre>
+ * Opening maps the file and only checks the header and that the sections lie inside it, so it takes the same time
+ * for any size. A lookup tests the bloom filter, probes the table, checks that the entry it finds lies inside the
+ * file and decodes just the value which is asked for. Keys hash with {@link String#hashCode()}, which String
+ * caches, so a lookup does not allocate.
+ * <p/>
+ * A file is replaced by a rename and never rewritten in place, so a mapping of the old file stays valid.
+ * <p/>
+ * {@hide}
+ */
+class MappedConfig extends ConfigIO {
+    private static final String TAG = MappedConfig.class.getSimpleName();
+    static final String EXTENSION = ".cfgm";
+
+    static final int MAGIC = 0x4346474D;
+    static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final byte TYPE_NULL = 0;
+    private static final byte TYPE_INT = 1;
+    private static final byte TYPE_LONG = 2;
+    private static final byte TYPE_FLOAT = 3;
+    private static final byte TYPE_DOUBLE = 4;
+    private static final byte TYPE_BOOLEAN = 5;
+    private static final byte TYPE_STRING = 6;
+    private static final byte TYPE_STRING_ARRAY = 7;
+
+    private volatile ByteBuffer mBuffer;
+    private int mCount;
+    private int mBloomMask;
+    private int mBloomOffset;
+    private int mTableMask;
+    private int mTableOffset;
+    private int mEntriesOffset;
+    private volatile Map<String, Object> mAll;
+
+    public MappedConfig(String path) {
+        super(path);
+    }
+
+    @Override
+    public synchronized boolean loadFromFile() {
+        if (mBuffer != null) {
+            return true;
+        }
+        if (TextUtils.isEmpty(mTargetPath)) {
+            throw new IllegalAccessError("Empty file path");
+        }
+
+        File file = new File(mTargetPath);
+        if (!file.exists()) {
+            return false;
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+                Log.w(TAG, "Not a mapped config " + mTargetPath);
+                return false;
+            }
+            if (buffer.getInt(4) > VERSION) {
+                Log.w(TAG, "Unsupported version " + buffer.getInt(4));
+                return false;
+            }
+            int count = buffer.getInt(8);
+            int bloomBits = buffer.getInt(12);
+            int slots = buffer.getInt(20);
+            // The entries are checked by the lookups which reach them
+            if (!isValidSection(buffer, buffer.getInt(16), bloomBits, bloomBits / 8)
+                    || !isValidSection(buffer, buffer.getInt(24), slots, slots * 4)
+                    || count < 0 || count >= slots) {
+                Log.w(TAG, "Corrupted mapped config " + mTargetPath);
+                return false;
+            }
+            mCount = count;
+            mBloomMask = bloomBits - 1;
+            mBloomOffset = buffer.getInt(16);
+            mTableMask = slots - 1;
+            mTableOffset = buffer.getInt(24);
+            mEntriesOffset = mTableOffset + slots * 4;
+            mBuffer = buffer;
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "loadFromFile " + mTargetPath, e);
+        } finally {
+            if (raf != null) {
+                try {
+                    // The mapping stays valid after the channel is closed
+                    raf.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean isValidSection(ByteBuffer buffer, int offset, int size, int bytes) {
+        return size > 0 && (size & (size - 1)) == 0 && offset >= HEADER_SIZE
+                && offset + (long) bytes <= buffer.limit();
+    }
+
+    /**
+     * Check that the hash, key and type of an entry lie inside the buffer
+     *
+     * @return offset of the value of the entry, or -1 if the entry is corrupted
+     */
+    private int valueOffset(ByteBuffer buffer, int entry) {
+        if (entry < mEntriesOffset || entry > buffer.limit() - 7L) {
+            return -1;
+        }
+        int value = entry + 6 + (buffer.getShort(entry + 4) & 0xFFFF);
+        return value < buffer.limit() ? value : -1;
+    }
+
+    /**
+     * @return the offset after the value, or -1 if it does not fit in limit
+     */
+    private static long valueEnd(ByteBuffer buffer, int value, int limit) {
+        long end;
+        switch (buffer.get(value)) {
+            case TYPE_NULL:
+                end = value + 1L;
+                break;
+            case TYPE_BOOLEAN:
+                end = value + 2L;
+                break;
+            case TYPE_INT:
+            case TYPE_FLOAT:
+                end = value + 5L;
+                break;
+            case TYPE_LONG:
+            case TYPE_DOUBLE:
+                end = value + 9L;
+                break;
+            case TYPE_STRING: {
+                if (value + 5L > limit) {
+                    return -1;
+                }
+                int len = buffer.getInt(value + 1);
+                end = len < 0 ? Long.MAX_VALUE : value + 5L + len;
+                break;
+            }
+            case TYPE_STRING_ARRAY: {
+                if (value + 5L > limit) {
+                    return -1;
+                }
+                int count = buffer.getInt(value + 1);
+                end = value + 5L;
+                // Every item takes 4 bytes at least, so the loop ends once it passes limit
+                for (int i = 0; i < count && end <= limit; i++) {
+                    if (end + 4 > limit) {
+                        return -1;
+                    }
+                    end += 4 + Math.max(buffer.getInt((int) end), 0);
+                }
+                if (count < 0) {
+                    return -1;
+                }
+                break;
+            }
+            default:
+                return -1;
+        }
+        return end <= limit ? end : -1;
+    }
+
+    @Override
+    public Writer getWriter() {
+        throw new UnsupportedOperationException("Mapped config is read-only, use ConfigConverter to rebuild it");
+    }
+
+    @Override
+    public Map<String, ?> getAll() {
+        Map<String, Object> all = mAll;
+        if (all == null) {
+            ByteBuffer buffer = mBuffer;
+            all = new HashMap<>(mCount * 4 / 3 + 1);
+            if (buffer != null) {
+                for (int slot = 0; slot <= mTableMask; slot++) {
+                    int entry = buffer.getInt(mTableOffset + slot * 4);
+                    if (entry == 0) {
+                        continue;
+                    }
+                    int value = valueOffset(buffer, entry);
+                    if (value < 0 || valueEnd(buffer, value, buffer.limit()) < 0) {
+                        Log.w(TAG, "Corrupted entry in slot " + slot + " of " + mTargetPath);
+                        continue;
+                    }
+                    String key = decodeString(buffer, entry + 6, value - entry - 6);
+                    all.put(key, readValue(buffer, value));
+                }
+            }
+            all = Collections.unmodifiableMap(all);
+            mAll = all;
+        }
+        return all;
+    }
+
+    @Nullable
+    @Override
+    public String getString(String key, @Nullable String defValue) {
+        ByteBuffer buffer = mBuffer;
+        int value = find(buffer, key);
+        if (value < 0 || buffer.get(value) == TYPE_NULL) {
+            return defValue;
+        }
+        checkType(buffer, value, TYPE_STRING, key);
+        return decodeString(buffer, value + 5, buffer.getInt(value + 1));
+    }
+
+    @Override
+    public int getInt(String key, int defValue) {
+        ByteBuffer buffer = mBuffer;
+        int value = find(buffer, key);
+        if (value < 0 || buffer.get(value) == TYPE_NULL) {
+            return defValue;
+        }
+        checkType(buffer, value, TYPE_INT, key);
+        return buffer.getInt(value + 1);
+    }
+
+    @Override
+    public long getLong(String key, long defValue) {
+        ByteBuffer buffer = mBuffer;
+        int value = find(buffer, key);
+        if (value < 0 || buffer.get(value) == TYPE_NULL) {
+            return defValue;
+        }
+        checkType(buffer, value, TYPE_LONG, key);
+        return buffer.getLong(value + 1);
+    }
+
+    @Override
+    public float getFloat(String key, float defValue) {
+        ByteBuffer buffer = mBuffer;
+        int value = find(buffer, key);
+        if (value < 0 || buffer.get(value) == TYPE_NULL) {
+            return defValue;
+        }
+        checkType(buffer, value, TYPE_FLOAT, key);
+        return buffer.getFloat(value + 1);
+    }
+
+    @Override
+    public double getDouble(String key, double defValue) {
+        ByteBuffer buffer = mBuffer;
+        int value = find(buffer, key);
+        if (value < 0 || buffer.get(value) == TYPE_NULL) {
+            return defValue;
+        }
+        checkType(buffer, value, TYPE_DOUBLE, key);
+        return buffer.getDouble(value + 1);
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defValue) {
+        ByteBuffer buffer = mBuffer;
+        int value = find(buffer, key);
+        if (value < 0 || buffer.get(value) == TYPE_NULL) {
+            return defValue;
+        }
+        checkType(buffer, value, TYPE_BOOLEAN, key);
+        return buffer.get(value + 1) != 0;
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return find(mBuffer, key) >= 0;
+    }
+
+    /**
+     * @return offset of the value of the key, or -1 if it is not in the file
+     */
+    private int find(ByteBuffer buffer, String key) {
+        if (buffer == null || key == null) {
+            return -1;
+        }
+        final int hash = key.hashCode();
+        // Most misses stop at the bloom filter without touching the table
+        int bit1 = hash & mBloomMask;
+        int bit2 = mix(hash) & mBloomMask;
+        if ((buffer.get(mBloomOffset + (bit1 >>> 3)) & (1 << (bit1 & 7))) == 0
+                || (buffer.get(mBloomOffset + (bit2 >>> 3)) & (1 << (bit2 & 7))) == 0) {
+            return -1;
+        }
+
+        int slot = mix(hash) & mTableMask;
+        // A corrupted table may have no empty slot, so the probe ends after every slot
+        for (int probe = 0; probe <= mTableMask; probe++) {
+            int entry = buffer.getInt(mTableOffset + slot * 4);
+            if (entry == 0) {
+                return -1;
+            }
+            int value = valueOffset(buffer, entry);
+            if (value < 0) {
+                Log.w(TAG, "Corrupted entry in slot " + slot + " of " + mTargetPath);
+                return -1;
+            }
+            if (buffer.getInt(entry) == hash && keyEquals(buffer, entry + 6, value - entry - 6, key)) {
+                // Only the value which is read is checked, so a lookup does not depend on the size of the file
+                if (valueEnd(buffer, value, buffer.limit()) < 0) {
+                    Log.w(TAG, "Corrupted value of " + key + " in " + mTargetPath);
+                    return -1;
+                }
+                return value;
+            }
+            slot = (slot + 1) & mTableMask;
+        }
+        return -1;
+    }
+
+    private static int mix(int hash) {
+        hash ^= (hash >>> 16);
+        hash *= 0x85ebca6b;
+        hash ^= (hash >>> 13);
+        return hash;
+    }
+
+    /**
+     * Compare UTF-8 bytes with the key without encoding the key into a new array
+     */
+    private static boolean keyEquals(ByteBuffer buffer, int pos, int len, String key) {
+        final int end = pos + len;
+        final int n = key.length();
+        for (int i = 0; i < n; i++) {
+            int c = key.charAt(i);
+            if (c < 0x80) {
+                if (pos >= end || buffer.get(pos++) != c) {
+                    return false;
+                }
+                continue;
+            }
+            int bytes;
+            if (c < 0x800) {
+                bytes = 2;
+            } else if (Character.isHighSurrogate((char) c) && i + 1 < n
+                    && Character.isLowSurrogate(key.charAt(i + 1))) {
+                c = Character.toCodePoint((char) c, key.charAt(++i));
+                bytes = 4;
+            } else {
+                bytes = 3;
+            }
+            if (pos + bytes > end) {
+                return false;
+            }
+            int first;
+            if (bytes == 2) {
+                first = 0xC0 | (c >> 6);
+            } else if (bytes == 3) {
+                first = 0xE0 | (c >> 12);
+            } else {
+                first = 0xF0 | (c >> 18);
+            }
+            if ((buffer.get(pos++) & 0xFF) != first) {
+                return false;
+            }
+            for (int shift = (bytes - 2) * 6; shift >= 0; shift -= 6) {
+                if ((buffer.get(pos++) & 0xFF) != (0x80 | ((c >> shift) & 0x3F))) {
+                    return false;
+                }
+            }
+        }
+        return pos == end;
+    }
+
+    private static void checkType(ByteBuffer buffer, int value, byte type, String key) {
+        if (buffer.get(value) != type) {
+            throw new ClassCastException("Value of " + key + " is not type " + type);
+        }
+    }
+
+    private static String decodeString(ByteBuffer buffer, int pos, int len) {
+        byte[] bytes = new byte[len];
+        for (int i = 0; i < len; i++) {
+            bytes[i] = buffer.get(pos + i);
+        }
+        return new String(bytes, UTF_8);
+    }
+
+    private static Object readValue(ByteBuffer buffer, int value) {
+        switch (buffer.get(value)) {
+            case TYPE_INT:
+                return buffer.getInt(value + 1);
+            case TYPE_LONG:
+                return buffer.getLong(value + 1);
+            case TYPE_FLOAT:
+                return buffer.getFloat(value + 1);
+            case TYPE_DOUBLE:
+                return buffer.getDouble(value + 1);
+            case TYPE_BOOLEAN:
+                return buffer.get(value + 1) != 0;
+            case TYPE_STRING:
+                return decodeString(buffer, value + 5, buffer.getInt(value + 1));
+            case TYPE_STRING_ARRAY: {
+                String[] array = new String[buffer.getInt(value + 1)];
+                int pos = value + 5;
+                for (int i = 0; i < array.length; i++) {
+                    int len = buffer.getInt(pos);
+                    array[i] = len < 0 ? null : decodeString(buffer, pos + 4, len);
+                    pos += 4 + Math.max(len, 0);
+                }
+                return array;
+            }
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Write the map as a mapped config file
+     *
+     * @param map  content with null, int, long, float, double, boolean, String or String[] values
+     * @param path destination path
+     */
+    static void write(Map<String, ?> map, String path) throws IOException {
+        List<String> keys = new ArrayList<>(map.keySet());
+        Collections.sort(keys);
+        final int count = keys.size();
+
+        int bloomBits = 64;
+        while (bloomBits < count * 8) {
+            bloomBits <<= 1;
+        }
+        int slots = 8;
+        while (slots < count * 2) {
+            slots <<= 1;
+        }
+        final int bloomOffset = HEADER_SIZE;
+        final int tableOffset = bloomOffset + bloomBits / 8;
+        final int entriesOffset = tableOffset + slots * 4;
+
+        byte[] bloom = new byte[bloomBits / 8];
+        int[] table = new int[slots];
+        ByteArrayOutputStream entryBytes = new ByteArrayOutputStream(count * 32);
+        DataOutputStream entries = new DataOutputStream(entryBytes);
+        for (String key : keys) {
+            final int hash = key.hashCode();
+            int bit1 = hash & (bloomBits - 1);
+            int bit2 = mix(hash) & (bloomBits - 1);
+            bloom[bit1 >>> 3] |= 1 << (bit1 & 7);
+            bloom[bit2 >>> 3] |= 1 << (bit2 & 7);
+
+            int slot = mix(hash) & (slots - 1);
+            while (table[slot] != 0) {
+                slot = (slot + 1) & (slots - 1);
+            }
+            table[slot] = entriesOffset + entries.size();
+
+            byte[] keyBytes = key.getBytes(UTF_8);
+            if (keyBytes.length > 0xFFFF) {
+                throw new IOException("Key too long: " + key.substring(0, 32));
+            }
+            entries.writeInt(hash);
+            entries.writeShort(keyBytes.length);
+            entries.write(keyBytes);
+            writeValue(entries, map.get(key));
+        }
+        entries.flush();
+
+        // Mapped objects of the old file may still read it, so it is replaced instead of truncated
+        File file = new File(path);
+        File tmpFile = new File(path + ".tmp");
+        FileOutputStream str = new FileOutputStream(tmpFile);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(str, 16 * 1024));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(count);
+            out.writeInt(bloomBits);
+            out.writeInt(bloomOffset);
+            out.writeInt(slots);
+            out.writeInt(tableOffset);
+            out.writeInt(0);
+            out.write(bloom);
+            for (int offset : table) {
+                out.writeInt(offset);
+            }
+            entryBytes.writeTo(out);
+            out.flush();
+            str.getFD().sync();
+        } finally {
+            str.close();
+        }
+        if (!tmpFile.renameTo(file)) {
+            tmpFile.delete();
+            throw new IOException("Cannot rename " + tmpFile + " to " + file);
+        }
+    }
+
+    private static void writeValue(DataOutputStream out, Object v) throws IOException {
+        if (v == null || v == ConfigIO.NULL) {
+            out.writeByte(TYPE_NULL);
+        } else if (v instanceof Integer) {
+            out.writeByte(TYPE_INT);
+            out.writeInt((Integer) v);
+        } else if (v instanceof Long) {
+            out.writeByte(TYPE_LONG);
+            out.writeLong((Long) v);
+        } else if (v instanceof Float) {
+            out.writeByte(TYPE_FLOAT);
+            out.writeFloat((Float) v);
+        } else if (v instanceof Double) {
+            out.writeByte(TYPE_DOUBLE);
+            out.writeDouble((Double) v);
+        } else if (v instanceof Boolean) {
+            out.writeByte(TYPE_BOOLEAN);
+            out.writeBoolean((Boolean) v);
+        } else if (v instanceof CharSequence) {
+            byte[] bytes = v.toString().getBytes(UTF_8);
+            out.writeByte(TYPE_STRING);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        } else if (v instanceof String[]) {
+            String[] array = (String[]) v;
+            out.writeByte(TYPE_STRING_ARRAY);
+            out.writeInt(array.length);
+            for (String item : array) {
+                if (item == null) {
+                    out.writeInt(-1);
+                } else {
+                    byte[] bytes = item.getBytes(UTF_8);
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                }
+            }
+        } else {
+            throw new IOException("writeValueMapped: unable to write value " + v);
+        }
+    }
+}
@@ -0,0 +1,448 @@
+/*
+*  Copyright (C) 2016 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.configio;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Container of many small config files in one file, for configs addressed as "pack://&lt;file&gt;#&lt;name&gt;".
+ * The name keeps the extension of the format, e.g. "pack:///data/users.pack#user42.json".
+ * <p/>
+ * The container is a log of records. A write appends a new record of the entry and a delete appends an empty
+ * one, so a crash leaves the previous record in place. A record whose checksum does not match ends the log and
+ * is overwritten by the next append. The container is rewritten without the old records once they take more
+ * space than the live ones.
+ * <p/>
+ * The container is opened once per process and stays open. Opening it reads the headers of the records into an
+ * index, so getting an entry is one lookup and one read, without a file open.
+ * <p/>
+ * Processes take a lock on "&lt;file&gt;.lock" to write. Under the lock a process first indexes the records other
+ * processes appended, and opens the container again if another process compacted it: a compaction renames a new
+ * file over the container and then clears the magic of the replaced one, which the other processes still hold.
+ * Record: [int nameLength][name utf-8][int dataLength, -1 if deleted][data][int crc32 of name and data]
+ * <p/>
+ * {@hide}
+ */
+class PackStore {
+    private static final String TAG = PackStore.class.getSimpleName();
+    static final String SCHEME = "pack://";
+
+    private static final int MAGIC = 0x4346504B; // "CFPK"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int MIN_COMPACT_BYTES = 64 * 1024;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final Map<String, PackStore> sStores = new HashMap<>();
+
+    private final File mFile;
+    private RandomAccessFile mRaf;
+    // Kept open with the container, only locked while writing
+    private RandomAccessFile mLockFile;
+    // Offset and length of the data and length of the record of each live entry
+    private final Map<String, long[]> mIndex = new HashMap<>();
+    // Bumped by every write of an entry, so other objects of the entry notice it
+    private final Map<String, Integer> mGenerations = new HashMap<>();
+    private long mEnd;
+    private long mDeadBytes;
+    // Length and modification time of the file after the last scan or write of this process
+    private long mStampLength = -1;
+    private long mStampModified;
+
+    // Package private, so tests can stand for several processes with several objects of one file
+    PackStore(File file) {
+        mFile = file;
+    }
+
+    static boolean isPackPath(String path) {
+        return path != null && path.startsWith(SCHEME);
+    }
+
+    /**
+     * @return the container of a pack path, the same object for every path of the same file
+     */
+    @NonNull
+    static PackStore forPath(@NonNull String path) {
+        String container = containerOf(path);
+        synchronized (sStores) {
+            // Keyed by the path as given too, so the usual lookup does not resolve the canonical path
+            PackStore store = sStores.get(container);
+            if (store != null) {
+                return store;
+            }
+        }
+        File file = new File(container);
+        String key;
+        try {
+            key = file.getCanonicalPath();
+        } catch (IOException e) {
+            key = file.getAbsolutePath();
+        }
+        synchronized (sStores) {
+            PackStore store = sStores.get(key);
+            if (store == null) {
+                store = new PackStore(new File(key));
+                sStores.put(key, store);
+            }
+            sStores.put(container, store);
+            return store;
+        }
+    }
+
+    static String containerOf(String path) {
+        int hash = path.lastIndexOf('#');
+        if (!isPackPath(path) || hash <= SCHEME.length() || hash == path.length() - 1) {
+            throw new IllegalArgumentException("Not a pack path: " + path);
+        }
+        return path.substring(SCHEME.length(), hash);
+    }
+
+    static String entryOf(String path) {
+        containerOf(path);
+        return path.substring(path.lastIndexOf('#') + 1);
+    }
+
+    /**
+     * @return the data of the entry, or null if there is none
+     */
+    synchronized byte[] read(String name) throws IOException {
+        open();
+        long[] slot = mIndex.get(name);
+        if (slot == null) {
+            return null;
+        }
+        byte[] data = new byte[(int) slot[1]];
+        mRaf.seek(slot[0]);
+        mRaf.readFully(data);
+        return data;
+    }
+
+    synchronized boolean contains(String name) {
+        try {
+            open();
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot open " + mFile, e);
+            return false;
+        }
+        return mIndex.containsKey(name);
+    }
+
+    /**
+     * @return the size of the data of the entry, 0 if there is none
+     */
+    synchronized long length(String name) {
+        long[] slot = mIndex.get(name);
+        return slot != null ? slot[1] : 0;
+    }
+
+    synchronized int generation(String name) {
+        Integer generation = mGenerations.get(name);
+        return generation != null ? generation : 0;
+    }
+
+    /**
+     * Scan the container again if another process changed it since this one last read or wrote it
+     */
+    synchronized void refresh() {
+        if (mRaf != null && (mFile.length() != mStampLength || mFile.lastModified() != mStampModified
+                || isReplaced())) {
+            close();
+            try {
+                open();
+            } catch (IOException e) {
+                Log.w(TAG, "Cannot open " + mFile, e);
+            }
+        }
+    }
+
+    /**
+     * Replace the data of the entry
+     *
+     * @param data new data, null to delete the entry
+     */
+    synchronized void write(String name, byte[] data) throws IOException {
+        open();
+        FileLock lock = lock();
+        try {
+            catchUp();
+            append(name, data);
+        } finally {
+            lock.release();
+        }
+    }
+
+    private FileLock lock() throws IOException {
+        if (mLockFile == null) {
+            mLockFile = new RandomAccessFile(mFile.getPath() + ".lock", "rw");
+        }
+        return mLockFile.getChannel().lock();
+    }
+
+    /**
+     * Index what other processes wrote since this one last did, called under the file lock
+     */
+    private void catchUp() throws IOException {
+        long length = mRaf.length();
+        if (isReplaced() || length < mEnd) {
+            close();
+            open();
+        } else if (length > mEnd) {
+            scan(mRaf, mEnd);
+            recordStamp();
+        }
+    }
+
+    /**
+     * @return true if another process compacted the container into a new file since this one opened it
+     */
+    private boolean isReplaced() {
+        try {
+            mRaf.seek(0);
+            return mRaf.readInt() != MAGIC;
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    private void append(String name, byte[] data) throws IOException {
+        if (data == null && !mIndex.containsKey(name)) {
+            return;
+        }
+        ByteArrayOutputStream record = new ByteArrayOutputStream((data != null ? data.length : 0) + name.length() + 16);
+        long dataOffset = mEnd + writeRecord(new DataOutputStream(record), name, data);
+        mRaf.seek(mEnd);
+        mRaf.write(record.toByteArray(), 0, record.size());
+        if (mRaf.length() > mEnd + record.size()) {
+            // Cut what is left of a torn record behind this one, the scan under the lock ended at it
+            mRaf.setLength(mEnd + record.size());
+        }
+
+        long[] old = data != null
+                ? mIndex.put(name, new long[]{dataOffset, data.length, record.size()}) : mIndex.remove(name);
+        if (old != null) {
+            mDeadBytes += old[2];
+        }
+        if (data == null) {
+            mDeadBytes += record.size();
+        }
+        mEnd += record.size();
+        Integer generation = mGenerations.get(name);
+        mGenerations.put(name, generation != null ? generation + 1 : 1);
+        recordStamp();
+
+        if (mDeadBytes > MIN_COMPACT_BYTES && mDeadBytes > mEnd - mDeadBytes) {
+            compact();
+        }
+    }
+
+    /**
+     * Write one record
+     *
+     * @return the offset of the data in the record
+     */
+    private static int writeRecord(DataOutputStream out, String name, byte[] data) throws IOException {
+        byte[] nameBytes = name.getBytes(UTF_8);
+        CRC32 crc = new CRC32();
+        crc.update(nameBytes);
+        out.writeInt(nameBytes.length);
+        out.write(nameBytes);
+        if (data != null) {
+            crc.update(data);
+            out.writeInt(data.length);
+            out.write(data);
+        } else {
+            out.writeInt(-1);
+        }
+        out.writeInt((int) crc.getValue());
+        return 4 + nameBytes.length + 4;
+    }
+
+    private void open() throws IOException {
+        if (mRaf != null) {
+            return;
+        }
+        File parent = mFile.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Cannot create " + parent);
+        }
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        try {
+            scan(raf, 0);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+        mRaf = raf;
+        recordStamp();
+    }
+
+    /**
+     * Index the records from an offset to the end of the container with one read
+     *
+     * @param start 0 to index the whole container, or the end of the records indexed so far
+     */
+    private void scan(RandomAccessFile raf, long start) throws IOException {
+        long length = raf.length();
+        if (start == 0) {
+            mIndex.clear();
+            mDeadBytes = 0;
+            if (length == 0) {
+                raf.writeInt(MAGIC);
+                raf.writeInt(VERSION);
+                mEnd = HEADER_SIZE;
+                return;
+            }
+        }
+        if (length - start > Integer.MAX_VALUE) {
+            throw new IOException("Pack too large " + mFile);
+        }
+        byte[] bytes = new byte[(int) (length - start)];
+        raf.seek(start);
+        raf.readFully(bytes);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        int pos = 0;
+        if (start == 0) {
+            if (length < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+                throw new IOException("Not a pack " + mFile);
+            }
+            if (buffer.getInt(4) > VERSION) {
+                throw new IOException("Unsupported pack version " + buffer.getInt(4));
+            }
+            pos = HEADER_SIZE;
+        }
+        Set<String> scanned = new HashSet<>();
+        int limit = bytes.length;
+        CRC32 crc = new CRC32();
+        while (pos + 12 <= limit) {
+            int nameLength = buffer.getInt(pos);
+            if (nameLength <= 0 || pos + 8L + nameLength > limit) {
+                break;
+            }
+            int dataLength = buffer.getInt(pos + 4 + nameLength);
+            int dataOffset = pos + 8 + nameLength;
+            int end = dataOffset + Math.max(0, dataLength) + 4;
+            if (dataLength < -1 || end > limit || end < dataOffset) {
+                break;
+            }
+            crc.reset();
+            crc.update(bytes, pos + 4, nameLength);
+            if (dataLength > 0) {
+                crc.update(bytes, dataOffset, dataLength);
+            }
+            if (buffer.getInt(end - 4) != (int) crc.getValue()) {
+                break;
+            }
+            String name = new String(bytes, pos + 4, nameLength, UTF_8);
+            long[] old = dataLength >= 0
+                    ? mIndex.put(name, new long[]{start + dataOffset, dataLength, end - pos}) : mIndex.remove(name);
+            if (old != null) {
+                mDeadBytes += old[2];
+            }
+            if (dataLength < 0) {
+                mDeadBytes += end - pos;
+            }
+            scanned.add(name);
+            pos = end;
+        }
+        if (pos < limit) {
+            Log.w(TAG, "Ignore " + (limit - pos) + " broken bytes at the end of " + mFile);
+        }
+        mEnd = start + pos;
+        // Entries changed by another process are new to the objects of this one, all of them if the whole
+        // container was indexed again
+        if (start == 0) {
+            scanned.addAll(mGenerations.keySet());
+        }
+        for (String name : scanned) {
+            Integer generation = mGenerations.get(name);
+            mGenerations.put(name, generation != null ? generation + 1 : 1);
+        }
+    }
+
+    /**
+     * Rewrite the container with only the live records
+     */
+    private void compact() throws IOException {
+        File tmp = new File(mFile.getPath() + ".tmp");
+        RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+        try {
+            out.setLength(0);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) (mEnd - mDeadBytes));
+            DataOutputStream str = new DataOutputStream(bytes);
+            str.writeInt(MAGIC);
+            str.writeInt(VERSION);
+            for (Map.Entry<String, long[]> entry : mIndex.entrySet()) {
+                long[] slot = entry.getValue();
+                byte[] data = new byte[(int) slot[1]];
+                mRaf.seek(slot[0]);
+                mRaf.readFully(data);
+                writeRecord(str, entry.getKey(), data);
+            }
+            str.flush();
+            out.write(bytes.toByteArray(), 0, bytes.size());
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(mFile)) {
+            tmp.delete();
+            throw new IOException("Cannot compact " + mFile);
+        }
+        Log.d(TAG, "compact : " + mFile + " dead bytes:" + mDeadBytes);
+        // Processes which still hold the replaced file see it is gone before their next append
+        mRaf.seek(0);
+        mRaf.writeInt(0);
+        mRaf.close();
+        mRaf = null;
+        // The offsets moved, index the new file. The generations stay, the data did not change.
+        Map<String, Integer> generations = new HashMap<>(mGenerations);
+        open();
+        mGenerations.clear();
+        mGenerations.putAll(generations);
+    }
+
+    private void recordStamp() {
+        mStampLength = mFile.length();
+        mStampModified = mFile.lastModified();
+    }
+
+    private void close() {
+        if (mRaf != null) {
+            try {
+                mRaf.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            mRaf = null;
+        }
+    }
+}
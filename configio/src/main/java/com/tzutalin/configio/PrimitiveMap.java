@@ -0,0 +1,461 @@
+/*
+*  Copyright (C) 2016 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.configio;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Map of config values which keeps int, long, float, double and boolean values unboxed.
+ * <p/>
+ * Keys are in an open addressing table with linear probing. Each slot has a type, the raw bits of a
+ * primitive value and a reference for any other value, so reading an int is a probe and two array reads.
+ * The generic Map methods box primitives on the way in and out. Like HashMap it is not thread safe.
+ * <p/>
+ * {@hide}
+ */
+final class PrimitiveMap extends AbstractMap<String, Object> {
+    static final byte TYPE_EMPTY = 0;
+    static final byte TYPE_DELETED = 1;
+    static final byte TYPE_OBJECT = 2;
+    static final byte TYPE_INT = 3;
+    static final byte TYPE_LONG = 4;
+    static final byte TYPE_FLOAT = 5;
+    static final byte TYPE_DOUBLE = 6;
+    static final byte TYPE_BOOLEAN = 7;
+
+    private static final int MIN_CAPACITY = 4;
+
+    private String[] mKeys;
+    private byte[] mTypes;
+    private long[] mBits;
+    private Object[] mRefs;
+    private int mShift;
+    private int mSize;
+    // Live and deleted slots, the table is rebuilt when half of it is used
+    private int mUsed;
+    private int mModCount;
+    private Set<Entry<String, Object>> mEntrySet;
+
+    PrimitiveMap() {
+        this(MIN_CAPACITY / 2);
+    }
+
+    PrimitiveMap(Map<String, ?> map) {
+        this(map.size());
+        putAll(map);
+    }
+
+    private PrimitiveMap(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        mKeys = new String[capacity];
+        mTypes = new byte[capacity];
+        mBits = new long[capacity];
+        mRefs = new Object[capacity];
+        mShift = 32 - Integer.numberOfTrailingZeros(capacity);
+        mUsed = mSize;
+    }
+
+    private int slotOf(Object key) {
+        // Fibonacci hashing spreads the String hash over the high bits
+        return key == null ? 0 : (key.hashCode() * 0x9E3779B9) >>> mShift;
+    }
+
+    /**
+     * @return the slot of key, or -1 if it is not in the map
+     */
+    int indexOf(Object key) {
+        final String[] keys = mKeys;
+        final byte[] types = mTypes;
+        final int mask = keys.length - 1;
+        int i = slotOf(key);
+        while (true) {
+            byte type = types[i];
+            if (type == TYPE_EMPTY) {
+                return -1;
+            }
+            if (type != TYPE_DELETED) {
+                String k = keys[i];
+                if (k == key || (k != null && k.equals(key))) {
+                    return i;
+                }
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    byte typeAt(int slot) {
+        return mTypes[slot];
+    }
+
+    int intAt(int slot) {
+        return (int) mBits[slot];
+    }
+
+    long longAt(int slot) {
+        return mBits[slot];
+    }
+
+    float floatAt(int slot) {
+        return Float.intBitsToFloat((int) mBits[slot]);
+    }
+
+    double doubleAt(int slot) {
+        return Double.longBitsToDouble(mBits[slot]);
+    }
+
+    boolean booleanAt(int slot) {
+        return mBits[slot] != 0;
+    }
+
+    Object objectAt(int slot) {
+        return mRefs[slot];
+    }
+
+    String keyAt(int slot) {
+        return mKeys[slot];
+    }
+
+    /**
+     * @return the first used slot from index on, or -1 if there is none
+     */
+    int nextSlot(int index) {
+        final byte[] types = mTypes;
+        for (int i = index; i < types.length; i++) {
+            if (types[i] > TYPE_DELETED) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return true if the map did not hold the same int for key
+     */
+    boolean putInt(String key, int value) {
+        return putBits(key, TYPE_INT, value);
+    }
+
+    boolean putLong(String key, long value) {
+        return putBits(key, TYPE_LONG, value);
+    }
+
+    boolean putFloat(String key, float value) {
+        return putBits(key, TYPE_FLOAT, Float.floatToIntBits(value));
+    }
+
+    boolean putDouble(String key, double value) {
+        return putBits(key, TYPE_DOUBLE, Double.doubleToLongBits(value));
+    }
+
+    boolean putBoolean(String key, boolean value) {
+        return putBits(key, TYPE_BOOLEAN, value ? 1 : 0);
+    }
+
+    /**
+     * @param type one of the primitive types
+     * @param bits the bits as they are kept by a slot of the type
+     * @return true if the map did not hold the same value for key
+     */
+    boolean putBits(String key, byte type, long bits) {
+        int slot = indexOf(key);
+        if (slot >= 0) {
+            if (mTypes[slot] == type && mBits[slot] == bits) {
+                return false;
+            }
+        } else {
+            slot = insert(key);
+        }
+        mTypes[slot] = type;
+        mBits[slot] = bits;
+        mRefs[slot] = null;
+        return true;
+    }
+
+    /**
+     * Take a free slot for a key which is not in the map
+     */
+    private int insert(String key) {
+        if ((mUsed + 1) * 2 > mKeys.length) {
+            rehash(mSize * 4 > mKeys.length ? mKeys.length * 2 : mKeys.length);
+        }
+        final int mask = mKeys.length - 1;
+        int i = slotOf(key);
+        while (mTypes[i] > TYPE_DELETED) {
+            i = (i + 1) & mask;
+        }
+        if (mTypes[i] == TYPE_EMPTY) {
+            mUsed++;
+        }
+        mKeys[i] = key;
+        mSize++;
+        mModCount++;
+        return i;
+    }
+
+    private void rehash(int capacity) {
+        String[] keys = mKeys;
+        byte[] types = mTypes;
+        long[] bits = mBits;
+        Object[] refs = mRefs;
+        allocate(capacity);
+        final int mask = capacity - 1;
+        for (int j = 0; j < keys.length; j++) {
+            if (types[j] > TYPE_DELETED) {
+                int i = slotOf(keys[j]);
+                while (mTypes[i] != TYPE_EMPTY) {
+                    i = (i + 1) & mask;
+                }
+                mKeys[i] = keys[j];
+                mTypes[i] = types[j];
+                mBits[i] = bits[j];
+                mRefs[i] = refs[j];
+            }
+        }
+    }
+
+    private Object valueAt(int slot) {
+        switch (mTypes[slot]) {
+            case TYPE_INT:
+                return intAt(slot);
+            case TYPE_LONG:
+                return longAt(slot);
+            case TYPE_FLOAT:
+                return floatAt(slot);
+            case TYPE_DOUBLE:
+                return doubleAt(slot);
+            case TYPE_BOOLEAN:
+                return booleanAt(slot);
+            default:
+                return mRefs[slot];
+        }
+    }
+
+    private void setValueAt(int slot, Object value) {
+        if (value instanceof Integer) {
+            mTypes[slot] = TYPE_INT;
+            mBits[slot] = (Integer) value;
+        } else if (value instanceof Long) {
+            mTypes[slot] = TYPE_LONG;
+            mBits[slot] = (Long) value;
+        } else if (value instanceof Float) {
+            mTypes[slot] = TYPE_FLOAT;
+            mBits[slot] = Float.floatToIntBits((Float) value);
+        } else if (value instanceof Double) {
+            mTypes[slot] = TYPE_DOUBLE;
+            mBits[slot] = Double.doubleToLongBits((Double) value);
+        } else if (value instanceof Boolean) {
+            mTypes[slot] = TYPE_BOOLEAN;
+            mBits[slot] = (Boolean) value ? 1 : 0;
+        } else {
+            mTypes[slot] = TYPE_OBJECT;
+            mRefs[slot] = value;
+            return;
+        }
+        mRefs[slot] = null;
+    }
+
+    private void removeAt(int slot) {
+        mKeys[slot] = null;
+        mTypes[slot] = TYPE_DELETED;
+        mRefs[slot] = null;
+        mSize--;
+        mModCount++;
+    }
+
+    @Override
+    public int size() {
+        return mSize;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return indexOf(key) >= 0;
+    }
+
+    @Override
+    public Object get(Object key) {
+        int slot = indexOf(key);
+        return slot < 0 ? null : valueAt(slot);
+    }
+
+    @Override
+    public Object put(String key, Object value) {
+        int slot = indexOf(key);
+        Object old = null;
+        if (slot >= 0) {
+            old = valueAt(slot);
+        } else {
+            slot = insert(key);
+        }
+        setValueAt(slot, value);
+        return old;
+    }
+
+    @Override
+    public Object remove(Object key) {
+        int slot = indexOf(key);
+        if (slot < 0) {
+            return null;
+        }
+        Object old = valueAt(slot);
+        removeAt(slot);
+        return old;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(mKeys, null);
+        Arrays.fill(mTypes, TYPE_EMPTY);
+        Arrays.fill(mRefs, null);
+        mSize = 0;
+        mUsed = 0;
+        mModCount++;
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        if (mEntrySet == null) {
+            mEntrySet = new AbstractSet<Entry<String, Object>>() {
+                @Override
+                public Iterator<Entry<String, Object>> iterator() {
+                    return new EntryIterator();
+                }
+
+                @Override
+                public int size() {
+                    return mSize;
+                }
+
+                @Override
+                public void clear() {
+                    PrimitiveMap.this.clear();
+                }
+            };
+        }
+        return mEntrySet;
+    }
+
+    private class EntryIterator implements Iterator<Entry<String, Object>> {
+        private int mNext = -1;
+        private int mLast = -1;
+        private int mExpectedModCount = mModCount;
+
+        EntryIterator() {
+            advance();
+        }
+
+        private void advance() {
+            do {
+                mNext++;
+            } while (mNext < mTypes.length && mTypes[mNext] <= TYPE_DELETED);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return mNext < mTypes.length;
+        }
+
+        @Override
+        public Entry<String, Object> next() {
+            if (mModCount != mExpectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            mLast = mNext;
+            advance();
+            return new SlotEntry(mLast);
+        }
+
+        @Override
+        public void remove() {
+            if (mLast < 0) {
+                throw new IllegalStateException();
+            }
+            if (mModCount != mExpectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            removeAt(mLast);
+            mLast = -1;
+            mExpectedModCount = mModCount;
+        }
+    }
+
+    private class SlotEntry implements Entry<String, Object> {
+        private final int mSlot;
+        private final String mKey;
+
+        SlotEntry(int slot) {
+            mSlot = slot;
+            mKey = mKeys[slot];
+        }
+
+        @Override
+        public String getKey() {
+            return mKey;
+        }
+
+        @Override
+        public Object getValue() {
+            return valueAt(mSlot);
+        }
+
+        @Override
+        public Object setValue(Object value) {
+            Object old = valueAt(mSlot);
+            setValueAt(mSlot, value);
+            return old;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Entry)) {
+                return false;
+            }
+            Entry<?, ?> e = (Entry<?, ?>) o;
+            Object value = getValue();
+            return (mKey == null ? e.getKey() == null : mKey.equals(e.getKey()))
+                    && (value == null ? e.getValue() == null : value.equals(e.getValue()));
+        }
+
+        @Override
+        public int hashCode() {
+            Object value = getValue();
+            return (mKey == null ? 0 : mKey.hashCode()) ^ (value == null ? 0 : value.hashCode());
+        }
+
+        @Override
+        public String toString() {
+            return mKey + "=" + getValue();
+        }
+    }
+}
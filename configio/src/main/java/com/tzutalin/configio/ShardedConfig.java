@@ -0,0 +1,539 @@
+/*
+*  Copyright (C) 2016 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.configio;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+/**
+ * One logical config kept in several files of the directory &lt;path&gt;.shards, partitioned by key prefix or by
+ * key hash. Each shard is a config of the format given by the extension of path, so a commit only rewrites the
+ * shards which hold an edited key, and the shards are loaded in parallel.
+ * <p/>
+ * The partitioning is stored in the file manifest of the directory. Once it is written it wins over the
+ * options of the builder, since moving keys between shards needs a rewrite of every shard. A manifest which cannot
+ * be read fails the load and is written again with the layout of the builder by the next commit.
+ * <p/>
+ * A commit is atomic per shard, not across shards.
+ * <p/>
+ * {@hide}
+ */
+class ShardedConfig extends ConfigIO {
+    private static final String TAG = ShardedConfig.class.getSimpleName();
+    static final String SUFFIX = ".shards";
+    static final String MANIFEST = "manifest";
+    private static final int VERSION = 1;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File mDir;
+    private final String mExtension;
+    private Builder mBuilder;
+    // Layout of the manifest, or the one of the builder if there is no manifest yet
+    private String[] mPrefixes;
+    private int mHashCount;
+    private volatile FileConfig[] mShards;
+    private boolean mManifestWritten;
+
+    // Forwards the changes of the shards while this config has listeners
+    private final OnChangeListener mForwarder = new OnChangeListener() {
+        @Override
+        public void onChanged(ConfigIO config, Set<String> keys) {
+            notifyChanged(keys);
+        }
+    };
+
+    ShardedConfig(String path) {
+        super(path);
+        mDir = new File(path + SUFFIX);
+        int dot = path.lastIndexOf('.');
+        mExtension = dot >= 0 ? path.substring(dot) : "";
+        if (!ConfigIO.isSupported(path) || mExtension.equals(MappedConfig.EXTENSION) || PackStore.isPackPath(path)) {
+            throw new IllegalArgumentException("Shards cannot be written as " + mExtension);
+        }
+    }
+
+    /**
+     * @return true if path is a sharded config which has been written
+     */
+    static boolean exists(String path) {
+        return new File(path + SUFFIX, MANIFEST).isFile();
+    }
+
+    @Override
+    boolean fileExists() {
+        return exists(mTargetPath);
+    }
+
+    @Override
+    void configure(Builder builder) {
+        mBuilder = builder;
+        mPrefixes = builder.mShardPrefixes;
+        mHashCount = builder.mShardCount;
+    }
+
+    /**
+     * Create the shards on first use, once the layout is known
+     */
+    private FileConfig[] shards() {
+        FileConfig[] shards = mShards;
+        if (shards != null) {
+            return shards;
+        }
+        synchronized (this) {
+            if (mShards == null) {
+                readManifest();
+                int count = mPrefixes != null ? mPrefixes.length + 1 : Math.max(1, mHashCount);
+                shards = new FileConfig[count];
+                for (int i = 0; i < count; i++) {
+                    shards[i] = (FileConfig) ConfigIO.create(new File(mDir, i + mExtension).getPath());
+                    if (mBuilder != null) {
+                        shards[i].configure(mBuilder);
+                    }
+                }
+                mShards = shards;
+            }
+            return mShards;
+        }
+    }
+
+    /**
+     * @return the index of the shard of key, by the first prefix which matches it or by the hash of the key
+     */
+    private int indexOf(String key) {
+        FileConfig[] shards = shards();
+        if (mPrefixes != null) {
+            for (int i = 0; i < mPrefixes.length; i++) {
+                if (key.startsWith(mPrefixes[i])) {
+                    return i;
+                }
+            }
+            // Keys without a prefix
+            return mPrefixes.length;
+        }
+        return (key.hashCode() & Integer.MAX_VALUE) % shards.length;
+    }
+
+    private FileConfig shardOf(String key) {
+        return shards()[indexOf(key)];
+    }
+
+    /**
+     * @return the shard of a key, or of a path whose key is not a key of its own
+     */
+    private FileConfig shardOfPath(String key) {
+        FileConfig shard = shardOf(key);
+        if (!KeyPath.isPath(key) || shard.containsKey(key)) {
+            return shard;
+        }
+        return shards()[pathIndexOf(key)];
+    }
+
+    /**
+     * Route a path like a key first: prefixes match the whole path, so "feature.flags.dark" goes to the shard of
+     * "feature.". The hash is taken of the first part instead, so the paths under one key stay in one shard.
+     * A path which only the shard of its first part holds, e.g. under a map put as "feature", stays there.
+     *
+     * @return the index of the shard which holds path, or which a new path goes to
+     */
+    private int pathIndexOf(String path) {
+        int headIndex = indexOf(KeyPath.head(path));
+        if (mPrefixes == null) {
+            return headIndex;
+        }
+        int index = indexOf(path);
+        if (index != headIndex && !mShards[index].containsPathKey(path) && mShards[headIndex].containsPathKey(path)) {
+            return headIndex;
+        }
+        return index;
+    }
+
+    @Override
+    public boolean loadFromFile() {
+        FileConfig[] shards = shards();
+        List<FutureTask<Boolean>> tasks = new ArrayList<>(shards.length - 1);
+        Executor executor = ConfigPreloader.executor();
+        for (int i = 1; i < shards.length; i++) {
+            FutureTask<Boolean> task = new FutureTask<>(new LoadTask(shards[i]));
+            executor.execute(task);
+            tasks.add(task);
+        }
+        // Parse one shard on this thread instead of waiting idle
+        boolean loaded = new LoadTask(shards[0]).call();
+        for (FutureTask<Boolean> task : tasks) {
+            try {
+                loaded &= task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (ExecutionException e) {
+                Log.w(TAG, "loadFromFile " + mTargetPath, e.getCause());
+                loaded = false;
+            }
+        }
+        return loaded && mManifestWritten;
+    }
+
+    /**
+     * Start loading the shards in background, see {@link FileConfig#preload}
+     */
+    void preload(Executor executor) {
+        for (FileConfig shard : shards()) {
+            shard.preload(executor);
+        }
+    }
+
+    @Override
+    public boolean reload() {
+        boolean changed = false;
+        for (FileConfig shard : shards()) {
+            changed |= shard.reload();
+        }
+        return changed;
+    }
+
+    @Override
+    public void flush() {
+        for (FileConfig shard : shards()) {
+            shard.flush();
+        }
+    }
+
+    @Override
+    public Writer getWriter() {
+        return new ShardedWriter();
+    }
+
+    @Override
+    public void registerOnChangeListener(@NonNull OnChangeListener listener) {
+        synchronized (mForwarder) {
+            boolean first = !hasChangeListeners();
+            super.registerOnChangeListener(listener);
+            if (first) {
+                for (FileConfig shard : shards()) {
+                    shard.registerOnChangeListener(mForwarder);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void unregisterOnChangeListener(@NonNull OnChangeListener listener) {
+        synchronized (mForwarder) {
+            super.unregisterOnChangeListener(listener);
+            if (!hasChangeListeners()) {
+                for (FileConfig shard : shards()) {
+                    shard.unregisterOnChangeListener(mForwarder);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return a copy of the values of all shards
+     */
+    @Override
+    public Map<String, ?> getAll() {
+        Map<String, Object> all = new HashMap<>();
+        for (FileConfig shard : shards()) {
+            all.putAll(shard.getAll());
+        }
+        return Collections.unmodifiableMap(all);
+    }
+
+    @Override
+    protected Object getValue(String key) {
+        return shardOfPath(key).getValue(key);
+    }
+
+    @Override
+    public String getString(String key, @Nullable String defValue) {
+        return shardOfPath(key).getString(key, defValue);
+    }
+
+    @Override
+    protected Set<String> getStringSet(String key, @Nullable Set<String> defValues) {
+        return shardOfPath(key).getStringSet(key, defValues);
+    }
+
+    @Override
+    public int getInt(String key, int defValue) {
+        return shardOfPath(key).getInt(key, defValue);
+    }
+
+    @Override
+    public long getLong(String key, long defValue) {
+        return shardOfPath(key).getLong(key, defValue);
+    }
+
+    @Override
+    public float getFloat(String key, float defValue) {
+        return shardOfPath(key).getFloat(key, defValue);
+    }
+
+    @Override
+    public double getDouble(String key, double defValue) {
+        return shardOfPath(key).getDouble(key, defValue);
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defValue) {
+        return shardOfPath(key).getBoolean(key, defValue);
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return shardOfPath(key).contains(key);
+    }
+
+    /**
+     * Take the layout of the manifest if there is one. Called once, under the lock.
+     */
+    private void readManifest() {
+        File file = new File(mDir, MANIFEST);
+        if (!file.isFile()) {
+            return;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8));
+            List<String> prefixes = new ArrayList<>();
+            int hashCount = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("version ")) {
+                    if (Integer.parseInt(line.substring(8)) > VERSION) {
+                        throw new IOException("Unsupported version " + line);
+                    }
+                } else if (line.startsWith("hash ")) {
+                    hashCount = Integer.parseInt(line.substring(5));
+                } else if (line.startsWith("prefix ")) {
+                    prefixes.add(line.substring(7));
+                }
+            }
+            String[] layout = prefixes.isEmpty() ? null : prefixes.toArray(new String[prefixes.size()]);
+            if (!Arrays.equals(layout, mPrefixes) || (layout == null && hashCount != mHashCount)) {
+                if (mBuilder != null && (mBuilder.mShardPrefixes != null || mBuilder.mShardCount > 0)) {
+                    Log.w(TAG, "Shards of " + mTargetPath + " keep the layout of the manifest");
+                }
+                mPrefixes = layout;
+                mHashCount = hashCount;
+            }
+            mManifestWritten = true;
+        } catch (IOException | NumberFormatException e) {
+            // Like a broken file of the other formats: the load fails and the next commit writes it again,
+            // here with the layout of the builder
+            Log.w(TAG, "Cannot read the manifest of " + mTargetPath + ", use the layout of the builder", e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the manifest before the first shard, so the shards are never read with another layout
+     */
+    private synchronized boolean writeManifest() {
+        if (mManifestWritten) {
+            return true;
+        }
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            Log.w(TAG, "Cannot create " + mDir);
+            return false;
+        }
+        File file = new File(mDir, MANIFEST);
+        File tmp = new File(mDir, MANIFEST + ".tmp");
+        OutputStreamWriter out = null;
+        try {
+            out = new OutputStreamWriter(new FileOutputStream(tmp), UTF_8);
+            out.write("version " + VERSION + "\n");
+            if (mPrefixes != null) {
+                for (String prefix : mPrefixes) {
+                    out.write("prefix " + prefix + "\n");
+                }
+            } else {
+                out.write("hash " + mShards.length + "\n");
+            }
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                Log.w(TAG, "Cannot write " + file);
+                return false;
+            }
+            mManifestWritten = true;
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot write " + file, e);
+            return false;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private static class LoadTask implements Callable<Boolean> {
+        private final FileConfig mShard;
+
+        LoadTask(FileConfig shard) {
+            mShard = shard;
+        }
+
+        @Override
+        public Boolean call() {
+            // A shard which has no file yet is empty, not broken
+            return mShard.loadFromFile() || !new File(mShard.mTargetPath).exists();
+        }
+    }
+
+    /**
+     * Sends each edit to the writer of its shard, so only the shards with edits are committed
+     */
+    private class ShardedWriter implements ConfigIO.Writer {
+        private final ConfigIO.Writer[] mWriters = new ConfigIO.Writer[shards().length];
+
+        private ConfigIO.Writer writerOf(String key) {
+            return writerAt(indexOf(key));
+        }
+
+        private ConfigIO.Writer writerAt(int index) {
+            if (mWriters[index] == null) {
+                mWriters[index] = mShards[index].getWriter();
+            }
+            return mWriters[index];
+        }
+
+        @Override
+        public ConfigIO.Writer putString(@NonNull String key, @Nullable String value) {
+            writerOf(key).putString(key, value);
+            return this;
+        }
+
+        @Override
+        public ConfigIO.Writer putInt(@NonNull String key, int value) {
+            writerOf(key).putInt(key, value);
+            return this;
+        }
+
+        @Override
+        public ConfigIO.Writer putLong(@NonNull String key, long value) {
+            writerOf(key).putLong(key, value);
+            return this;
+        }
+
+        @Override
+        public ConfigIO.Writer putFloat(@NonNull String key, float value) {
+            writerOf(key).putFloat(key, value);
+            return this;
+        }
+
+        @Override
+        public ConfigIO.Writer putDouble(@NonNull String key, double value) {
+            writerOf(key).putDouble(key, value);
+            return this;
+        }
+
+        @Override
+        public ConfigIO.Writer putBoolean(@NonNull String key, boolean value) {
+            writerOf(key).putBoolean(key, value);
+            return this;
+        }
+
+        @Override
+        public ConfigIO.Writer remove(@NonNull String key) {
+            writerOf(key).remove(key);
+            return this;
+        }
+
+        @Override
+        public ConfigIO.Writer putPath(@NonNull String path, @Nullable Object value) {
+            writerAt(pathIndexOf(path)).putPath(path, value);
+            return this;
+        }
+
+        @Override
+        public ConfigIO.Writer removePath(@NonNull String path) {
+            writerAt(pathIndexOf(path)).removePath(path);
+            return this;
+        }
+
+        @Override
+        public ConfigIO.Writer clear() {
+            for (int i = 0; i < mWriters.length; i++) {
+                writerAt(i).clear();
+            }
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            if (!writeManifest()) {
+                return false;
+            }
+            boolean committed = true;
+            for (int i = 0; i < mWriters.length; i++) {
+                if (mWriters[i] != null) {
+                    committed &= mWriters[i].commit();
+                    mWriters[i] = null;
+                }
+            }
+            return committed;
+        }
+
+        @Override
+        public void apply() {
+            if (!writeManifest()) {
+                return;
+            }
+            for (int i = 0; i < mWriters.length; i++) {
+                if (mWriters[i] != null) {
+                    mWriters[i].apply();
+                    mWriters[i] = null;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,307 @@
+/*
+*  Copyright (C) 2016 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.configio;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Set;
+
+/**
+ * Base of the implementations which the configio-compiler annotation processor generates for
+ * {@link com.tzutalin.configio.annotation.Config} interfaces.
+ * <p/>
+ * Every key of the interface has a fixed slot, a field of the values object of the implementation. Loading
+ * resolves each key of the file to its slot once, so a get is a field read without hashing, casting or boxing.
+ * A reload fills a new values object and swaps it in, so a get never sees a half loaded file.
+ *
+ * @param <V> the values object of the implementation
+ */
+public abstract class TypedConfig<V> {
+    private static final String TAG = TypedConfig.class.getSimpleName();
+    static final String IMPL_SUFFIX = "_Impl";
+
+    private volatile V mValues;
+    private String mPath;
+    private ConfigIO mConfig;
+
+    protected TypedConfig() {
+        mValues = newValues();
+    }
+
+    /**
+     * Load a config file into a new implementation of the interface. Json and xml files are parsed straight
+     * into the slots, other formats are loaded into a config first.
+     *
+     * @param type the {@link com.tzutalin.configio.annotation.Config} interface
+     * @param path the config file, keys which are not in it keep their defaults
+     * @return the implementation, a missing or broken file gives the defaults
+     */
+    @NonNull
+    public static <T> T load(@NonNull Class<T> type, @NonNull String path) {
+        TypedConfig<?> impl = newImpl(type);
+        impl.mPath = path;
+        impl.reload();
+        return type.cast(impl);
+    }
+
+    /**
+     * Read the values of a config which is already loaded, and read them again whenever they change
+     *
+     * @param type   the {@link com.tzutalin.configio.annotation.Config} interface
+     * @param config the config, it keeps the implementation up to date as long as it lives
+     * @return the implementation
+     */
+    @NonNull
+    public static <T> T bind(@NonNull Class<T> type, @NonNull ConfigIO config) {
+        final TypedConfig<?> impl = newImpl(type);
+        impl.mConfig = config;
+        impl.reload();
+        config.registerOnChangeListener(new ConfigIO.OnChangeListener() {
+            @Override
+            public void onChanged(ConfigIO config, Set<String> keys) {
+                for (String key : keys) {
+                    if (impl.slotOf(key) >= 0) {
+                        impl.reload();
+                        return;
+                    }
+                }
+            }
+        });
+        return type.cast(impl);
+    }
+
+    /**
+     * Read the file or the config of an object returned by {@link #load} or {@link #bind} again
+     */
+    public static void reload(@NonNull Object typedConfig) {
+        if (!(typedConfig instanceof TypedConfig)) {
+            throw new IllegalArgumentException("Not a generated config: " + typedConfig.getClass());
+        }
+        ((TypedConfig<?>) typedConfig).reload();
+    }
+
+    private static TypedConfig<?> newImpl(Class<?> type) {
+        String name = type.getName() + IMPL_SUFFIX;
+        try {
+            Class<?> implClass = Class.forName(name, true, type.getClassLoader());
+            return (TypedConfig<?>) implClass.getDeclaredConstructor().newInstance();
+        } catch (ClassNotFoundException e) {
+            throw new IllegalArgumentException("No generated " + name + ", is " + type.getName()
+                    + " annotated with @Config and configio-compiler an annotation processor?", e);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException("No default constructor in " + name + ", was it removed by proguard?", e);
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException("Cannot create " + name, e.getCause());
+        } catch (InstantiationException | IllegalAccessException e) {
+            throw new IllegalStateException("Cannot create " + name, e);
+        }
+    }
+
+    /**
+     * Read the file or the config again
+     */
+    public void reload() {
+        mValues = mConfig != null ? readConfig(mConfig) : readFile();
+    }
+
+    /**
+     * @return the values object of the last load
+     */
+    protected final V values() {
+        return mValues;
+    }
+
+    /**
+     * @return the keys of the interface, in slot order
+     */
+    protected abstract String[] keys();
+
+    /**
+     * @return the slot of the key, -1 if the interface does not read it
+     */
+    protected abstract int slotOf(String key);
+
+    /**
+     * @return a values object with the defaults
+     */
+    protected abstract V newValues();
+
+    /**
+     * Set the slot to a value of the file
+     *
+     * @param value String, Integer, Long, Float, Double or Boolean
+     */
+    protected abstract void set(V values, int slot, Object value);
+
+    private V readConfig(ConfigIO config) {
+        V values = newValues();
+        String[] keys = keys();
+        for (int slot = 0; slot < keys.length; slot++) {
+            Object value = config.getValue(keys[slot]);
+            if (value != null) {
+                set(values, slot, value);
+            }
+        }
+        return values;
+    }
+
+    private V readFile() {
+        ConfigIO config = new ConfigIO.Builder(mPath).build();
+        if (!config.fileExists()) {
+            return newValues();
+        }
+        if (!(config instanceof FileConfig) || !((FileConfig) config).canStream()) {
+            config.loadFromFile();
+            return readConfig(config);
+        }
+        FileConfig file = (FileConfig) config;
+        V values = newValues();
+        InputStream in = null;
+        try {
+            in = file.openStream();
+            file.readEvents(in, new SlotSink(values));
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read " + mPath, e);
+            values = newValues();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Sets the slots of the keys of the root map, nested values are skipped
+     */
+    private class SlotSink implements ConfigSink {
+        private final V mTarget;
+        private int mDepth;
+
+        SlotSink(V target) {
+            mTarget = target;
+        }
+
+        @Override
+        public void beginMap(String name) {
+            mDepth++;
+        }
+
+        @Override
+        public void endMap() {
+            mDepth--;
+        }
+
+        @Override
+        public void beginArray(String name) {
+            mDepth++;
+        }
+
+        @Override
+        public void endArray() {
+            mDepth--;
+        }
+
+        @Override
+        public void value(String name, Object value) {
+            if (mDepth == 1 && name != null && value != null) {
+                int slot = slotOf(name);
+                if (slot >= 0) {
+                    set(mTarget, slot, value);
+                }
+            }
+        }
+
+        @Override
+        public void finish() {
+        }
+    }
+
+    protected static int toInt(Object value, int def) {
+        if (value instanceof Number) {
+            return ((Number) value).intValue();
+        }
+        try {
+            return Integer.parseInt(String.valueOf(value).trim());
+        } catch (NumberFormatException e) {
+            return mismatch(value, def);
+        }
+    }
+
+    protected static long toLong(Object value, long def) {
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        try {
+            return Long.parseLong(String.valueOf(value).trim());
+        } catch (NumberFormatException e) {
+            return mismatch(value, def);
+        }
+    }
+
+    protected static float toFloat(Object value, float def) {
+        if (value instanceof Number) {
+            return ((Number) value).floatValue();
+        }
+        try {
+            return Float.parseFloat(String.valueOf(value));
+        } catch (NumberFormatException e) {
+            return mismatch(value, def);
+        }
+    }
+
+    protected static double toDouble(Object value, double def) {
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        try {
+            return Double.parseDouble(String.valueOf(value));
+        } catch (NumberFormatException e) {
+            return mismatch(value, def);
+        }
+    }
+
+    protected static boolean toBoolean(Object value, boolean def) {
+        if (value instanceof Boolean) {
+            return (Boolean) value;
+        }
+        String str = String.valueOf(value).trim();
+        if (str.equalsIgnoreCase("true")) {
+            return true;
+        } else if (str.equalsIgnoreCase("false")) {
+            return false;
+        }
+        return mismatch(value, def);
+    }
+
+    protected static String toString(Object value) {
+        return value instanceof String ? (String) value : String.valueOf(value);
+    }
+
+    private static <T> T mismatch(Object value, T def) {
+        Log.w(TAG, "Ignore " + value + ", expected a " + def.getClass().getSimpleName());
+        return def;
+    }
+}
@@ -0,0 +1,152 @@
+/*
+*  Copyright (C) 2016 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.configio;
+
+import java.io.File;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One single-threaded executor per file. All background writes and compactions of a file run on it in order,
+ * so they never overlap even if several ConfigIO objects point to the same file.
+ * <p/>
+ * The table references the schedulers weakly. Each ConfigIO object of the file holds its scheduler, and so does
+ * the thread while it runs or waits for tasks, so a scheduler is only dropped once no object of the file is left
+ * and its thread has timed out. The next object of the path gets a new scheduler then.
+ * <p/>
+ * {@hide}
+ */
+class WriteScheduler {
+    private static final long KEEP_ALIVE_SECONDS = 30;
+    private static final Map<String, Entry> sSchedulers = new HashMap<>();
+    private static final ReferenceQueue<WriteScheduler> sQueue = new ReferenceQueue<>();
+
+    private final ScheduledThreadPoolExecutor mExecutor;
+    private volatile Thread mThread;
+
+    private static class Entry extends WeakReference<WriteScheduler> {
+        final String mKey;
+
+        Entry(String key, WriteScheduler scheduler) {
+            super(scheduler, sQueue);
+            mKey = key;
+        }
+    }
+
+    private WriteScheduler(final String name) {
+        mExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ConfigIO-" + name);
+                thread.setDaemon(true);
+                mThread = thread;
+                return thread;
+            }
+        });
+        mExecutor.setKeepAliveTime(KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Get the scheduler shared by every ConfigIO object of the path
+     *
+     * @param path the config file path
+     * @return the scheduler of the file
+     */
+    static WriteScheduler forPath(String path) {
+        synchronized (sSchedulers) {
+            expungeStaleEntries();
+            // Keyed by the path as given too, so the usual lookup does not resolve the canonical path
+            WriteScheduler scheduler = get(path);
+            if (scheduler != null) {
+                return scheduler;
+            }
+        }
+        // The same key as ConfigRegistry, so every path of a file gets the same thread
+        String key = ConfigRegistry.canonicalPath(path);
+        synchronized (sSchedulers) {
+            WriteScheduler scheduler = get(key);
+            if (scheduler == null) {
+                scheduler = new WriteScheduler(new File(path).getName());
+                sSchedulers.put(key, new Entry(key, scheduler));
+            }
+            if (!path.equals(key)) {
+                sSchedulers.put(path, new Entry(path, scheduler));
+            }
+            return scheduler;
+        }
+    }
+
+    private static WriteScheduler get(String key) {
+        Entry entry = sSchedulers.get(key);
+        return entry != null ? entry.get() : null;
+    }
+
+    private static void expungeStaleEntries() {
+        Entry entry;
+        while ((entry = (Entry) sQueue.poll()) != null) {
+            // The path may have a live scheduler again
+            if (sSchedulers.get(entry.mKey) == entry) {
+                sSchedulers.remove(entry.mKey);
+            }
+        }
+    }
+
+    /**
+     * Run the task on the file thread after the delay
+     */
+    void schedule(Runnable task, long delayMillis) {
+        if (delayMillis > 0) {
+            mExecutor.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+        } else {
+            mExecutor.execute(task);
+        }
+    }
+
+    /**
+     * Run the task on the file thread and wait until it finishes.
+     * Every task scheduled before without delay has finished as well when this returns.
+     */
+    void runAndWait(Runnable task) {
+        if (Thread.currentThread() == mThread) {
+            task.run();
+            return;
+        }
+        Future<?> future = mExecutor.submit(task);
+        boolean interrupted = false;
+        while (true) {
+            try {
+                future.get();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -16,31 +16,28 @@
 
 package com.tzutalin.configio;
 
-import android.support.annotation.NonNull;
-import android.support.annotation.Nullable;
-import android.text.TextUtils;
 import android.util.ArrayMap;
 import android.util.Log;
 import android.util.Xml;
 
+import com.tzutalin.configio.utils.FastXmlReader;
 import com.tzutalin.configio.utils.FastXmlSerializer;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlSerializer;
 
-import java.io.BufferedInputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
+import java.io.ByteArrayInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -51,189 +48,130 @@ import java.util.Set;
 /**
  * {@hide}
  */
-class XmlConfig extends ConfigIO implements ConfigIO.Writer {
+class XmlConfig extends FileConfig {
     private static final String TAG = XmlConfig.class.getSimpleName();
-    private Set<String> mDeleteKeySet = new HashSet<>();
-    private boolean mbLoadToMemory = false;
-    private Thread mThread;
+    private final FastXmlSerializer mSerializer = new FastXmlSerializer();
+    private boolean mIndentOutput = true;
 
     public XmlConfig(String path) {
         super(path);
     }
 
     @Override
-    public boolean loadFromFile() {
-        // If it has loaed to memory, return true directly
-        if (mbLoadToMemory == true) {
-            return true;
-        }
-
-        if (TextUtils.isEmpty(mTargetPath)) {
-            throw new IllegalAccessError("Empty file path");
-        }
-
-        if (new File(mTargetPath).exists()) {
-            File file = new File(mTargetPath);
-            if (file.canRead()) {
-                BufferedInputStream str = null;
-                try {
-                    str = new BufferedInputStream(  new FileInputStream(file), 16 * 1024);
-                    Map map = readMapXml(str);
-                    map.putAll(mMap);
-                    mMap = map;
-                    // Print log
-                    dumpMap();
-                    mbLoadToMemory = true;
-                } catch (XmlPullParserException e) {
-                    Log.w(TAG, "getSharedPreferences", e);
-                } catch (FileNotFoundException e) {
-                    Log.w(TAG, "getSharedPreferences", e);
-                } catch (IOException e) {
-                    Log.w(TAG, "getSharedPreferences", e);
-                } finally {
-                    try {
-                        str.close();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                }
-            }
+    void configure(Builder builder) {
+        super.configure(builder);
+        if (builder.mIndentOutput != null) {
+            mIndentOutput = builder.mIndentOutput;
         }
-
-        return mbLoadToMemory;
-    }
-
-    @Override
-    public Writer getWriter() {
-        return this;
-    }
-
-    @Override
-    public ConfigIO.Writer putString(@NonNull String key, @Nullable String value) {
-        mMap.put(key, value);
-        return this;
-    }
-
-
-    //@Override
-    public ConfigIO.Writer putStringSet(@NonNull String key, @Nullable Set<String> values) {
-        mMap.put(key, values);
-        return this;
     }
 
     @Override
-    public ConfigIO.Writer putInt(@NonNull String key, int value) {
-        mMap.put(key, value);
-        return this;
+    @SuppressWarnings("unchecked")
+    protected Map<String, Object> readMap(InputStream in) throws IOException {
+        try {
+            return (Map<String, Object>) readMapXml(in, mLazyLoad);
+        } catch (XmlPullParserException e) {
+            throw new IOException(e.getMessage());
+        }
     }
 
     @Override
-    public ConfigIO.Writer putLong(@NonNull String key, long value) {
-        mMap.put(key, value);
-        return this;
+    protected void writeMap(Map<String, Object> map, OutputStream out) throws IOException {
+        try {
+            // Writes are serialized by FileConfig, so the buffers of the serializer are reused
+            writeMapXml(map, out, mSerializer, mIndentOutput);
+        } catch (XmlPullParserException e) {
+            throw new IOException(e.getMessage());
+        }
     }
 
     @Override
-    public ConfigIO.Writer putFloat(@NonNull String key, float value) {
-        mMap.put(key, value);
-        return this;
+    boolean supportsCompression() {
+        return true;
     }
 
     @Override
-    public ConfigIO.Writer putDouble(@NonNull String key, double value) {
-        mMap.put(key, value);
-        return this;
+    boolean supportsLists() {
+        return false;
     }
 
     @Override
-    public ConfigIO.Writer putBoolean(@NonNull String key, boolean value) {
-        mMap.put(key, value);
-        return this;
+    boolean supportsEvents() {
+        return true;
     }
 
     @Override
-    public ConfigIO.Writer remove(@NonNull String key) {
-        mMap.remove(key);
-
-        // Add to delete set when the user didn't call loadFromFile first
-        if (mbLoadToMemory == false) {
-            mDeleteKeySet.add(key);
+    void readEvents(InputStream in, ConfigSink sink) throws IOException {
+        try {
+            XmlPullParser parser = Xml.newPullParser();
+            parser.setInput(in, StandardCharsets.UTF_8.name());
+            int eventType = parser.getEventType();
+            while (eventType != XmlPullParser.START_TAG) {
+                if (eventType == XmlPullParser.END_DOCUMENT) {
+                    throw new XmlPullParserException("Unexpected end of document");
+                }
+                eventType = parser.next();
+            }
+            if (!parser.getName().equals("map")) {
+                throw new XmlPullParserException("Expected map tag at: " + parser.getName());
+            }
+            readThisValueEvents(parser, sink);
+            sink.finish();
+        } catch (XmlPullParserException e) {
+            throw new IOException(e.getMessage());
         }
-        return this;
     }
 
     @Override
-    public ConfigIO.Writer clear() {
-        mMap.clear();
-        if (mbLoadToMemory == false) {
-            mDeleteKeySet.addAll(mMap.keySet());
-        }
-        return this;
+    ConfigSink newSink(FileOutputStream out) throws IOException {
+        return new XmlSink(out, mIndentOutput);
     }
 
-    @Override
-    public boolean commit() {
-        return save();
-    }
+    /**
+     * Like readThisValueXml, but maps and arrays are sent to the sink as they are parsed
+     */
+    private static void readThisValueEvents(XmlPullParser parser, ConfigSink sink)
+            throws XmlPullParserException, java.io.IOException {
+        final String valueName = parser.getAttributeValue(null, "name");
+        final String tagName = parser.getName();
 
-    @Override
-    public void apply() {
-        // TODO: Should be better
-        // Use only one thread to do it even call apply() many times
-        if (mThread == null) {
-            synchronized (XmlConfig.this) {
-                mThread = new Thread(new Runnable() {
-                    @Override
-                    public void run() {
-                        save();
-
-                        synchronized (XmlConfig.this) {
-                            mThread = null;
-                        }
+        if (tagName.equals("map")) {
+            sink.beginMap(valueName);
+            int eventType = parser.next();
+            while (eventType != XmlPullParser.END_DOCUMENT) {
+                if (eventType == XmlPullParser.START_TAG) {
+                    readThisValueEvents(parser, sink);
+                } else if (eventType == XmlPullParser.END_TAG) {
+                    if (parser.getName().equals("map")) {
+                        sink.endMap();
+                        return;
                     }
-                });
-            }
-            mThread.start();
-        }
-    }
-
-    private boolean save() {
-        // If  the file exists, load it first
-        if (new File(mTargetPath).exists()) {
-            loadFromFile();
-        }
-
-        // Delete keys if the user removes keys but didn't call loadFromFile first
-        if (mMap != null && mMap.size() != 0 && mDeleteKeySet.size() != 0) {
-            for (String key : mDeleteKeySet) {
-                mMap.remove(key);
+                    throw new XmlPullParserException("Expected map end tag at: " + parser.getName());
+                }
+                eventType = parser.next();
             }
-        }
-
-        // Save to target path
-        if (mMap != null && mMap.size() != 0) {
-            Log.d(TAG, "save : " + mTargetPath);
-            FileOutputStream str = null;
-            File file = new File(mTargetPath);
-            try {
-                str = new FileOutputStream(file);
-                writeMapXml(mMap, str);
-                return true;
-            } catch (XmlPullParserException e) {
-                e.printStackTrace();
-            } catch (IOException e) {
-                e.printStackTrace();
-            } finally {
-                if (str != null) {
-                    try {
-                        str.close();
-                    } catch (IOException e) {
-                        e.printStackTrace();
+            throw new XmlPullParserException("Document ended before map end tag");
+        } else if (tagName.equals("string-array")) {
+            sink.beginArray(valueName);
+            int eventType = parser.next();
+            while (eventType != XmlPullParser.END_DOCUMENT) {
+                if (eventType == XmlPullParser.START_TAG) {
+                    if (!parser.getName().equals("item")) {
+                        throw new XmlPullParserException("Expected item tag at: " + parser.getName());
                     }
+                    sink.value(null, parser.getAttributeValue(null, "value"));
+                } else if (eventType == XmlPullParser.END_TAG && parser.getName().equals("string-array")) {
+                    sink.endArray();
+                    return;
                 }
+                eventType = parser.next();
             }
+            throw new XmlPullParserException("Document ended before string-array end tag");
         }
-        return false;
+        // Strings and primitives are single elements
+        String[] name = new String[1];
+        Object value = readThisValueXml(parser, name, false);
+        sink.value(name[0], value);
     }
 
     /**
@@ -242,17 +180,21 @@ class XmlConfig extends ConfigIO implements ConfigIO.Writer {
      * @param val The map to be flattened.
      * @param out Where to write the XML data.
      */
-    private static final void writeMapXml(Map val, OutputStream out)
+    private static final void writeMapXml(Map val, OutputStream out, XmlSerializer serializer, boolean indent)
             throws XmlPullParserException, java.io.IOException {
-        XmlSerializer serializer = new FastXmlSerializer();
         serializer.setOutput(out, StandardCharsets.UTF_8.name());
         serializer.startDocument(null, true);
-        serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
+        serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", indent);
         writeMapXml(val, serializer);
         serializer.endDocument();
     }
 
     private static final void writeMapXml(Map val, XmlSerializer out) throws XmlPullParserException, java.io.IOException {
+        writeMapXml(val, null, out);
+    }
+
+    private static final void writeMapXml(Map val, String name, XmlSerializer out)
+            throws XmlPullParserException, java.io.IOException {
 
         if (val == null) {
             out.startTag(null, "null");
@@ -261,6 +203,9 @@ class XmlConfig extends ConfigIO implements ConfigIO.Writer {
         }
 
         out.startTag(null, "map");
+        if (name != null) {
+            out.attribute(null, "name", name);
+        }
 
         Set s = val.entrySet();
         Iterator i = s.iterator();
@@ -301,9 +246,15 @@ class XmlConfig extends ConfigIO implements ConfigIO.Writer {
             typeStr = "double";
         } else if (v instanceof Boolean) {
             typeStr = "boolean";
+        } else if (v instanceof XmlNumber) {
+            // Never read since loaded, so the original text is written back
+            typeStr = ((XmlNumber) v).mTag;
         } else if (v instanceof String[]) {
             writeStringArrayXml((String[]) v, name, out);
             return;
+        } else if (v instanceof Map) {
+            writeMapXml((Map) v, name, out);
+            return;
         } else if (v instanceof CharSequence) {
             // XXX This is to allow us to at least write something if
             // we encounter styled text...  but it means we will drop all
@@ -316,7 +267,7 @@ class XmlConfig extends ConfigIO implements ConfigIO.Writer {
             out.endTag(null, "string");
             return;
         } else {
-            throw new RuntimeException("writeValueXml: unable to write value " + v);
+            throw new IOException("writeValueXml: unable to write value " + v);
         }
 
         out.startTag(null, typeStr);
@@ -344,38 +295,128 @@ class XmlConfig extends ConfigIO implements ConfigIO.Writer {
         out.attribute(null, "num", Integer.toString(N));
 
         for (int i = 0; i < N; i++) {
-            out.startTag(null, "item");
-            out.attribute(null, "value", val[i]);
-            out.endTag(null, "item");
+            writeItemXml(val[i], out);
         }
 
         out.endTag(null, "string-array");
     }
 
+    private static void writeItemXml(String value, XmlSerializer out) throws IOException {
+        out.startTag(null, "item");
+        out.attribute(null, "value", value);
+        out.endTag(null, "item");
+    }
+
+
+    private static final HashMap<String, ?> readMapXml(InputStream in, boolean lazy)
+            throws XmlPullParserException, java.io.IOException {
+        byte[] data = readFully(in);
+        try {
+            return readMapFast(new FastXmlReader(data, 0, data.length), lazy);
+        } catch (IOException e) {
+            // Not in the plain form written by FastXmlSerializer, e.g. edited by hand
+            Log.d(TAG, "readMapXml : generic parser, " + e.getMessage());
+        }
+        return readMapXml(new ByteArrayInputStream(data), lazy, Xml.newPullParser());
+    }
+
+    private static HashMap<String, Object> readMapFast(FastXmlReader reader, boolean lazy) throws IOException {
+        if (reader.next() != FastXmlReader.MAP) {
+            throw new IOException("Expected map tag");
+        }
+        HashMap<String, Object> map = readThisMapFast(reader, lazy);
+        if (reader.next() != FastXmlReader.END_DOCUMENT) {
+            throw new IOException("Unexpected content after the map");
+        }
+        return map;
+    }
+
+    private static HashMap<String, Object> readThisMapFast(FastXmlReader reader, boolean lazy) throws IOException {
+        HashMap<String, Object> map = new HashMap<String, Object>();
+        int type;
+        while ((type = reader.next()) != FastXmlReader.END_TAG) {
+            String name = reader.getName();
+            map.put(name, readThisValueFast(reader, type, lazy));
+        }
+        return map;
+    }
+
+    private static Object readThisValueFast(FastXmlReader reader, int type, boolean lazy) throws IOException {
+        switch (type) {
+            case FastXmlReader.NULL:
+                return null;
+            case FastXmlReader.STRING:
+                return reader.getString();
+            case FastXmlReader.INT:
+                return lazy ? new XmlNumber("int", reader.getValueText()) : Integer.valueOf(reader.getInt());
+            case FastXmlReader.LONG:
+                return lazy ? new XmlNumber("long", reader.getValueText()) : Long.valueOf(reader.getLong());
+            case FastXmlReader.FLOAT:
+                return lazy ? new XmlNumber("float", reader.getValueText()) : Float.valueOf(reader.getFloat());
+            case FastXmlReader.DOUBLE:
+                return lazy ? new XmlNumber("double", reader.getValueText()) : Double.valueOf(reader.getDouble());
+            case FastXmlReader.BOOLEAN:
+                return reader.getBoolean();
+            case FastXmlReader.STRING_ARRAY: {
+                String[] array = new String[reader.getCount()];
+                int i = 0;
+                while ((type = reader.next()) == FastXmlReader.ITEM) {
+                    if (i == array.length) {
+                        throw new IOException("More items than num in string-array");
+                    }
+                    array[i++] = reader.getString();
+                }
+                if (type != FastXmlReader.END_TAG) {
+                    throw new IOException("Expected item tag");
+                }
+                return array;
+            }
+            case FastXmlReader.MAP:
+                // Only numbers directly in the root map are kept as text
+                return readThisMapFast(reader, false);
+            default:
+                throw new IOException("Unexpected tag");
+        }
+    }
 
     @SuppressWarnings("unchecked")
-    private static final HashMap<String, ?> readMapXml(InputStream in)
+    private static final HashMap<String, ?> readMapXml(InputStream in, boolean lazy, XmlPullParser parser)
             throws XmlPullParserException, java.io.IOException {
-        XmlPullParser parser = Xml.newPullParser();
         parser.setInput(in, StandardCharsets.UTF_8.name());
-        return (HashMap<String, ?>) readValueXml(parser, new String[1]);
+        if (!lazy) {
+            return (HashMap<String, ?>) readValueXml(parser, new String[1]);
+        }
+
+        // Numbers directly in the root map are kept as text until they are read
+        int eventType = parser.getEventType();
+        while (eventType != XmlPullParser.START_TAG) {
+            if (eventType == XmlPullParser.END_DOCUMENT) {
+                throw new XmlPullParserException("Unexpected end of document");
+            }
+            eventType = parser.next();
+        }
+        if (!parser.getName().equals("map")) {
+            throw new XmlPullParserException("Expected map tag at: " + parser.getName());
+        }
+        parser.next();
+        return readThisMapXml(parser, "map", new String[1], true);
     }
 
     private static final Object readValueXml(XmlPullParser parser, String[] name)
             throws XmlPullParserException, java.io.IOException {
         int eventType = parser.getEventType();
         do {
-            if (eventType == parser.START_TAG) {
+            if (eventType == XmlPullParser.START_TAG) {
                 return readThisValueXml(parser, name, false);
-            } else if (eventType == parser.END_TAG) {
+            } else if (eventType == XmlPullParser.END_TAG) {
                 throw new XmlPullParserException(
                         "Unexpected end tag at: " + parser.getName());
-            } else if (eventType == parser.TEXT) {
+            } else if (eventType == XmlPullParser.TEXT) {
                 throw new XmlPullParserException(
                         "Unexpected text: " + parser.getText());
             }
             eventType = parser.next();
-        } while (eventType != parser.END_DOCUMENT);
+        } while (eventType != XmlPullParser.END_DOCUMENT);
 
         throw new XmlPullParserException(
                 "Unexpected end of document");
@@ -383,6 +424,12 @@ class XmlConfig extends ConfigIO implements ConfigIO.Writer {
 
     private static final Object readThisValueXml(XmlPullParser parser, String[] name, boolean arrayMap)
             throws XmlPullParserException, java.io.IOException {
+        return readThisValueXml(parser, name, arrayMap, false);
+    }
+
+    private static final Object readThisValueXml(XmlPullParser parser, String[] name, boolean arrayMap,
+                                                 boolean lazy)
+            throws XmlPullParserException, java.io.IOException {
         final String valueName = parser.getAttributeValue(null, "name");
         final String tagName = parser.getName();
 
@@ -391,26 +438,28 @@ class XmlConfig extends ConfigIO implements ConfigIO.Writer {
         if (tagName.equals("null")) {
             res = null;
         } else if (tagName.equals("string")) {
-            String value = "";
+            StringBuilder value = new StringBuilder();
             int eventType;
-            while ((eventType = parser.next()) != parser.END_DOCUMENT) {
-                if (eventType == parser.END_TAG) {
+            while ((eventType = parser.next()) != XmlPullParser.END_DOCUMENT) {
+                if (eventType == XmlPullParser.END_TAG) {
                     if (parser.getName().equals("string")) {
                         name[0] = valueName;
                         //System.out.println("Returning value for " + valueName + ": " + value);
-                        return value;
+                        return value.toString();
                     }
                     throw new XmlPullParserException(
                             "Unexpected end tag in <string>: " + parser.getName());
-                } else if (eventType == parser.TEXT) {
-                    value += parser.getText();
-                } else if (eventType == parser.START_TAG) {
+                } else if (eventType == XmlPullParser.TEXT) {
+                    value.append(parser.getText());
+                } else if (eventType == XmlPullParser.START_TAG) {
                     throw new XmlPullParserException(
                             "Unexpected start tag in <string>: " + parser.getName());
                 }
             }
             throw new XmlPullParserException(
                     "Unexpected end of document in <string>");
+        } else if (lazy && (res = readThisNumberText(parser, tagName)) != null) {
+            // Ok
         } else if ((res = readThisPrimitiveValueXml(parser, tagName)) != null) {
             // Ok
         } else if (tagName.equals("string-array")) {
@@ -430,8 +479,8 @@ class XmlConfig extends ConfigIO implements ConfigIO.Writer {
 
         // Skip through to end tag.
         int eventType;
-        while ((eventType = parser.next()) != parser.END_DOCUMENT) {
-            if (eventType == parser.END_TAG) {
+        while ((eventType = parser.next()) != XmlPullParser.END_DOCUMENT) {
+            if (eventType == XmlPullParser.END_TAG) {
                 if (parser.getName().equals(tagName)) {
                     name[0] = valueName;
                     //System.out.println("Returning value for " + valueName + ": " + res);
@@ -439,10 +488,10 @@ class XmlConfig extends ConfigIO implements ConfigIO.Writer {
                 }
                 throw new XmlPullParserException(
                         "Unexpected end tag in <" + tagName + ">: " + parser.getName());
-            } else if (eventType == parser.TEXT) {
+            } else if (eventType == XmlPullParser.TEXT) {
                 throw new XmlPullParserException(
                         "Unexpected text in <" + tagName + ">: " + parser.getName());
-            } else if (eventType == parser.START_TAG) {
+            } else if (eventType == XmlPullParser.START_TAG) {
                 throw new XmlPullParserException(
                         "Unexpected start tag in <" + tagName + ">: " + parser.getName());
             }
@@ -459,9 +508,9 @@ class XmlConfig extends ConfigIO implements ConfigIO.Writer {
             } else if (tagName.equals("long")) {
                 return Long.valueOf(parser.getAttributeValue(null, "value"));
             } else if (tagName.equals("float")) {
-                return new Float(parser.getAttributeValue(null, "value"));
+                return Float.valueOf(parser.getAttributeValue(null, "value"));
             } else if (tagName.equals("double")) {
-                return new Double(parser.getAttributeValue(null, "value"));
+                return Double.valueOf(parser.getAttributeValue(null, "value"));
             } else if (tagName.equals("boolean")) {
                 return Boolean.valueOf(parser.getAttributeValue(null, "value"));
             } else {
@@ -475,6 +524,18 @@ class XmlConfig extends ConfigIO implements ConfigIO.Writer {
         }
     }
 
+    private static final XmlNumber readThisNumberText(XmlPullParser parser, String tagName)
+            throws XmlPullParserException {
+        if (tagName.equals("int") || tagName.equals("long") || tagName.equals("float") || tagName.equals("double")) {
+            String value = parser.getAttributeValue(null, "value");
+            if (value == null) {
+                throw new XmlPullParserException("Need value attribute in <" + tagName + ">");
+            }
+            return new XmlNumber(tagName, value);
+        }
+        return null;
+    }
+
     private static final String[] readThisStringArrayXml(XmlPullParser parser, String endTag,
                                                          String[] name) throws XmlPullParserException, java.io.IOException {
 
@@ -493,7 +554,7 @@ class XmlConfig extends ConfigIO implements ConfigIO.Writer {
 
         int eventType = parser.getEventType();
         do {
-            if (eventType == parser.START_TAG) {
+            if (eventType == XmlPullParser.START_TAG) {
                 if (parser.getName().equals("item")) {
                     try {
                         array[i] = parser.getAttributeValue(null, "value");
@@ -505,7 +566,7 @@ class XmlConfig extends ConfigIO implements ConfigIO.Writer {
                 } else {
                     throw new XmlPullParserException("Expected item tag at: " + parser.getName());
                 }
-            } else if (eventType == parser.END_TAG) {
+            } else if (eventType == XmlPullParser.END_TAG) {
                 if (parser.getName().equals(endTag)) {
                     return array;
                 } else if (parser.getName().equals("item")) {
@@ -516,7 +577,7 @@ class XmlConfig extends ConfigIO implements ConfigIO.Writer {
                 }
             }
             eventType = parser.next();
-        } while (eventType != parser.END_DOCUMENT);
+        } while (eventType != XmlPullParser.END_DOCUMENT);
 
         throw new XmlPullParserException("Document ended before " + endTag + " end tag");
     }
@@ -528,10 +589,10 @@ class XmlConfig extends ConfigIO implements ConfigIO.Writer {
 
         int eventType = parser.getEventType();
         do {
-            if (eventType == parser.START_TAG) {
+            if (eventType == XmlPullParser.START_TAG) {
                 Object val = readThisValueXml(parser, name, true);
                 map.put(name[0], val);
-            } else if (eventType == parser.END_TAG) {
+            } else if (eventType == XmlPullParser.END_TAG) {
                 if (parser.getName().equals(endTag)) {
                     return map;
                 }
@@ -539,7 +600,7 @@ class XmlConfig extends ConfigIO implements ConfigIO.Writer {
                         "Expected " + endTag + " end tag at: " + parser.getName());
             }
             eventType = parser.next();
-        } while (eventType != parser.END_DOCUMENT);
+        } while (eventType != XmlPullParser.END_DOCUMENT);
 
         throw new XmlPullParserException(
                 "Document ended before " + endTag + " end tag");
@@ -549,14 +610,20 @@ class XmlConfig extends ConfigIO implements ConfigIO.Writer {
     public static final HashMap<String, ?> readThisMapXml(XmlPullParser parser, String endTag,
                                                           String[] name)
             throws XmlPullParserException, java.io.IOException {
+        return readThisMapXml(parser, endTag, name, false);
+    }
+
+    private static final HashMap<String, ?> readThisMapXml(XmlPullParser parser, String endTag,
+                                                           String[] name, boolean lazy)
+            throws XmlPullParserException, java.io.IOException {
         HashMap<String, Object> map = new HashMap<String, Object>();
 
         int eventType = parser.getEventType();
         do {
-            if (eventType == parser.START_TAG) {
-                Object val = readThisValueXml(parser, name, false);
+            if (eventType == XmlPullParser.START_TAG) {
+                Object val = readThisValueXml(parser, name, false, lazy);
                 map.put(name[0], val);
-            } else if (eventType == parser.END_TAG) {
+            } else if (eventType == XmlPullParser.END_TAG) {
                 if (parser.getName().equals(endTag)) {
                     return map;
                 }
@@ -564,10 +631,146 @@ class XmlConfig extends ConfigIO implements ConfigIO.Writer {
                         "Expected " + endTag + " end tag at: " + parser.getName());
             }
             eventType = parser.next();
-        } while (eventType != parser.END_DOCUMENT);
+        } while (eventType != XmlPullParser.END_DOCUMENT);
 
         throw new XmlPullParserException(
                 "Document ended before " + endTag + " end tag");
     }
 
+    /**
+     * Writes the values as they arrive. The num attribute of a string-array comes before its items, so it is
+     * written as a placeholder of zeros and patched in the file once the items are counted.
+     */
+    private static class XmlSink implements ConfigSink {
+        private static final String NUM_PLACEHOLDER = "0000000000";
+
+        private final XmlSerializer mSerializer = new FastXmlSerializer();
+        private final FileChannel mChannel;
+        // Name of the open string-array, its item count and the file offset of its num digits
+        private boolean mInArray;
+        private String mArrayName;
+        private int mArrayCount;
+        private long mNumOffset;
+
+        XmlSink(FileOutputStream out, boolean indent) throws IOException {
+            mChannel = out.getChannel();
+            mSerializer.setOutput(out, StandardCharsets.UTF_8.name());
+            mSerializer.startDocument(null, true);
+            mSerializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", indent);
+        }
+
+        @Override
+        public void beginMap(String name) throws IOException {
+            checkNotInArray("a map");
+            mSerializer.startTag(null, "map");
+            if (name != null) {
+                mSerializer.attribute(null, "name", name);
+            }
+        }
+
+        @Override
+        public void endMap() throws IOException {
+            mSerializer.endTag(null, "map");
+        }
+
+        @Override
+        public void beginArray(String name) throws IOException {
+            checkNotInArray("an array");
+            mSerializer.startTag(null, "string-array");
+            if (name != null) {
+                mSerializer.attribute(null, "name", name);
+            }
+            mSerializer.attribute(null, "num", NUM_PLACEHOLDER);
+            mSerializer.flush();
+            // The file ends with the digits and the closing quote
+            mNumOffset = mChannel.position() - 1 - NUM_PLACEHOLDER.length();
+            mInArray = true;
+            mArrayName = name;
+            mArrayCount = 0;
+        }
+
+        @Override
+        public void endArray() throws IOException {
+            mSerializer.endTag(null, "string-array");
+            String num = Integer.toString(mArrayCount);
+            byte[] digits = (NUM_PLACEHOLDER.substring(num.length()) + num).getBytes(StandardCharsets.US_ASCII);
+            // A positional write, the stream keeps appending at its own position
+            mChannel.write(ByteBuffer.wrap(digits), mNumOffset);
+            mInArray = false;
+        }
+
+        @Override
+        public void value(String name, Object value) throws IOException {
+            if (mInArray) {
+                if (!(value instanceof String)) {
+                    checkNotInArray(value == null ? "null" : value.getClass().getSimpleName() + " " + value);
+                }
+                writeItemXml((String) value, mSerializer);
+                mArrayCount++;
+                return;
+            }
+            try {
+                writeValueXml(value, name, mSerializer);
+            } catch (XmlPullParserException e) {
+                throw new IOException(e.getMessage());
+            }
+        }
+
+        @Override
+        public void finish() throws IOException {
+            mSerializer.endDocument();
+        }
+
+        private void checkNotInArray(String item) throws IOException {
+            if (mInArray) {
+                throw new IOException("Cannot write array " + mArrayName + " to xml, an xml array only holds "
+                        + "strings but it has " + item);
+            }
+        }
+    }
+
+    /**
+     * Text of a number attribute, parsed on the first get of its key
+     */
+    private static class XmlNumber extends LazyValue {
+        final String mTag;
+        final String mText;
+
+        XmlNumber(String tag, String text) {
+            mTag = tag;
+            mText = text;
+        }
+
+        @Override
+        Object decode() throws IOException {
+            try {
+                if (mTag.equals("int")) {
+                    return Integer.parseInt(mText);
+                } else if (mTag.equals("long")) {
+                    return Long.valueOf(mText);
+                } else if (mTag.equals("float")) {
+                    return Float.valueOf(mText);
+                }
+                return Double.valueOf(mText);
+            } catch (NumberFormatException e) {
+                throw new IOException("Not a number in value attribute in <" + mTag + ">");
+            }
+        }
+
+        @Override
+        public String toString() {
+            return mText;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof XmlNumber && mTag.equals(((XmlNumber) o).mTag) && mText.equals(((XmlNumber) o).mText);
+        }
+
+        @Override
+        public int hashCode() {
+            return mTag.hashCode() * 31 + mText.hashCode();
+        }
+    }
+
 }
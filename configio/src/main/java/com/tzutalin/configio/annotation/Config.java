@@ -0,0 +1,40 @@
+/*
+*  Copyright (C) 2016 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.configio.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a top-level interface whose methods read the keys of a config file. The configio-compiler annotation
+ * processor generates its implementation, &lt;Name&gt;_Impl, which is created by
+ * {@link com.tzutalin.configio.TypedConfig#load(Class, String)}.
+ * <p/>
+ * <pre>
+ * &#64;Config
+ * public interface NetConfig {
+ *     &#64;Key(value = "retry", def = "3")
+ *     int retry();
+ * }
+ * </pre>
+ */
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.TYPE)
+public @interface Config {
+}
@@ -0,0 +1,45 @@
+/*
+*  Copyright (C) 2016 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.configio.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * The key a method of a {@link Config} interface reads. The method takes no parameters and returns int, long,
+ * float, double, boolean or String.
+ */
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.METHOD)
+public @interface Key {
+    /**
+     * Marks a key without a default value
+     */
+    String NONE = "\u0000";
+
+    /**
+     * @return the name of the key in the config file
+     */
+    String value();
+
+    /**
+     * @return the value if the file has no such key, parsed at compile time. 0, false or null if there is none.
+     */
+    String def() default NONE;
+}
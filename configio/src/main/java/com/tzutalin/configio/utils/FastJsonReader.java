@@ -0,0 +1,554 @@
+/*
+*  Copyright (C) 2016 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.configio.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Pull based JSON reader which decodes UTF-8 straight from its own byte buffer.
+ * It does not build a tree or a string of the whole document, the caller decides what to keep.
+ * <p/>
+ * Numbers follow org.json: Integer if it fits, then Long, otherwise Double.
+ */
+public class FastJsonReader implements Closeable {
+    public static final int BEGIN_OBJECT = 1;
+    public static final int END_OBJECT = 2;
+    public static final int BEGIN_ARRAY = 3;
+    public static final int END_ARRAY = 4;
+    public static final int NAME = 5;
+    public static final int STRING = 6;
+    public static final int NUMBER = 7;
+    public static final int BOOLEAN = 8;
+    public static final int NULL = 9;
+    public static final int END_DOCUMENT = 10;
+
+    private static final int PEEKED_NONE = 0;
+
+    private static final int SCOPE_DOCUMENT_EMPTY = 0;
+    private static final int SCOPE_DOCUMENT_DONE = 1;
+    private static final int SCOPE_OBJECT_EMPTY = 2;
+    private static final int SCOPE_OBJECT_NONEMPTY = 3;
+    private static final int SCOPE_OBJECT_NAME = 4;
+    private static final int SCOPE_ARRAY_EMPTY = 5;
+    private static final int SCOPE_ARRAY_NONEMPTY = 6;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int BUFFER_LEN = 8192;
+
+    private final InputStream mIn;
+    private final byte[] mBuf;
+    private int mPos;
+    private int mLimit;
+    // Number of bytes before mBuf[0]
+    private long mBase;
+
+    private int[] mStack = new int[32];
+    private int mDepth;
+    private int mPeeked = PEEKED_NONE;
+    private long mTokenOffset;
+
+    private char[] mChars = new char[128];
+
+    public FastJsonReader(InputStream in) {
+        if (in == null) {
+            throw new IllegalArgumentException();
+        }
+        mIn = in;
+        mBuf = new byte[BUFFER_LEN];
+        mStack[mDepth++] = SCOPE_DOCUMENT_EMPTY;
+    }
+
+    /**
+     * Read from a part of the array without copying it. Offsets are relative to the start of the array.
+     */
+    public FastJsonReader(byte[] data, int offset, int length) {
+        if (data == null || offset < 0 || length < 0 || offset + length > data.length) {
+            throw new IllegalArgumentException();
+        }
+        mIn = null;
+        mBuf = data;
+        mPos = offset;
+        mLimit = offset + length;
+        mStack[mDepth++] = SCOPE_DOCUMENT_EMPTY;
+    }
+
+    /**
+     * @return the type of the next token without consuming it
+     */
+    public int peek() throws IOException {
+        if (mPeeked != PEEKED_NONE) {
+            return mPeeked;
+        }
+
+        int c;
+        final int scope = mStack[mDepth - 1];
+        switch (scope) {
+            case SCOPE_ARRAY_EMPTY:
+            case SCOPE_ARRAY_NONEMPTY:
+                mStack[mDepth - 1] = SCOPE_ARRAY_NONEMPTY;
+                c = nextNonWhitespace();
+                if (c == ']') {
+                    return mPeeked = END_ARRAY;
+                }
+                if (scope == SCOPE_ARRAY_NONEMPTY) {
+                    if (c != ',') {
+                        throw syntaxError("Expected , or ]");
+                    }
+                } else if (c == -1) {
+                    throw syntaxError("Unterminated array");
+                } else {
+                    mPos--;
+                }
+                return mPeeked = peekValue();
+            case SCOPE_OBJECT_EMPTY:
+            case SCOPE_OBJECT_NONEMPTY:
+                c = nextNonWhitespace();
+                if (c == '}') {
+                    return mPeeked = END_OBJECT;
+                }
+                if (scope == SCOPE_OBJECT_NONEMPTY) {
+                    if (c != ',') {
+                        throw syntaxError("Expected , or }");
+                    }
+                    c = nextNonWhitespace();
+                }
+                if (c != '"') {
+                    throw syntaxError("Expected name");
+                }
+                mTokenOffset = position() - 1;
+                mStack[mDepth - 1] = SCOPE_OBJECT_NAME;
+                return mPeeked = NAME;
+            case SCOPE_OBJECT_NAME:
+                if (nextNonWhitespace() != ':') {
+                    throw syntaxError("Expected :");
+                }
+                mStack[mDepth - 1] = SCOPE_OBJECT_NONEMPTY;
+                return mPeeked = peekValue();
+            case SCOPE_DOCUMENT_EMPTY:
+                mStack[mDepth - 1] = SCOPE_DOCUMENT_DONE;
+                return mPeeked = peekValue();
+            default:
+                if (nextNonWhitespace() != -1) {
+                    throw syntaxError("Expected end of document");
+                }
+                return mPeeked = END_DOCUMENT;
+        }
+    }
+
+    private int peekValue() throws IOException {
+        int c = nextNonWhitespace();
+        mTokenOffset = position() - 1;
+        switch (c) {
+            case '{':
+                return BEGIN_OBJECT;
+            case '[':
+                return BEGIN_ARRAY;
+            case '"':
+                return STRING;
+            case 't':
+            case 'f':
+                mPos--;
+                return BOOLEAN;
+            case 'n':
+                mPos--;
+                return NULL;
+            case -1:
+                throw syntaxError("Unexpected end of document");
+            default:
+                if (c == '-' || (c >= '0' && c <= '9')) {
+                    mPos--;
+                    return NUMBER;
+                }
+                throw syntaxError("Unexpected character " + (char) c);
+        }
+    }
+
+    /**
+     * @return byte offset of the first byte of the last peeked token
+     */
+    public long getTokenOffset() {
+        return mTokenOffset;
+    }
+
+    /**
+     * @return byte offset of the next unread byte
+     */
+    public long position() {
+        return mBase + mPos;
+    }
+
+    public boolean hasNext() throws IOException {
+        int p = peek();
+        return p != END_OBJECT && p != END_ARRAY && p != END_DOCUMENT;
+    }
+
+    public void beginObject() throws IOException {
+        expect(BEGIN_OBJECT);
+        push(SCOPE_OBJECT_EMPTY);
+    }
+
+    public void endObject() throws IOException {
+        expect(END_OBJECT);
+        mDepth--;
+    }
+
+    public void beginArray() throws IOException {
+        expect(BEGIN_ARRAY);
+        push(SCOPE_ARRAY_EMPTY);
+    }
+
+    public void endArray() throws IOException {
+        expect(END_ARRAY);
+        mDepth--;
+    }
+
+    public String nextName() throws IOException {
+        expect(NAME);
+        return readString();
+    }
+
+    public String nextString() throws IOException {
+        expect(STRING);
+        return readString();
+    }
+
+    public boolean nextBoolean() throws IOException {
+        expect(BOOLEAN);
+        if (peekByte() == 't') {
+            readLiteral("true");
+            return true;
+        }
+        readLiteral("false");
+        return false;
+    }
+
+    public void nextNull() throws IOException {
+        expect(NULL);
+        readLiteral("null");
+    }
+
+    /**
+     * @return Integer, Long or Double
+     */
+    public Number nextNumber() throws IOException {
+        expect(NUMBER);
+        int len = 0;
+        boolean decimal = false;
+        while (true) {
+            if (mPos >= mLimit && !fill()) {
+                break;
+            }
+            int c = mBuf[mPos];
+            if ((c >= '0' && c <= '9') || c == '-' || c == '+') {
+                // digit or sign
+            } else if (c == '.' || c == 'e' || c == 'E') {
+                decimal = true;
+            } else {
+                break;
+            }
+            if (len == mChars.length) {
+                growChars();
+            }
+            mChars[len++] = (char) c;
+            mPos++;
+        }
+
+        try {
+            if (!decimal) {
+                if (len <= 18) {
+                    long value = parseLong(mChars, len);
+                    if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+                        return (int) value;
+                    }
+                    return value;
+                }
+                String str = new String(mChars, 0, len);
+                try {
+                    return Long.parseLong(str);
+                } catch (NumberFormatException e) {
+                    return Double.valueOf(str);
+                }
+            }
+            return Double.valueOf(new String(mChars, 0, len));
+        } catch (NumberFormatException e) {
+            throw syntaxError("Not a number " + new String(mChars, 0, len));
+        }
+    }
+
+    /**
+     * Skip the next value including nested objects and arrays
+     */
+    public void skipValue() throws IOException {
+        int depth = 0;
+        do {
+            switch (peek()) {
+                case BEGIN_OBJECT:
+                    beginObject();
+                    depth++;
+                    break;
+                case BEGIN_ARRAY:
+                    beginArray();
+                    depth++;
+                    break;
+                case END_OBJECT:
+                    endObject();
+                    depth--;
+                    break;
+                case END_ARRAY:
+                    endArray();
+                    depth--;
+                    break;
+                case NAME:
+                case STRING:
+                    mPeeked = PEEKED_NONE;
+                    skipString();
+                    break;
+                case NUMBER:
+                    mPeeked = PEEKED_NONE;
+                    skipNumber();
+                    break;
+                case BOOLEAN:
+                    nextBoolean();
+                    break;
+                case NULL:
+                    nextNull();
+                    break;
+                default:
+                    throw syntaxError("Unexpected end of document");
+            }
+        } while (depth > 0);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mIn != null) {
+            mIn.close();
+        }
+    }
+
+    private void expect(int token) throws IOException {
+        int p = peek();
+        if (p != token) {
+            throw syntaxError("Expected token " + token + " but was " + p);
+        }
+        mPeeked = PEEKED_NONE;
+    }
+
+    private void push(int scope) {
+        if (mDepth == mStack.length) {
+            int[] stack = new int[mDepth * 2];
+            System.arraycopy(mStack, 0, stack, 0, mDepth);
+            mStack = stack;
+        }
+        mStack[mDepth++] = scope;
+    }
+
+    private boolean fill() throws IOException {
+        if (mIn == null) {
+            return false;
+        }
+        mBase += mLimit;
+        mPos = 0;
+        mLimit = 0;
+        int n = mIn.read(mBuf, 0, BUFFER_LEN);
+        if (n <= 0) {
+            return false;
+        }
+        mLimit = n;
+        return true;
+    }
+
+    private int peekByte() throws IOException {
+        if (mPos >= mLimit && !fill()) {
+            return -1;
+        }
+        return mBuf[mPos];
+    }
+
+    private int readByte() throws IOException {
+        if (mPos >= mLimit && !fill()) {
+            throw syntaxError("Unterminated string");
+        }
+        return mBuf[mPos++];
+    }
+
+    private int nextNonWhitespace() throws IOException {
+        while (true) {
+            if (mPos >= mLimit && !fill()) {
+                return -1;
+            }
+            int c = mBuf[mPos++] & 0xFF;
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+                return c;
+            }
+        }
+    }
+
+    private void readLiteral(String literal) throws IOException {
+        for (int i = 0; i < literal.length(); i++) {
+            if (mPos >= mLimit && !fill()) {
+                throw syntaxError("Expected " + literal);
+            }
+            if (mBuf[mPos++] != literal.charAt(i)) {
+                throw syntaxError("Expected " + literal);
+            }
+        }
+    }
+
+    private String readString() throws IOException {
+        // Fast path: the whole string is in the buffer and has no escape
+        for (int p = mPos; p < mLimit; p++) {
+            byte b = mBuf[p];
+            if (b == '"') {
+                String str = new String(mBuf, mPos, p - mPos, UTF_8);
+                mPos = p + 1;
+                return str;
+            } else if (b == '\\') {
+                break;
+            }
+        }
+
+        int len = 0;
+        while (true) {
+            int b = readByte();
+            if (b == '"') {
+                return new String(mChars, 0, len);
+            }
+            if (len + 2 > mChars.length) {
+                growChars();
+            }
+            if (b == '\\') {
+                mChars[len++] = readEscape();
+            } else if (b >= 0) {
+                mChars[len++] = (char) b;
+            } else if ((b & 0xE0) == 0xC0) {
+                mChars[len++] = (char) (((b & 0x1F) << 6) | (readByte() & 0x3F));
+            } else if ((b & 0xF0) == 0xE0) {
+                int b2 = readByte();
+                int b3 = readByte();
+                mChars[len++] = (char) (((b & 0x0F) << 12) | ((b2 & 0x3F) << 6) | (b3 & 0x3F));
+            } else if ((b & 0xF8) == 0xF0) {
+                int b2 = readByte();
+                int b3 = readByte();
+                int b4 = readByte();
+                int codePoint = ((b & 0x07) << 18) | ((b2 & 0x3F) << 12) | ((b3 & 0x3F) << 6) | (b4 & 0x3F);
+                len += Character.toChars(codePoint, mChars, len);
+            } else {
+                mChars[len++] = '\uFFFD';
+            }
+        }
+    }
+
+    private void skipString() throws IOException {
+        while (true) {
+            int b = readByte();
+            if (b == '"') {
+                return;
+            } else if (b == '\\') {
+                readEscape();
+            }
+        }
+    }
+
+    private void skipNumber() throws IOException {
+        while (true) {
+            if (mPos >= mLimit && !fill()) {
+                return;
+            }
+            int c = mBuf[mPos];
+            if ((c < '0' || c > '9') && c != '-' && c != '+' && c != '.' && c != 'e' && c != 'E') {
+                return;
+            }
+            mPos++;
+        }
+    }
+
+    private char readEscape() throws IOException {
+        int c = readByte();
+        switch (c) {
+            case 'u':
+                int value = 0;
+                for (int i = 0; i < 4; i++) {
+                    int h = readByte();
+                    value <<= 4;
+                    if (h >= '0' && h <= '9') {
+                        value += h - '0';
+                    } else if (h >= 'a' && h <= 'f') {
+                        value += h - 'a' + 10;
+                    } else if (h >= 'A' && h <= 'F') {
+                        value += h - 'A' + 10;
+                    } else {
+                        throw syntaxError("Invalid escape \\u");
+                    }
+                }
+                return (char) value;
+            case 't':
+                return '\t';
+            case 'b':
+                return '\b';
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 'f':
+                return '\f';
+            case '"':
+            case '\\':
+            case '/':
+            case '\'':
+                return (char) c;
+            default:
+                throw syntaxError("Invalid escape \\" + (char) c);
+        }
+    }
+
+    private static long parseLong(char[] chars, int len) {
+        if (len == 0) {
+            throw new NumberFormatException();
+        }
+        int i = 0;
+        boolean negative = chars[0] == '-';
+        if (negative || chars[0] == '+') {
+            i++;
+            if (len == 1) {
+                throw new NumberFormatException();
+            }
+        }
+        long value = 0;
+        for (; i < len; i++) {
+            int digit = chars[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException();
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    private void growChars() {
+        char[] chars = new char[mChars.length * 2];
+        System.arraycopy(mChars, 0, chars, 0, mChars.length);
+        mChars = chars;
+    }
+
+    private IOException syntaxError(String message) {
+        return new IOException(message + " at offset " + position());
+    }
+}
@@ -0,0 +1,405 @@
+/*
+*  Copyright (C) 2016 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.configio.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * JSON counterpart of {@link FastXmlSerializer}. It encodes escaped UTF-8 straight into a byte buffer which is
+ * reused by every document written with the same instance.
+ * <p/>
+ * Numbers are formatted like org.json, so the output is the same as JSONObject.toString(). An unpaired
+ * surrogate, which UTF-8 cannot hold, is written as a unicode escape where JSONObject would lose it.
+ */
+public class FastJsonSerializer {
+    private static final byte[] HEX_DIGITS = {
+            '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'
+    };
+    private static final String ESCAPE_TABLE[] = new String[]{
+            "\\u0000", "\\u0001", "\\u0002", "\\u0003", "\\u0004", "\\u0005", "\\u0006", "\\u0007",  // 0-7
+            "\\b", "\\t", "\\n", "\\u000b", "\\f", "\\r", "\\u000e", "\\u000f",  // 8-15
+            "\\u0010", "\\u0011", "\\u0012", "\\u0013", "\\u0014", "\\u0015", "\\u0016", "\\u0017",  // 16-23
+            "\\u0018", "\\u0019", "\\u001a", "\\u001b", "\\u001c", "\\u001d", "\\u001e", "\\u001f",  // 24-31
+            null, null, "\\\"", null, null, null, null, null,  // 32-39
+            null, null, null, null, null, null, null, null,  // 40-47
+            null, null, null, null, null, null, null, null,  // 48-55
+            null, null, null, null, null, null, null, null,  // 56-63
+            null, null, null, null, null, null, null, null,  // 64-71
+            null, null, null, null, null, null, null, null,  // 72-79
+            null, null, null, null, null, null, null, null,  // 80-87
+            null, null, null, null, "\\\\", null, null, null,  // 88-95
+    };
+
+    private static final int BUFFER_LEN = 8192;
+
+    private static final String sSpace = "                                                              ";
+
+    private final byte[] mBytes = new byte[BUFFER_LEN];
+    private int mPos;
+
+    private OutputStream mOutputStream;
+
+    private boolean mIndent = false;
+    private int mNesting = 0;
+    // Whether the container at each nesting level has an element already
+    private boolean[] mHasElement = new boolean[32];
+    private boolean mAfterName = false;
+
+    /**
+     * Start writing a new document into the stream
+     */
+    public void setOutput(OutputStream os) {
+        if (os == null) {
+            throw new IllegalArgumentException();
+        }
+        mOutputStream = os;
+        mPos = 0;
+        mNesting = 0;
+        mHasElement[0] = false;
+        mAfterName = false;
+    }
+
+    /**
+     * @param indent true to break lines and indent nested values, false for compact output
+     */
+    public void setIndent(boolean indent) {
+        mIndent = indent;
+    }
+
+    /**
+     * Write the whole map as a JSON object and flush it
+     */
+    public void serialize(Map<String, ?> map) throws IOException {
+        value(map);
+        finish();
+    }
+
+    /**
+     * End a document written with the begin, name and value methods, and flush it
+     */
+    public void finish() throws IOException {
+        if (mIndent) {
+            append('\n');
+        }
+        flush();
+    }
+
+    public FastJsonSerializer beginObject() throws IOException {
+        beforeValue();
+        append('{');
+        push();
+        return this;
+    }
+
+    public FastJsonSerializer endObject() throws IOException {
+        pop('}');
+        return this;
+    }
+
+    public FastJsonSerializer beginArray() throws IOException {
+        beforeValue();
+        append('[');
+        push();
+        return this;
+    }
+
+    public FastJsonSerializer endArray() throws IOException {
+        pop(']');
+        return this;
+    }
+
+    public FastJsonSerializer name(String name) throws IOException {
+        if (name == null) {
+            throw new NullPointerException("name == null");
+        }
+        beforeElement();
+        appendString(name);
+        append(':');
+        if (mIndent) {
+            append(' ');
+        }
+        mAfterName = true;
+        return this;
+    }
+
+    public FastJsonSerializer value(String value) throws IOException {
+        if (value == null) {
+            return nullValue();
+        }
+        beforeValue();
+        appendString(value);
+        return this;
+    }
+
+    public FastJsonSerializer value(boolean value) throws IOException {
+        beforeValue();
+        appendAscii(value ? "true" : "false");
+        return this;
+    }
+
+    public FastJsonSerializer value(long value) throws IOException {
+        beforeValue();
+        appendLong(value);
+        return this;
+    }
+
+    public FastJsonSerializer value(Number value) throws IOException {
+        if (value == null) {
+            return nullValue();
+        }
+        if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            return value(value.longValue());
+        }
+        double d = value.doubleValue();
+        if (Double.isNaN(d) || Double.isInfinite(d)) {
+            // An IOException like the other content a format cannot hold, so a commit fails instead of throwing
+            throw new IOException("Numeric values must be finite, but was " + value);
+        }
+        beforeValue();
+        long l = value.longValue();
+        if (d == 0 && 1 / d < 0) {
+            // "-0" would be read back as the integer 0
+            appendAscii("-0.0");
+        } else if (d == (double) l) {
+            appendLong(l);
+        } else {
+            appendAscii(value.toString());
+        }
+        return this;
+    }
+
+    /**
+     * Write a value which is already encoded as UTF-8 json text
+     */
+    public FastJsonSerializer rawValue(byte[] json, int offset, int length) throws IOException {
+        beforeValue();
+        if (length > BUFFER_LEN - mPos) {
+            flushBytes();
+            if (length > BUFFER_LEN) {
+                mOutputStream.write(json, offset, length);
+                return this;
+            }
+        }
+        System.arraycopy(json, offset, mBytes, mPos, length);
+        mPos += length;
+        return this;
+    }
+
+    public FastJsonSerializer nullValue() throws IOException {
+        beforeValue();
+        appendAscii("null");
+        return this;
+    }
+
+    /**
+     * Write maps, collections, String[], numbers, booleans, strings and null
+     */
+    @SuppressWarnings("unchecked")
+    public FastJsonSerializer value(Object v) throws IOException {
+        // The null sentinels of ConfigIO and org.json both equal null
+        if (v == null || v.equals(null)) {
+            return nullValue();
+        } else if (v instanceof String) {
+            return value((String) v);
+        } else if (v instanceof Number) {
+            return value((Number) v);
+        } else if (v instanceof Boolean) {
+            return value(((Boolean) v).booleanValue());
+        } else if (v instanceof Map) {
+            beginObject();
+            Iterator<Map.Entry<Object, Object>> i = ((Map<Object, Object>) v).entrySet().iterator();
+            while (i.hasNext()) {
+                Map.Entry<Object, Object> e = i.next();
+                name(String.valueOf(e.getKey()));
+                value(e.getValue());
+            }
+            return endObject();
+        } else if (v instanceof Collection) {
+            beginArray();
+            for (Object item : (Collection<Object>) v) {
+                value(item);
+            }
+            return endArray();
+        } else if (v instanceof Object[]) {
+            beginArray();
+            for (Object item : (Object[]) v) {
+                value(item);
+            }
+            return endArray();
+        } else if (v instanceof CharSequence) {
+            return value(v.toString());
+        }
+        throw new IOException("Cannot write " + v.getClass().getName() + " as json");
+    }
+
+    public void flush() throws IOException {
+        if (mPos > 0) {
+            mOutputStream.write(mBytes, 0, mPos);
+            mPos = 0;
+        }
+        mOutputStream.flush();
+    }
+
+    private void push() {
+        mNesting++;
+        if (mNesting == mHasElement.length) {
+            boolean[] hasElement = new boolean[mNesting * 2];
+            System.arraycopy(mHasElement, 0, hasElement, 0, mNesting);
+            mHasElement = hasElement;
+        }
+        mHasElement[mNesting] = false;
+    }
+
+    private void pop(char close) throws IOException {
+        boolean hasElement = mHasElement[mNesting];
+        mNesting--;
+        if (mIndent && hasElement) {
+            newLine();
+        }
+        append(close);
+    }
+
+    private void beforeValue() throws IOException {
+        if (mAfterName) {
+            mAfterName = false;
+            return;
+        }
+        beforeElement();
+    }
+
+    private void beforeElement() throws IOException {
+        if (mNesting == 0) {
+            return;
+        }
+        if (mHasElement[mNesting]) {
+            append(',');
+        }
+        mHasElement[mNesting] = true;
+        if (mIndent) {
+            newLine();
+        }
+    }
+
+    private void newLine() throws IOException {
+        append('\n');
+        int indent = mNesting * 4;
+        while (indent > 0) {
+            int n = Math.min(indent, sSpace.length());
+            appendAscii(sSpace, n);
+            indent -= n;
+        }
+    }
+
+    private void append(char c) throws IOException {
+        if (mPos >= BUFFER_LEN) {
+            flushBytes();
+        }
+        mBytes[mPos++] = (byte) c;
+    }
+
+    private void appendAscii(String str) throws IOException {
+        appendAscii(str, str.length());
+    }
+
+    private void appendAscii(String str, int length) throws IOException {
+        for (int i = 0; i < length; i++) {
+            append(str.charAt(i));
+        }
+    }
+
+    private void appendLong(long value) throws IOException {
+        if (value == Long.MIN_VALUE) {
+            appendAscii("-9223372036854775808");
+            return;
+        }
+        if (mPos + 20 > BUFFER_LEN) {
+            flushBytes();
+        }
+        if (value < 0) {
+            mBytes[mPos++] = '-';
+            value = -value;
+        }
+        // Write digits backwards then reverse them in place
+        int start = mPos;
+        do {
+            mBytes[mPos++] = (byte) ('0' + (value % 10));
+            value /= 10;
+        } while (value != 0);
+        for (int i = start, j = mPos - 1; i < j; i++, j--) {
+            byte b = mBytes[i];
+            mBytes[i] = mBytes[j];
+            mBytes[j] = b;
+        }
+    }
+
+    private void appendString(String string) throws IOException {
+        append('"');
+        final int N = string.length();
+        final char NE = (char) ESCAPE_TABLE.length;
+        final String[] escapes = ESCAPE_TABLE;
+        final byte[] bytes = mBytes;
+        for (int i = 0; i < N; i++) {
+            // Room for the longest escape or a 4 byte sequence
+            if (mPos + 6 > BUFFER_LEN) {
+                flushBytes();
+            }
+            char c = string.charAt(i);
+            if (c < NE) {
+                String escape = escapes[c];
+                if (escape != null) {
+                    appendAscii(escape);
+                } else {
+                    bytes[mPos++] = (byte) c;
+                }
+            } else if (c < 0x80) {
+                bytes[mPos++] = (byte) c;
+            } else if (c < 0x800) {
+                bytes[mPos++] = (byte) (0xC0 | (c >> 6));
+                bytes[mPos++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < N && Character.isLowSurrogate(string.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, string.charAt(++i));
+                bytes[mPos++] = (byte) (0xF0 | (codePoint >> 18));
+                bytes[mPos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                bytes[mPos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                bytes[mPos++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                // UTF-8 cannot hold an unpaired surrogate, the escape keeps it
+                bytes[mPos++] = '\\';
+                bytes[mPos++] = 'u';
+                for (int shift = 12; shift >= 0; shift -= 4) {
+                    bytes[mPos++] = HEX_DIGITS[(c >> shift) & 0xF];
+                }
+            } else {
+                bytes[mPos++] = (byte) (0xE0 | (c >> 12));
+                bytes[mPos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                bytes[mPos++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        append('"');
+    }
+
+    private void flushBytes() throws IOException {
+        if (mPos > 0) {
+            mOutputStream.write(mBytes, 0, mPos);
+            mPos = 0;
+        }
+    }
+}
@@ -0,0 +1,660 @@
+/*
+*  Copyright (C) 2016 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.configio.utils;
+
+import java.io.IOException;
+
+/**
+ * Reader of the small xml dialect written by {@link FastXmlSerializer} for configs: map, string, int, long, float,
+ * double, boolean, null, string-array and item. It works on the bytes of the whole document, recognizes tags by
+ * their bytes and parses numbers straight from the buffer, so only names and string values are allocated.
+ * <p/>
+ * Anything outside of the dialect, e.g. a DOCTYPE, CDATA, an unknown tag or entity, or a number in an unusual
+ * form, throws an IOException. The caller is expected to read the document again with a generic parser then.
+ */
+public class FastXmlReader {
+    public static final int MAP = 1;
+    public static final int STRING = 2;
+    public static final int INT = 3;
+    public static final int LONG = 4;
+    public static final int FLOAT = 5;
+    public static final int DOUBLE = 6;
+    public static final int BOOLEAN = 7;
+    public static final int NULL = 8;
+    public static final int STRING_ARRAY = 9;
+    public static final int ITEM = 10;
+    // End tag of a map or string-array
+    public static final int END_TAG = 11;
+    public static final int END_DOCUMENT = 12;
+
+    private static final byte[][] TAGS = new byte[][]{
+            null, bytes("map"), bytes("string"), bytes("int"), bytes("long"), bytes("float"), bytes("double"),
+            bytes("boolean"), bytes("null"), bytes("string-array"), bytes("item"),
+    };
+    private static final byte[] ATTR_NAME = bytes("name");
+    private static final byte[] ATTR_VALUE = bytes("value");
+    private static final byte[] ATTR_NUM = bytes("num");
+
+    private static final double[] DOUBLE_POW10 = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22,
+    };
+    private static final float[] FLOAT_POW10 = {
+            1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f,
+    };
+
+    private final byte[] mBuf;
+    private int mPos;
+    private final int mLimit;
+
+    // Open maps and string-arrays
+    private int[] mStack = new int[16];
+    private int mDepth = 0;
+
+    // Spans of the attributes and the text of the current element, start is -1 if absent
+    private int mNameStart;
+    private int mNameEnd;
+    private int mValueStart;
+    private int mValueEnd;
+    private int mNumStart;
+    private int mNumEnd;
+    private int mTextStart;
+    private int mTextEnd;
+    // Number of fraction digits of the last parseDecimal
+    private int mScale;
+    // A self closing map or string-array, whose END_TAG is still to be returned
+    private boolean mPendingEnd = false;
+
+    private char[] mChars = new char[128];
+
+    /**
+     * Read from a part of the array without copying it
+     */
+    public FastXmlReader(byte[] data, int offset, int length) {
+        if (data == null || offset < 0 || length < 0 || offset + length > data.length) {
+            throw new IllegalArgumentException();
+        }
+        mBuf = data;
+        mPos = offset;
+        mLimit = offset + length;
+    }
+
+    /**
+     * Move to the next element. A leaf element is consumed as a whole, the children of a map or string-array
+     * follow it and are ended by END_TAG.
+     *
+     * @return the type of the element, END_TAG or END_DOCUMENT
+     */
+    public int next() throws IOException {
+        if (mPendingEnd) {
+            mPendingEnd = false;
+            mDepth--;
+            return END_TAG;
+        }
+        while (true) {
+            int c = nextNonWhitespace();
+            if (c == -1) {
+                if (mDepth != 0) {
+                    throw syntaxError("Document ended in an element");
+                }
+                return END_DOCUMENT;
+            }
+            if (c != '<') {
+                throw syntaxError("Unexpected text");
+            }
+            mPos++;
+            c = peekByte();
+            if (c == '?') {
+                if (mDepth != 0) {
+                    throw syntaxError("Unexpected processing instruction");
+                }
+                skipTo('?', '>');
+            } else if (c == '!') {
+                skipComment();
+            } else if (c == '/') {
+                mPos++;
+                if (mDepth == 0) {
+                    throw syntaxError("Unexpected end tag");
+                }
+                readEndTag(mStack[--mDepth]);
+                return END_TAG;
+            } else {
+                return readElement();
+            }
+        }
+    }
+
+    /**
+     * @return the name attribute of the current element, or null
+     */
+    public String getName() throws IOException {
+        return mNameStart < 0 ? null : decode(mNameStart, mNameEnd);
+    }
+
+    /**
+     * @return the text of a string element, or the value attribute of an item
+     */
+    public String getString() throws IOException {
+        if (mTextStart >= 0) {
+            return decode(mTextStart, mTextEnd);
+        }
+        return mValueStart < 0 ? null : decode(mValueStart, mValueEnd);
+    }
+
+    /**
+     * @return the value attribute as it is written
+     */
+    public String getValueText() throws IOException {
+        return decode(requireValue(), mValueEnd);
+    }
+
+    public int getInt() throws IOException {
+        long value = parseLong(requireValue(), mValueEnd);
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw syntaxError("int out of range");
+        }
+        return (int) value;
+    }
+
+    public long getLong() throws IOException {
+        return parseLong(requireValue(), mValueEnd);
+    }
+
+    public float getFloat() throws IOException {
+        int start = requireValue();
+        int end = mValueEnd;
+        long mantissa = parseDecimal(start, end);
+        int scale = mScale;
+        // Both are exact floats, so the division is correctly rounded
+        if (mantissa >= 0 && mantissa < (1L << 24) && scale < FLOAT_POW10.length) {
+            float value = (float) mantissa / FLOAT_POW10[scale];
+            return mBuf[start] == '-' ? -value : value;
+        }
+        try {
+            return Float.parseFloat(decode(start, end));
+        } catch (NumberFormatException e) {
+            throw syntaxError("Not a float");
+        }
+    }
+
+    public double getDouble() throws IOException {
+        int start = requireValue();
+        int end = mValueEnd;
+        long mantissa = parseDecimal(start, end);
+        int scale = mScale;
+        if (mantissa >= 0 && mantissa < (1L << 53) && scale < DOUBLE_POW10.length) {
+            double value = (double) mantissa / DOUBLE_POW10[scale];
+            return mBuf[start] == '-' ? -value : value;
+        }
+        try {
+            return Double.parseDouble(decode(start, end));
+        } catch (NumberFormatException e) {
+            throw syntaxError("Not a double");
+        }
+    }
+
+    /**
+     * Like Boolean.valueOf, true only for "true" in any case
+     */
+    public boolean getBoolean() throws IOException {
+        int start = mValueStart;
+        if (start < 0) {
+            return false;
+        }
+        for (int i = start; i < mValueEnd; i++) {
+            if (mBuf[i] == '&') {
+                return "true".equalsIgnoreCase(decode(start, mValueEnd));
+            }
+        }
+        if (mValueEnd - start != 4) {
+            return false;
+        }
+        return (mBuf[start] | 0x20) == 't' && (mBuf[start + 1] | 0x20) == 'r'
+                && (mBuf[start + 2] | 0x20) == 'u' && (mBuf[start + 3] | 0x20) == 'e';
+    }
+
+    /**
+     * @return the num attribute of a string-array
+     */
+    public int getCount() throws IOException {
+        if (mNumStart < 0) {
+            throw syntaxError("Need num attribute in string-array");
+        }
+        long num = parseLong(mNumStart, mNumEnd);
+        if (num < 0 || num > Integer.MAX_VALUE) {
+            throw syntaxError("Bad num attribute in string-array");
+        }
+        return (int) num;
+    }
+
+    private int readElement() throws IOException {
+        int type = readTagName();
+        mNameStart = -1;
+        mValueStart = -1;
+        mNumStart = -1;
+        mTextStart = -1;
+
+        // Attributes
+        boolean empty;
+        while (true) {
+            int c = nextNonWhitespace();
+            if (c == '/') {
+                mPos++;
+                expect('>');
+                empty = true;
+                break;
+            } else if (c == '>') {
+                mPos++;
+                empty = false;
+                break;
+            } else if (c == -1) {
+                throw syntaxError("Document ended in a tag");
+            }
+            readAttribute();
+        }
+
+        if (type == MAP || type == STRING_ARRAY) {
+            push(type);
+            // <map/> is a map without children, its end is returned by the next call
+            mPendingEnd = empty;
+            return type;
+        }
+        if (empty) {
+            if (type == STRING) {
+                mTextStart = mPos;
+                mTextEnd = mPos;
+            }
+            return type;
+        }
+        if (type == STRING) {
+            mTextStart = mPos;
+            while (true) {
+                if (mPos >= mLimit) {
+                    throw syntaxError("Document ended in <string>");
+                }
+                byte b = mBuf[mPos];
+                if (b == '<') {
+                    break;
+                } else if (b == '\r') {
+                    // Line ends are normalized by a generic parser
+                    throw syntaxError("Carriage return in text");
+                }
+                mPos++;
+            }
+            mTextEnd = mPos;
+        } else {
+            int c = nextNonWhitespace();
+            if (c != '<') {
+                throw syntaxError("Unexpected text in a value tag");
+            }
+        }
+        expect('<');
+        expect('/');
+        readEndTag(type);
+        return type;
+    }
+
+    private int readTagName() throws IOException {
+        int start = mPos;
+        while (mPos < mLimit) {
+            byte b = mBuf[mPos];
+            if (b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == '/' || b == '>') {
+                break;
+            }
+            mPos++;
+        }
+        int type = matchTag(start, mPos);
+        if (type < 0) {
+            throw syntaxError("Unknown tag");
+        }
+        return type;
+    }
+
+    private void readEndTag(int type) throws IOException {
+        int start = mPos;
+        while (mPos < mLimit && mBuf[mPos] != '>' && !isWhitespace(mBuf[mPos])) {
+            mPos++;
+        }
+        if (matchTag(start, mPos) != type) {
+            throw syntaxError("Mismatched end tag");
+        }
+        nextNonWhitespace();
+        expect('>');
+    }
+
+    private void readAttribute() throws IOException {
+        int nameStart = mPos;
+        while (mPos < mLimit && mBuf[mPos] != '=' && !isWhitespace(mBuf[mPos])) {
+            mPos++;
+        }
+        int nameEnd = mPos;
+        if (nextNonWhitespace() != '=') {
+            throw syntaxError("Expected =");
+        }
+        mPos++;
+        int quote = nextNonWhitespace();
+        if (quote != '"' && quote != '\'') {
+            throw syntaxError("Expected quote");
+        }
+        mPos++;
+        int start = mPos;
+        while (true) {
+            if (mPos >= mLimit) {
+                throw syntaxError("Document ended in an attribute");
+            }
+            byte b = mBuf[mPos];
+            if (b == quote) {
+                break;
+            } else if (b == '<' || b == '\t' || b == '\n' || b == '\r') {
+                // Whitespace in attributes is normalized by a generic parser
+                throw syntaxError("Unexpected character in an attribute");
+            }
+            mPos++;
+        }
+        int end = mPos;
+        mPos++;
+
+        if (equalsBytes(nameStart, nameEnd, ATTR_NAME)) {
+            mNameStart = start;
+            mNameEnd = end;
+        } else if (equalsBytes(nameStart, nameEnd, ATTR_VALUE)) {
+            mValueStart = start;
+            mValueEnd = end;
+        } else if (equalsBytes(nameStart, nameEnd, ATTR_NUM)) {
+            mNumStart = start;
+            mNumEnd = end;
+        }
+    }
+
+    private int matchTag(int start, int end) {
+        int length = end - start;
+        for (int type = MAP; type < TAGS.length; type++) {
+            if (TAGS[type].length == length && equalsBytes(start, end, TAGS[type])) {
+                return type;
+            }
+        }
+        return -1;
+    }
+
+    private boolean equalsBytes(int start, int end, byte[] expected) {
+        if (end - start != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < expected.length; i++) {
+            if (mBuf[start + i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int requireValue() throws IOException {
+        if (mValueStart < 0) {
+            throw syntaxError("Need value attribute");
+        }
+        return mValueStart;
+    }
+
+    private long parseLong(int start, int end) throws IOException {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (mBuf[i] == '-' || mBuf[i] == '+')) {
+            negative = mBuf[i] == '-';
+            i++;
+        }
+        if (i == end || end - i > 19) {
+            throw syntaxError("Not a number");
+        }
+        // Accumulate negatively so Long.MIN_VALUE fits
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = mBuf[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw syntaxError("Not a number");
+            }
+            if (value < (Long.MIN_VALUE + digit) / 10) {
+                throw syntaxError("Number out of range");
+            }
+            value = value * 10 - digit;
+        }
+        if (!negative) {
+            if (value == Long.MIN_VALUE) {
+                throw syntaxError("Number out of range");
+            }
+            value = -value;
+        }
+        return value;
+    }
+
+    /**
+     * Parse [sign] digits [. digits] into the digits as a long and the number of fraction digits
+     *
+     * @return the digits, or -1 if the text has another form or too many digits
+     */
+    private long parseDecimal(int start, int end) {
+        int i = start;
+        if (i < end && (mBuf[i] == '-' || mBuf[i] == '+')) {
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean point = false;
+        for (; i < end; i++) {
+            byte b = mBuf[i];
+            if (b == '.' && !point) {
+                point = true;
+                continue;
+            }
+            int digit = b - '0';
+            if (digit < 0 || digit > 9 || ++digits > 18) {
+                return -1;
+            }
+            mantissa = mantissa * 10 + digit;
+            if (point) {
+                scale++;
+            }
+        }
+        if (digits == 0) {
+            return -1;
+        }
+        mScale = scale;
+        return mantissa;
+    }
+
+    /**
+     * Decode UTF-8 and the predefined and numeric entities
+     */
+    private String decode(int start, int end) throws IOException {
+        if (mChars.length < end - start) {
+            mChars = new char[end - start];
+        }
+        char[] chars = mChars;
+        int n = 0;
+        int i = start;
+        while (i < end) {
+            int b = mBuf[i];
+            if (b >= 0 && b != '&') {
+                chars[n++] = (char) b;
+                i++;
+            } else if (b == '&') {
+                int semicolon = i + 1;
+                while (semicolon < end && mBuf[semicolon] != ';') {
+                    semicolon++;
+                }
+                if (semicolon == end) {
+                    throw syntaxError("Unterminated entity");
+                }
+                int codePoint = entity(i + 1, semicolon);
+                n = appendCodePoint(chars, n, codePoint);
+                i = semicolon + 1;
+            } else {
+                int codePoint;
+                int extra;
+                if ((b & 0xE0) == 0xC0) {
+                    codePoint = b & 0x1F;
+                    extra = 1;
+                } else if ((b & 0xF0) == 0xE0) {
+                    codePoint = b & 0x0F;
+                    extra = 2;
+                } else if ((b & 0xF8) == 0xF0) {
+                    codePoint = b & 0x07;
+                    extra = 3;
+                } else {
+                    throw syntaxError("Malformed UTF-8");
+                }
+                if (i + extra >= end) {
+                    throw syntaxError("Malformed UTF-8");
+                }
+                for (int k = 1; k <= extra; k++) {
+                    int next = mBuf[i + k];
+                    if ((next & 0xC0) != 0x80) {
+                        throw syntaxError("Malformed UTF-8");
+                    }
+                    codePoint = (codePoint << 6) | (next & 0x3F);
+                }
+                i += extra + 1;
+                n = appendCodePoint(chars, n, codePoint);
+            }
+        }
+        return new String(chars, 0, n);
+    }
+
+    private static int appendCodePoint(char[] chars, int n, int codePoint) {
+        if (codePoint >= 0x10000) {
+            codePoint -= 0x10000;
+            chars[n++] = (char) (0xD800 + (codePoint >>> 10));
+            chars[n++] = (char) (0xDC00 + (codePoint & 0x3FF));
+        } else {
+            chars[n++] = (char) codePoint;
+        }
+        return n;
+    }
+
+    private int entity(int start, int end) throws IOException {
+        int length = end - start;
+        if (length >= 2 && mBuf[start] == '#') {
+            int radix = 10;
+            int i = start + 1;
+            if (mBuf[i] == 'x') {
+                radix = 16;
+                i++;
+            }
+            if (i == end || end - i > 6) {
+                throw syntaxError("Bad character reference");
+            }
+            int codePoint = 0;
+            for (; i < end; i++) {
+                int digit = Character.digit(mBuf[i], radix);
+                if (digit < 0) {
+                    throw syntaxError("Bad character reference");
+                }
+                codePoint = codePoint * radix + digit;
+            }
+            if (codePoint > Character.MAX_CODE_POINT) {
+                throw syntaxError("Bad character reference");
+            }
+            return codePoint;
+        }
+        if (length == 3 && mBuf[start] == 'a' && mBuf[start + 1] == 'm' && mBuf[start + 2] == 'p') {
+            return '&';
+        } else if (length == 2 && mBuf[start + 1] == 't' && (mBuf[start] == 'l' || mBuf[start] == 'g')) {
+            return mBuf[start] == 'l' ? '<' : '>';
+        } else if (length == 4 && mBuf[start] == 'q' && mBuf[start + 1] == 'u' && mBuf[start + 2] == 'o'
+                && mBuf[start + 3] == 't') {
+            return '"';
+        } else if (length == 4 && mBuf[start] == 'a' && mBuf[start + 1] == 'p' && mBuf[start + 2] == 'o'
+                && mBuf[start + 3] == 's') {
+            return '\'';
+        }
+        throw syntaxError("Unknown entity");
+    }
+
+    private void skipComment() throws IOException {
+        // <!-- ... -->, anything else like DOCTYPE or CDATA is left to a generic parser
+        if (mPos + 2 >= mLimit || mBuf[mPos + 1] != '-' || mBuf[mPos + 2] != '-') {
+            throw syntaxError("Unsupported markup");
+        }
+        mPos += 3;
+        while (mPos + 2 < mLimit) {
+            if (mBuf[mPos] == '-' && mBuf[mPos + 1] == '-' && mBuf[mPos + 2] == '>') {
+                mPos += 3;
+                return;
+            }
+            mPos++;
+        }
+        throw syntaxError("Unterminated comment");
+    }
+
+    private void skipTo(char first, char second) throws IOException {
+        while (mPos + 1 < mLimit) {
+            if (mBuf[mPos] == first && mBuf[mPos + 1] == second) {
+                mPos += 2;
+                return;
+            }
+            mPos++;
+        }
+        throw syntaxError("Unterminated markup");
+    }
+
+    private void push(int type) {
+        if (mDepth == mStack.length) {
+            int[] stack = new int[mDepth * 2];
+            System.arraycopy(mStack, 0, stack, 0, mDepth);
+            mStack = stack;
+        }
+        mStack[mDepth++] = type;
+    }
+
+    private void expect(char c) throws IOException {
+        if (mPos >= mLimit || mBuf[mPos] != c) {
+            throw syntaxError("Expected " + c);
+        }
+        mPos++;
+    }
+
+    private int peekByte() {
+        return mPos < mLimit ? mBuf[mPos] : -1;
+    }
+
+    private int nextNonWhitespace() {
+        while (mPos < mLimit) {
+            byte b = mBuf[mPos];
+            if (!isWhitespace(b)) {
+                return b;
+            }
+            mPos++;
+        }
+        return -1;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\t' || b == '\r';
+    }
+
+    private IOException syntaxError(String message) {
+        return new IOException(message + " at offset " + mPos);
+    }
+
+    private static byte[] bytes(String ascii) {
+        byte[] bytes = new byte[ascii.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) ascii.charAt(i);
+        }
+        return bytes;
+    }
+}
@@ -19,7 +19,6 @@ package com.tzutalin.configio.utils;
 import org.xmlpull.v1.XmlSerializer;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
 import java.nio.ByteBuffer;
@@ -57,6 +56,8 @@ public class FastXmlSerializer implements XmlSerializer {
 
     private OutputStream mOutputStream;
     private CharsetEncoder mCharset;
+    // UTF-8 is encoded directly instead of through mCharset
+    private boolean mUtf8;
     private ByteBuffer mBytes = ByteBuffer.allocate(BUFFER_LEN);
 
     private boolean mIndent = false;
@@ -75,42 +76,35 @@ public class FastXmlSerializer implements XmlSerializer {
         mPos = pos + 1;
     }
 
+    // A flush can keep a high surrogate at the start of the buffer, so chunks fill what is left of it
     private void append(String str, int i, final int length) throws IOException {
-        if (length > BUFFER_LEN) {
-            final int end = i + length;
-            while (i < end) {
-                int next = i + BUFFER_LEN;
-                append(str, i, next < end ? BUFFER_LEN : (end - i));
-                i = next;
+        final int end = i + length;
+        while (i < end) {
+            int pos = mPos;
+            if (pos == BUFFER_LEN) {
+                flush();
+                pos = mPos;
             }
-            return;
+            int count = Math.min(end - i, BUFFER_LEN - pos);
+            str.getChars(i, i + count, mText, pos);
+            mPos = pos + count;
+            i += count;
         }
-        int pos = mPos;
-        if ((pos + length) > BUFFER_LEN) {
-            flush();
-            pos = mPos;
-        }
-        str.getChars(i, i + length, mText, pos);
-        mPos = pos + length;
     }
 
     private void append(char[] buf, int i, final int length) throws IOException {
-        if (length > BUFFER_LEN) {
-            final int end = i + length;
-            while (i < end) {
-                int next = i + BUFFER_LEN;
-                append(buf, i, next < end ? BUFFER_LEN : (end - i));
-                i = next;
+        final int end = i + length;
+        while (i < end) {
+            int pos = mPos;
+            if (pos == BUFFER_LEN) {
+                flush();
+                pos = mPos;
             }
-            return;
-        }
-        int pos = mPos;
-        if ((pos + length) > BUFFER_LEN) {
-            flush();
-            pos = mPos;
+            int count = Math.min(end - i, BUFFER_LEN - pos);
+            System.arraycopy(buf, i, mText, pos, count);
+            mPos = pos + count;
+            i += count;
         }
-        System.arraycopy(buf, i, mText, pos, length);
-        mPos = pos + length;
     }
 
     private void append(String str) throws IOException {
@@ -194,6 +188,12 @@ public class FastXmlSerializer implements XmlSerializer {
 
     public void endDocument() throws IOException, IllegalArgumentException, IllegalStateException {
         flush();
+        if (mPos > 0) {
+            // A high surrogate without its low surrogate
+            mPos = 0;
+            mOutputStream.write('?');
+            mOutputStream.flush();
+        }
     }
 
     public XmlSerializer endTag(String namespace, String name) throws IOException,
@@ -235,7 +235,12 @@ public class FastXmlSerializer implements XmlSerializer {
     public void flush() throws IOException {
         //Log.i("PackageManager", "flush mPos=" + mPos);
         if (mPos > 0) {
-            if (mOutputStream != null) {
+            if (mOutputStream != null && mUtf8) {
+                // Sets mPos itself, it keeps a trailing high surrogate
+                flushUtf8();
+                mOutputStream.flush();
+                return;
+            } else if (mOutputStream != null) {
                 CharBuffer charBuffer = CharBuffer.wrap(mText, 0, mPos);
                 CoderResult result = mCharset.encode(charBuffer, mBytes, true);
                 while (true) {
@@ -258,6 +263,58 @@ public class FastXmlSerializer implements XmlSerializer {
         }
     }
 
+    /**
+     * Encode the text buffer without a CharsetEncoder. A high surrogate at the end of the buffer is kept
+     * until its low surrogate is appended.
+     */
+    private void flushUtf8() throws IOException {
+        final char[] text = mText;
+        final int end = mPos;
+        final byte[] bytes = mBytes.array();
+        final int limit = bytes.length - 4;
+        int b = 0;
+        int i = 0;
+        while (i < end) {
+            if (b > limit) {
+                mOutputStream.write(bytes, 0, b);
+                b = 0;
+            }
+            char c = text[i++];
+            if (c < 0x80) {
+                bytes[b++] = (byte) c;
+            } else if (c < 0x800) {
+                bytes[b++] = (byte) (0xC0 | (c >> 6));
+                bytes[b++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c)) {
+                if (i == end) {
+                    text[0] = c;
+                    mOutputStream.write(bytes, 0, b);
+                    mPos = 1;
+                    return;
+                }
+                char low = text[i];
+                if (Character.isLowSurrogate(low)) {
+                    i++;
+                    int codePoint = Character.toCodePoint(c, low);
+                    bytes[b++] = (byte) (0xF0 | (codePoint >> 18));
+                    bytes[b++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                    bytes[b++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                    bytes[b++] = (byte) (0x80 | (codePoint & 0x3F));
+                } else {
+                    bytes[b++] = '?';
+                }
+            } else if (Character.isLowSurrogate(c)) {
+                bytes[b++] = '?';
+            } else {
+                bytes[b++] = (byte) (0xE0 | (c >> 12));
+                bytes[b++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                bytes[b++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        mOutputStream.write(bytes, 0, b);
+        mPos = 0;
+    }
+
     public int getDepth() {
         throw new UnsupportedOperationException();
     }
@@ -296,17 +353,23 @@ public class FastXmlSerializer implements XmlSerializer {
     public void setFeature(String name, boolean state) throws IllegalArgumentException,
             IllegalStateException {
         if (name.equals("http://xmlpull.org/v1/doc/features.html#indent-output")) {
-            mIndent = true;
+            mIndent = state;
             return;
         }
         throw new UnsupportedOperationException();
     }
 
+    /**
+     * Start a new document on the stream. The same instance can be used for any number of documents,
+     * one at a time, without allocating again.
+     */
     public void setOutput(OutputStream os, String encoding) throws IOException,
             IllegalArgumentException, IllegalStateException {
         if (os == null)
             throw new IllegalArgumentException();
-        if (true) {
+        reset();
+        mUtf8 = encoding == null || encoding.equalsIgnoreCase("UTF-8") || encoding.equalsIgnoreCase("UTF8");
+        if (!mUtf8) {
             try {
                 mCharset = Charset.forName(encoding).newEncoder();
             } catch (IllegalCharsetNameException e) {
@@ -316,18 +379,24 @@ public class FastXmlSerializer implements XmlSerializer {
                 throw (UnsupportedEncodingException) (new UnsupportedEncodingException(
                         encoding).initCause(e));
             }
-            mOutputStream = os;
-        } else {
-            setOutput(
-                    encoding == null
-                            ? new OutputStreamWriter(os)
-                            : new OutputStreamWriter(os, encoding));
         }
+        mOutputStream = os;
+        mWriter = null;
     }
 
     public void setOutput(Writer writer) throws IOException, IllegalArgumentException,
             IllegalStateException {
+        reset();
         mWriter = writer;
+        mOutputStream = null;
+    }
+
+    private void reset() {
+        mPos = 0;
+        mBytes.clear();
+        mNesting = 0;
+        mInTag = false;
+        mLineStart = true;
     }
 
     public void setPrefix(String prefix, String namespace) throws IOException,
@@ -0,0 +1,259 @@
+/*
+*  Copyright (C) 2016 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.configio;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BinaryConfigTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private String mPath;
+
+    @Before
+    public void setUp() {
+        mPath = new File(mFolder.getRoot(), "config" + BinaryConfig.EXTENSION).getPath();
+    }
+
+    private byte[] readFile() throws IOException {
+        FileInputStream in = new FileInputStream(mPath);
+        try {
+            return FileConfig.readFully(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private void writeFile(byte[] data) throws IOException {
+        FileOutputStream out = new FileOutputStream(mPath);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Write the file with a valid trailer, so only the checks behind the checksum see the change
+     */
+    private void writeWithCrc(byte[] data) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length - 4);
+        ByteBuffer.wrap(data).putInt(data.length - 4, (int) crc.getValue());
+        writeFile(data);
+    }
+
+    private boolean loads() {
+        return new ConfigIO.Builder(mPath).build().loadFromFile();
+    }
+
+    private void writeSample() {
+        ConfigIO config = new ConfigIO.Builder(mPath).build();
+        assertTrue(config.getWriter().putInt("i", 7).putString("s", "text").commit());
+    }
+
+    @Test
+    public void roundTripsAllTypes() throws IOException {
+        Map<String, Object> nested = new HashMap<>();
+        nested.put("n", 1);
+        nested.put("list", Arrays.<Object>asList("x", 2L, null, Arrays.asList(true)));
+        Map<String, Object> map = new HashMap<>();
+        map.put("int", Integer.MIN_VALUE);
+        map.put("long", Long.MAX_VALUE);
+        map.put("float", Float.NaN);
+        map.put("double", -0d);
+        map.put("boolean", true);
+        map.put("string", "\u00e9\u4e2d\ud83d\ude00");
+        map.put("empty", "");
+        map.put("null", null);
+        map.put("array", new String[]{"a", null, ""});
+        map.put("set", new HashSet<>(Arrays.asList("p", "q")));
+        map.put("map", nested);
+        ConfigIO config = ConfigIO.create(mPath);
+        assertTrue(((FileConfig) config).writeAll(map));
+
+        ConfigIO loaded = new ConfigIO.Builder(mPath).build();
+        assertTrue(loaded.loadFromFile());
+        Map<String, ?> all = loaded.getAll();
+        assertEquals(map.size(), all.size());
+        assertEquals(Integer.MIN_VALUE, loaded.getInt("int", 0));
+        assertEquals(Long.MAX_VALUE, loaded.getLong("long", 0));
+        assertTrue(Float.isNaN(loaded.getFloat("float", 0)));
+        assertEquals(Double.doubleToLongBits(-0d), Double.doubleToLongBits(loaded.getDouble("double", 1)));
+        assertTrue(loaded.getBoolean("boolean", false));
+        assertEquals("\u00e9\u4e2d\ud83d\ude00", loaded.getString("string", null));
+        assertEquals("", loaded.getString("empty", null));
+        assertTrue(all.containsKey("null"));
+        assertNull(all.get("null"));
+        assertArrayEquals(new String[]{"a", null, ""}, (String[]) all.get("array"));
+        assertEquals(map.get("set"), all.get("set"));
+        assertEquals(nested, all.get("map"));
+        assertEquals(1, loaded.getInt("map.n", 0));
+    }
+
+    @Test
+    public void headerCountsGenerations() throws IOException {
+        BinaryConfig config = (BinaryConfig) ConfigIO.create(mPath);
+        assertTrue(config.getWriter().putInt("i", 1).commit());
+        int first = config.getGeneration();
+        assertTrue(config.getWriter().putInt("i", 2).commit());
+        assertEquals(first + 1, config.getGeneration());
+
+        ByteBuffer header = ByteBuffer.wrap(readFile());
+        assertEquals(BinaryConfig.MAGIC, header.getInt(0));
+        assertEquals(BinaryConfig.VERSION, header.getShort(4));
+        assertEquals(first + 1, header.getInt(8));
+        assertEquals(1, header.getInt(12));
+        assertEquals(first + 1, config.readGeneration(new File(mPath)));
+
+        BinaryConfig loaded = (BinaryConfig) ConfigIO.create(mPath);
+        assertTrue(loaded.loadFromFile());
+        assertEquals(first + 1, loaded.getGeneration());
+    }
+
+    @Test
+    public void unchangedCommitKeepsTheFile() throws IOException {
+        BinaryConfig config = (BinaryConfig) ConfigIO.create(mPath);
+        assertTrue(config.getWriter().putInt("i", 1).putString("s", "x").commit());
+        int generation = config.getGeneration();
+        byte[] data = readFile();
+        File file = new File(mPath);
+        assertTrue(file.setLastModified(file.lastModified() - 60 * 1000));
+        long modified = file.lastModified();
+
+        // The same values again, from the object which wrote them and from one which did not load the file
+        assertTrue(config.getWriter().clear().putInt("i", 1).putString("s", "x").commit());
+        BinaryConfig other = (BinaryConfig) ConfigIO.create(mPath);
+        assertTrue(other.getWriter().putInt("i", 1).commit());
+        assertEquals(modified, file.lastModified());
+        assertArrayEquals(data, readFile());
+        assertEquals(generation, config.getGeneration());
+        assertEquals(generation, other.getGeneration());
+
+        assertTrue(config.getWriter().putInt("i", 2).commit());
+        assertEquals(generation + 1, config.getGeneration());
+        assertEquals(generation + 1, config.readGeneration(file));
+    }
+
+    @Test
+    public void failedWriteKeepsTheGeneration() throws IOException {
+        BinaryConfig config = (BinaryConfig) ConfigIO.create(mPath);
+        assertTrue(config.getWriter().putInt("i", 1).commit());
+        int generation = config.getGeneration();
+        // The temporary file cannot be created
+        assertTrue(new File(mPath + ".tmp").mkdir());
+        assertFalse(config.getWriter().putInt("i", 2).commit());
+        assertEquals(generation, config.getGeneration());
+        assertTrue(new File(mPath + ".tmp").delete());
+        assertTrue(config.getWriter().putInt("i", 3).commit());
+        assertEquals(generation + 1, config.getGeneration());
+    }
+
+    @Test
+    public void anyFlippedByteFailsTheChecksum() throws IOException {
+        writeSample();
+        byte[] data = readFile();
+        for (int i = 0; i < data.length; i++) {
+            byte[] broken = data.clone();
+            broken[i] ^= 0x10;
+            writeFile(broken);
+            assertFalse("byte " + i, loads());
+        }
+        writeFile(data);
+        assertTrue(loads());
+    }
+
+    @Test
+    public void truncatedFileDoesNotLoad() throws IOException {
+        writeSample();
+        byte[] data = readFile();
+        for (int length = 0; length < data.length; length++) {
+            writeFile(Arrays.copyOf(data, length));
+            assertFalse("length " + length, loads());
+        }
+    }
+
+    @Test
+    public void badHeaderDoesNotLoad() throws IOException {
+        writeSample();
+        byte[] data = readFile();
+
+        byte[] magic = data.clone();
+        magic[0] = 'X';
+        writeWithCrc(magic);
+        assertFalse(loads());
+
+        byte[] version = data.clone();
+        ByteBuffer.wrap(version).putShort(4, (short) (BinaryConfig.VERSION + 1));
+        writeWithCrc(version);
+        assertFalse(loads());
+
+        byte[] count = data.clone();
+        ByteBuffer.wrap(count).putInt(12, Integer.MAX_VALUE);
+        writeWithCrc(count);
+        assertFalse(loads());
+
+        byte[] negative = data.clone();
+        ByteBuffer.wrap(negative).putInt(12, -1);
+        writeWithCrc(negative);
+        assertFalse(loads());
+    }
+
+    @Test
+    public void badTablesDoNotLoad() throws IOException {
+        writeSample();
+        byte[] data = readFile();
+        // The key table starts behind the header: short length, the key, byte type
+        int firstType = BinaryConfig.HEADER_SIZE + 2 + 1;
+
+        byte[] type = data.clone();
+        type[firstType] = 99;
+        writeWithCrc(type);
+        assertFalse(loads());
+
+        byte[] keyLength = data.clone();
+        ByteBuffer.wrap(keyLength).putShort(BinaryConfig.HEADER_SIZE, (short) 0xFFFF);
+        writeWithCrc(keyLength);
+        assertFalse(loads());
+
+        // The string is the last value, its length is in front of its 4 bytes and the trailer
+        byte[] stringLength = data.clone();
+        ByteBuffer.wrap(stringLength).putInt(data.length - 4 - 4 - 4, 1000);
+        writeWithCrc(stringLength);
+        assertFalse(loads());
+    }
+}
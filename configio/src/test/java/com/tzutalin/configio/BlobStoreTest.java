@@ -0,0 +1,174 @@
+/*
+*  Copyright (C) 2016 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.tzutalin.configio;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class BlobStoreTest {
+    private static final int THRESHOLD = 64;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private String mPath;
+    private File mDir;
+
+    @Before
+    public void setUp() {
+        mPath = new File(mFolder.getRoot(), "config.json").getPath();
+        mDir = new File(mPath + BlobStore.SUFFIX);
+    }
+
+    private ConfigIO build(int threshold) {
+        return new ConfigIO.Builder(mPath).setBlobThreshold(threshold).build();
+    }
+
+    private static String large(char c) {
+        char[] chars = new char[THRESHOLD * 4];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    private String readConfigFile() throws IOException {
+        FileInputStream in = new FileInputStream(mPath);
+        try {
+            return new String(FileConfig.readFully(in), "UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    private String[] blobNames() {
+        String[] names = mDir.list();
+        return names != null ? names : new String[0];
+    }
+
+    @Test
+    public void largeStringsAreStoredOutOfLine() throws IOException {
+        ConfigIO config = build(THRESHOLD);
+        assertTrue(config.getWriter().putString("big", large('a')).putString("small", "s").commit());
+        assertFalse(readConfigFile().contains(large('a')));
+        assertEquals(1, blobNames().length);
+
+        ConfigIO loaded = build(THRESHOLD);
+        assertTrue(loaded.loadFromFile());
+        assertEquals(large('a'), loaded.getString("big", null));
+        assertEquals("s", loaded.getString("small", null));
+        assertEquals(large('a'), loaded.getAll().get("big"));
+    }
+
+    @Test
+    public void blobIsWrittenOnceAndDeletedWhenUnused() throws IOException {
+        ConfigIO config = build(THRESHOLD);
+        assertTrue(config.getWriter().putString("big", large('a')).commit());
+        File blob = new File(mDir, blobNames()[0]);
+        assertTrue(blob.setLastModified(blob.lastModified() - 60 * 1000));
+        long modified = blob.lastModified();
+
+        assertTrue(config.getWriter().putInt("other", 1).commit());
+        assertEquals(modified, blob.lastModified());
+
+        assertTrue(config.getWriter().putString("big", large('b')).commit());
+        assertFalse(blob.exists());
+        assertEquals(1, blobNames().length);
+        ConfigIO loaded = build(THRESHOLD);
+        assertTrue(loaded.loadFromFile());
+        assertEquals(large('b'), loaded.getString("big", null));
+    }
+
+    @Test
+    public void valuesShapedLikeReferencesRoundTrip() {
+        Map<String, Object> escaped = new HashMap<>();
+        escaped.put(BlobStore.ESCAPE, Collections.singletonMap(BlobStore.KEY, "x"));
+        String[] names = {"config.json", "journal.json", "config.xml"};
+        for (String name : names) {
+            String path = new File(mFolder.getRoot(), name).getPath();
+            ConfigIO.Builder builder = new ConfigIO.Builder(path).setBlobThreshold(THRESHOLD)
+                    .setJournalEnabled(name.startsWith("journal"));
+            ConfigIO config = builder.build();
+            assertTrue(name, config.getWriter().putPath("ref." + BlobStore.KEY, "not a blob")
+                    .putPath("escaped." + BlobStore.ESCAPE, escaped.get(BlobStore.ESCAPE)).putPath("value." + BlobStore.ESCAPE, "v").commit());
+
+            ConfigIO loaded = builder.build();
+            assertTrue(name, loaded.loadFromFile());
+            assertEquals(name, Collections.singletonMap(BlobStore.KEY, "not a blob"), loaded.getAll().get("ref"));
+            assertEquals(name, "not a blob", loaded.getString("ref." + BlobStore.KEY, null));
+            assertEquals(name, escaped, loaded.getAll().get("escaped"));
+            assertEquals(name, "v", loaded.getString("value." + BlobStore.ESCAPE, null));
+        }
+    }
+
+    @Test
+    public void withoutThresholdMapsAreNotReferences() throws IOException {
+        ConfigIO config = build(0);
+        assertTrue(config.getWriter().putPath("ref." + BlobStore.KEY, "name").commit());
+        assertTrue(readConfigFile().contains(BlobStore.KEY));
+        assertFalse(mDir.exists());
+
+        ConfigIO loaded = build(0);
+        assertTrue(loaded.loadFromFile());
+        assertEquals(Collections.singletonMap(BlobStore.KEY, "name"), loaded.getAll().get("ref"));
+        assertEquals("name", loaded.getString("ref." + BlobStore.KEY, null));
+        // Large strings stay in the file
+        assertTrue(loaded.getWriter().putString("big", large('a')).commit());
+        assertTrue(readConfigFile().contains(large('a')));
+        assertFalse(mDir.exists());
+    }
+
+    @Test
+    public void concurrentGetsReadTheBlobOnce() throws Exception {
+        assertTrue(build(THRESHOLD).getWriter().putString("big", large('a')).commit());
+        final ConfigIO loaded = build(THRESHOLD);
+        assertTrue(loaded.loadFromFile());
+        final String[] results = new String[4];
+        Thread[] readers = new Thread[results.length];
+        for (int i = 0; i < readers.length; i++) {
+            final int index = i;
+            readers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    results[index] = loaded.getString("big", null);
+                }
+            });
+            readers[i].start();
+        }
+        for (Thread reader : readers) {
+            reader.join(5000);
+        }
+        for (String result : results) {
+            assertNotNull(result);
+            assertEquals(large('a'), result);
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*
+*  Copyright (C) 2016 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.configio;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import rx.Subscription;
+import rx.functions.Action1;
+import rx.observers.TestSubscriber;
+import rx.schedulers.Schedulers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ChangeListenerTest {
+    private static final int THREADS = 4;
+    private static final int COMMITS = 100;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static Set<String> keys(String... keys) {
+        return new HashSet<>(Arrays.asList(keys));
+    }
+
+    private static class RecordingListener implements ConfigIO.OnChangeListener {
+        final List<Set<String>> mBatches = Collections.synchronizedList(new ArrayList<Set<String>>());
+
+        @Override
+        public void onChanged(ConfigIO config, Set<String> keys) {
+            mBatches.add(new HashSet<>(keys));
+        }
+    }
+
+    private ConfigIO newConfig(String name) {
+        return new ConfigIO.Builder(new File(mFolder.getRoot(), name).getPath()).build();
+    }
+
+    @Test
+    public void listenerGetsTheChangedKeysOfEachCommit() {
+        ConfigIO config = newConfig("config.json");
+        RecordingListener listener = new RecordingListener();
+        config.registerOnChangeListener(listener);
+        // A second registration does not deliver twice
+        config.registerOnChangeListener(listener);
+
+        assertTrue(config.getWriter().putInt("a", 1).putString("b", "x").commit());
+        // Equal values and a key the loaded map does not have are no change
+        assertTrue(config.loadFromFile());
+        assertTrue(config.getWriter().putInt("a", 1).remove("none").commit());
+        assertTrue(config.getWriter().putInt("a", 2).putString("b", "x").commit());
+        config.getWriter().remove("a").apply();
+        assertTrue(config.getWriter().clear().putInt("c", 3).commit());
+        assertEquals(Arrays.asList(keys("a", "b"), keys("a"), keys("a"), keys("b", "c")), listener.mBatches);
+
+        config.unregisterOnChangeListener(listener);
+        assertTrue(config.getWriter().putInt("c", 4).commit());
+        assertEquals(4, listener.mBatches.size());
+        config.flush();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void observeChangesFiltersKeys() {
+        ConfigIO config = newConfig("config.json");
+        TestSubscriber<Set<String>> all = new TestSubscriber<>();
+        TestSubscriber<Set<String>> filtered = new TestSubscriber<>();
+        config.observeChanges().subscribe(all);
+        Subscription subscription = config.observeChanges("a", "c").subscribe(filtered);
+
+        assertTrue(config.getWriter().putInt("b", 1).commit());
+        assertTrue(config.getWriter().putInt("a", 1).putInt("b", 2).commit());
+        assertTrue(config.getWriter().putInt("c", 1).commit());
+        all.assertValues(keys("b"), keys("a", "b"), keys("c"));
+        filtered.assertValues(keys("a"), keys("c"));
+        filtered.assertNoTerminalEvent();
+
+        // Unsubscribing unregisters the listener of the stream
+        subscription.unsubscribe();
+        all.unsubscribe();
+        assertFalse(config.hasChangeListeners());
+        assertTrue(config.getWriter().putInt("a", 2).commit());
+        filtered.assertValueCount(2);
+    }
+
+    @Test
+    public void observeChangesDeliversOnTheScheduler() throws Exception {
+        ConfigIO config = newConfig("config.json");
+        final AtomicReference<Thread> deliveredOn = new AtomicReference<>();
+        final List<Set<String>> received = Collections.synchronizedList(new ArrayList<Set<String>>());
+        final CountDownLatch delivered = new CountDownLatch(2);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Subscription subscription = config.observeChanges(Schedulers.from(executor), "a")
+                    .subscribe(new Action1<Set<String>>() {
+                        @Override
+                        public void call(Set<String> keys) {
+                            deliveredOn.set(Thread.currentThread());
+                            received.add(keys);
+                            delivered.countDown();
+                        }
+                    });
+            assertTrue(config.getWriter().putInt("a", 1).commit());
+            assertTrue(config.getWriter().putInt("b", 1).commit());
+            assertTrue(config.getWriter().putInt("a", 2).commit());
+            assertTrue(delivered.await(10, TimeUnit.SECONDS));
+            assertEquals(Arrays.asList(keys("a"), keys("a")), received);
+            assertTrue(deliveredOn.get() != Thread.currentThread());
+            subscription.unsubscribe();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void batchesFromManyThreadsCoverEveryKeyOnce() throws Throwable {
+        final ConfigIO config = newConfig("config.json");
+        final List<String> delivered = Collections.synchronizedList(new ArrayList<String>());
+        final AtomicBoolean inListener = new AtomicBoolean();
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        config.registerOnChangeListener(new ConfigIO.OnChangeListener() {
+            @Override
+            public void onChanged(ConfigIO changed, Set<String> keys) {
+                // The batches are delivered one at a time
+                if (!inListener.compareAndSet(false, true)) {
+                    error.compareAndSet(null, new AssertionError("Listener called concurrently"));
+                }
+                delivered.addAll(keys);
+                inListener.set(false);
+            }
+        });
+
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] writers = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            final int writer = t;
+            writers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < COMMITS; i++) {
+                            ConfigIO.Writer edit = config.getWriter().putInt("w" + writer + "." + i, i);
+                            if (i % 2 == 0) {
+                                edit.apply();
+                            } else {
+                                edit.commit();
+                            }
+                        }
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+            });
+            writers[t].start();
+        }
+        start.countDown();
+        for (Thread writer : writers) {
+            writer.join(30000);
+            assertFalse(writer.isAlive());
+        }
+        config.flush();
+        if (error.get() != null) {
+            throw error.get();
+        }
+        // Merges which ran together share a batch, but no key is lost or delivered twice
+        assertEquals(THREADS * COMMITS, delivered.size());
+        assertEquals(THREADS * COMMITS, new HashSet<>(delivered).size());
+    }
+}
@@ -0,0 +1,179 @@
+/*
+*  Copyright (C) 2016 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.configio;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class CompressionTest {
+    private static final int THRESHOLD = 4096;
+    private static final int KEYS = 500;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File file(String name) {
+        return new File(mFolder.getRoot(), name);
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            return FileConfig.readFully(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static boolean startsWithMagic(File file) throws IOException {
+        byte[] data = readFile(file);
+        return data.length >= ConfigCompressor.MAGIC.length && Arrays.equals(ConfigCompressor.MAGIC,
+                Arrays.copyOf(data, ConfigCompressor.MAGIC.length));
+    }
+
+    private ConfigIO.Builder compressed(String name) {
+        return new ConfigIO.Builder(file(name).getPath()).setCompressThreshold(THRESHOLD);
+    }
+
+    private static void putKeys(ConfigIO config, int count) {
+        ConfigIO.Writer writer = config.getWriter();
+        for (int i = 0; i < count; i++) {
+            writer.putInt("key" + i, i).putString("str" + i, "repeated value " + i);
+        }
+        assertTrue(writer.commit());
+    }
+
+    @Test
+    public void largeFilesAreCompressedAndLoadAnywhere() throws IOException {
+        for (String name : new String[]{"config.json", "config.xml"}) {
+            putKeys(compressed(name).build(), KEYS);
+            assertTrue(name, startsWithMagic(file(name)));
+
+            // The same content written plain is much larger
+            File plain = file("plain-" + name);
+            putKeys(new ConfigIO.Builder(plain.getPath()).build(), KEYS);
+            assertFalse(name, startsWithMagic(plain));
+            assertTrue(name, file(name).length() * 3 < plain.length());
+
+            // A config without the setting loads it too
+            ConfigIO loaded = new ConfigIO.Builder(file(name).getPath()).build();
+            assertTrue(name, loaded.loadFromFile());
+            assertEquals(name, 2 * KEYS, loaded.getAll().size());
+            assertEquals(name, KEYS - 1, loaded.getInt("key" + (KEYS - 1), 0));
+            assertEquals(name, "repeated value 7", loaded.getString("str7", null));
+
+            // Written again without the setting, it is plain
+            assertTrue(name, loaded.getWriter().putInt("key0", -1).commit());
+            assertFalse(name, startsWithMagic(file(name)));
+        }
+    }
+
+    @Test
+    public void smallAndIncompressibleFilesStayPlain() throws IOException {
+        putKeys(compressed("small.json").build(), 10);
+        assertTrue(file("small.json").length() < THRESHOLD);
+        assertFalse(startsWithMagic(file("small.json")));
+
+        // Random bytes do not get smaller, the plain bytes are kept
+        byte[] noise = new byte[THRESHOLD * 2];
+        new Random(1).nextBytes(noise);
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        plain.write(noise);
+        assertSame(plain, ConfigCompressor.compress(plain));
+
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        text.write(("{\"s\":\"" + new String(new char[THRESHOLD]).replace('\0', 'x') + "\"}").getBytes("UTF-8"));
+        ByteArrayOutputStream compressed = ConfigCompressor.compress(text);
+        assertTrue(compressed.size() < text.size());
+        InputStream in = ConfigCompressor.inflate(new ByteArrayInputStream(compressed.toByteArray()));
+        assertArrayEquals(text.toByteArray(), FileConfig.readFully(in));
+        in.close();
+    }
+
+    @Test
+    public void unchangedCommitKeepsTheCompressedFile() throws IOException {
+        ConfigIO config = compressed("config.json").build();
+        putKeys(config, KEYS);
+        byte[] data = readFile(file("config.json"));
+        assertTrue(file("config.json").setLastModified(file("config.json").lastModified() - 60 * 1000));
+        long modified = file("config.json").lastModified();
+        putKeys(config, KEYS);
+        assertEquals(modified, file("config.json").lastModified());
+        assertArrayEquals(data, readFile(file("config.json")));
+
+        // Another writer of the compressed file is picked up by reload
+        assertTrue(config.loadFromFile());
+        assertTrue(compressed("config.json").build().getWriter().putInt("key1", -1).commit());
+        assertTrue(config.reload());
+        assertEquals(-1, config.getInt("key1", 0));
+    }
+
+    @Test
+    public void corruptedCompressedFileDoesNotLoad() throws IOException {
+        putKeys(compressed("config.json").build(), KEYS);
+        byte[] data = readFile(file("config.json"));
+        int[] lengths = {ConfigCompressor.MAGIC.length - 1, ConfigCompressor.MAGIC.length + 10, data.length / 2};
+        for (int length : lengths) {
+            FileOutputStream out = new FileOutputStream(file("config.json"));
+            out.write(data, 0, length);
+            out.close();
+            assertFalse("length " + length, new ConfigIO.Builder(file("config.json").getPath()).build()
+                    .loadFromFile());
+        }
+    }
+
+    @Test
+    public void headerCheckDoesNotConsumeTheStream() throws IOException {
+        byte[] plain = "{\"a\":1}".getBytes("UTF-8");
+        BufferedInputStream in = new BufferedInputStream(new ByteArrayInputStream(plain));
+        assertFalse(ConfigCompressor.isCompressed(in));
+        assertEquals('{', in.read());
+
+        byte[] header = Arrays.copyOf(ConfigCompressor.MAGIC, ConfigCompressor.MAGIC.length + 1);
+        in = new BufferedInputStream(new ByteArrayInputStream(header));
+        assertTrue(ConfigCompressor.isCompressed(in));
+        assertEquals(ConfigCompressor.MAGIC[0], in.read());
+    }
+
+    @Test
+    public void converterReadsCompressedFiles() throws IOException {
+        putKeys(compressed("config.json").build(), KEYS);
+        assertTrue(ConfigConverter.convert(file("config.json").getPath(), file("config.xml").getPath()));
+        ConfigIO loaded = new ConfigIO.Builder(file("config.xml").getPath()).build();
+        assertTrue(loaded.loadFromFile());
+        assertEquals(2 * KEYS, loaded.getAll().size());
+        assertEquals("repeated value 9", loaded.getString("str9", null));
+    }
+}
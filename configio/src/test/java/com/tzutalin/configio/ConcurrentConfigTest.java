@@ -0,0 +1,210 @@
+/*
+*  Copyright (C) 2016 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.configio;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ConcurrentConfigTest {
+    private static final int COMMITS = 2000;
+    private static final int READERS = 4;
+    private static final int WRITERS = 4;
+    private static final int KEYS = 200;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private ConfigIO.Builder builder(String name) {
+        return new ConfigIO.Builder(new File(mFolder.getRoot(), name).getPath()).setConcurrent(true)
+                .setPrimitiveStorage(name.startsWith("primitive"));
+    }
+
+    private static void join(Thread[] threads, AtomicReference<Throwable> error) throws Throwable {
+        for (Thread thread : threads) {
+            thread.join(30000);
+            assertFalse(thread.isAlive());
+        }
+        if (error.get() != null) {
+            throw error.get();
+        }
+    }
+
+    @Test
+    public void editsAreInvisibleUntilCommit() {
+        ConfigIO config = builder("config.json").build();
+        assertTrue(config.getWriter().putInt("a", 1).commit());
+        ConfigIO.Writer writer = config.getWriter().putInt("a", 2).putInt("b", 2).remove("a");
+        assertEquals(1, config.getInt("a", 0));
+        assertFalse(config.contains("b"));
+        assertTrue(writer.putInt("a", 3).commit());
+        assertEquals(3, config.getInt("a", 0));
+        assertEquals(2, config.getInt("b", 0));
+    }
+
+    /**
+     * One thread commits a and b together, the readers never see one without the other
+     */
+    private void checkReadersSeeWholeCommits(String name) throws Throwable {
+        final ConfigIO config = builder(name).build();
+        assertTrue(config.getWriter().putInt("a", 0).putInt("b", 0).commit());
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        final CountDownLatch start = new CountDownLatch(1);
+
+        Thread[] readers = new Thread[READERS];
+        for (int t = 0; t < READERS; t++) {
+            readers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        int last = 0;
+                        while (!done.get()) {
+                            // b is read first, a later snapshot cannot hold a smaller a
+                            int b = config.getInt("b", -1);
+                            int a = config.getInt("a", -1);
+                            if (b < last || a < b) {
+                                throw new AssertionError("a " + a + " b " + b + " after " + last);
+                            }
+                            last = b;
+                            Map<String, ?> all = config.getAll();
+                            if (!all.get("a").equals(all.get("b"))) {
+                                throw new AssertionError("getAll " + all);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+            });
+            readers[t].start();
+        }
+
+        start.countDown();
+        try {
+            for (int i = 1; i <= COMMITS; i++) {
+                ConfigIO.Writer writer = config.getWriter().putInt("a", i).putInt("b", i);
+                if (i % 100 == 0) {
+                    assertTrue(writer.commit());
+                } else {
+                    writer.apply();
+                }
+            }
+        } finally {
+            done.set(true);
+        }
+        join(readers, error);
+
+        config.flush();
+        ConfigIO loaded = new ConfigIO.Builder(config.mTargetPath).build();
+        assertTrue(loaded.loadFromFile());
+        assertEquals(COMMITS, loaded.getInt("a", 0));
+        assertEquals(COMMITS, loaded.getInt("b", 0));
+    }
+
+    @Test
+    public void readersSeeWholeCommits() throws Throwable {
+        checkReadersSeeWholeCommits("config.json");
+        checkReadersSeeWholeCommits("primitive.json");
+    }
+
+    @Test
+    public void writersFromManyThreadsKeepEveryKey() throws Throwable {
+        final ConfigIO config = builder("config.json").build();
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] writers = new Thread[WRITERS];
+        for (int t = 0; t < WRITERS; t++) {
+            final int writer = t;
+            writers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < KEYS; i++) {
+                            config.getWriter().putInt("w" + writer + "." + i, i).apply();
+                            // Another thread's removes and reads run alongside
+                            config.getWriter().remove("w" + ((writer + 1) % WRITERS) + ".none").apply();
+                            if (config.getInt("w" + writer + "." + i, -1) != i) {
+                                throw new AssertionError("Lost w" + writer + "." + i);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+            });
+            writers[t].start();
+        }
+        start.countDown();
+        join(writers, error);
+
+        config.flush();
+        assertEquals(WRITERS * KEYS, config.getAll().size());
+        ConfigIO loaded = new ConfigIO.Builder(config.mTargetPath).build();
+        assertTrue(loaded.loadFromFile());
+        assertEquals(WRITERS * KEYS, loaded.getAll().size());
+        assertEquals(KEYS - 1, loaded.getInt("w3." + (KEYS - 1), 0));
+        assertNull(loaded.getAll().get("w0.none"));
+    }
+
+    @Test
+    public void readersDoNotWaitForTheWrite() throws Throwable {
+        final ConfigIO config = builder("config.json").build();
+        assertTrue(config.getWriter().putInt("a", 1).commit());
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread[] readers = new Thread[READERS];
+        for (int t = 0; t < READERS; t++) {
+            readers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 1000; i++) {
+                            if (config.getInt("a", 0) < 1 || config.getAll().isEmpty()) {
+                                throw new AssertionError("Missing a");
+                            }
+                        }
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+            });
+        }
+        // The monitor of the config is held while a file is written
+        synchronized (config) {
+            config.getWriter().putInt("a", 2).apply();
+            for (Thread reader : readers) {
+                reader.start();
+            }
+            join(readers, error);
+            assertEquals(2, config.getInt("a", 0));
+        }
+        config.flush();
+    }
+}
@@ -0,0 +1,120 @@
+/*
+*  Copyright (C) 2016 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.configio;
+
+import android.util.Xml;
+
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ConfigConverterTest {
+    // More items than fit in the buffer of the serializer, so the array is written in several chunks
+    private static final int ITEMS = 5000;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private String path(String name) {
+        return new File(mFolder.getRoot(), name).getPath();
+    }
+
+    private void writeFile(String path, String text) throws IOException {
+        FileOutputStream out = new FileOutputStream(path);
+        try {
+            out.write(text.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String[] items() {
+        String[] items = new String[ITEMS];
+        for (int i = 0; i < ITEMS; i++) {
+            items[i] = "item " + i + " <&>";
+        }
+        return items;
+    }
+
+    @Test
+    public void streamsJsonArraysToXml() throws IOException {
+        String[] items = items();
+        StringBuilder json = new StringBuilder("{\"first\":[],\"big\":[");
+        for (int i = 0; i < ITEMS; i++) {
+            json.append(i == 0 ? "\"" : ",\"").append(items[i]).append('"');
+        }
+        json.append("],\"map\":{\"small\":[\"a\",\"b\"],\"n\":1},\"last\":\"x\"}");
+        writeFile(path("config.json"), json.toString());
+
+        assertTrue(ConfigConverter.convert(path("config.json"), path("config.xml")));
+        ConfigIO loaded = new ConfigIO.Builder(path("config.xml")).build();
+        assertTrue(loaded.loadFromFile());
+        Map<String, ?> all = loaded.getAll();
+        assertArrayEquals(new String[0], (String[]) all.get("first"));
+        assertArrayEquals(items, (String[]) all.get("big"));
+        assertEquals("b", loaded.getString("map.small[1]", null));
+        assertEquals(1, loaded.getInt("map.n", 0));
+        assertEquals("x", loaded.getString("last", null));
+    }
+
+    @Test
+    public void jsonArraysOfOtherValuesAreNotConvertedToXml() throws IOException {
+        String[] arrays = {"[1,2]", "[true]", "[{\"a\":1}]", "[[\"a\"]]", "[\"a\",null]", "[\"a\",2]"};
+        for (String array : arrays) {
+            writeFile(path("config.json"), "{\"s\":\"x\",\"array\":" + array + "}");
+            assertFalse(array, ConfigConverter.convert(path("config.json"), path("config.xml")));
+            assertFalse(array, new File(path("config.xml")).exists());
+            assertFalse(array, new File(path("config.xml.tmp")).exists());
+        }
+    }
+
+    @Test
+    public void streamsXmlArraysToJson() throws IOException {
+        // The xml parser is only there on a device or with a real android.jar
+        Assume.assumeNotNull(Xml.newPullParser());
+        String[] items = items();
+        Map<String, Object> map = new HashMap<>();
+        map.put("big", items);
+        map.put("last", "x");
+        assertTrue(((FileConfig) ConfigIO.create(path("config.xml"))).writeAll(map));
+
+        assertTrue(ConfigConverter.convert(path("config.xml"), path("config.json")));
+        ConfigIO loaded = new ConfigIO.Builder(path("config.json")).build();
+        assertTrue(loaded.loadFromFile());
+        assertEquals(items[0], loaded.getString("big[0]", null));
+        assertEquals(items[ITEMS - 1], loaded.getString("big[" + (ITEMS - 1) + "]", null));
+        assertEquals("x", loaded.getString("last", null));
+
+        // And back, the streamed xml has the same values
+        assertTrue(ConfigConverter.convert(path("config.json"), path("copy.xml")));
+        ConfigIO copy = new ConfigIO.Builder(path("copy.xml")).build();
+        assertTrue(copy.loadFromFile());
+        assertArrayEquals(items, (String[]) copy.getAll().get("big"));
+    }
+}
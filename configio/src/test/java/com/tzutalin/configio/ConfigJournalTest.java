@@ -0,0 +1,184 @@
+/*
+*  Copyright (C) 2016 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.configio;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ConfigJournalTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private String mPath;
+    private File mJournalFile;
+
+    @Before
+    public void setUp() {
+        mPath = new File(mFolder.getRoot(), "config.json").getPath();
+        mJournalFile = new File(mPath + ConfigJournal.SUFFIX);
+    }
+
+    private static Map<String, Object> puts(String key, Object value) {
+        Map<String, Object> puts = new HashMap<>();
+        puts.put(key, value);
+        return puts;
+    }
+
+    private void appendRecords(int count) throws IOException {
+        ConfigJournal journal = new ConfigJournal(mPath);
+        for (int i = 0; i < count; i++) {
+            journal.append(false, Collections.<String>emptyList(), puts("key" + i, i));
+        }
+    }
+
+    private void appendBytes(byte[] bytes) throws IOException {
+        FileOutputStream out = new FileOutputStream(mJournalFile, true);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    @Test
+    public void replayAppliesRecordsInOrder() throws IOException {
+        ConfigJournal journal = new ConfigJournal(mPath);
+        journal.append(false, Collections.<String>emptyList(), puts("a", "1"));
+        journal.append(false, Collections.singletonList("a"), puts("b", 2L));
+        journal.append(true, Collections.<String>emptyList(), puts("c", true));
+        journal.append(false, Collections.<String>emptyList(), puts("d", 1.5f));
+
+        Map<String, Object> map = new HashMap<>();
+        map.put("base", 0);
+        assertEquals(4, new ConfigJournal(mPath).replay(map));
+        Map<String, Object> expected = new HashMap<>();
+        expected.put("c", true);
+        expected.put("d", 1.5f);
+        assertEquals(expected, map);
+    }
+
+    @Test
+    public void replayStopsAtTornRecord() throws IOException {
+        appendRecords(3);
+        long valid = mJournalFile.length();
+        RandomAccessFile raf = new RandomAccessFile(mJournalFile, "rw");
+        try {
+            // Half of a fourth record
+            raf.seek(valid);
+            raf.writeInt(100);
+            raf.write(new byte[10]);
+        } finally {
+            raf.close();
+        }
+
+        Map<String, Object> map = new HashMap<>();
+        ConfigJournal journal = new ConfigJournal(mPath);
+        assertEquals(3, journal.replay(map));
+        assertEquals(3, map.size());
+        assertEquals(valid, journal.length());
+
+        // The torn tail is cut before the next record, so the next record is replayed too
+        journal.append(false, Collections.<String>emptyList(), puts("after", 1));
+        map.clear();
+        assertEquals(4, new ConfigJournal(mPath).replay(map));
+        assertEquals(1, map.get("after"));
+    }
+
+    @Test
+    public void replayStopsAtBadChecksum() throws IOException {
+        appendRecords(2);
+        RandomAccessFile raf = new RandomAccessFile(mJournalFile, "rw");
+        try {
+            // Flip the last byte of the checksum of the second record
+            raf.seek(raf.length() - 1);
+            int last = raf.read();
+            raf.seek(raf.length() - 1);
+            raf.write(last ^ 0xff);
+        } finally {
+            raf.close();
+        }
+        Map<String, Object> map = new HashMap<>();
+        assertEquals(1, new ConfigJournal(mPath).replay(map));
+        assertEquals(Collections.<String, Object>singletonMap("key0", 0), map);
+    }
+
+    @Test
+    public void replayTreatsHugeLengthAsTornTail() throws IOException {
+        appendRecords(2);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(Integer.MAX_VALUE - 16);
+        out.writeLong(0);
+        appendBytes(bytes.toByteArray());
+
+        Map<String, Object> map = new HashMap<>();
+        assertEquals(2, new ConfigJournal(mPath).replay(map));
+        assertEquals(2, map.size());
+    }
+
+    @Test
+    public void configReplaysJournalOverBase() {
+        ConfigIO config = new ConfigIO.Builder(mPath).setJournalEnabled(true).build();
+        assertTrue(config.getWriter().putInt("a", 1).putString("b", "x").commit());
+        assertTrue(config.getWriter().putInt("a", 2).remove("b").commit());
+
+        ConfigIO loaded = new ConfigIO.Builder(mPath).setJournalEnabled(true).build();
+        assertTrue(loaded.loadFromFile());
+        assertEquals(2, loaded.getInt("a", 0));
+        assertFalse(loaded.contains("b"));
+    }
+
+    @Test
+    public void compactionKeepsBaseUntilNewOneIsWritten() throws IOException {
+        ConfigIO config = new ConfigIO.Builder(mPath).setJournalEnabled(true)
+                .setJournalCompactThreshold(Long.MAX_VALUE, 3).build();
+        for (int i = 0; i < 10; i++) {
+            assertTrue(config.getWriter().putInt("key" + i, i).commit());
+        }
+        config.flush();
+
+        // A crash during a later compaction leaves a partial temp file next to the base and the journal
+        FileOutputStream tmp = new FileOutputStream(mPath + ".tmp");
+        try {
+            tmp.write("{\"key0\": ".getBytes("UTF-8"));
+        } finally {
+            tmp.close();
+        }
+
+        ConfigIO loaded = new ConfigIO.Builder(mPath).setJournalEnabled(true).build();
+        assertTrue(loaded.loadFromFile());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i, loaded.getInt("key" + i, -1));
+        }
+    }
+}
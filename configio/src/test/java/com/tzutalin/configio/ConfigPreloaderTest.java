@@ -0,0 +1,121 @@
+/*
+*  Copyright (C) 2016 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.tzutalin.configio;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ConfigPreloaderTest {
+    private static final int KEYS = 64;
+    private static final int THREADS = 4;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static void writeKeys(String path) {
+        ConfigIO.Writer writer = new ConfigIO.Builder(path).build().getWriter();
+        for (int i = 0; i < KEYS; i++) {
+            writer.putInt("k" + i, i + 1).putString("s" + i, "v" + i);
+        }
+        assertTrue(writer.commit());
+    }
+
+    /**
+     * Preload the files and get every key from several threads which are already running when the load starts
+     *
+     * @return number of gets which returned the default value
+     */
+    private static int preloadAndGet(List<String> paths) throws InterruptedException {
+        final List<ConfigIO> configs = new ArrayList<>();
+        for (String path : paths) {
+            // Not loaded yet, it is the object preload() returns
+            configs.add(ConfigIO.newInstance(path));
+        }
+        final AtomicInteger misses = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] readers = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            readers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (ConfigIO config : configs) {
+                        for (int i = 0; i < KEYS; i++) {
+                            if (config.getInt("k" + i, 0) != i + 1) {
+                                misses.incrementAndGet();
+                            }
+                            if (config.getString("s" + i, null) == null || !config.contains("s" + i)) {
+                                misses.incrementAndGet();
+                            }
+                        }
+                    }
+                }
+            });
+            readers[t].start();
+        }
+        assertEquals(configs, ConfigIO.preload(paths));
+        start.countDown();
+        for (Thread reader : readers) {
+            reader.join(10000);
+            assertFalse(reader.isAlive());
+        }
+        return misses.get();
+    }
+
+    @Test
+    public void getsDuringPreloadSeeTheFile() throws Exception {
+        for (int round = 0; round < 300; round++) {
+            File dir = mFolder.newFolder("round" + round);
+            List<String> paths = new ArrayList<>();
+            for (String name : new String[]{"a.json", "b.xml", "c.json", "d.json"}) {
+                paths.add(new File(dir, name).getPath());
+                writeKeys(paths.get(paths.size() - 1));
+            }
+            // The shared object of c.json keeps its map in a PrimitiveMap
+            new ConfigIO.Builder(paths.get(2)).setPrimitiveStorage(true).buildShared();
+            assertEquals("round " + round, 0, preloadAndGet(paths));
+        }
+    }
+
+    @Test
+    public void preloadOfMissingFileDoesNotBlockGets() throws Exception {
+        File dir = mFolder.newFolder();
+        ConfigIO config = ConfigIO.preload(Collections.singletonList(
+                new File(dir, "missing.json").getPath())).get(0);
+        assertEquals(7, config.getInt("k0", 7));
+        assertFalse(config.contains("k0"));
+        assertTrue(config.getWriter().putInt("k0", 1).commit());
+        assertEquals(1, config.getInt("k0", 7));
+    }
+}
@@ -0,0 +1,228 @@
+/*
+*  Copyright (C) 2016 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.configio;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ConfigRegistryTest {
+    private static final int KEYS = 100;
+    private static final int THREADS = 4;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @After
+    public void tearDown() {
+        // The registry is process wide
+        ConfigRegistry.setMemoryBudget(0);
+    }
+
+    private String writeKeys(String name) {
+        String path = new File(mFolder.getRoot(), name).getPath();
+        ConfigIO.Writer writer = new ConfigIO.Builder(path).build().getWriter();
+        for (int i = 0; i < KEYS; i++) {
+            writer.putInt("k" + i, i + 1).putString("s" + i, "v" + i);
+        }
+        assertTrue(writer.commit());
+        return path;
+    }
+
+    private static FileConfig shared(String path) {
+        FileConfig config = (FileConfig) ConfigIO.newInstance(path);
+        assertTrue(config.loadFromFile());
+        return config;
+    }
+
+    @Test
+    public void onePathGetsOneObject() throws Exception {
+        final String path = writeKeys("config.json");
+        ConfigIO config = ConfigIO.newInstance(path);
+        File dir = mFolder.newFolder("sub");
+        assertSame(config, ConfigIO.newInstance(new File(dir, "../config.json").getPath()));
+        assertSame(config, new ConfigIO.Builder(path).buildShared());
+        assertNotSame(config, new ConfigIO.Builder(path).build());
+
+        // Threads asking at the same time get the same object as well
+        final String other = writeKeys("other.json");
+        final AtomicReference<ConfigIO> first = new AtomicReference<>();
+        final AtomicInteger different = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    ConfigIO config = ConfigIO.newInstance(other);
+                    if (!first.compareAndSet(null, config) && first.get() != config) {
+                        different.incrementAndGet();
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join(10000);
+            assertFalse(thread.isAlive());
+        }
+        assertEquals(0, different.get());
+    }
+
+    @Test
+    public void unusedObjectIsCollected() {
+        String path = writeKeys("config.json");
+        WeakReference<ConfigIO> ref = new WeakReference<ConfigIO>(shared(path));
+        for (int i = 0; i < 50 && ref.get() != null; i++) {
+            System.gc();
+            Thread.yield();
+        }
+        assertNull(ref.get());
+        assertEquals(1, shared(path).getInt("k0", 0));
+    }
+
+    @Test
+    public void budgetEvictsTheLeastRecentlyUsedMap() {
+        // Drop the maps of the shared objects other tests left behind
+        ConfigRegistry.setMemoryBudget(1);
+        ConfigRegistry.setMemoryBudget(0);
+        FileConfig a = shared(writeKeys("a.json"));
+        FileConfig b = shared(writeKeys("b.json"));
+        long size = new File(a.mTargetPath).length();
+        ConfigRegistry.setMemoryBudget(size * 5 / 2);
+        assertTrue(a.mbLoadToMemory && b.mbLoadToMemory);
+
+        assertEquals(1, a.getInt("k0", 0));
+        FileConfig c = shared(writeKeys("c.json"));
+        assertTrue(a.mbLoadToMemory);
+        assertFalse(b.mbLoadToMemory);
+        assertTrue(c.mbLoadToMemory);
+
+        // An evicted map is read again on the next get, and another one gives way
+        assertEquals(KEYS, b.getInt("k" + (KEYS - 1), 0));
+        assertEquals("v1", b.getString("s1", null));
+        assertTrue(b.mbLoadToMemory);
+        assertTrue(a.mbLoadToMemory != c.mbLoadToMemory);
+    }
+
+    @Test
+    public void objectsWithWorkPendingAreNotEvicted() {
+        FileConfig config = shared(writeKeys("config.json"));
+        ConfigIO.OnChangeListener listener = new ConfigIO.OnChangeListener() {
+            @Override
+            public void onChanged(ConfigIO changed, Set<String> keys) {
+            }
+        };
+        config.registerOnChangeListener(listener);
+        assertFalse(config.evict());
+        config.unregisterOnChangeListener(listener);
+
+        synchronized (config) {
+            // The background write waits for the monitor
+            config.getWriter().putInt("k0", -1).apply();
+            assertFalse(config.evict());
+        }
+        config.flush();
+        assertTrue(config.evict());
+        assertEquals(-1, config.getInt("k0", 0));
+    }
+
+    /**
+     * Readers of a shared object while another thread keeps evicting its map never see a missing key
+     */
+    private void checkEvictWhileReading(ConfigIO.Builder builder) throws Throwable {
+        final FileConfig config = (FileConfig) builder.buildShared();
+        assertTrue(config.loadFromFile());
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] readers = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            readers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        while (!done.get()) {
+                            for (int i = 0; i < KEYS; i++) {
+                                if (config.getInt("k" + i, 0) != i + 1 || config.getLong("k" + i, 0) != i + 1
+                                        || !("v" + i).equals(config.getString("s" + i, null))
+                                        || !config.contains("s" + i)) {
+                                    throw new AssertionError("Missed key " + i + " of " + config.mTargetPath);
+                                }
+                            }
+                        }
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+            });
+            readers[t].start();
+        }
+
+        start.countDown();
+        int evicted = 0;
+        try {
+            for (int i = 0; i < 300; i++) {
+                if (config.evict()) {
+                    evicted++;
+                }
+                Thread.yield();
+            }
+        } finally {
+            done.set(true);
+        }
+        for (Thread reader : readers) {
+            reader.join(30000);
+            assertFalse(reader.isAlive());
+        }
+        if (error.get() != null) {
+            throw error.get();
+        }
+        assertTrue(evicted > 0);
+    }
+
+    @Test
+    public void evictWhileReading() throws Throwable {
+        checkEvictWhileReading(new ConfigIO.Builder(writeKeys("plain.json")));
+        checkEvictWhileReading(new ConfigIO.Builder(writeKeys("primitive.json")).setPrimitiveStorage(true));
+        checkEvictWhileReading(new ConfigIO.Builder(writeKeys("concurrent.json")).setConcurrent(true));
+        checkEvictWhileReading(new ConfigIO.Builder(writeKeys("plain.xml")));
+    }
+}
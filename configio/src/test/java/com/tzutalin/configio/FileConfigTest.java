@@ -0,0 +1,147 @@
+/*
+*  Copyright (C) 2016 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.configio;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FileConfigTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    /**
+     * Holding the monitor of the config stands for a write in progress, an apply must still merge meanwhile
+     */
+    private void checkMergeDuringWrite(String name, ConfigIO.Builder builder) throws Exception {
+        final ConfigIO config = builder.build();
+        assertTrue(config.getWriter().putInt("a", 0).putString("b", "x").commit());
+
+        Thread editor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                config.getWriter().putInt("a", 1).remove("b").apply();
+            }
+        });
+        synchronized (config) {
+            editor.start();
+            editor.join(5000);
+            assertFalse(name, editor.isAlive());
+            assertEquals(name, 1, config.getInt("a", 0));
+            assertFalse(name, config.contains("b"));
+        }
+        config.flush();
+
+        ConfigIO loaded = new ConfigIO.Builder(new File(mFolder.getRoot(), name).getPath()).build();
+        assertTrue(loaded.loadFromFile());
+        assertEquals(name, 1, loaded.getInt("a", 0));
+        assertFalse(name, loaded.contains("b"));
+    }
+
+    @Test
+    public void mergeDoesNotWaitForWrite() throws Exception {
+        String[] names = {"plain.json", "concurrent.json", "journal.json", "primitive.xml"};
+        ConfigIO.Builder[] builders = new ConfigIO.Builder[names.length];
+        for (int i = 0; i < names.length; i++) {
+            builders[i] = new ConfigIO.Builder(new File(mFolder.getRoot(), names[i]).getPath());
+        }
+        builders[1].setConcurrent(true);
+        builders[2].setJournalEnabled(true);
+        builders[3].setPrimitiveStorage(true);
+        for (int i = 0; i < names.length; i++) {
+            checkMergeDuringWrite(names[i], builders[i]);
+        }
+    }
+
+    @Test
+    public void clearOfUnloadedConfigReplacesTheFile() {
+        String[] names = {"plain.json", "plain.xml", "journal.json", "binary.cfgb"};
+        for (String name : names) {
+            String path = new File(mFolder.getRoot(), name).getPath();
+            ConfigIO.Builder builder = new ConfigIO.Builder(path).setJournalEnabled(name.startsWith("journal"));
+            assertTrue(name, builder.build().getWriter().putInt("a", 1).putString("b", "x").commit());
+
+            ConfigIO config = builder.build();
+            assertTrue(name, config.getWriter().clear().putInt("c", 2).commit());
+            assertFalse(name, config.contains("a"));
+            ConfigIO loaded = builder.build();
+            assertTrue(name, loaded.loadFromFile());
+            assertEquals(name, 1, loaded.getAll().size());
+            assertEquals(name, 2, loaded.getInt("c", 0));
+
+            // Clearing everything writes an empty file
+            assertTrue(name, builder.build().getWriter().clear().commit());
+            loaded = builder.build();
+            assertTrue(name, loaded.loadFromFile());
+            assertTrue(name, loaded.getAll().isEmpty());
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            return FileConfig.readFully(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void unchangedCommitDoesNotWrite() throws IOException {
+        String[] names = {"plain.json", "plain.xml", "journal.json"};
+        for (String name : names) {
+            File file = new File(mFolder.getRoot(), name);
+            ConfigIO.Builder builder = new ConfigIO.Builder(file.getPath())
+                    .setJournalEnabled(name.startsWith("journal"));
+            ConfigIO config = builder.build();
+            assertTrue(name, config.getWriter().putInt("a", 1).putString("b", "x")
+                    .putBoolean("c", true).putPath("net.retry", 3).commit());
+            assertTrue(name, config.loadFromFile());
+            // In journal mode the commits go to the journal
+            File journal = new File(file.getPath() + ConfigJournal.SUFFIX);
+            File written = journal.exists() ? journal : file;
+            byte[] data = readFile(written);
+            assertTrue(name, written.setLastModified(written.lastModified() - 60 * 1000));
+            long modified = written.lastModified();
+
+            // Equal values, a key which is not there, and a change which is undone in the same commit
+            assertTrue(name, config.getWriter().putInt("a", 1).putString("b", "x")
+                    .putBoolean("c", true).putPath("net.retry", 3).remove("none").commit());
+            assertTrue(name, config.getWriter().putInt("a", 2).putInt("a", 1).commit());
+            if (written == file) {
+                // The same values from an object which did not load the file, a journal appends them unread
+                assertTrue(name, builder.build().getWriter().putInt("a", 1).commit());
+            }
+            assertEquals(name, modified, written.lastModified());
+            assertArrayEquals(name, data, readFile(written));
+
+            assertTrue(name, config.getWriter().putInt("a", 2).commit());
+            ConfigIO loaded = builder.build();
+            assertTrue(name, loaded.loadFromFile());
+            assertEquals(name, 2, loaded.getInt("a", 0));
+        }
+    }
+}
@@ -0,0 +1,321 @@
+/*
+*  Copyright (C) 2016 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.configio;
+
+import com.tzutalin.configio.utils.FastJsonReader;
+import com.tzutalin.configio.utils.FastJsonSerializer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class JsonConfigTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    // The size of the read buffer of FastJsonReader
+    private static final int BUFFER_LEN = 8192;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static FastJsonReader reader(String json) {
+        return new FastJsonReader(new ByteArrayInputStream(json.getBytes(UTF_8)));
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    private String writeFile(String name, String content) throws IOException {
+        File file = new File(mFolder.getRoot(), name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes(UTF_8));
+        } finally {
+            out.close();
+        }
+        return file.getPath();
+    }
+
+    @Test
+    public void readerReadsEveryToken() throws IOException {
+        FastJsonReader reader = reader(" {\"i\": -12, \"l\": 9000000000, \"big\": 12345678901234567890, "
+                + "\"d\": 1.5e-3, \"t\": true, \"f\": false, \"n\": null, \"a\": [1, \"x\", {}], \"o\": {\"k\": []}}\n");
+        reader.beginObject();
+        assertEquals("i", reader.nextName());
+        assertEquals(-12, reader.nextNumber());
+        assertEquals("l", reader.nextName());
+        assertEquals(9000000000L, reader.nextNumber());
+        assertEquals("big", reader.nextName());
+        assertEquals(1.2345678901234567e19, reader.nextNumber());
+        assertEquals("d", reader.nextName());
+        assertEquals(1.5e-3, reader.nextNumber());
+        assertEquals("t", reader.nextName());
+        assertTrue(reader.nextBoolean());
+        assertEquals("f", reader.nextName());
+        assertFalse(reader.nextBoolean());
+        assertEquals("n", reader.nextName());
+        assertEquals(FastJsonReader.NULL, reader.peek());
+        reader.nextNull();
+        assertEquals("a", reader.nextName());
+        reader.beginArray();
+        assertEquals(1, reader.nextNumber());
+        assertEquals("x", reader.nextString());
+        reader.beginObject();
+        assertFalse(reader.hasNext());
+        reader.endObject();
+        assertFalse(reader.hasNext());
+        reader.endArray();
+        assertEquals("o", reader.nextName());
+        reader.skipValue();
+        reader.endObject();
+        assertEquals(FastJsonReader.END_DOCUMENT, reader.peek());
+    }
+
+    @Test
+    public void readerDecodesEscapesAndUtf8() throws IOException {
+        FastJsonReader reader = reader("[\"a\\\"b\\\\c\\/\\n\\t\\u00e9\\ud83d\\ude00\", \"\u00e9\u4e2d\ud83d\ude00\"]");
+        reader.beginArray();
+        assertEquals("a\"b\\c/\n\t\u00e9\ud83d\ude00", reader.nextString());
+        assertEquals("\u00e9\u4e2d\ud83d\ude00", reader.nextString());
+        reader.endArray();
+    }
+
+    @Test
+    public void readerReadsStringsAcrossBufferBoundaries() throws IOException {
+        String value = "\u00e9\u4e2d\ud83d\ude00\\n";
+        for (int pad = BUFFER_LEN - 12; pad <= BUFFER_LEN + 2; pad++) {
+            FastJsonReader reader = reader("[\"" + repeat('x', pad) + "\", \"" + value + "\", 1234567]");
+            reader.beginArray();
+            assertEquals(pad, reader.nextString().length());
+            assertEquals("pad " + pad, "\u00e9\u4e2d\ud83d\ude00\n", reader.nextString());
+            assertEquals("pad " + pad, 1234567, reader.nextNumber());
+            reader.endArray();
+        }
+    }
+
+    @Test
+    public void readerReadsPartOfArray() throws IOException {
+        byte[] data = "xx{\"a\":[1,2]}yy".getBytes(UTF_8);
+        FastJsonReader reader = new FastJsonReader(data, 2, data.length - 4);
+        reader.beginObject();
+        assertEquals("a", reader.nextName());
+        assertEquals(FastJsonReader.BEGIN_ARRAY, reader.peek());
+        assertEquals(7, reader.getTokenOffset());
+        reader.skipValue();
+        assertEquals(12, reader.position());
+        reader.endObject();
+        assertEquals(FastJsonReader.END_DOCUMENT, reader.peek());
+    }
+
+    @Test
+    public void readerRejectsBrokenDocuments() {
+        String[] broken = {"", "{", "{\"a\":1", "{\"a\" 1}", "{\"a\":1,}", "{\"a\":tru}", "{\"a\":\"x}",
+                "{\"a\":\"\\q\"}", "{\"a\":\"\\u12G4\"}", "{\"a\":1.2.3}", "{\"a\":-}", "{a:1}", "{\"a\":[1,2}",
+                "{\"a\":[1 2]}", "{\"a\":1}}"};
+        for (String json : broken) {
+            try {
+                FastJsonReader reader = reader(json);
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    reader.nextName();
+                    if (reader.peek() == FastJsonReader.NUMBER) {
+                        reader.nextNumber();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+                reader.peek();
+                fail("Accepted " + json);
+            } catch (IOException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void configRoundTripsAllTypes() {
+        String path = new File(mFolder.getRoot(), "config.json").getPath();
+        String text = "q\"\\/\n\u00e9\u4e2d\ud83d\ude00\u0001";
+        ConfigIO config = new ConfigIO.Builder(path).build();
+        assertTrue(config.getWriter().putString("s", text).putInt("i", Integer.MIN_VALUE)
+                .putLong("l", Long.MAX_VALUE).putFloat("f", 0.1f).putDouble("d", -1e300)
+                .putBoolean("b", true).putPath("m.list[0]", "x").putPath("m.n", 2).commit());
+
+        for (boolean lazy : new boolean[]{false, true}) {
+            ConfigIO loaded = new ConfigIO.Builder(path).setLazyLoad(lazy).build();
+            assertTrue(loaded.loadFromFile());
+            assertEquals(text, loaded.getString("s", null));
+            assertEquals(Integer.MIN_VALUE, loaded.getInt("i", 0));
+            assertEquals(Long.MAX_VALUE, loaded.getLong("l", 0));
+            assertEquals(0.1f, loaded.getFloat("f", 0), 0);
+            assertEquals(-1e300, loaded.getDouble("d", 0), 0);
+            assertTrue(loaded.getBoolean("b", false));
+            assertEquals("x", loaded.getString("m.list[0]", null));
+            assertEquals(2, loaded.getInt("m.n", 0));
+            Map<?, ?> nested = (Map<?, ?>) loaded.getAll().get("m");
+            assertEquals(Arrays.asList("x"), (List<?>) nested.get("list"));
+        }
+    }
+
+    @Test
+    public void brokenFileDoesNotLoad() throws IOException {
+        String[] broken = {"", "{", "[1]", "{\"a\":1", "{\"a\":\"x}", "{\"a\":\"\\q\"}", "{\"a\":[1,2}",
+                "{\"a\":1} trailing"};
+        for (int i = 0; i < broken.length; i++) {
+            String path = writeFile("broken" + i + ".json", broken[i]);
+            for (boolean lazy : new boolean[]{false, true}) {
+                ConfigIO config = new ConfigIO.Builder(path).setLazyLoad(lazy).build();
+                assertFalse(broken[i], config.loadFromFile());
+                assertEquals(broken[i], 5, config.getInt("a", 5));
+            }
+        }
+    }
+
+    @Test
+    public void truncatedFileDoesNotLoad() throws IOException {
+        String path = new File(mFolder.getRoot(), "config.json").getPath();
+        ConfigIO config = new ConfigIO.Builder(path).build();
+        assertTrue(config.getWriter().putString("s", repeat('x', 3 * BUFFER_LEN)).putInt("i", 1).commit());
+        FileInputStream in = new FileInputStream(path);
+        byte[] whole;
+        try {
+            whole = FileConfig.readFully(in);
+        } finally {
+            in.close();
+        }
+        for (int length = whole.length - 1; length > 0; length -= 4097) {
+            String cut = writeFile("cut.json", new String(whole, 0, length, UTF_8));
+            assertFalse("length " + length, new ConfigIO.Builder(cut).build().loadFromFile());
+        }
+    }
+
+    private static String serialize(Map<String, ?> map, boolean indent) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FastJsonSerializer serializer = new FastJsonSerializer();
+        serializer.setOutput(out);
+        serializer.setIndent(indent);
+        serializer.serialize(map);
+        return new String(out.toByteArray(), UTF_8);
+    }
+
+    @Test
+    public void serializerWritesEveryType() throws IOException {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("s", "a\"b\\c\n\u0001\u00e9\ud83d\ude00");
+        map.put("i", -12);
+        map.put("l", Long.MIN_VALUE);
+        map.put("d", 1.5);
+        map.put("whole", 2.0);
+        map.put("negativeZero", -0f);
+        map.put("b", true);
+        map.put("n", null);
+        map.put("a", new String[]{"x", "y"});
+        map.put("o", new LinkedHashMap<String, Object>());
+        assertEquals("{\"s\":\"a\\\"b\\\\c\\n\\u0001\u00e9\ud83d\ude00\",\"i\":-12,"
+                + "\"l\":-9223372036854775808,\"d\":1.5,\"whole\":2,\"negativeZero\":-0.0,\"b\":true,\"n\":null,"
+                + "\"a\":[\"x\",\"y\"],\"o\":{}}", serialize(map, false));
+
+        Map<String, Object> nested = new LinkedHashMap<>();
+        nested.put("k", Arrays.asList(1, 2));
+        assertEquals("{\n    \"k\": [\n        1,\n        2\n    ]\n}\n", serialize(nested, true));
+    }
+
+    @Test
+    public void serializerKeepsSurrogatePairsAcrossFlushes() throws IOException {
+        for (int pad = BUFFER_LEN - 12; pad <= BUFFER_LEN + 2; pad++) {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("k", repeat('x', pad) + "\ud83d\ude00\u00e9");
+            FastJsonReader reader = reader(serialize(map, false));
+            reader.beginObject();
+            assertEquals("k", reader.nextName());
+            assertEquals("pad " + pad, map.get("k"), reader.nextString());
+        }
+    }
+
+    @Test
+    public void serializerEscapesUnpairedSurrogates() throws IOException {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("k", "a\ud83d|\ude00b\ud83d\ude00");
+        String json = serialize(map, false);
+        assertEquals("{\"k\":\"a\\ud83d|\\ude00b\ud83d\ude00\"}", json);
+        FastJsonReader reader = reader(json);
+        reader.beginObject();
+        assertEquals("k", reader.nextName());
+        assertEquals(map.get("k"), reader.nextString());
+
+        // And through a file
+        String path = new File(mFolder.getRoot(), "config.json").getPath();
+        assertTrue(new ConfigIO.Builder(path).build().getWriter().putString("k", "\udc00x\ud800").commit());
+        ConfigIO loaded = new ConfigIO.Builder(path).build();
+        assertTrue(loaded.loadFromFile());
+        assertEquals("\udc00x\ud800", loaded.getString("k", null));
+    }
+
+    @Test
+    public void serializerRejectsWhatJsonCannotHold() {
+        Object[] values = {Double.NaN, Float.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, new Object()};
+        for (Object value : values) {
+            try {
+                serialize(Collections.singletonMap("k", value), false);
+                fail("Wrote " + value);
+            } catch (IOException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void commitOfNonFiniteNumberFailsAndKeepsTheFile() {
+        String path = new File(mFolder.getRoot(), "config.json").getPath();
+        ConfigIO config = new ConfigIO.Builder(path).build();
+        assertTrue(config.getWriter().putDouble("d", 1.5).putInt("i", 1).commit());
+        assertFalse(config.getWriter().putDouble("d", Double.NaN).commit());
+        assertFalse(config.getWriter().putFloat("f", Float.NEGATIVE_INFINITY).commit());
+
+        ConfigIO loaded = new ConfigIO.Builder(path).build();
+        assertTrue(loaded.loadFromFile());
+        assertEquals(1.5, loaded.getDouble("d", 0), 0);
+        assertFalse(loaded.contains("f"));
+
+        // The next commit which replaces the values writes again
+        assertTrue(config.getWriter().putDouble("d", 2.5).remove("f").commit());
+        ConfigIO again = new ConfigIO.Builder(path).build();
+        assertTrue(again.loadFromFile());
+        assertEquals(2.5, again.getDouble("d", 0), 0);
+    }
+}
@@ -0,0 +1,177 @@
+/*
+*  Copyright (C) 2016 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.configio;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class KeyPathTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void parse() {
+        assertEquals(Arrays.<Object>asList("retry", "max"), KeyPath.parse(".retry.max"));
+        assertEquals(Arrays.<Object>asList(1, "host"), KeyPath.parse("[1].host"));
+        assertEquals(Arrays.<Object>asList("a", 0, 2), KeyPath.parse(".a[0][2]"));
+    }
+
+    @Test
+    public void parseRejectsInvalidPaths() {
+        assertNull(KeyPath.parse(""));
+        assertNull(KeyPath.parse("."));
+        assertNull(KeyPath.parse(".a..b"));
+        assertNull(KeyPath.parse("[x]"));
+        assertNull(KeyPath.parse("[1"));
+        assertNull(KeyPath.parse("a"));
+    }
+
+    @Test
+    public void topKeyIsShortestNestedPrefix() {
+        Map<String, Object> map = new HashMap<>();
+        map.put("net", Collections.singletonMap("retry", 3));
+        map.put("a.b", Collections.singletonMap("c", 1));
+        map.put("flat", 1);
+        assertEquals("net", KeyPath.topKey(map, "net.retry"));
+        assertEquals("a.b", KeyPath.topKey(map, "a.b.c"));
+        assertNull(KeyPath.topKey(map, "flat.x"));
+        assertNull(KeyPath.topKey(map, "none.x"));
+        assertEquals("net", KeyPath.head("net[0].x"));
+    }
+
+    @Test
+    public void flattenIndexesEveryLevel() {
+        Map<String, Object> inner = new HashMap<>();
+        inner.put("host", "h");
+        List<Object> servers = new ArrayList<>();
+        servers.add(inner);
+        Map<String, Object> net = new HashMap<>();
+        net.put("servers", servers);
+        Map<String, Object> index = KeyPath.flatten("net", net);
+        assertSame(servers, index.get("net.servers"));
+        assertSame(inner, index.get("net.servers[0]"));
+        assertEquals("h", index.get("net.servers[0].host"));
+        assertEquals(3, index.size());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void withCopiesAlongThePath() {
+        Map<String, Object> retry = new HashMap<>();
+        retry.put("max", 3);
+        Map<String, Object> net = new HashMap<>();
+        net.put("retry", retry);
+        net.put("other", Collections.singletonMap("x", 1));
+
+        Map<String, Object> next = (Map<String, Object>) KeyPath.with(net, KeyPath.parse(".retry.max"), 0, 5);
+        assertEquals(5, ((Map<String, Object>) next.get("retry")).get("max"));
+        // The old value is not changed, the untouched branch is shared
+        assertEquals(3, retry.get("max"));
+        assertSame(net.get("other"), next.get("other"));
+
+        Object removed = KeyPath.with(next, KeyPath.parse(".retry"), 0, KeyPath.REMOVE);
+        assertFalse(((Map<String, Object>) removed).containsKey("retry"));
+        // Nothing to remove gives the same object back
+        assertSame(next, KeyPath.with(next, KeyPath.parse(".none"), 0, KeyPath.REMOVE));
+    }
+
+    @Test
+    public void withAppendsButDoesNotLeaveHoles() {
+        List<Object> list = new ArrayList<Object>(Arrays.asList("a"));
+        assertEquals(Arrays.asList("a", "b"), KeyPath.with(list, KeyPath.parse("[1]"), 0, "b"));
+        assertSame(list, KeyPath.with(list, KeyPath.parse("[3]"), 0, "b"));
+        assertSame(list, KeyPath.with(list, KeyPath.parse(".x"), 0, "b"));
+    }
+
+    @Test
+    public void configReadsAndWritesPaths() {
+        String path = new File(mFolder.getRoot(), "config.json").getPath();
+        ConfigIO config = new ConfigIO.Builder(path).build();
+        assertTrue(config.getWriter().putPath("net.retry.max", 5).putPath("net.host", "h")
+                .putInt("flat", 1).commit());
+        assertEquals(5, config.getInt("net.retry.max", 0));
+        // A miss under an existing key and under a missing key
+        assertEquals(3, config.getInt("net.retry.min", 3));
+        assertEquals(3, config.getInt("none.retry", 3));
+        assertTrue(config.contains("net.host"));
+
+        // Writing the key replaces its indexed paths
+        assertTrue(config.getWriter().putPath("net.retry.max", 6).commit());
+        assertEquals(6, config.getInt("net.retry.max", 0));
+        assertTrue(config.getWriter().remove("net").commit());
+        assertEquals(0, config.getInt("net.retry.max", 0));
+        assertFalse(config.contains("net.host"));
+
+        assertTrue(config.getWriter().putPath("net.retry.max", 7).commit());
+        ConfigIO loaded = new ConfigIO.Builder(path).build();
+        assertTrue(loaded.loadFromFile());
+        assertEquals(7, loaded.getInt("net.retry.max", 0));
+    }
+
+    @Test
+    public void xmlConfigRejectsPathsWhichCreateLists() throws Exception {
+        File file = new File(mFolder.getRoot(), "config.xml");
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(("<map><string-array name=\"arr\" num=\"2\"><item value=\"x\" /><item value=\"y\" />"
+                + "</string-array></map>").getBytes("UTF-8"));
+        out.close();
+        ConfigIO config = new ConfigIO.Builder(file.getPath()).build();
+        assertTrue(config.loadFromFile());
+
+        String[] lists = {"servers[0].host", "net.servers[0]", "arr[0].x"};
+        for (String path : lists) {
+            try {
+                config.getWriter().putPath(path, "h");
+                fail("Accepted " + path);
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+        }
+        try {
+            config.getWriter().putPath("net.servers", Collections.singletonList("h"));
+            fail("Accepted a list");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+
+        // Nested maps and the items of a string array can still be written
+        assertTrue(config.getWriter().putPath("net.retry.max", 5).putPath("arr[1]", "z").commit());
+        assertTrue(config.getWriter().putInt("flat", 1).commit());
+        ConfigIO loaded = new ConfigIO.Builder(file.getPath()).build();
+        assertTrue(loaded.loadFromFile());
+        assertEquals(5, loaded.getInt("net.retry.max", 0));
+        assertEquals("z", loaded.getString("arr[1]", null));
+        assertEquals(1, loaded.getInt("flat", 0));
+    }
+}
@@ -0,0 +1,215 @@
+/*
+*  Copyright (C) 2016 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.configio;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MappedConfigTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private String mPath;
+
+    @Before
+    public void setUp() {
+        mPath = new File(mFolder.getRoot(), "config.cfgm").getPath();
+    }
+
+    private static Map<String, Object> sample() {
+        Map<String, Object> map = new HashMap<>();
+        map.put("int", 42);
+        map.put("long", 1L << 40);
+        map.put("float", 0.5f);
+        map.put("double", 2.25d);
+        map.put("bool", true);
+        map.put("str", "héllo 😀");
+        map.put("array", new String[]{"a", null, "c"});
+        for (int i = 0; i < 100; i++) {
+            map.put("key" + i, i);
+        }
+        return map;
+    }
+
+    private MappedConfig open() {
+        return new MappedConfig(mPath);
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        MappedConfig.write(sample(), mPath);
+        MappedConfig config = open();
+        assertTrue(config.loadFromFile());
+        assertEquals(42, config.getInt("int", 0));
+        assertEquals(1L << 40, config.getLong("long", 0));
+        assertEquals(0.5f, config.getFloat("float", 0), 0);
+        assertEquals(2.25d, config.getDouble("double", 0), 0);
+        assertTrue(config.getBoolean("bool", false));
+        assertEquals("héllo 😀", config.getString("str", null));
+        assertArrayEquals(new String[]{"a", null, "c"}, (String[]) config.getAll().get("array"));
+        assertEquals(99, config.getInt("key99", 0));
+        assertEquals(-1, config.getInt("missing", -1));
+        assertEquals(107, config.getAll().size());
+    }
+
+    @Test
+    public void rewriteKeepsOpenMappingValid() throws IOException {
+        MappedConfig.write(sample(), mPath);
+        MappedConfig config = open();
+        assertTrue(config.loadFromFile());
+
+        Map<String, Object> small = new HashMap<>();
+        small.put("int", 7);
+        MappedConfig.write(small, mPath);
+
+        // The open mapping still reads the replaced file, the new object reads the new one
+        assertEquals(42, config.getInt("int", 0));
+        assertEquals("héllo 😀", config.getString("str", null));
+        MappedConfig reopened = open();
+        assertTrue(reopened.loadFromFile());
+        assertEquals(7, reopened.getInt("int", 0));
+        assertNull(reopened.getString("str", null));
+    }
+
+    @Test
+    public void truncatedFileLosesOnlyTheCutEntries() throws IOException {
+        MappedConfig.write(sample(), mPath);
+        RandomAccessFile raf = new RandomAccessFile(mPath, "rw");
+        try {
+            raf.setLength(raf.length() - 10);
+        } finally {
+            raf.close();
+        }
+        MappedConfig config = open();
+        assertTrue(config.loadFromFile());
+        int found = 0;
+        for (String key : sample().keySet()) {
+            if (config.contains(key)) {
+                found++;
+            }
+        }
+        assertTrue(found > 100 && found < 107);
+        assertEquals(found, config.getAll().size());
+    }
+
+    @Test
+    public void rejectsSectionOutsideFile() throws IOException {
+        MappedConfig.write(sample(), mPath);
+        RandomAccessFile raf = new RandomAccessFile(mPath, "rw");
+        try {
+            raf.setLength(40);
+        } finally {
+            raf.close();
+        }
+        assertFalse(open().loadFromFile());
+    }
+
+    @Test
+    public void ignoresEntryOutsideFile() throws IOException {
+        Map<String, Object> map = new HashMap<>();
+        map.put("a", 1);
+        MappedConfig.write(map, mPath);
+        RandomAccessFile raf = new RandomAccessFile(mPath, "rw");
+        try {
+            // Point every used slot of the table past the end of the file
+            raf.seek(24);
+            int tableOffset = raf.readInt();
+            raf.seek(20);
+            int slots = raf.readInt();
+            for (int slot = 0; slot < slots; slot++) {
+                raf.seek(tableOffset + slot * 4);
+                if (raf.readInt() != 0) {
+                    raf.seek(tableOffset + slot * 4);
+                    raf.writeInt((int) raf.length() + 100);
+                }
+            }
+        } finally {
+            raf.close();
+        }
+        // Opening does not look at the entries, the lookup which reaches one does
+        MappedConfig config = open();
+        assertTrue(config.loadFromFile());
+        assertEquals(-1, config.getInt("a", -1));
+        assertFalse(config.contains("a"));
+        assertTrue(config.getAll().isEmpty());
+    }
+
+    @Test
+    public void ignoresStringLengthOutsideFile() throws IOException {
+        Map<String, Object> map = new HashMap<>();
+        map.put("s", "value");
+        MappedConfig.write(map, mPath);
+        RandomAccessFile raf = new RandomAccessFile(mPath, "rw");
+        try {
+            // The single entry is the last one: hash, key length, key, type, then the string length
+            raf.seek(raf.length() - "value".length() - 4);
+            raf.writeInt(Integer.MAX_VALUE);
+        } finally {
+            raf.close();
+        }
+        MappedConfig config = open();
+        assertTrue(config.loadFromFile());
+        assertNull(config.getString("s", null));
+        assertTrue(config.getAll().isEmpty());
+    }
+
+    @Test
+    public void lookupEndsInFullTable() throws IOException {
+        Map<String, Object> map = new HashMap<>();
+        map.put("a", 1);
+        MappedConfig.write(map, mPath);
+        RandomAccessFile raf = new RandomAccessFile(mPath, "rw");
+        try {
+            // Every slot points at the only entry, so no probe finds an empty slot
+            raf.seek(24);
+            int tableOffset = raf.readInt();
+            raf.seek(20);
+            int slots = raf.readInt();
+            int entry = tableOffset + slots * 4;
+            for (int slot = 0; slot < slots; slot++) {
+                raf.seek(tableOffset + slot * 4);
+                raf.writeInt(entry);
+            }
+            // Let every key pass the bloom filter
+            byte[] bloom = new byte[tableOffset - 32];
+            Arrays.fill(bloom, (byte) 0xFF);
+            raf.seek(32);
+            raf.write(bloom);
+        } finally {
+            raf.close();
+        }
+        MappedConfig config = open();
+        assertTrue(config.loadFromFile());
+        assertEquals(1, config.getInt("a", -1));
+        assertEquals(-1, config.getInt("missing", -1));
+    }
+}
@@ -0,0 +1,198 @@
+/*
+*  Copyright (C) 2016 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.configio;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PackStoreTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mFile;
+
+    @Before
+    public void setUp() {
+        mFile = new File(mFolder.getRoot(), "configs.pack");
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(UTF_8);
+    }
+
+    private static String text(byte[] bytes) {
+        return bytes != null ? new String(bytes, UTF_8) : null;
+    }
+
+    @Test
+    public void parsesPackPaths() {
+        assertTrue(PackStore.isPackPath("pack:///data/users.pack#user42.json"));
+        assertEquals("/data/users.pack", PackStore.containerOf("pack:///data/users.pack#user42.json"));
+        assertEquals("user42.json", PackStore.entryOf("pack:///data/users.pack#user42.json"));
+        assertFalse(PackStore.isPackPath("/data/users.json"));
+        try {
+            PackStore.containerOf("pack:///data/users.pack#");
+            throw new AssertionError("empty entry accepted");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void writesReadsAndDeletesEntries() throws IOException {
+        PackStore store = new PackStore(mFile);
+        store.write("a.json", bytes("{\"a\":1}"));
+        store.write("b.json", bytes("{\"b\":2}"));
+        store.write("a.json", bytes("{\"a\":3}"));
+        store.write("b.json", null);
+
+        PackStore reopened = new PackStore(mFile);
+        assertEquals("{\"a\":3}", text(reopened.read("a.json")));
+        assertNull(reopened.read("b.json"));
+        assertFalse(reopened.contains("b.json"));
+        assertEquals(7, reopened.length("a.json"));
+    }
+
+    @Test
+    public void tornRecordIsIgnoredAndOverwritten() throws IOException {
+        PackStore store = new PackStore(mFile);
+        store.write("a.json", bytes("{\"a\":1}"));
+        long length = mFile.length();
+        store.write("b.json", bytes("{\"b\":2}"));
+        // Cut the last record in the middle of its data
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        raf.setLength(length + 14);
+        raf.close();
+
+        PackStore reopened = new PackStore(mFile);
+        assertEquals("{\"a\":1}", text(reopened.read("a.json")));
+        assertNull(reopened.read("b.json"));
+        reopened.write("c.json", bytes("{}"));
+
+        PackStore again = new PackStore(mFile);
+        assertEquals("{\"a\":1}", text(again.read("a.json")));
+        assertEquals("{}", text(again.read("c.json")));
+    }
+
+    @Test
+    public void recordWithBadChecksumEndsTheLog() throws IOException {
+        PackStore store = new PackStore(mFile);
+        store.write("a.json", bytes("{\"a\":1}"));
+        long length = mFile.length();
+        store.write("b.json", bytes("{\"b\":2}"));
+        store.write("c.json", bytes("{\"c\":3}"));
+        // Flip a byte of the data of b.json, so neither it nor the record after it is trusted
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        raf.seek(length + 4 + 6 + 4 + 2);
+        raf.write('x');
+        raf.close();
+
+        PackStore reopened = new PackStore(mFile);
+        assertEquals("{\"a\":1}", text(reopened.read("a.json")));
+        assertNull(reopened.read("b.json"));
+        assertNull(reopened.read("c.json"));
+    }
+
+    @Test
+    public void rejectsOtherFiles() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        raf.write(bytes("{\"not\":\"a pack\"}"));
+        raf.close();
+        try {
+            new PackStore(mFile).read("a.json");
+            throw new AssertionError("not a pack accepted");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void appendsOfOtherProcessesAreKept() throws IOException {
+        PackStore first = new PackStore(mFile);
+        PackStore second = new PackStore(mFile);
+        first.write("a.json", bytes("1"));
+        assertEquals("1", text(second.read("a.json")));
+
+        // Each one appends behind the records of the other instead of over them
+        second.write("b.json", bytes("2"));
+        first.write("c.json", bytes("3"));
+        second.write("a.json", bytes("4"));
+
+        PackStore reopened = new PackStore(mFile);
+        assertEquals("4", text(reopened.read("a.json")));
+        assertEquals("2", text(reopened.read("b.json")));
+        assertEquals("3", text(reopened.read("c.json")));
+        first.refresh();
+        assertEquals("4", text(first.read("a.json")));
+        assertEquals("2", text(first.read("b.json")));
+    }
+
+    @Test
+    public void compactionOfOtherProcessIsNoticed() throws IOException {
+        PackStore first = new PackStore(mFile);
+        PackStore second = new PackStore(mFile);
+        first.write("keep.json", bytes("k"));
+        assertEquals("k", text(second.read("keep.json")));
+
+        // Enough dead records for the first one to rewrite the container
+        byte[] data = new byte[16 * 1024];
+        Arrays.fill(data, (byte) 'x');
+        for (int i = 0; i < 8; i++) {
+            first.write("big.json", data);
+        }
+        first.write("big.json", null);
+        long compacted = mFile.length();
+        assertTrue(compacted < 1024);
+
+        // The second one still holds the replaced file, its append has to land in the new one
+        second.write("late.json", bytes("l"));
+        assertTrue(mFile.length() > compacted);
+        PackStore reopened = new PackStore(mFile);
+        assertEquals("k", text(reopened.read("keep.json")));
+        assertEquals("l", text(reopened.read("late.json")));
+        assertNull(reopened.read("big.json"));
+    }
+
+    @Test
+    public void refreshBumpsGenerationOfChangedEntries() throws IOException {
+        PackStore first = new PackStore(mFile);
+        PackStore second = new PackStore(mFile);
+        first.write("a.json", bytes("1"));
+        second.read("a.json");
+        int generation = second.generation("a.json");
+        first.write("a.json", bytes("2"));
+        second.refresh();
+        assertTrue(second.generation("a.json") != generation);
+        assertArrayEquals(bytes("2"), second.read("a.json"));
+    }
+}
@@ -0,0 +1,196 @@
+/*
+*  Copyright (C) 2016 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.configio;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PrimitiveMapTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void behavesLikeHashMap() {
+        Random random = new Random(42);
+        PrimitiveMap map = new PrimitiveMap();
+        Map<String, Object> expected = new HashMap<>();
+        // Few keys and many removes, so the table is rebuilt with deleted slots in it
+        for (int i = 0; i < 20000; i++) {
+            String key = "k" + random.nextInt(300);
+            int op = random.nextInt(8);
+            if (op == 0) {
+                assertEquals(expected.remove(key), map.remove(key));
+            } else if (op == 1) {
+                int value = random.nextInt(5);
+                assertEquals(!Integer.valueOf(value).equals(expected.put(key, value)), map.putInt(key, value));
+            } else if (op == 2) {
+                long value = random.nextLong();
+                expected.put(key, value);
+                map.putLong(key, value);
+            } else if (op == 3) {
+                expected.put(key, random.nextBoolean());
+                map.putBoolean(key, (Boolean) expected.get(key));
+            } else if (op == 4) {
+                expected.put(key, random.nextDouble());
+                map.putDouble(key, (Double) expected.get(key));
+            } else if (op == 5) {
+                expected.put(key, random.nextFloat());
+                map.putFloat(key, (Float) expected.get(key));
+            } else if (op == 6) {
+                Object value = random.nextBoolean() ? "s" + i : null;
+                assertEquals(expected.put(key, value), map.put(key, value));
+            } else {
+                assertEquals(expected.containsKey(key), map.containsKey(key));
+                assertEquals(expected.get(key), map.get(key));
+            }
+            assertEquals(expected.size(), map.size());
+        }
+        assertEquals(expected, map);
+        assertEquals(map, expected);
+        assertEquals(expected.hashCode(), map.hashCode());
+        assertEquals(expected, new HashMap<>(map));
+        assertEquals(expected, new PrimitiveMap(expected));
+
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertNull(map.get("k1"));
+        assertFalse(map.entrySet().iterator().hasNext());
+    }
+
+    @Test
+    public void keepsPrimitivesUnboxed() {
+        PrimitiveMap map = new PrimitiveMap();
+        assertTrue(map.putInt("i", 7));
+        assertFalse(map.putInt("i", 7));
+        int slot = map.indexOf("i");
+        assertEquals(PrimitiveMap.TYPE_INT, map.typeAt(slot));
+        assertEquals(7, map.intAt(slot));
+        // The same number as another type is a change
+        assertTrue(map.putLong("i", 7));
+        assertEquals(PrimitiveMap.TYPE_LONG, map.typeAt(map.indexOf("i")));
+        assertEquals(7L, map.get("i"));
+
+        // Floats compare by their bits
+        assertTrue(map.putFloat("f", Float.NaN));
+        assertFalse(map.putFloat("f", Float.NaN));
+        assertTrue(map.putDouble("d", 0d));
+        assertTrue(map.putDouble("d", -0d));
+        assertEquals(Double.doubleToLongBits(-0d), Double.doubleToLongBits((Double) map.get("d")));
+
+        // A boxed put keeps the value unboxed too, an object over a primitive drops its bits
+        map.put("b", Boolean.TRUE);
+        assertEquals(PrimitiveMap.TYPE_BOOLEAN, map.typeAt(map.indexOf("b")));
+        assertTrue(map.booleanAt(map.indexOf("b")));
+        map.put("b", "text");
+        assertEquals(PrimitiveMap.TYPE_OBJECT, map.typeAt(map.indexOf("b")));
+        assertEquals("text", map.get("b"));
+        assertEquals(-1, map.indexOf("none"));
+    }
+
+    @Test
+    public void iteratorRemovesAndChecksModifications() {
+        PrimitiveMap map = new PrimitiveMap();
+        for (int i = 0; i < 10; i++) {
+            map.putInt("k" + i, i);
+        }
+        Iterator<Map.Entry<String, Object>> it = map.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Object> entry = it.next();
+            if ((Integer) entry.getValue() % 2 == 0) {
+                it.remove();
+            } else {
+                entry.setValue(-1);
+            }
+        }
+        assertEquals(5, map.size());
+        assertEquals(-1, map.get("k1"));
+        assertFalse(map.containsKey("k2"));
+
+        it = map.entrySet().iterator();
+        it.next();
+        map.putInt("new", 1);
+        try {
+            it.next();
+            fail("No ConcurrentModificationException");
+        } catch (ConcurrentModificationException e) {
+            // Expected
+        }
+    }
+
+    private static final int GETTERS = 7;
+
+    private static Object get(ConfigIO config, int getter, String key) {
+        try {
+            switch (getter) {
+                case 0:
+                    return config.getInt(key, -1);
+                case 1:
+                    return config.getLong(key, -1);
+                case 2:
+                    return config.getFloat(key, -1);
+                case 3:
+                    return config.getDouble(key, -1);
+                case 4:
+                    return config.getBoolean(key, false);
+                case 5:
+                    return config.getString(key, "-");
+                default:
+                    return config.contains(key);
+            }
+        } catch (ClassCastException e) {
+            return ClassCastException.class;
+        }
+    }
+
+    @Test
+    public void configWithPrimitiveStorageMatchesPlainConfig() {
+        String[] names = {"plain.json", "primitive.json"};
+        ConfigIO[] configs = new ConfigIO[names.length];
+        for (int i = 0; i < names.length; i++) {
+            String path = new File(mFolder.getRoot(), names[i]).getPath();
+            configs[i] = new ConfigIO.Builder(path).setPrimitiveStorage(i == 1).build();
+            assertTrue(configs[i].getWriter().putInt("i", 3).putLong("l", 1L << 40).putFloat("f", 1.5f)
+                    .putDouble("d", 2.5).putBoolean("b", true).putString("s", "x").commit());
+        }
+        ConfigIO loaded = new ConfigIO.Builder(configs[1].mTargetPath).setPrimitiveStorage(true).build();
+        assertTrue(loaded.loadFromFile());
+
+        for (ConfigIO config : new ConfigIO[]{configs[1], loaded}) {
+            ConfigIO plain = configs[0];
+            for (String key : new String[]{"i", "l", "f", "d", "b", "s", "none"}) {
+                // Every getter on every key, so the conversions and the failures match too
+                for (int getter = 0; getter < GETTERS; getter++) {
+                    assertEquals(key + " " + getter, get(plain, getter, key), get(config, getter, key));
+                }
+            }
+        }
+    }
+}
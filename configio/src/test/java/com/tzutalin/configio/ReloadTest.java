@@ -0,0 +1,147 @@
+/*
+*  Copyright (C) 2016 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.configio;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ReloadTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private String path(String name) {
+        return new File(mFolder.getRoot(), name).getPath();
+    }
+
+    private static void writeFile(File file, String text) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(text.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    private static ConfigIO load(ConfigIO.Builder builder) {
+        ConfigIO config = builder.build();
+        assertTrue(config.loadFromFile());
+        return config;
+    }
+
+    @Test
+    public void reloadSwapsOnlyTheChangedKeys() {
+        for (String name : new String[]{"config.json", "config.xml", "config.cfgb", "journal.json"}) {
+            ConfigIO.Builder builder = new ConfigIO.Builder(path(name)).setJournalEnabled(name.startsWith("journal"));
+            ConfigIO writer = builder.build();
+            assertTrue(name, writer.getWriter().putInt("a", 1).putString("b", "x").putInt("c", 3).commit());
+            ConfigIO reader = load(builder);
+            final List<Set<String>> batches = new ArrayList<>();
+            reader.registerOnChangeListener(new ConfigIO.OnChangeListener() {
+                @Override
+                public void onChanged(ConfigIO config, Set<String> keys) {
+                    batches.add(new HashSet<>(keys));
+                }
+            });
+            // Nothing changed, nothing is parsed or reported
+            assertFalse(name, reader.reload());
+
+            assertTrue(name, writer.getWriter().putInt("a", 2).remove("c").putInt("d", 4).commit());
+            assertTrue(name, reader.reload());
+            assertEquals(name, 2, reader.getInt("a", 0));
+            assertEquals(name, "x", reader.getString("b", null));
+            assertFalse(name, reader.contains("c"));
+            assertEquals(name, 4, reader.getInt("d", 0));
+            assertEquals(name, Arrays.asList(new HashSet<>(Arrays.asList("a", "c", "d"))), batches);
+            assertFalse(name, reader.reload());
+        }
+    }
+
+    @Test
+    public void reloadSeesRewriteWithSameSizeAndTime() throws IOException {
+        File file = new File(path("config.json"));
+        writeFile(file, "{\"a\":1}");
+        long modified = file.lastModified();
+        ConfigIO reader = load(new ConfigIO.Builder(file.getPath()));
+
+        writeFile(file, "{\"a\":2}");
+        assertTrue(file.setLastModified(modified));
+        assertTrue(reader.reload());
+        assertEquals(2, reader.getInt("a", 0));
+    }
+
+    @Test
+    public void reloadKeepsUnwrittenLocalEdits() {
+        ConfigIO.Builder builder = new ConfigIO.Builder(path("config.json"));
+        ConfigIO other = builder.build();
+        assertTrue(other.getWriter().putInt("a", 1).putInt("b", 1).commit());
+        ConfigIO config = load(builder);
+        // The monitor of the config keeps its background write from running
+        synchronized (config) {
+            config.getWriter().putInt("a", 5).apply();
+            assertTrue(other.getWriter().putInt("a", 2).putInt("b", 2).commit());
+            assertTrue(config.reload());
+            assertEquals(5, config.getInt("a", 0));
+            assertEquals(2, config.getInt("b", 0));
+        }
+        config.flush();
+        ConfigIO loaded = load(builder);
+        assertEquals(5, loaded.getInt("a", 0));
+        assertEquals(2, loaded.getInt("b", 0));
+    }
+
+    @Test
+    public void reloadOfDeletedFileRemovesTheKeys() {
+        ConfigIO.Builder builder = new ConfigIO.Builder(path("config.json"));
+        assertTrue(builder.build().getWriter().putInt("a", 1).commit());
+        ConfigIO config = load(builder);
+        assertTrue(new File(path("config.json")).delete());
+        assertTrue(config.reload());
+        assertFalse(config.contains("a"));
+        assertFalse(config.reload());
+    }
+
+    @Test
+    public void watcherReloadsInBackground() {
+        ConfigIO.Builder builder = new ConfigIO.Builder(path("config.json"));
+        assertTrue(builder.build().getWriter().putInt("a", 1).commit());
+        FileConfig config = (FileConfig) load(new ConfigIO.Builder(path("config.json")).setWatchFile(true));
+        assertTrue(builder.build().getWriter().putInt("a", 2).commit());
+
+        // The observer gets the names of every file of the directory
+        config.onFileEvent("other.json");
+        config.flush();
+        assertEquals(1, config.getInt("a", 0));
+        config.onFileEvent("config.json");
+        // The reload runs on the write thread before the flush
+        config.flush();
+        assertEquals(2, config.getInt("a", 0));
+    }
+}
@@ -0,0 +1,125 @@
+/*
+*  Copyright (C) 2016 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.configio;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ShardedConfigTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private String mPath;
+    private File mDir;
+
+    @Before
+    public void setUp() {
+        mPath = new File(mFolder.getRoot(), "config.json").getPath();
+        mDir = new File(mPath + ShardedConfig.SUFFIX);
+    }
+
+    private ConfigIO loadShard(int index) {
+        ConfigIO shard = new ConfigIO.Builder(new File(mDir, index + ".json").getPath()).build();
+        shard.loadFromFile();
+        return shard;
+    }
+
+    @Test
+    public void keysGoToTheShardOfTheirPrefix() {
+        ConfigIO config = new ConfigIO.Builder(mPath).setShardPrefixes("feature.", "net.").build();
+        assertTrue(config.getWriter().putInt("feature.a", 1).putString("net.host", "h").putInt("other", 2)
+                .commit());
+
+        assertEquals(1, loadShard(0).getInt("feature.a", 0));
+        assertEquals("h", loadShard(1).getString("net.host", null));
+        assertEquals(2, loadShard(2).getInt("other", 0));
+
+        ConfigIO loaded = new ConfigIO.Builder(mPath).build();
+        assertTrue(loaded.loadFromFile());
+        assertEquals(1, loaded.getInt("feature.a", 0));
+        assertEquals("h", loaded.getString("net.host", null));
+        assertEquals(2, loaded.getInt("other", 0));
+    }
+
+    @Test
+    public void pathsGoToTheShardOfTheirPrefix() {
+        ConfigIO config = new ConfigIO.Builder(mPath).setShardPrefixes("feature.").build();
+        assertTrue(config.getWriter().putPath("feature.flags.dark", true).putInt("other", 1).commit());
+        assertTrue(config.getBoolean("feature.flags.dark", false));
+
+        assertTrue(loadShard(0).getBoolean("feature.flags.dark", false));
+        assertFalse(loadShard(1).contains("feature"));
+
+        ConfigIO loaded = new ConfigIO.Builder(mPath).build();
+        assertTrue(loaded.loadFromFile());
+        assertTrue(loaded.getBoolean("feature.flags.dark", false));
+        assertTrue(loaded.getWriter().removePath("feature.flags.dark").commit());
+        assertFalse(loaded.contains("feature.flags.dark"));
+    }
+
+    @Test
+    public void pathsOfOneKeyStayInOneHashShard() {
+        ConfigIO config = new ConfigIO.Builder(mPath).setShardCount(4).build();
+        ConfigIO.Writer writer = config.getWriter();
+        for (int i = 0; i < 16; i++) {
+            writer.putPath("net.retry" + i, i);
+        }
+        assertTrue(writer.commit());
+
+        int shards = 0;
+        for (int i = 0; i < 4; i++) {
+            Map<String, ?> all = loadShard(i).getAll();
+            if (all.containsKey("net")) {
+                assertEquals(16, ((Map<?, ?>) all.get("net")).size());
+                shards++;
+            }
+        }
+        assertEquals(1, shards);
+        assertEquals(15, config.getInt("net.retry15", 0));
+    }
+
+    @Test
+    public void brokenManifestFallsBackToTheBuilder() throws IOException {
+        ConfigIO config = new ConfigIO.Builder(mPath).setShardPrefixes("feature.").build();
+        assertTrue(config.getWriter().putInt("feature.a", 1).putInt("other", 2).commit());
+        FileOutputStream out = new FileOutputStream(new File(mDir, ShardedConfig.MANIFEST));
+        out.write("version x\n".getBytes("UTF-8"));
+        out.close();
+
+        ConfigIO loaded = new ConfigIO.Builder(mPath).setShardPrefixes("feature.").build();
+        assertFalse(loaded.loadFromFile());
+        assertEquals(1, loaded.getInt("feature.a", 0));
+        // The next commit writes the manifest again
+        assertTrue(loaded.getWriter().putInt("other", 3).commit());
+
+        ConfigIO again = new ConfigIO.Builder(mPath).build();
+        assertTrue(again.loadFromFile());
+        assertEquals(1, again.getInt("feature.a", 0));
+        assertEquals(3, again.getInt("other", 0));
+    }
+}
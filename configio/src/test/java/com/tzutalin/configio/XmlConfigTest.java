@@ -0,0 +1,324 @@
+/*
+*  Copyright (C) 2016 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.configio;
+
+import com.tzutalin.configio.utils.FastXmlReader;
+import com.tzutalin.configio.utils.FastXmlSerializer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class XmlConfigTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    // The size of the text buffer of FastXmlSerializer
+    private static final int BUFFER_LEN = 8192;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static String repeat(char c, int count) {
+        StringBuilder str = new StringBuilder(count);
+        for (int i = 0; i < count; i++) {
+            str.append(c);
+        }
+        return str.toString();
+    }
+
+    @Test
+    public void serializerKeepsSurrogatePairAtBufferBoundary() throws Exception {
+        // Put the pair at every position around the end of the buffer, and around the end of the chunks
+        for (int prefix = BUFFER_LEN - 4; prefix <= BUFFER_LEN + 4; prefix++) {
+            String text = repeat('x', prefix) + "😀" + repeat('y', 9000);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            FastXmlSerializer serializer = new FastXmlSerializer();
+            serializer.setOutput(out, "UTF-8");
+            serializer.text(text);
+            serializer.text(text);
+            serializer.endDocument();
+            assertEquals("prefix " + prefix, text + text, new String(out.toByteArray(), UTF_8));
+        }
+    }
+
+    @Test
+    public void serializerReplacesUnpairedSurrogate() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FastXmlSerializer serializer = new FastXmlSerializer();
+        serializer.setOutput(out, "UTF-8");
+        serializer.text("a\uD83D");
+        serializer.endDocument();
+        assertEquals("a?", new String(out.toByteArray(), UTF_8));
+    }
+
+    @Test
+    public void largeStringWithSurrogatePairRoundTrips() throws Exception {
+        String path = new File(mFolder.getRoot(), "config.xml").getPath();
+        String value = repeat('x', 8191) + "😀" + repeat('y', 9000);
+        ConfigIO config = new ConfigIO.Builder(path).build();
+        assertTrue(config.getWriter().putString("large", value).putInt("int", 1).commit());
+
+        ConfigIO loaded = new ConfigIO.Builder(path).build();
+        assertTrue(loaded.loadFromFile());
+        assertEquals(value, loaded.getString("large", null));
+        assertEquals(1, loaded.getInt("int", 0));
+    }
+
+    @Test
+    public void lazyNumbersDecodeOnGetAndWriteBack() throws Exception {
+        String path = new File(mFolder.getRoot(), "lazy.xml").getPath();
+        ConfigIO config = new ConfigIO.Builder(path).build();
+        assertTrue(config.getWriter().putInt("int", 7).putLong("long", 1L << 40).putFloat("float", 1.5f)
+                .putString("str", "s").commit());
+
+        ConfigIO lazy = new ConfigIO.Builder(path).setLazyLoad(true).build();
+        assertTrue(lazy.loadFromFile());
+        assertEquals(1L << 40, lazy.getLong("long", 0));
+        // Numbers which were never read are written back from their text
+        assertTrue(lazy.getWriter().putString("str", "t").commit());
+
+        ConfigIO loaded = new ConfigIO.Builder(path).build();
+        assertTrue(loaded.loadFromFile());
+        assertEquals(7, loaded.getInt("int", 0));
+        assertEquals(1L << 40, loaded.getLong("long", 0));
+        assertEquals(1.5f, loaded.getFloat("float", 0), 0);
+        assertEquals("t", loaded.getString("str", null));
+    }
+
+    private static FastXmlReader reader(String xml) {
+        byte[] data = xml.getBytes(UTF_8);
+        return new FastXmlReader(data, 0, data.length);
+    }
+
+    /**
+     * @return the reader at the only element of a map
+     */
+    private static FastXmlReader valueReader(String element) throws IOException {
+        FastXmlReader reader = reader("<map>" + element + "</map>");
+        assertEquals(FastXmlReader.MAP, reader.next());
+        reader.next();
+        return reader;
+    }
+
+    @Test
+    public void readerReadsEveryElement() throws IOException {
+        FastXmlReader reader = reader("<?xml version='1.0' encoding='utf-8' standalone='yes' ?>\n"
+                + "<!-- written by hand -->\n"
+                + "<map>\n"
+                + "    <string name=\"s\">a &amp; b &lt;&gt; &quot;&apos; &#10;&#x1F600; é中</string>\n"
+                + "    <string name=\"empty\" />\n"
+                + "    <int name=\"i\" value=\"-2147483648\" />\n"
+                + "    <long name=\"l\" value='9223372036854775807'></long>\n"
+                + "    <float name=\"f\" value=\"1.5\" />\n"
+                + "    <double name=\"d\" value=\"-0.25\" />\n"
+                + "    <boolean name=\"b\" value=\"TRUE\" />\n"
+                + "    <null name=\"n\" />\n"
+                + "    <string-array num=\"2\" name=\"a\">\n"
+                + "        <item value=\"x\" />\n"
+                + "        <item value=\"\" />\n"
+                + "    </string-array>\n"
+                + "    <map name=\"m\"><map name=\"inner\"/></map>\n"
+                + "</map>\n");
+        assertEquals(FastXmlReader.MAP, reader.next());
+        assertEquals(FastXmlReader.STRING, reader.next());
+        assertEquals("s", reader.getName());
+        assertEquals("a & b <> \"' \n😀 é中", reader.getString());
+        assertEquals(FastXmlReader.STRING, reader.next());
+        assertEquals("", reader.getString());
+        assertEquals(FastXmlReader.INT, reader.next());
+        assertEquals(Integer.MIN_VALUE, reader.getInt());
+        assertEquals(FastXmlReader.LONG, reader.next());
+        assertEquals(Long.MAX_VALUE, reader.getLong());
+        assertEquals(FastXmlReader.FLOAT, reader.next());
+        assertEquals(1.5f, reader.getFloat(), 0);
+        assertEquals(FastXmlReader.DOUBLE, reader.next());
+        assertEquals(-0.25, reader.getDouble(), 0);
+        assertEquals("-0.25", reader.getValueText());
+        assertEquals(FastXmlReader.BOOLEAN, reader.next());
+        assertTrue(reader.getBoolean());
+        assertEquals(FastXmlReader.NULL, reader.next());
+        assertEquals("n", reader.getName());
+        assertEquals(FastXmlReader.STRING_ARRAY, reader.next());
+        assertEquals(2, reader.getCount());
+        assertEquals(FastXmlReader.ITEM, reader.next());
+        assertEquals("x", reader.getString());
+        assertEquals(FastXmlReader.ITEM, reader.next());
+        assertEquals("", reader.getString());
+        assertEquals(FastXmlReader.END_TAG, reader.next());
+        assertEquals(FastXmlReader.MAP, reader.next());
+        assertEquals("m", reader.getName());
+        assertEquals(FastXmlReader.MAP, reader.next());
+        assertEquals("inner", reader.getName());
+        assertEquals(FastXmlReader.END_TAG, reader.next());
+        assertEquals(FastXmlReader.END_TAG, reader.next());
+        assertEquals(FastXmlReader.END_TAG, reader.next());
+        assertEquals(FastXmlReader.END_DOCUMENT, reader.next());
+    }
+
+    @Test
+    public void readerParsesNumbersLikeTheJdk() throws IOException {
+        Random random = new Random(42);
+        for (int i = 0; i < 20000; i++) {
+            long digits = (random.nextLong() >>> 1) >>> random.nextInt(63);
+            String text = (random.nextBoolean() ? "-" : "") + digits;
+            int point = random.nextInt(text.length() + 1);
+            if (point > 0 && text.charAt(point - 1) != '-') {
+                text = text.substring(0, point) + "." + text.substring(point);
+            }
+            String element = "<double name=\"d\" value=\"" + text + "\" />";
+            assertEquals(text, Double.parseDouble(text), valueReader(element).getDouble(), 0);
+            element = "<float name=\"f\" value=\"" + text + "\" />";
+            assertEquals(text, Float.parseFloat(text), valueReader(element).getFloat(), 0);
+        }
+        String[] other = {"1.0E10", "1e-5", "NaN", "-Infinity", "+3.25", "0.1", "-0.0", "3.4028235E38"};
+        for (String text : other) {
+            assertEquals(text, Double.parseDouble(text),
+                    valueReader("<double name=\"d\" value=\"" + text + "\" />").getDouble(), 0);
+            assertEquals(text, Float.parseFloat(text),
+                    valueReader("<float name=\"f\" value=\"" + text + "\" />").getFloat(), 0);
+        }
+        assertEquals(Long.MIN_VALUE, valueReader("<long name=\"l\" value=\"-9223372036854775808\" />").getLong());
+        assertEquals(7, valueReader("<int name=\"i\" value=\"+7\" />").getInt());
+        assertFalse(valueReader("<boolean name=\"b\" value=\"yes\" />").getBoolean());
+        assertTrue(valueReader("<boolean name=\"b\" value=\"tr&#117;e\" />").getBoolean());
+    }
+
+    @Test
+    public void readerRejectsBadNumbers() {
+        String[] broken = {"<int name=\"i\" value=\"2147483648\" />", "<int name=\"i\" value=\"12a\" />",
+                "<int name=\"i\" value=\"\" />", "<int name=\"i\" value=\"-\" />", "<int name=\"i\" />",
+                "<long name=\"l\" value=\"9223372036854775808\" />",
+                "<long name=\"l\" value=\"12345678901234567890\" />", "<float name=\"f\" value=\"x\" />",
+                "<double name=\"d\" value=\"1..2\" />"};
+        for (String element : broken) {
+            try {
+                FastXmlReader reader = valueReader(element);
+                switch (element.charAt(1)) {
+                    case 'i':
+                        reader.getInt();
+                        break;
+                    case 'l':
+                        reader.getLong();
+                        break;
+                    case 'f':
+                        reader.getFloat();
+                        break;
+                    default:
+                        reader.getDouble();
+                        break;
+                }
+                fail("Accepted " + element);
+            } catch (IOException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void readerRejectsWhatItLeavesToTheGenericParser() {
+        String[] broken = {"<map>", "<map></string>", "<map>text</map>", "<map><unknown /></map>",
+                "<!DOCTYPE map><map />", "<map><string name=\"s\"><![CDATA[x]]></string></map>",
+                "<map><!-- open </map>", "<map><string name=\"s\">a &nbsp; b</string></map>",
+                "<map><string name=\"s\">a &#xFFFFFFF; b</string></map>",
+                "<map><string name=\"s\">a\r\nb</string></map>", "<map><string name=\"s\">é",
+                "<map><int name=i value=\"1\" /></map>", "<map><int name=\"i\" value=\"1\"></map>",
+                "<map><string-array name=\"a\"></string-array></map>", "<map></map></map>",
+                "<map><item value=\"\n\" /></map>"};
+        for (String xml : broken) {
+            try {
+                FastXmlReader reader = reader(xml);
+                int type;
+                while ((type = reader.next()) != FastXmlReader.END_DOCUMENT) {
+                    if (type == FastXmlReader.STRING_ARRAY) {
+                        reader.getCount();
+                    } else if (type != FastXmlReader.MAP && type != FastXmlReader.END_TAG) {
+                        reader.getName();
+                        reader.getString();
+                    }
+                }
+                fail("Accepted " + xml);
+            } catch (IOException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void readerRejectsMalformedUtf8() {
+        byte[][] broken = {{(byte) 0xC3}, {(byte) 0xE4, (byte) 0xB8}, {(byte) 0x80}, {(byte) 0xC3, 'a'},
+                {(byte) 0xFF}};
+        for (byte[] text : broken) {
+            byte[] prefix = "<map><string name=\"s\">".getBytes(UTF_8);
+            byte[] suffix = "</string></map>".getBytes(UTF_8);
+            byte[] data = new byte[prefix.length + text.length + suffix.length];
+            System.arraycopy(prefix, 0, data, 0, prefix.length);
+            System.arraycopy(text, 0, data, prefix.length, text.length);
+            System.arraycopy(suffix, 0, data, prefix.length + text.length, suffix.length);
+            try {
+                FastXmlReader reader = new FastXmlReader(data, 0, data.length);
+                reader.next();
+                reader.next();
+                reader.getString();
+                fail("Accepted " + String.format(Locale.ROOT, "%02x", text[0]));
+            } catch (IOException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void readerReadsPartOfArray() throws IOException {
+        byte[] data = "xx<map><int name=\"i\" value=\"5\" /></map>yy".getBytes(UTF_8);
+        FastXmlReader reader = new FastXmlReader(data, 2, data.length - 4);
+        assertEquals(FastXmlReader.MAP, reader.next());
+        assertEquals(FastXmlReader.INT, reader.next());
+        assertEquals(5, reader.getInt());
+        assertEquals(FastXmlReader.END_TAG, reader.next());
+        assertEquals(FastXmlReader.END_DOCUMENT, reader.next());
+    }
+
+    @Test
+    public void readerReadsWhatTheSerializerWrites() throws Exception {
+        String path = new File(mFolder.getRoot(), "all.xml").getPath();
+        String text = "<&>\"' \n\té中😀";
+        ConfigIO config = new ConfigIO.Builder(path).setIndentOutput(true).build();
+        assertTrue(config.getWriter().putString("s", text).putInt("i", Integer.MAX_VALUE)
+                .putLong("l", Long.MIN_VALUE).putFloat("f", 3.4028235e38f).putDouble("d", 4.9e-324)
+                .putBoolean("b", false).putPath("m.n", 1).commit());
+
+        ConfigIO loaded = new ConfigIO.Builder(path).build();
+        assertTrue(loaded.loadFromFile());
+        assertEquals(text, loaded.getString("s", null));
+        assertEquals(Integer.MAX_VALUE, loaded.getInt("i", 0));
+        assertEquals(Long.MIN_VALUE, loaded.getLong("l", 0));
+        assertEquals(3.4028235e38f, loaded.getFloat("f", 0), 0);
+        assertEquals(4.9e-324, loaded.getDouble("d", 0), 0);
+        assertFalse(loaded.getBoolean("b", true));
+        assertEquals(1, loaded.getInt("m.n", 0));
+    }
+}